@@ -24,10 +24,19 @@ package org.glyptodon.guacamole.auth.callback;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import javax.servlet.http.HttpServletRequest;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.auth.Credentials;
 import org.apache.guacamole.net.auth.credentials.CredentialsInfo;
 import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsException;
+import org.glyptodon.guacamole.auth.callback.audit.AuditEvent;
+import org.glyptodon.guacamole.auth.callback.audit.AuditService;
+import org.glyptodon.guacamole.auth.callback.cache.SessionResumptionService;
+import org.glyptodon.guacamole.auth.callback.cache.UserDataCacheService;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.glyptodon.guacamole.auth.callback.tenant.TenantService;
 import org.glyptodon.guacamole.auth.callback.user.AuthenticatedUser;
 import org.glyptodon.guacamole.auth.callback.user.UserContext;
 import org.glyptodon.guacamole.auth.callback.user.UserData;
@@ -45,6 +54,44 @@ public class AuthenticationProviderService {
     @Inject
     private CallbackService callbackService;
 
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * Service for caching UserData objects produced by the callback.
+     */
+    @Inject
+    private UserDataCacheService cacheService;
+
+    /**
+     * Service for issuing and accepting session resumption tokens.
+     */
+    @Inject
+    private SessionResumptionService resumptionService;
+
+    /**
+     * Service for recording events describing slow authentication attempts.
+     */
+    @Inject
+    private CallbackEvents events;
+
+    /**
+     * Service for maintaining the audit trail of authentication outcomes.
+     */
+    @Inject
+    private AuditService auditService;
+
+    /**
+     * Service for routing authentication attempts to the callbacks of
+     * individual tenants.
+     */
+    @Inject
+    private TenantService tenantService;
+
     /**
      * Provider for AuthenticatedUser objects.
      */
@@ -57,6 +104,53 @@ public class AuthenticationProviderService {
     @Inject
     private Provider<UserContext> userContextProvider;
 
+    /**
+     * Adds the outcome of an authentication attempt to the audit trail, if an
+     * audit trail is maintained.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @param tenant
+     *     The tenant to which the authentication attempt was routed, or null
+     *     if no tenant applies.
+     *
+     * @param outcome
+     *     The outcome of the authentication attempt, as defined by
+     *     AuditEvent.
+     *
+     * @param source
+     *     The source of the UserData for the authentication attempt.
+     *
+     * @param nanos
+     *     The duration of the authentication attempt, in nanoseconds.
+     */
+    private void audit(Credentials credentials, Tenant tenant, String outcome,
+            String source, long nanos) {
+
+        if (!auditService.isEnabled())
+            return;
+
+        HttpServletRequest request = credentials.getRequest();
+        String remoteAddress = request != null ? request.getRemoteAddr() : null;
+
+        // Describe the callback without any credentials it may contain
+        String endpoint;
+        try {
+            CallbackConfiguration config = confService.getConfiguration();
+            endpoint = config.useMockService() ? "mock"
+                    : CallbackEvents.describe(tenant != null
+                            ? tenant.getCallbackURI() : config.getCallbackURI());
+        }
+        catch (GuacamoleException e) {
+            endpoint = null;
+        }
+
+        auditService.record(new AuditEvent(credentials.getUsername(),
+                remoteAddress, outcome, source, nanos / 1000000, endpoint));
+
+    }
+
     /**
      * Returns an AuthenticatedUser representing the user authenticated by the
      * given credentials.
@@ -75,15 +169,83 @@ public class AuthenticationProviderService {
     public AuthenticatedUser authenticateUser(Credentials credentials)
             throws GuacamoleException {
 
-        // Request UserData for the given credentials
-        UserData userData = callbackService.retrieveUserData(credentials);
+        long start = System.nanoTime();
+        String source = CallbackEvents.SOURCE_RESUME;
+        Tenant tenant = tenantService.getTenant(credentials);
+        UserData userData;
+
+        // Whether a new session resumption token may be issued for the
+        // UserData. Tokens are issued only for UserData actually received
+        // from the callback, and never to extend a resumed session, such
+        // that resumption cannot outlive the original token or bypass
+        // revocation by the callback.
+        boolean resumable = false;
+
+        try {
+
+            // Bound the entire authentication attempt by the configured
+            // deadline
+            Deadline deadline = Deadline.after(confService.getDeadline());
+
+            // Resume prior session if a valid resumption token was provided
+            userData = resumptionService.resume(credentials, tenant);
+
+            // Otherwise, use cached UserData for identical authentication
+            // attempts of the same tenant, if any
+            if (userData == null) {
+
+                source = CallbackEvents.SOURCE_CACHE;
+                String cacheKey = tenantService.partition(tenant,
+                        cacheService.getKey(credentials));
+                userData = cacheService.get(cacheKey);
+                resumable = true;
+
+                // Request UserData for the given credentials only if not
+                // cached, caching only UserData actually received from the
+                // callback such that fallbacks used during an outage are not
+                // served after the callback recovers
+                if (userData == null) {
+                    source = CallbackEvents.SOURCE_CALLBACK;
+                    CallbackResult result = callbackService.retrieveUserData(
+                            credentials, tenant, deadline);
+                    userData = result.getUserData();
+                    resumable = result.isLive();
+                    if (result.isLive())
+                        cacheService.put(cacheKey, userData);
+                }
+
+            }
+
+        }
+
+        // Audit failures before reporting them
+        catch (GuacamoleException e) {
+            audit(credentials, tenant, AuditEvent.OUTCOME_ERROR, source,
+                    System.nanoTime() - start);
+            throw e;
+        }
+
+        long duration = System.nanoTime() - start;
+        events.recordAttempt(source, userData != null, duration);
+        audit(credentials, tenant, userData != null ? AuditEvent.OUTCOME_SUCCESS
+                : AuditEvent.OUTCOME_REJECTED, source, duration);
+
         if (userData == null)
             throw new GuacamoleInvalidCredentialsException("Permission denied.",
                     CredentialsInfo.EMPTY);
 
+        // Resumed sessions keep the original token and its expiration
+        String resumeToken;
+        if (CallbackEvents.SOURCE_RESUME.equals(source))
+            resumeToken = resumptionService.getToken(credentials);
+        else if (resumable)
+            resumeToken = resumptionService.issue(userData, tenant);
+        else
+            resumeToken = null;
+
         // Produce AuthenticatedUser associated with derived UserData
         AuthenticatedUser authenticatedUser = authenticatedUserProvider.get();
-        authenticatedUser.init(credentials, userData);
+        authenticatedUser.init(credentials, userData, resumeToken, tenant);
         return authenticatedUser;
 
     }
@@ -113,7 +275,9 @@ public class AuthenticationProviderService {
         // Return UserContext containing data from the authenticated user's
         // associated UserData object
         UserContext userContext = userContextProvider.get();
-        userContext.init(((AuthenticatedUser) authenticatedUser).getUserData());
+        AuthenticatedUser user = (AuthenticatedUser) authenticatedUser;
+        userContext.init(user.getUserData(), user.getResumeToken(),
+                user.getTokenValues(), user.getHistoryScope());
         return userContext;
 
     }
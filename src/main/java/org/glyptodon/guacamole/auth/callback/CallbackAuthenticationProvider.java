@@ -30,6 +30,9 @@ import org.apache.guacamole.net.auth.AuthenticatedUser;
 import org.apache.guacamole.net.auth.AuthenticationProvider;
 import org.apache.guacamole.net.auth.Credentials;
 import org.apache.guacamole.net.auth.UserContext;
+import org.glyptodon.guacamole.auth.callback.audit.AuditService;
+import org.glyptodon.guacamole.auth.callback.cache.UserDataSnapshotService;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
 
 /**
  * Allows users to be authenticated through invoking an arbitrary HTTP
@@ -58,6 +61,18 @@ public class CallbackAuthenticationProvider implements AuthenticationProvider {
         // Set up Guice injector.
         injector = Guice.createInjector(new CallbackAuthenticationProviderModule(this));
 
+        // Read configuration, watching for subsequent changes
+        injector.getInstance(ConfigurationService.class).start();
+
+        // Restore any snapshot of callback responses from before restart
+        injector.getInstance(UserDataSnapshotService.class).start();
+
+        // Begin writing audit trail of authentication outcomes, if enabled
+        injector.getInstance(AuditService.class).start();
+
+        // Prepare for first use, if enabled
+        injector.getInstance(WarmUpService.class).warmUp();
+
     }
 
     @Override
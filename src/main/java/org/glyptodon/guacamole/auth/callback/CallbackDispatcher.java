@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+
+/**
+ * Admits requests to callbacks according to their priority, such that
+ * requests made on behalf of interactive authentication attempts always take
+ * precedence over requests made by background work. If the number of
+ * concurrent requests is limited via "callback-max-requests", interactive
+ * requests wait, in order of arrival, only for a request to complete, while
+ * background requests additionally wait until no interactive request is
+ * waiting and fewer than the configured share of requests are background
+ * requests. If the number of concurrent requests is not limited, all
+ * requests are admitted immediately.
+ */
+@Singleton
+public class CallbackDispatcher {
+
+    /**
+     * Lock guarding all counters. The lock is fair, such that interactive
+     * requests are admitted in order of arrival.
+     */
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    /**
+     * Signalled when an interactive request may be able to proceed.
+     */
+    private final Condition interactiveAvailable = lock.newCondition();
+
+    /**
+     * Signalled when a background request may be able to proceed.
+     */
+    private final Condition backgroundAvailable = lock.newCondition();
+
+    /**
+     * The number of admitted requests which have not yet been released.
+     */
+    private int active;
+
+    /**
+     * The number of admitted background requests which have not yet been
+     * released.
+     */
+    private int activeBackground;
+
+    /**
+     * The number of interactive requests waiting to be admitted.
+     */
+    private int waitingInteractive;
+
+    /**
+     * Waits for the given condition to be signalled, or for the given
+     * deadline to expire. The lock must be held.
+     *
+     * @param condition
+     *     The condition to wait for.
+     *
+     * @param deadline
+     *     The deadline of the request.
+     *
+     * @return
+     *     true if the condition may have been signalled, false if the
+     *     deadline expired or the current thread was interrupted.
+     */
+    private boolean await(Condition condition, Deadline deadline) {
+
+        try {
+
+            if (!deadline.isBounded()) {
+                condition.await();
+                return true;
+            }
+
+            long remaining = deadline.getRemaining();
+            return remaining > 0 && condition.await(remaining, TimeUnit.MILLISECONDS);
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+    }
+
+    /**
+     * Wakes a single waiting request which may now be able to proceed,
+     * preferring interactive requests. The lock must be held.
+     */
+    private void signal() {
+        if (waitingInteractive > 0)
+            interactiveAvailable.signal();
+        else
+            backgroundAvailable.signal();
+    }
+
+    /**
+     * Returns the maximum number of concurrent background requests allowed
+     * by the given configuration. Background work is always allowed at least
+     * one request unless its share is zero.
+     *
+     * @param config
+     *     The configuration defining the maximum number of concurrent
+     *     requests and the share available to background work.
+     *
+     * @return
+     *     The maximum number of concurrent background requests.
+     */
+    private static int getBackgroundLimit(CallbackConfiguration config) {
+
+        int share = config.getBackgroundShare();
+        if (share == 0)
+            return 0;
+
+        return Math.max(1, config.getMaxRequests() * share / 100);
+
+    }
+
+    /**
+     * Waits until a request of the given priority may be made, or until the
+     * given deadline expires. If admitted, release() must be invoked with
+     * the same priority once the request has completed.
+     *
+     * @param config
+     *     The configuration defining the maximum number of concurrent
+     *     requests and the share available to background work.
+     *
+     * @param interactive
+     *     true if the request is made on behalf of an interactive
+     *     authentication attempt, false if the request is background work.
+     *
+     * @param deadline
+     *     The deadline of the request.
+     *
+     * @return
+     *     true if the request was admitted, false if the deadline expired
+     *     first.
+     */
+    public boolean acquire(CallbackConfiguration config, boolean interactive,
+            Deadline deadline) {
+
+        int max = config.getMaxRequests();
+
+        lock.lock();
+        try {
+
+            // Interactive requests wait only for any free slot
+            if (interactive) {
+
+                waitingInteractive++;
+                try {
+                    while (max > 0 && active >= max) {
+                        if (!await(interactiveAvailable, deadline))
+                            return false;
+                    }
+                }
+                finally {
+                    waitingInteractive--;
+                }
+
+            }
+
+            // Background requests use only spare capacity within their share
+            else {
+                int backgroundLimit = getBackgroundLimit(config);
+                while (max > 0 && (active >= max || waitingInteractive > 0
+                        || activeBackground >= backgroundLimit)) {
+                    if (!await(backgroundAvailable, deadline))
+                        return false;
+                }
+                activeBackground++;
+            }
+
+            active++;
+            return true;
+
+        }
+        finally {
+
+            // Pass on any signal which this request could not use
+            if (max > 0 && active < max)
+                signal();
+
+            lock.unlock();
+
+        }
+
+    }
+
+    /**
+     * Releases a request admitted by acquire(), allowing waiting requests to
+     * proceed.
+     *
+     * @param interactive
+     *     The priority passed to acquire().
+     */
+    public void release(boolean interactive) {
+
+        lock.lock();
+        try {
+
+            active--;
+            if (!interactive)
+                activeBackground--;
+
+            signal();
+
+        }
+        finally {
+            lock.unlock();
+        }
+
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.net.URI;
+import org.apache.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which records events describing slow callback requests,
+ * authentication attempts, reads of the default response, and directory
+ * builds. Each event is logged as a single line of space-separated key=value
+ * pairs on the logger of this class, such that events can be routed to a
+ * dedicated log and processed by external tools. Only events lasting at least
+ * as long as the configured threshold for their type are recorded, keeping
+ * the overhead of the remaining events to a single comparison.
+ */
+@Singleton
+public class CallbackEvents {
+
+    /**
+     * Logger for this class, to which all events are written.
+     */
+    private final Logger logger = LoggerFactory.getLogger(CallbackEvents.class);
+
+    /**
+     * The number of nanoseconds in a millisecond.
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * The source of UserData which was provided through a session resumption
+     * token.
+     */
+    public static final String SOURCE_RESUME = "resume";
+
+    /**
+     * The source of UserData which was retrieved from the cache.
+     */
+    public static final String SOURCE_CACHE = "cache";
+
+    /**
+     * The source of UserData which was retrieved by invoking the callback.
+     */
+    public static final String SOURCE_CALLBACK = "callback";
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * Returns whether an event of the given duration should be recorded.
+     *
+     * @param nanos
+     *     The duration of the event, in nanoseconds.
+     *
+     * @param threshold
+     *     The minimum duration of recorded events, in milliseconds.
+     *
+     * @return
+     *     true if the event should be recorded, false otherwise.
+     */
+    private boolean isRecorded(long nanos, int threshold) {
+        return logger.isInfoEnabled() && nanos >= threshold * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the current callback configuration, or null if the
+     * configuration is invalid. Events are not recorded while the
+     * configuration is invalid, as that failure is already logged elsewhere.
+     *
+     * @return
+     *     The current callback configuration, or null if the configuration is
+     *     invalid.
+     */
+    private CallbackConfiguration getConfiguration() {
+        try {
+            return confService.getConfiguration();
+        }
+        catch (GuacamoleException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the host, port, and path of the given endpoint, omitting any
+     * user information or query parameters which may contain secrets.
+     *
+     * @param endpoint
+     *     The endpoint to describe.
+     *
+     * @return
+     *     The host, port, and path of the given endpoint.
+     */
+    static String describe(URI endpoint) {
+
+        if (endpoint == null)
+            return "-";
+
+        StringBuilder description = new StringBuilder();
+        description.append(endpoint.getHost());
+        if (endpoint.getPort() != -1)
+            description.append(':').append(endpoint.getPort());
+        if (endpoint.getRawPath() != null)
+            description.append(endpoint.getRawPath());
+
+        return description.toString();
+
+    }
+
+    /**
+     * Converts the given duration from nanoseconds to fractional
+     * milliseconds, for the sake of logging.
+     *
+     * @param nanos
+     *     The duration to convert, in nanoseconds.
+     *
+     * @return
+     *     The given duration, in milliseconds.
+     */
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / (double) NANOS_PER_MILLI);
+    }
+
+    /**
+     * Records an event describing a single request to the callback, if that
+     * request took at least as long as the configured attempt threshold.
+     * The time taken to connect and the time until the first byte of the
+     * response cannot be distinguished through the Jersey client, and are
+     * thus recorded together as the request time.
+     *
+     * @param endpoint
+     *     The callback endpoint invoked.
+     *
+     * @param tenant
+     *     The name of the tenant owning the callback endpoint, or null if the
+     *     endpoint is not specific to a tenant.
+     *
+     * @param status
+     *     The HTTP status code of the response, or 0 if no response was
+     *     received.
+     *
+     * @param family
+     *     The family of the HTTP status code of the response, or "FAILED" if
+     *     no response was received.
+     *
+     * @param bytes
+     *     The number of bytes of the response body read.
+     *
+     * @param requestNanos
+     *     The time taken to send the request (including all retries) and
+     *     receive the response headers, in nanoseconds.
+     *
+     * @param parseNanos
+     *     The time taken to read and parse the response body, in nanoseconds.
+     */
+    public void recordRequest(URI endpoint, String tenant, int status, String family,
+            long bytes, long requestNanos, long parseNanos) {
+
+        CallbackConfiguration config = getConfiguration();
+        if (config == null || !isRecorded(requestNanos + parseNanos,
+                config.getEventAttemptThreshold()))
+            return;
+
+        logger.info("event=callback-request endpoint={} tenant={} status={} "
+                + "family={} bytes={} request_ms={} parse_ms={}", new Object[] {
+                describe(endpoint), tenant != null ? tenant : "-", status,
+                family, bytes,
+                toMillis(requestNanos), toMillis(parseNanos)
+        });
+
+    }
+
+    /**
+     * Records an event describing a single authentication attempt, if that
+     * attempt took at least as long as the configured attempt threshold.
+     *
+     * @param source
+     *     The source of the UserData for the authentication attempt, as
+     *     defined by SOURCE_RESUME, SOURCE_CACHE, or SOURCE_CALLBACK.
+     *
+     * @param success
+     *     Whether the authentication attempt succeeded.
+     *
+     * @param nanos
+     *     The duration of the authentication attempt, in nanoseconds.
+     */
+    public void recordAttempt(String source, boolean success, long nanos) {
+
+        CallbackConfiguration config = getConfiguration();
+        if (config == null || !isRecorded(nanos, config.getEventAttemptThreshold()))
+            return;
+
+        logger.info("event=authentication source={} cache={} success={} "
+                + "duration_ms={}", new Object[] {
+                source,
+                SOURCE_CALLBACK.equals(source) ? "miss" : "hit",
+                success, toMillis(nanos)
+        });
+
+    }
+
+    /**
+     * Records an event describing a read of the default response, if that
+     * read took at least as long as the configured default response
+     * threshold.
+     *
+     * @param file
+     *     The file containing the default response.
+     *
+     * @param success
+     *     Whether the default response was read successfully.
+     *
+     * @param nanos
+     *     The duration of the read, in nanoseconds.
+     */
+    public void recordDefaultResponseLoad(File file, boolean success,
+            long nanos) {
+
+        CallbackConfiguration config = getConfiguration();
+        if (config == null || !isRecorded(nanos,
+                config.getEventDefaultResponseThreshold()))
+            return;
+
+        logger.info("event=default-response file={} bytes={} success={} "
+                + "duration_ms={}", new Object[] {
+                file, file.length(), success, toMillis(nanos)
+        });
+
+    }
+
+    /**
+     * Records an event describing the build of a user's connection directory
+     * or connection group tree, if that build took at least as long as the
+     * configured directory threshold.
+     *
+     * @param type
+     *     The type of directory built, such as "connections" or "groups".
+     *
+     * @param size
+     *     The number of objects within the directory.
+     *
+     * @param nanos
+     *     The duration of the build, in nanoseconds.
+     */
+    public void recordDirectoryBuild(String type, int size, long nanos) {
+
+        CallbackConfiguration config = getConfiguration();
+        if (config == null || !isRecorded(nanos,
+                config.getEventDirectoryThreshold()))
+            return;
+
+        logger.info("event=directory-build type={} size={} duration_ms={}",
+                new Object[] { type, size, toMillis(nanos) });
+
+    }
+
+}
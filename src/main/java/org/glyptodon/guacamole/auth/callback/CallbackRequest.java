@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * A request to a callback which has been fully built, but not yet sent. The
+ * request consists of the resource receiving the request, including any
+ * query parameters, and an optional body. As the body is stored as bytes,
+ * the same request may be sent again when retried.
+ */
+public class CallbackRequest {
+
+    /**
+     * The resource receiving the request.
+     */
+    private final WebResource resource;
+
+    /**
+     * The body of the request, or null if the request has no body.
+     */
+    private final byte[] entity;
+
+    /**
+     * The media type of the body of the request, or null if the request has
+     * no body.
+     */
+    private final String type;
+
+    /**
+     * Creates a new CallbackRequest having the given body.
+     *
+     * @param resource
+     *     The resource receiving the request. Timeouts are set on this
+     *     resource each time the request is sent, thus it must not be shared
+     *     with other requests.
+     *
+     * @param entity
+     *     The body of the request, or null if the request has no body.
+     *
+     * @param type
+     *     The media type of the body of the request, or null if the request
+     *     has no body.
+     */
+    public CallbackRequest(WebResource resource, byte[] entity, String type) {
+        this.resource = resource;
+        this.entity = entity;
+        this.type = type;
+    }
+
+    /**
+     * Creates a new CallbackRequest having no body.
+     *
+     * @param resource
+     *     The resource receiving the request. Timeouts are set on this
+     *     resource each time the request is sent, thus it must not be shared
+     *     with other requests.
+     */
+    public CallbackRequest(WebResource resource) {
+        this(resource, null, null);
+    }
+
+    /**
+     * Returns the resource receiving the request.
+     *
+     * @return
+     *     The resource receiving the request.
+     */
+    public WebResource getResource() {
+        return resource;
+    }
+
+    /**
+     * Returns the body of the request. The returned array must not be
+     * modified.
+     *
+     * @return
+     *     The body of the request, or null if the request has no body.
+     */
+    public byte[] getEntity() {
+        return entity;
+    }
+
+    /**
+     * Returns the media type of the body of the request.
+     *
+     * @return
+     *     The media type of the body of the request, or null if the request
+     *     has no body.
+     */
+    public String getType() {
+        return type;
+    }
+
+}
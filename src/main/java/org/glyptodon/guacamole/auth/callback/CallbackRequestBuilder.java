@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.api.client.Client;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MediaType;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+
+/**
+ * Service which builds the requests sent to the authentication callback and
+ * additional sources from the parameters of authentication attempts. All
+ * forwarded parameters are encoded in a single pass into a per-thread
+ * buffer, producing either the complete query string of the request or its
+ * body, such that the cost of building a request grows only linearly with
+ * the number of parameters.
+ */
+@Singleton
+public class CallbackRequestBuilder {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Hexadecimal digits used for percent-encoding, in order of value.
+     */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The initial capacity of the buffer of each thread, in characters.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * The largest buffer retained by each thread between requests, in
+     * characters. Buffers grown beyond this size by unusually large requests
+     * are discarded once those requests are built.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+    /**
+     * The encoding buffer of each thread, reused for every request built by
+     * that thread.
+     */
+    private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+
+    };
+
+    /**
+     * Jersey REST client.
+     */
+    @Inject
+    private Client client;
+
+    /**
+     * Appends the given value to the given buffer, percent-encoding the
+     * UTF-8 representation of every character other than the unreserved
+     * characters of RFC 3986.
+     *
+     * @param encoded
+     *     The buffer to append to.
+     *
+     * @param value
+     *     The value to encode.
+     */
+    private static void appendPercentEncoded(StringBuilder encoded,
+            String value) {
+
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+
+            char c = value.charAt(i);
+
+            // Unreserved characters are never encoded
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                    || c == '_' || c == '~') {
+                encoded.append(c);
+                continue;
+            }
+
+            // Determine the code point, combining surrogate pairs
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1)))
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+            // Encode each byte of the UTF-8 representation
+            if (codePoint < 0x80)
+                appendByte(encoded, codePoint);
+            else if (codePoint < 0x800) {
+                appendByte(encoded, 0xC0 | (codePoint >> 6));
+                appendByte(encoded, 0x80 | (codePoint & 0x3F));
+            }
+            else if (codePoint < 0x10000) {
+                appendByte(encoded, 0xE0 | (codePoint >> 12));
+                appendByte(encoded, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(encoded, 0x80 | (codePoint & 0x3F));
+            }
+            else {
+                appendByte(encoded, 0xF0 | (codePoint >> 18));
+                appendByte(encoded, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(encoded, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(encoded, 0x80 | (codePoint & 0x3F));
+            }
+
+        }
+
+    }
+
+    /**
+     * Appends the percent-encoded form of the given byte to the given
+     * buffer.
+     *
+     * @param encoded
+     *     The buffer to append to.
+     *
+     * @param value
+     *     The byte to encode, as an integer between 0 and 255.
+     */
+    private static void appendByte(StringBuilder encoded, int value) {
+        encoded.append('%').append(HEX[(value >> 4) & 0xF]).append(HEX[value & 0xF]);
+    }
+
+    /**
+     * Appends the given value to the given buffer as a JSON string,
+     * including the surrounding quotes.
+     *
+     * @param encoded
+     *     The buffer to append to.
+     *
+     * @param value
+     *     The value to encode.
+     */
+    private static void appendJSONString(StringBuilder encoded, String value) {
+
+        encoded.append('"');
+
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                encoded.append('\\').append(c);
+            else if (c < 0x20)
+                encoded.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            else
+                encoded.append(c);
+
+        }
+
+        encoded.append('"');
+
+    }
+
+    /**
+     * Appends all forwarded parameters to the given buffer as
+     * NAME=VALUE pairs separated by "&", as used by both query strings and
+     * "application/x-www-form-urlencoded" bodies.
+     *
+     * @param encoded
+     *     The buffer to append to.
+     *
+     * @param config
+     *     The configuration defining which parameters are forwarded.
+     *
+     * @param parameters
+     *     All parameters of the authentication attempt.
+     *
+     * @param separate
+     *     Whether a separator must precede the first parameter.
+     */
+    private static void appendForm(StringBuilder encoded,
+            CallbackConfiguration config, Map<String, String[]> parameters,
+            boolean separate) {
+
+        for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+
+            String name = entry.getKey();
+            if (!config.isForwardedParameter(name))
+                continue;
+
+            for (String value : entry.getValue()) {
+
+                if (separate)
+                    encoded.append('&');
+
+                appendPercentEncoded(encoded, name);
+                encoded.append('=');
+                appendPercentEncoded(encoded, value);
+                separate = true;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Appends all forwarded parameters to the given buffer as a JSON object,
+     * where each parameter name is mapped to an array of all its values.
+     *
+     * @param encoded
+     *     The buffer to append to.
+     *
+     * @param config
+     *     The configuration defining which parameters are forwarded.
+     *
+     * @param parameters
+     *     All parameters of the authentication attempt.
+     */
+    private static void appendJSON(StringBuilder encoded,
+            CallbackConfiguration config, Map<String, String[]> parameters) {
+
+        encoded.append('{');
+
+        boolean separate = false;
+        for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+
+            String name = entry.getKey();
+            if (!config.isForwardedParameter(name))
+                continue;
+
+            if (separate)
+                encoded.append(',');
+
+            appendJSONString(encoded, name);
+            encoded.append(":[");
+
+            String[] values = entry.getValue();
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0)
+                    encoded.append(',');
+                appendJSONString(encoded, values[i]);
+            }
+
+            encoded.append(']');
+            separate = true;
+
+        }
+
+        encoded.append('}');
+
+    }
+
+    /**
+     * Builds a request to the given callback which forwards the parameters
+     * of the given authentication attempt, as dictated by the configured
+     * encoding, allowlist and denylist.
+     *
+     * @param config
+     *     The configuration defining how parameters are forwarded.
+     *
+     * @param uri
+     *     The URI of the callback.
+     *
+     * @param request
+     *     The HTTP request of the authentication attempt, or null if no
+     *     parameters are available.
+     *
+     * @return
+     *     A new request to the given callback.
+     */
+    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
+    public CallbackRequest build(CallbackConfiguration config, URI uri,
+            HttpServletRequest request) {
+
+        if (request == null)
+            return new CallbackRequest(client.resource(uri));
+
+        return build(config, uri, (Map<String, String[]>) request.getParameterMap());
+
+    }
+
+    /**
+     * Builds a request to the given callback which sends the given
+     * parameters, as dictated by the configured encoding, allowlist and
+     * denylist.
+     *
+     * @param config
+     *     The configuration defining how parameters are sent.
+     *
+     * @param uri
+     *     The URI of the callback.
+     *
+     * @param parameters
+     *     The parameters to send, where the key of each entry is the
+     *     parameter name and the value is all values of that parameter.
+     *
+     * @return
+     *     A new request to the given callback.
+     */
+    public CallbackRequest build(CallbackConfiguration config, URI uri,
+            Map<String, String[]> parameters) {
+
+        StringBuilder encoded = buffer.get();
+        encoded.setLength(0);
+        try {
+
+            String encoding = config.getParameterEncoding();
+
+            // Send parameters as a JSON object
+            if (CallbackConfiguration.PARAMETER_ENCODING_JSON.equals(encoding)) {
+                appendJSON(encoded, config, parameters);
+                return new CallbackRequest(client.resource(uri),
+                        encoded.toString().getBytes(UTF8),
+                        MediaType.APPLICATION_JSON);
+            }
+
+            // Send parameters as a form
+            if (CallbackConfiguration.PARAMETER_ENCODING_FORM.equals(encoding)) {
+                appendForm(encoded, config, parameters, false);
+                return new CallbackRequest(client.resource(uri),
+                        encoded.toString().getBytes(UTF8),
+                        MediaType.APPLICATION_FORM_URLENCODED);
+            }
+
+            // Otherwise, append parameters to any query string already
+            // within the URI, omitting any fragment
+            String base = uri.toString();
+            int fragment = base.indexOf('#');
+            encoded.append(base, 0, fragment != -1 ? fragment : base.length());
+
+            String query = uri.getRawQuery();
+            if (query == null)
+                encoded.append('?');
+
+            // Drop the query delimiter again if no parameters are forwarded
+            int length = encoded.length();
+            appendForm(encoded, config, parameters,
+                    query != null && !query.isEmpty());
+            if (encoded.length() == length && query == null)
+                encoded.setLength(length - 1);
+
+            return new CallbackRequest(client.resource(URI.create(encoded.toString())));
+
+        }
+
+        // Do not retain buffers grown by unusually large requests
+        finally {
+            if (encoded.capacity() > MAX_RETAINED_BUFFER_SIZE)
+                buffer.remove();
+        }
+
+    }
+
+}
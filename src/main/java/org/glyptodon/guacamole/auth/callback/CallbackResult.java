@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+
+/**
+ * The outcome of retrieving UserData for an authentication attempt. Besides
+ * the UserData itself, the outcome records whether that UserData was
+ * received from the callback in a successful response just now, as opposed
+ * to being a fallback such as the default response or a snapshot of an
+ * earlier response. Only UserData received live may be cached.
+ */
+public class CallbackResult {
+
+    /**
+     * The result of an authentication attempt which was rejected.
+     */
+    public static final CallbackResult REJECTED = new CallbackResult(null, false);
+
+    /**
+     * The UserData for the authentication attempt, or null if the attempt
+     * is rejected.
+     */
+    private final UserData userData;
+
+    /**
+     * Whether the UserData was received from the callback in a successful
+     * response.
+     */
+    private final boolean live;
+
+    /**
+     * Creates a new CallbackResult.
+     *
+     * @param userData
+     *     The UserData for the authentication attempt, or null if the
+     *     attempt is rejected.
+     *
+     * @param live
+     *     Whether the given UserData was received from the callback in a
+     *     successful response, rather than substituted by a fallback.
+     */
+    private CallbackResult(UserData userData, boolean live) {
+        this.userData = userData;
+        this.live = live;
+    }
+
+    /**
+     * Returns a new CallbackResult for UserData received from the callback
+     * in a successful response.
+     *
+     * @param userData
+     *     The UserData received from the callback, or null if the callback
+     *     returned no UserData.
+     *
+     * @return
+     *     A new CallbackResult for the given UserData.
+     */
+    public static CallbackResult live(UserData userData) {
+        return userData != null ? new CallbackResult(userData, true) : REJECTED;
+    }
+
+    /**
+     * Returns a new CallbackResult for UserData which was not received from
+     * the callback, such as the default response or a snapshot of an earlier
+     * response.
+     *
+     * @param userData
+     *     The UserData substituted for a response from the callback, or null
+     *     if no such UserData is available.
+     *
+     * @return
+     *     A new CallbackResult for the given UserData.
+     */
+    public static CallbackResult fallback(UserData userData) {
+        return userData != null ? new CallbackResult(userData, false) : REJECTED;
+    }
+
+    /**
+     * Returns the UserData for the authentication attempt.
+     *
+     * @return
+     *     The UserData for the authentication attempt, or null if the
+     *     attempt is rejected.
+     */
+    public UserData getUserData() {
+        return userData;
+    }
+
+    /**
+     * Returns whether the UserData was received from the callback in a
+     * successful response. If false, the UserData is a fallback and must not
+     * be cached, as doing so would continue serving that fallback after the
+     * callback recovers.
+     *
+     * @return
+     *     true if the UserData was received from the callback in a successful
+     *     response, false otherwise.
+     */
+    public boolean isLive() {
+        return live;
+    }
+
+}
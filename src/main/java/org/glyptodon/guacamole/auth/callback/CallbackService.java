@@ -22,19 +22,32 @@
 
 package org.glyptodon.guacamole.auth.callback;
 
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
 import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceNotFoundException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.auth.callback.cache.UserDataSnapshotService;
+import org.glyptodon.guacamole.auth.callback.record.TrafficRecorder;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.glyptodon.guacamole.auth.callback.tenant.TenantService;
 import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,120 +64,487 @@ public class CallbackService {
     private final Logger logger = LoggerFactory.getLogger(ConfigurationService.class);
 
     /**
-     * Jersey REST client.
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
      */
     @Inject
-    private Client client;
+    private ConfigurationService confService;
 
     /**
-     * Service for retrieving configuration information regarding the
-     * CallbackAuthenticationProvider.
+     * Service for sending requests to the callback, retrying transient
+     * failures.
      */
     @Inject
-    private ConfigurationService confService;
+    private RetryService retryService;
+
+    /**
+     * Service for storing recent successful callback responses such that
+     * they survive restarts and callback outages.
+     */
+    @Inject
+    private UserDataSnapshotService snapshotService;
+
+    /**
+     * Shared reader for the JSON representations of UserData and of
+     * individual connections.
+     */
+    @Inject
+    private UserDataReader userDataReader;
+
+    /**
+     * Service for recording events describing slow callback requests.
+     */
+    @Inject
+    private CallbackEvents events;
+
+    /**
+     * Service for recording the anonymized shape of each request to the
+     * callback.
+     */
+    @Inject
+    private TrafficRecorder recorder;
+
+    /**
+     * Service for routing authentication attempts to the callbacks of
+     * individual tenants.
+     */
+    @Inject
+    private TenantService tenantService;
+
+    /**
+     * Service for querying additional callbacks in parallel with the
+     * authentication callback.
+     */
+    @Inject
+    private FanOutService fanOutService;
+
+    /**
+     * Service for building requests which forward the parameters of
+     * authentication attempts.
+     */
+    @Inject
+    private CallbackRequestBuilder requestBuilder;
 
     /**
-     * Copies all parameter values from the given HTTPServletRequest to a new
-     * Jersey WebResource, using the given WebResource as a basis.
+     * Returns whether a failure to retrieve or parse a response from the
+     * callback was due to the deadline of the authentication attempt
+     * expiring.
      *
-     * @param request
-     *     The HttpServletRequest to copy parameters from.
+     * @param deadline
+     *     The deadline of the authentication attempt.
      *
-     * @param resource
-     *     The WebResource to use as a basis.
+     * @param cause
+     *     The underlying cause of the failure, if known.
      *
      * @return
-     *     A new WebResource identical to the provided WebResource, but with
-     *     query parameters copied from the given HttpServletRequest.
+     *     true if the deadline has expired or the failure was a timeout,
+     *     false otherwise.
      */
-    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
-    private WebResource copyParameters(HttpServletRequest request, WebResource resource) {
+    private boolean isDeadlineExceeded(Deadline deadline, Throwable cause) {
+        return deadline.isExpired() || cause instanceof SocketTimeoutException;
+    }
 
-        // Get explicitly-typed parameter map
-        Map<String, String[]> parameterMap = (Map<String, String[]>)
-                request.getParameterMap();
+    /**
+     * Returns the UserData which should be used for an authentication attempt
+     * which exceeded its deadline, as dictated by the configured deadline
+     * fallback.
+     *
+     * @param config
+     *     The configuration defining the deadline fallback.
+     *
+     * @param snapshotKey
+     *     The key of the snapshot of the most recent response for the same
+     *     parameters, or null if there is no such snapshot.
+     *
+     * @return
+     *     The result containing the UserData which should be used, or no
+     *     UserData if the authentication attempt should be rejected.
+     *
+     * @throws GuacamoleException
+     *     If the snapshot cannot be read.
+     */
+    private CallbackResult getDeadlineFallback(CallbackConfiguration config,
+            String snapshotKey) throws GuacamoleException {
 
-        // For each parameter
-        for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+        String fallback = config.getDeadlineFallback();
+        logger.info("Callback did not respond within the deadline of {} ms. "
+                + "Using fallback \"{}\".", config.getDeadline(), fallback);
 
-            // Add each name/value pair
-            String name = entry.getKey();
-            for (String value : entry.getValue())
-                resource = resource.queryParam(name, value);
+        // Reject outright if configured to do so
+        if (CallbackConfiguration.DEADLINE_FALLBACK_REJECT.equals(fallback))
+            return CallbackResult.REJECTED;
 
+        // Prefer most recent response for the same parameters, if allowed
+        if (CallbackConfiguration.DEADLINE_FALLBACK_STALE.equals(fallback)) {
+            UserData stale = snapshotService.get(snapshotKey);
+            if (stale != null)
+                return CallbackResult.fallback(stale);
         }
 
-        return resource;
+        return CallbackResult.fallback(confService.getDefaultResponse());
 
     }
 
     /**
      * Retrieves a new UserData object by invoking the pre-configured HTTP
-     * callback with the parameters within the given Credentials. If the HTTP
+     * callback, or the callback of the given tenant, with the parameters
+     * within the given Credentials. If the HTTP
      * callback fails, or no UserData can be retrieved and there is no default
-     * UserData available, null is returned.
+     * UserData available, null is returned. If a snapshot of recent
+     * successful responses is maintained, the most recent response for the
+     * same parameters is used if the callback cannot be reached or reports a
+     * server error. Transient failures are first retried as allowed by the
+     * configured retry budget. If the given deadline expires before a
+     * response is received and parsed, the configured deadline fallback is
+     * used. Any additional callbacks are queried in parallel, and the
+     * connections they return within their own deadline are merged into the
+     * result. The result is live only if the callback itself responded
+     * successfully and every additional callback responded in time.
      *
      * @param credentials
      *     The Credentials which should be passed to the HTTP callback.
      *
+     * @param tenant
+     *     The tenant to whose callback the authentication attempt is routed,
+     *     or null if the callback defined by "callback-auth-uri" should be
+     *     used.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
      * @return
-     *     A new UserData object derived from the data returned by the HTTP
-     *     callback, the default UserData object if the HTTP callback succeeded
-     *     but returned no data, or null if no such data is available at all or
-     *     the callback failed.
+     *     The result containing a new UserData object derived from the data
+     *     returned by the HTTP callback, the default UserData object if the
+     *     HTTP callback succeeded but returned no data, or no UserData if no
+     *     such data is available at all or the callback failed.
      *
      * @throws GuacamoleException
      *     If required properties are missing from guacamole.properties, or
      *     provided properties could not be parsed.
      */
-    public UserData retrieveUserData(Credentials credentials)
-            throws GuacamoleException {
+    public CallbackResult retrieveUserData(Credentials credentials, Tenant tenant,
+            Deadline deadline) throws GuacamoleException {
+
+        // Read all settings from the same configuration
+        CallbackConfiguration config = confService.getConfiguration();
+
+        // Locate any snapshot of prior responses for the same parameters,
+        // kept separately for each tenant
+        String snapshotKey = tenantService.partition(tenant,
+                snapshotService.getKey(credentials));
 
         // Use default UserData if we are only mocking service responses
-        if (confService.useMockService())
-            return confService.getDefaultResponse();
+        if (config.useMockService())
+            return CallbackResult.fallback(confService.getDefaultResponse());
+
+        // Use data restored from the snapshot after a restart, if allowed
+        UserData restored = snapshotService.getRestored(snapshotKey);
+        if (restored != null)
+            return CallbackResult.fallback(restored);
+
+        // Otherwise, use the callback of the tenant (if any), waiting for
+        // the tenant's concurrency limit to permit another request
+        URI callbackURI = config.getCallbackURI();
+        if (tenant != null) {
+
+            callbackURI = tenant.getCallbackURI();
+            if (!tenant.acquire(deadline)) {
+                logger.warn("Callback of tenant \"{}\" is at its limit of {} "
+                        + "concurrent requests ({} attempts throttled).",
+                        new Object[] { tenant.getName(), tenant.getLimit(),
+                        tenant.getThrottledRequests() });
+                return getDeadlineFallback(config, snapshotKey);
+            }
 
-        // Otherwise, use defined HTTP callback
+        }
+
+        // Query any additional callbacks in parallel, unless the attempt is
+        // routed to a tenant with its own callback
+        Deadline sourceDeadline = fanOutService.getSourceDeadline(config, deadline);
+        Map<String, Future<UserData>> additional = tenant == null
+                ? fanOutService.submit(config, credentials.getRequest(), sourceDeadline)
+                : Collections.<String, Future<UserData>>emptyMap();
+
+        CallbackResult result;
         try {
+            result = invokeCallback(credentials, config, callbackURI,
+                    tenant != null ? tenant.getName() : null, snapshotKey,
+                    deadline);
+        }
+        finally {
+            if (tenant != null)
+                tenant.release();
+        }
 
-            // Create WebResource for arbitrary callback
-            WebResource resource = client.resource(confService.getCallbackURI());
+        return fanOutService.merge(config, result, additional, sourceDeadline);
 
-            // Copy parameters from credential request, if available
-            HttpServletRequest request = credentials.getRequest();
-            if (request != null)
-                resource = copyParameters(request, resource);
+    }
+
+    /**
+     * Retrieves a new UserData object by invoking the given HTTP callback
+     * with the parameters within the given Credentials, applying the same
+     * fallbacks as retrieveUserData() if the callback fails.
+     *
+     * @param credentials
+     *     The Credentials which should be passed to the HTTP callback.
+     *
+     * @param config
+     *     The configuration of the authentication attempt.
+     *
+     * @param callbackURI
+     *     The HTTP callback to invoke.
+     *
+     * @param tenantName
+     *     The name of the tenant owning the callback, or null if the callback
+     *     is not specific to a tenant.
+     *
+     * @param snapshotKey
+     *     The key of the snapshot of the most recent response for the same
+     *     parameters, or null if there is no such snapshot.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     The result containing a new UserData object derived from the data
+     *     returned by the HTTP callback, the default UserData object if the
+     *     HTTP callback succeeded but returned no data, or no UserData if no
+     *     such data is available at all or the callback failed.
+     *
+     * @throws GuacamoleException
+     *     If the snapshot or default response cannot be read.
+     */
+    private CallbackResult invokeCallback(Credentials credentials,
+            CallbackConfiguration config, URI callbackURI, String tenantName,
+            String snapshotKey, Deadline deadline) throws GuacamoleException {
+
+        // Use defined HTTP callback
+        ClientResponse response;
+        HttpServletRequest request = credentials.getRequest();
+        long requestStart = System.nanoTime();
+        try {
+
+            // Build request forwarding parameters from credential request,
+            // if available
+            CallbackRequest callbackRequest = requestBuilder.build(config,
+                    callbackURI, request);
 
             // Attempt to retrieve UserData
-            ClientResponse response =
-                    resource.accept(MediaType.MEDIA_TYPE_WILDCARD)
-                            .post(ClientResponse.class);
-
-            // Determine status of response
-            switch (response.getClientResponseStatus().getFamily()) {
-
-                // Return nothing if the callback reported an error
-                case CLIENT_ERROR:
-                case SERVER_ERROR:
-                    return null;
-
-                // If the callback reported success, attempt to parse the
-                // response
-                case SUCCESSFUL:
-                    return response.getEntity(UserData.class);
-                    
-            }
+            response = retryService.post(callbackRequest,
+                    MediaType.MEDIA_TYPE_WILDCARD, config, deadline);
 
         }
 
-        // It is expected that simple services will not bother with returning
-        // user data JSON, but will instead rely on the default response
+        // If the callback cannot be reached, use the most recent successful
+        // response for the same parameters (or the default, if available)
         catch (ClientHandlerException e) {
-            logger.debug("Callback response was not valid user data JSON.", e);
+
+            events.recordRequest(callbackURI, tenantName, 0, "FAILED", 0,
+                    System.nanoTime() - requestStart, 0);
+            recorder.record(config, request, 0, 0, null);
+
+            // Apply configured fallback if out of time
+            if (isDeadlineExceeded(deadline, e.getCause()))
+                return getDeadlineFallback(config, snapshotKey);
+
+            logger.debug("Callback could not be reached.", e);
+            UserData stale = snapshotService.get(snapshotKey);
+            return CallbackResult.fallback(stale != null ? stale
+                    : confService.getDefaultResponse());
+        }
+
+        long requestNanos = System.nanoTime() - requestStart;
+
+        // Determine status of response
+        Response.Status.Family family = response.getClientResponseStatus().getFamily();
+        switch (family) {
+
+            // Return nothing if the callback rejected the attempt, and
+            // never use previous responses for those parameters
+            case CLIENT_ERROR:
+                response.close();
+                events.recordRequest(callbackURI, tenantName,
+                        response.getStatus(), family.name(), 0, requestNanos, 0);
+                recorder.record(config, request, response.getStatus(), 0, null);
+                snapshotService.remove(snapshotKey);
+                return CallbackResult.REJECTED;
+
+            // If the callback failed, use the most recent successful
+            // response for the same parameters, if any
+            case SERVER_ERROR:
+                response.close();
+                events.recordRequest(callbackURI, tenantName,
+                        response.getStatus(), family.name(), 0, requestNanos, 0);
+                recorder.record(config, request, response.getStatus(), 0, null);
+                return CallbackResult.fallback(snapshotService.get(snapshotKey));
+
+            // If the callback reported success, attempt to parse the
+            // response
+            case SUCCESSFUL:
+
+                long parseStart = System.nanoTime();
+                CountingInputStream entity = new CountingInputStream(response.getEntityInputStream());
+                UserData userData = null;
+                try {
+                    userData = userDataReader.read(entity);
+                    if (userData != null)
+                        snapshotService.put(snapshotKey, userData);
+                    return CallbackResult.live(userData);
+                }
+
+                // It is expected that simple services will not bother with
+                // returning user data JSON, but will instead rely on the
+                // default response
+                catch (IOException e) {
+
+                    // Apply configured fallback if out of time
+                    if (isDeadlineExceeded(deadline, e))
+                        return getDeadlineFallback(config, snapshotKey);
+
+                    logger.debug("Callback response was not valid user data JSON.", e);
+
+                }
+
+                // Release the connection regardless of whether the response
+                // was parsed
+                finally {
+                    response.close();
+                    events.recordRequest(callbackURI, tenantName,
+                            response.getStatus(), family.name(),
+                            entity.getCount(), requestNanos,
+                            System.nanoTime() - parseStart);
+                    recorder.record(config, request, response.getStatus(),
+                            entity.getCount(), userData);
+                }
+
+                break;
+
+            // Release the connection of any other response, which is not
+            // valid user data
+            default:
+                response.close();
+
         }
 
         // If callback did not return valid JSON, use default (if available)
-        return confService.getDefaultResponse();
+        return CallbackResult.fallback(confService.getDefaultResponse());
+
+    }
+
+    /**
+     * Retrieves the parameters of the connection having the given identifier
+     * by invoking the pre-configured HTTP callback for connection parameters.
+     * This is only necessary for connections whose parameters were omitted
+     * from the UserData returned by the authentication callback. The username
+     * of the user, if any, and the identifier of the connection are passed to
+     * the HTTP callback as the "username" and "connection" parameters
+     * respectively, encoded like the parameters forwarded to the
+     * authentication callback, and the callback must return JSON defining
+     * the connection in the same format as the connections within UserData.
+     *
+     * @param userData
+     *     The UserData of the user requesting the connection parameters.
+     *
+     * @param identifier
+     *     The identifier of the connection whose parameters should be
+     *     retrieved.
+     *
+     * @return
+     *     A map of all parameter name/value pairs associated with the
+     *     connection, or null if no such parameters can be retrieved
+     *     separately because no callback for connection parameters is
+     *     configured.
+     *
+     * @throws GuacamoleException
+     *     If the HTTP callback fails, reports that the connection does not
+     *     exist, or returns a response which is not a valid connection
+     *     definition.
+     */
+    public Map<String, String> retrieveConnectionParameters(UserData userData,
+            String identifier) throws GuacamoleException {
+
+        // Read all settings from the same configuration
+        CallbackConfiguration config = confService.getConfiguration();
+
+        // Pull parameters from default UserData if only mocking responses
+        if (config.useMockService()) {
+
+            UserData defaultResponse = confService.getDefaultResponse();
+            if (defaultResponse == null || defaultResponse.getConnections() == null)
+                return null;
+
+            UserData.Connection connection = defaultResponse.getConnections().get(identifier);
+            if (connection == null)
+                return null;
+
+            return connection.getParameters();
+
+        }
+
+        // Parameters cannot be retrieved separately if no callback is defined
+        URI parametersURI = config.getParametersURI();
+        if (parametersURI == null)
+            return null;
+
+        // Identify the connection, and the user only if the user has a
+        // username
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        String username = userData.getUsername();
+        if (username != null && !username.isEmpty())
+            parameters.put("username", new String[] { username });
+        parameters.put("connection", new String[] { identifier });
+
+        try {
+
+            // Request parameters of the given connection only
+            ClientResponse response = retryService.post(
+                    requestBuilder.build(config, parametersURI, parameters),
+                    MediaType.APPLICATION_JSON, config,
+                    Deadline.after(config.getDeadline()));
+
+            try {
+
+                // Determine status of response
+                switch (response.getClientResponseStatus().getFamily()) {
+
+                    // Connections which the callback does not recognize do
+                    // not exist for the current user
+                    case CLIENT_ERROR:
+                        throw new GuacamoleResourceNotFoundException("No such "
+                                + "connection: \"" + identifier + "\"");
+
+                    // If the callback reported success, parse the returned
+                    // connection definition
+                    case SUCCESSFUL:
+                        UserData.Connection connection = userDataReader.readConnection(
+                                response.getEntityInputStream());
+                        if (connection != null)
+                            return connection.getParameters();
+                        break;
+
+                }
+
+            }
+
+            // Release the connection regardless of the response
+            finally {
+                response.close();
+            }
+
+        }
+
+        // Parameters are required for the connection to be usable at all
+        catch (ClientHandlerException e) {
+            throw new GuacamoleServerException("Connection parameters could "
+                    + "not be retrieved from the callback.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Callback did not return a "
+                    + "valid definition of connection \"" + identifier + "\".", e);
+        }
+
+        throw new GuacamoleServerException("Callback did not return the "
+                + "parameters of connection \"" + identifier + "\".");
 
     }
 
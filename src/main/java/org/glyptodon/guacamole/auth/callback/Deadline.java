@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback;
+
+/**
+ * The point in time by which an authentication attempt, including all
+ * requests to the callback, must complete. Deadlines are measured using
+ * System.nanoTime() and are thus unaffected by changes to the system clock.
+ */
+public class Deadline {
+
+    /**
+     * A deadline which never expires.
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    /**
+     * The number of nanoseconds in a millisecond.
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * The value of System.nanoTime() at which this deadline expires, or
+     * Long.MAX_VALUE if this deadline never expires.
+     */
+    private final long expires;
+
+    /**
+     * Creates a new deadline which expires when System.nanoTime() reaches
+     * the given value.
+     *
+     * @param expires
+     *     The value of System.nanoTime() at which the deadline expires, or
+     *     Long.MAX_VALUE if the deadline never expires.
+     */
+    private Deadline(long expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * Returns a new deadline which expires after the given number of
+     * milliseconds.
+     *
+     * @param millis
+     *     The number of milliseconds until the deadline expires, or zero if
+     *     the deadline should never expire.
+     *
+     * @return
+     *     A new deadline expiring after the given number of milliseconds.
+     */
+    public static Deadline after(long millis) {
+
+        if (millis <= 0)
+            return NONE;
+
+        return new Deadline(System.nanoTime() + millis * NANOS_PER_MILLI);
+
+    }
+
+    /**
+     * Returns whether this deadline ever expires.
+     *
+     * @return
+     *     true if this deadline expires at some point, false otherwise.
+     */
+    public boolean isBounded() {
+        return expires != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of whole milliseconds remaining until this deadline
+     * expires.
+     *
+     * @return
+     *     The number of milliseconds remaining, zero if this deadline has
+     *     expired, or Long.MAX_VALUE if this deadline never expires.
+     */
+    public long getRemaining() {
+
+        if (!isBounded())
+            return Long.MAX_VALUE;
+
+        return Math.max(0, (expires - System.nanoTime()) / NANOS_PER_MILLI);
+
+    }
+
+    /**
+     * Returns whichever of this deadline and the given deadline expires
+     * first.
+     *
+     * @param other
+     *     The deadline to compare against.
+     *
+     * @return
+     *     This deadline if it expires no later than the given deadline, or
+     *     the given deadline otherwise.
+     */
+    public Deadline earliest(Deadline other) {
+
+        if (!isBounded())
+            return other;
+
+        if (!other.isBounded())
+            return this;
+
+        return expires - other.expires <= 0 ? this : other;
+
+    }
+
+    /**
+     * Returns whether this deadline has expired.
+     *
+     * @return
+     *     true if this deadline has expired, false otherwise.
+     */
+    public boolean isExpired() {
+        return getRemaining() == 0;
+    }
+
+}
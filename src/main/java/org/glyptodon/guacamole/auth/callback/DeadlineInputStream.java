@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * InputStream which fails once a deadline has expired, such that reading
+ * and parsing the response of a callback cannot continue past the deadline
+ * of the authentication attempt. The socket timeouts of a request bound only
+ * each individual read, thus a response trickling a few bytes at a time, or
+ * a response which is slow to parse, could otherwise take arbitrarily long.
+ * The deadline is checked before each read, thus a single read which is
+ * already blocked is still bounded only by the read timeout of the request.
+ */
+public class DeadlineInputStream extends FilterInputStream {
+
+    /**
+     * The deadline after which all reads fail.
+     */
+    private final Deadline deadline;
+
+    /**
+     * Creates a new DeadlineInputStream which reads from the given
+     * InputStream until the given deadline expires.
+     *
+     * @param in
+     *     The InputStream to read from.
+     *
+     * @param deadline
+     *     The deadline after which all reads fail.
+     */
+    public DeadlineInputStream(InputStream in, Deadline deadline) {
+        super(in);
+        this.deadline = deadline;
+    }
+
+    /**
+     * Verifies that the deadline has not yet expired.
+     *
+     * @throws SocketTimeoutException
+     *     If the deadline has expired.
+     */
+    private void checkDeadline() throws SocketTimeoutException {
+        if (deadline.isExpired())
+            throw new SocketTimeoutException("Deadline expired while reading "
+                    + "response from callback.");
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkDeadline();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkDeadline();
+        return super.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+        checkDeadline();
+        return super.skip(length);
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.api.client.ClientResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MediaType;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataMerger;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which queries the additional callbacks defined via
+ * "callback-additional-sources" in parallel with the authentication callback,
+ * merging the connections they return with those of the authentication
+ * callback. Each additional callback is bounded by its own deadline, and
+ * callbacks which fail or do not respond in time are omitted, such that a
+ * slow additional callback results in partial connections rather than a slow
+ * login.
+ */
+@Singleton
+public class FanOutService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(FanOutService.class);
+
+    /**
+     * Service for building requests which forward the parameters of
+     * authentication attempts.
+     */
+    @Inject
+    private CallbackRequestBuilder requestBuilder;
+
+    /**
+     * Service for sending requests to callbacks, retrying transient
+     * failures.
+     */
+    @Inject
+    private RetryService retryService;
+
+    /**
+     * Shared reader for the JSON representation of UserData.
+     */
+    @Inject
+    private UserDataReader userDataReader;
+
+    /**
+     * Creates new daemon threads for querying additional callbacks.
+     */
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "callback-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    };
+
+    /**
+     * The threads querying additional callbacks. Threads are created as
+     * needed and discarded after a minute of disuse.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(THREAD_FACTORY);
+
+    /**
+     * Queries the given additional callback, returning the UserData within
+     * its response.
+     *
+     * @param request
+     *     The request to the additional callback, including all forwarded
+     *     parameters of the authentication attempt.
+     *
+     * @param config
+     *     The configuration of the authentication attempt.
+     *
+     * @param deadline
+     *     The deadline of the request to the additional callback.
+     *
+     * @return
+     *     The UserData returned by the additional callback, or null if the
+     *     callback did not report success or returned no UserData.
+     *
+     * @throws IOException
+     *     If the response of the callback is not valid UserData.
+     */
+    private UserData query(CallbackRequest request, CallbackConfiguration config,
+            Deadline deadline) throws IOException {
+
+        ClientResponse response = retryService.post(request,
+                MediaType.APPLICATION_JSON, config, deadline);
+        try {
+
+            if (response.getStatus() / 100 != 2)
+                return null;
+
+            return userDataReader.read(response.getEntityInputStream());
+
+        }
+        finally {
+            response.close();
+        }
+
+    }
+
+    /**
+     * Returns the deadline of requests to additional callbacks made for an
+     * authentication attempt starting now, which is the earlier of the
+     * configured per-callback deadline and the deadline of the
+     * authentication attempt.
+     *
+     * @param config
+     *     The configuration of the authentication attempt.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     The deadline of requests to additional callbacks.
+     */
+    public Deadline getSourceDeadline(CallbackConfiguration config,
+            Deadline deadline) {
+        return deadline.earliest(Deadline.after(config.getSourceDeadline()));
+    }
+
+    /**
+     * Begins querying all additional callbacks for the given authentication
+     * attempt. The results must later be collected with merge().
+     *
+     * @param config
+     *     The configuration of the authentication attempt.
+     *
+     * @param request
+     *     The HTTP request of the authentication attempt, whose parameters
+     *     are passed to each additional callback, or null if there are no
+     *     parameters.
+     *
+     * @param deadline
+     *     The deadline of requests to the additional callbacks, as returned
+     *     by getSourceDeadline().
+     *
+     * @return
+     *     The pending result of each additional callback, keyed by the name
+     *     of that callback, in the order defined. This map is empty if there
+     *     are no additional callbacks.
+     */
+    public Map<String, Future<UserData>> submit(final CallbackConfiguration config,
+            HttpServletRequest request, final Deadline deadline) {
+
+        Map<String, URI> sources = config.getAdditionalSources();
+        if (sources.isEmpty())
+            return Collections.<String, Future<UserData>>emptyMap();
+
+        Map<String, Future<UserData>> pending = new LinkedHashMap<String, Future<UserData>>();
+        for (Map.Entry<String, URI> source : sources.entrySet()) {
+
+            // Build request while still within the request thread
+            final CallbackRequest sourceRequest = requestBuilder.build(config,
+                    source.getValue(), request);
+            pending.put(source.getKey(), executor.submit(new Callable<UserData>() {
+
+                @Override
+                public UserData call() throws IOException {
+                    return query(sourceRequest, config, deadline);
+                }
+
+            }));
+
+        }
+
+        return pending;
+
+    }
+
+    /**
+     * Waits for the given pending results of additional callbacks, up to the
+     * per-callback deadline, merging all results received with the given
+     * UserData from the authentication callback. If the authentication
+     * callback did not return UserData, all pending requests are cancelled.
+     * The merged result is live only if the given result is live and every
+     * additional callback responded in time.
+     *
+     * @param config
+     *     The configuration of the authentication attempt.
+     *
+     * @param primary
+     *     The result of invoking the authentication callback.
+     *
+     * @param pending
+     *     The pending results returned by submit().
+     *
+     * @param deadline
+     *     The deadline of requests to the additional callbacks, as passed to
+     *     submit().
+     *
+     * @return
+     *     The result containing the merged UserData, or the given result if
+     *     there were no additional results or the given result contains no
+     *     UserData.
+     */
+    public CallbackResult merge(CallbackConfiguration config,
+            CallbackResult primary, Map<String, Future<UserData>> pending,
+            Deadline deadline) {
+
+        if (pending.isEmpty())
+            return primary;
+
+        // Additional callbacks cannot authenticate users by themselves
+        if (primary.getUserData() == null) {
+            for (Future<UserData> result : pending.values())
+                result.cancel(true);
+            return primary;
+        }
+
+        // Results missing the connections of any additional callback are
+        // not complete, and thus not live
+        boolean complete = true;
+
+        Map<String, UserData> additional = new LinkedHashMap<String, UserData>();
+        for (Map.Entry<String, Future<UserData>> result : pending.entrySet()) {
+
+            String name = result.getKey();
+            try {
+                additional.put(name, result.getValue().get(
+                        deadline.getRemaining(), TimeUnit.MILLISECONDS));
+            }
+            catch (TimeoutException e) {
+                result.getValue().cancel(true);
+                complete = false;
+                logger.info("Additional callback \"{}\" did not respond in "
+                        + "time. Its connections will be omitted.", name);
+            }
+            catch (ExecutionException e) {
+                complete = false;
+                logger.info("Additional callback \"{}\" failed: {}", name,
+                        e.getCause().getMessage());
+                logger.debug("Additional callback failed.", e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.getValue().cancel(true);
+                complete = false;
+            }
+
+        }
+
+        UserDataMerger merger = new UserDataMerger(config.getMergePolicy());
+        UserData merged = merger.merge(primary.getUserData(), additional);
+        if (merger.getConflicts() > 0)
+            logger.debug("{} connection(s) from additional callbacks were "
+                    + "ignored due to conflicting identifiers.",
+                    merger.getConflicts());
+
+        return complete && primary.isLive() ? CallbackResult.live(merged)
+                : CallbackResult.fallback(merged);
+
+    }
+
+}
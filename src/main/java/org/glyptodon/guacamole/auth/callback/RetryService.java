@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which sends requests to the callback, retrying requests which fail
+ * transiently. Retries are delayed using exponential backoff with full
+ * jitter, and are limited by a retry budget shared by all requests, such that
+ * retries cannot multiply the load on a callback which is failing outright.
+ * Each attempt, including reading its response, is bounded by the deadline
+ * of the authentication attempt, which is also sent to the callback such
+ * that it may abandon requests whose results will not be used.
+ */
+@Singleton
+public class RetryService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(RetryService.class);
+
+    /**
+     * The name of the HTTP header containing the number of milliseconds
+     * remaining before the deadline of the authentication attempt expires.
+     * This header is omitted if the authentication attempt has no deadline.
+     */
+    public static final String DEADLINE_HEADER = "Guacamole-Callback-Deadline";
+
+    /**
+     * The number of budget units withdrawn by each retry. Each request
+     * deposits a number of units equal to the configured retry budget, such
+     * that a budget of 10 permits 10 retries per 100 requests.
+     */
+    private static final long RETRY_COST = 100;
+
+    /**
+     * The maximum number of budget units which may accumulate, equivalent to
+     * 10 retries. This is also the initial balance, allowing a handful of
+     * retries before any requests have been made.
+     */
+    private static final long MAX_BALANCE = 10 * RETRY_COST;
+
+    /**
+     * The largest shift applied to the backoff delay, preventing overflow
+     * when a large number of retries is configured.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    /**
+     * Dispatcher admitting requests to callbacks by priority.
+     */
+    @Inject
+    private CallbackDispatcher dispatcher;
+
+    /**
+     * The HTTP status codes which indicate that the callback, or a proxy in
+     * front of it, is temporarily unable to handle the request.
+     */
+    private static final int[] RETRYABLE_STATUSES = { 502, 503, 504 };
+
+    /**
+     * The current balance of the retry budget, in budget units.
+     */
+    private final AtomicLong balance = new AtomicLong(MAX_BALANCE);
+
+    /**
+     * Source of jitter for backoff delays.
+     */
+    private final Random random = new Random();
+
+    /**
+     * InputStream which releases the slot admitting a request to the
+     * callback once the response to that request is closed, such that the
+     * slot remains held while the response is read.
+     */
+    private class AdmittedInputStream extends FilterInputStream {
+
+        /**
+         * Whether the slot has been released.
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Creates a new AdmittedInputStream which reads from the given
+         * InputStream, the body of the response to an admitted request.
+         *
+         * @param in
+         *     The InputStream to read from.
+         */
+        public AdmittedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                if (released.compareAndSet(false, true))
+                    dispatcher.release(true);
+            }
+        }
+
+    }
+
+    /**
+     * Deposits the given number of units into the retry budget, without
+     * exceeding the maximum balance.
+     *
+     * @param units
+     *     The number of units to deposit.
+     */
+    private void deposit(long units) {
+
+        long current;
+        do {
+            current = balance.get();
+            if (current >= MAX_BALANCE)
+                return;
+        } while (!balance.compareAndSet(current, Math.min(MAX_BALANCE, current + units)));
+
+    }
+
+    /**
+     * Withdraws the cost of a single retry from the retry budget, if the
+     * balance is sufficient.
+     *
+     * @return
+     *     true if the retry is permitted, false if the budget is exhausted.
+     */
+    private boolean withdraw() {
+
+        long current;
+        do {
+            current = balance.get();
+            if (current < RETRY_COST)
+                return false;
+        } while (!balance.compareAndSet(current, current - RETRY_COST));
+
+        return true;
+
+    }
+
+    /**
+     * Returns whether the given response status indicates a transient
+     * failure which may succeed if retried.
+     *
+     * @param status
+     *     The HTTP status code of the response.
+     *
+     * @return
+     *     true if the request may be retried, false otherwise.
+     */
+    static boolean isRetryable(int status) {
+
+        for (int retryable : RETRYABLE_STATUSES) {
+            if (status == retryable)
+                return true;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns whether the given failure occurred while establishing the
+     * connection to the callback, such as a refused connection or an
+     * unreachable host, and may succeed if retried. As the request was never
+     * sent, retrying cannot cause the callback to process it twice. Failures
+     * after the connection was established, such as a reset connection, are
+     * not retried, as the callback may already have processed the request.
+     * Timeouts are not considered transient, as retrying would only multiply
+     * the time spent waiting.
+     *
+     * @param e
+     *     The failure to test.
+     *
+     * @return
+     *     true if the request may be retried, false otherwise.
+     */
+    static boolean isRetryable(ClientHandlerException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof ConnectException
+                || cause instanceof NoRouteToHostException;
+    }
+
+    /**
+     * Returns the duration to wait before the given retry: a random duration
+     * between zero and the configured backoff doubled for each preceding
+     * retry.
+     *
+     * @param config
+     *     The configuration defining the backoff.
+     *
+     * @param retry
+     *     The number of the retry about to be made, starting at zero.
+     *
+     * @return
+     *     The number of milliseconds to wait before the retry.
+     */
+    private long getDelay(CallbackConfiguration config, int retry) {
+        long maxDelay = ((long) config.getRetryBackoff()) << Math.min(retry, MAX_BACKOFF_SHIFT);
+        return (long) (random.nextDouble() * maxDelay);
+    }
+
+    /**
+     * Waits for the given duration.
+     *
+     * @param delay
+     *     The number of milliseconds to wait.
+     *
+     * @return
+     *     true if the full duration elapsed, false if the current thread was
+     *     interrupted while waiting.
+     */
+    private boolean sleep(long delay) {
+
+        try {
+            Thread.sleep(delay);
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+    }
+
+    /**
+     * Sends a single POST request, bounded by the given deadline.
+     *
+     * @param request
+     *     The request to send.
+     *
+     * @param accept
+     *     The media type accepted in response.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     The response to the request.
+     *
+     * @throws ClientHandlerException
+     *     If the deadline has already expired, or the request could not be
+     *     completed.
+     */
+    private ClientResponse send(CallbackRequest request, String accept,
+            Deadline deadline) throws ClientHandlerException {
+
+        WebResource resource = request.getResource();
+        byte[] entity = request.getEntity();
+
+        if (!deadline.isBounded()) {
+            WebResource.Builder builder = resource.accept(accept);
+            if (entity != null)
+                builder = builder.entity(entity, request.getType());
+            return builder.post(ClientResponse.class);
+        }
+
+        long remaining = deadline.getRemaining();
+        if (remaining == 0)
+            throw new ClientHandlerException("Deadline expired before request "
+                    + "to callback could be sent.");
+
+        // Limit both connecting and each read to the time remaining
+        int timeout = (int) Math.min(Integer.MAX_VALUE, remaining);
+        resource.setProperty(ClientConfig.PROPERTY_CONNECT_TIMEOUT, timeout);
+        resource.setProperty(ClientConfig.PROPERTY_READ_TIMEOUT, timeout);
+
+        WebResource.Builder builder = resource.accept(accept)
+                .header(DEADLINE_HEADER, Long.toString(remaining));
+        if (entity != null)
+            builder = builder.entity(entity, request.getType());
+
+        return builder.post(ClientResponse.class);
+
+    }
+
+    /**
+     * Sends a single POST request once the dispatcher admits it, bounded by
+     * the given deadline. Requests sent through this service are made on
+     * behalf of authentication attempts, and thus take precedence over
+     * background work. The request remains admitted until its response is
+     * closed, and reading the body of the response fails once the deadline
+     * expires.
+     *
+     * @param request
+     *     The request to send.
+     *
+     * @param accept
+     *     The media type accepted in response.
+     *
+     * @param config
+     *     The configuration defining the maximum number of concurrent
+     *     requests.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     The response to the request, which must be closed.
+     *
+     * @throws ClientHandlerException
+     *     If the deadline expires before the request is admitted or sent, or
+     *     the request could not be completed.
+     */
+    private ClientResponse dispatch(CallbackRequest request, String accept,
+            CallbackConfiguration config, Deadline deadline)
+            throws ClientHandlerException {
+
+        if (!dispatcher.acquire(config, true, deadline))
+            throw new ClientHandlerException(new SocketTimeoutException(
+                    "Deadline expired while waiting to send request to "
+                    + "callback."));
+
+        // Release if the request fails outright
+        ClientResponse response = null;
+        try {
+            response = send(request, accept, deadline);
+        }
+        finally {
+            if (response == null)
+                dispatcher.release(true);
+        }
+
+        // Release immediately if there is no body to read
+        InputStream entity = response.getEntityInputStream();
+        if (entity == null) {
+            dispatcher.release(true);
+            return response;
+        }
+
+        // Otherwise, hold the slot until the response is closed
+        if (deadline.isBounded())
+            entity = new DeadlineInputStream(entity, deadline);
+        response.setEntityInputStream(new AdmittedInputStream(entity));
+        return response;
+
+    }
+
+    /**
+     * Sends a POST request, retrying transient failures as allowed by the
+     * given configuration, the retry budget, and the given deadline. If all
+     * attempts fail, the result of the final attempt is returned or thrown.
+     *
+     * @param request
+     *     The request to send. Timeouts are set on the resource of this
+     *     request for each attempt, thus it must not be shared with other
+     *     requests.
+     *
+     * @param accept
+     *     The media type accepted in response.
+     *
+     * @param config
+     *     The configuration defining the number of retries, backoff, and
+     *     retry budget.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     The response to the final attempt, which must be closed. Reading
+     *     the body of this response fails once the deadline expires.
+     *
+     * @throws ClientHandlerException
+     *     If the final attempt could not be completed, including if the
+     *     deadline expired.
+     */
+    public ClientResponse post(CallbackRequest request, String accept,
+            CallbackConfiguration config, Deadline deadline)
+            throws ClientHandlerException {
+
+        deposit(config.getRetryBudget());
+
+        for (int retry = 0;; retry++) {
+
+            boolean mayRetry = retry < config.getRetries();
+
+            ClientResponse response;
+            try {
+                response = dispatch(request, accept, config, deadline);
+            }
+            catch (ClientHandlerException e) {
+
+                // Retry only if there would be time left for the retry itself
+                long delay = getDelay(config, retry);
+                if (!mayRetry || !isRetryable(e) || delay >= deadline.getRemaining()
+                        || !withdraw() || !sleep(delay))
+                    throw e;
+
+                logger.debug("Retrying request to callback after failure: {}",
+                        e.getMessage());
+                continue;
+
+            }
+
+            int status = response.getStatus();
+            long delay = getDelay(config, retry);
+            if (!mayRetry || !isRetryable(status) || delay >= deadline.getRemaining()
+                    || !withdraw())
+                return response;
+
+            // Release connection of failed attempt before waiting
+            response.close();
+            if (!sleep(delay))
+                throw new ClientHandlerException("Interrupted while waiting "
+                        + "to retry request to callback.");
+
+            logger.debug("Retrying request to callback after status {}.", status);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import java.io.IOException;
+import java.net.URI;
+import org.apache.guacamole.GuacamoleException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.cache.SessionResumptionService;
+import org.glyptodon.guacamole.auth.callback.cache.UserDataCacheService;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.ConnectionTargetService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
+import org.glyptodon.guacamole.auth.callback.user.UserDataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which prepares the CallbackAuthenticationProvider for use when the
+ * extension is loaded, such that the first authentication attempts do not
+ * bear the cost of creating services, building JSON deserializers, reading
+ * the default response, and opening connections to the callback.
+ */
+public class WarmUpService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(WarmUpService.class);
+
+    /**
+     * JSON representative of a typical callback response, parsed during
+     * warm-up such that all deserializers required by UserData are built.
+     */
+    private static final String SAMPLE_RESPONSE = "{"
+            + "\"username\":\"warm-up\","
+            + "\"groups\":{\"Group\":{\"parent\":\"ROOT\"}},"
+            + "\"connections\":{\"Connection\":{"
+                + "\"protocol\":\"vnc\","
+                + "\"parent\":\"Group\","
+                + "\"balancing\":\"least-connections\","
+                + "\"targets\":[{\"hostname\":\"localhost\",\"port\":\"5900\",\"weight\":1}],"
+                + "\"parameters\":{\"hostname\":\"localhost\",\"port\":\"5900\"}"
+            + "}}"
+        + "}";
+
+    /**
+     * All services used during authentication, created during warm-up rather
+     * than upon first use.
+     */
+    private static final Class<?>[] SERVICES = {
+        AuthenticationProviderService.class,
+        CallbackService.class,
+        UserDataService.class,
+        UserDataCacheService.class,
+        SessionResumptionService.class,
+        ConnectionTargetService.class
+    };
+
+    /**
+     * The injector of the CallbackAuthenticationProvider, used to create all
+     * services during warm-up.
+     */
+    @Inject
+    private Injector injector;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * ObjectMapper for serializing/deserializing JSON.
+     */
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * Shared reader for the JSON representation of UserData.
+     */
+    @Inject
+    private UserDataReader userDataReader;
+
+    /**
+     * Jersey HTTP client.
+     */
+    @Inject
+    private Client client;
+
+    /**
+     * Dispatcher admitting requests to callbacks by priority.
+     */
+    @Inject
+    private CallbackDispatcher dispatcher;
+
+    /**
+     * Prepares the CallbackAuthenticationProvider for use, if warm-up is
+     * enabled. Failures are logged and otherwise ignored, as the same work
+     * will be performed again upon first use. Connections to the callback are
+     * opened in the background, and this function does not wait for those
+     * connections to be established.
+     */
+    public void warmUp() {
+
+        CallbackConfiguration config;
+        try {
+            config = confService.getConfiguration();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Skipping warm-up due to invalid configuration.", e);
+            return;
+        }
+
+        if (!config.useWarmUp())
+            return;
+
+        // Create all services
+        try {
+            for (Class<?> service : SERVICES)
+                injector.getInstance(service);
+        }
+        catch (RuntimeException e) {
+            logger.warn("Warm-up of services failed: {}", e.getMessage());
+            logger.debug("Unable to create services.", e);
+        }
+
+        // Build deserializers and serializers for UserData
+        try {
+            UserData sample = userDataReader.read(SAMPLE_RESPONSE.getBytes("UTF-8"));
+            mapper.writeValueAsBytes(sample);
+        }
+        catch (IOException e) {
+            logger.warn("Warm-up of JSON parsing failed: {}", e.getMessage());
+            logger.debug("Unable to parse sample response.", e);
+        }
+
+        // Read and cache the default response, if any
+        confService.getDefaultResponse();
+
+        // Open connections to the callback, unless only simulated
+        URI callbackURI = config.getCallbackURI();
+        if (!config.useMockService() && callbackURI != null) {
+            for (int i = 0; i < config.getWarmUpConnections(); i++)
+                preflight(config, callbackURI, i);
+        }
+
+        logger.info("Callback authentication warm-up complete.");
+
+    }
+
+    /**
+     * Sends an OPTIONS request to the given URI in the background, opening a
+     * connection which will be kept alive for subsequent requests. Any
+     * response, including an error response, is sufficient. Concurrent
+     * requests each open their own connection. As warm-up is background
+     * work, each request waits for spare capacity and is abandoned if none
+     * becomes available within the configured deadline.
+     *
+     * @param config
+     *     The configuration defining the maximum number of concurrent
+     *     requests and the deadline.
+     *
+     * @param uri
+     *     The URI to send the OPTIONS request to.
+     *
+     * @param index
+     *     The index of the connection being opened, used only to name the
+     *     thread sending the request.
+     */
+    private void preflight(final CallbackConfiguration config, final URI uri,
+            int index) {
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Use only capacity not needed by authentication attempts
+                if (!dispatcher.acquire(config, false,
+                        Deadline.after(config.getDeadline()))) {
+                    logger.debug("Warm-up request to \"{}\" skipped as the "
+                            + "callback is busy.", uri);
+                    return;
+                }
+
+                try {
+                    ClientResponse response = client.resource(uri).options(ClientResponse.class);
+                    logger.debug("Warm-up request to \"{}\" returned status {}.",
+                            uri, response.getStatus());
+                    response.close();
+                }
+                catch (ClientHandlerException e) {
+                    logger.warn("Warm-up request to \"{}\" failed: {}", uri, e.getMessage());
+                    logger.debug("Unable to connect to callback during warm-up.", e);
+                }
+                finally {
+                    dispatcher.release(false);
+                }
+
+            }
+
+        }, "callback-warm-up-" + index);
+
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.audit;
+
+/**
+ * The outcome of a single authentication attempt, as recorded within the
+ * audit trail.
+ */
+public class AuditEvent {
+
+    /**
+     * The outcome of an authentication attempt which succeeded.
+     */
+    public static final String OUTCOME_SUCCESS = "success";
+
+    /**
+     * The outcome of an authentication attempt which was rejected.
+     */
+    public static final String OUTCOME_REJECTED = "rejected";
+
+    /**
+     * The outcome of an authentication attempt which failed due to an error.
+     */
+    public static final String OUTCOME_ERROR = "error";
+
+    /**
+     * The value of System.currentTimeMillis() when the authentication attempt
+     * completed.
+     */
+    private final long timestamp;
+
+    /**
+     * The username provided with the authentication attempt, or null if no
+     * username was provided.
+     */
+    private final String username;
+
+    /**
+     * The address of the client making the authentication attempt, or null if
+     * unknown.
+     */
+    private final String remoteAddress;
+
+    /**
+     * The outcome of the authentication attempt.
+     */
+    private final String outcome;
+
+    /**
+     * The source of the UserData for the authentication attempt.
+     */
+    private final String source;
+
+    /**
+     * The duration of the authentication attempt, in milliseconds.
+     */
+    private final long latency;
+
+    /**
+     * The callback endpoint which would be or was invoked, or null if no
+     * endpoint is defined.
+     */
+    private final String endpoint;
+
+    /**
+     * Creates a new AuditEvent describing the outcome of a single
+     * authentication attempt which completed just now.
+     *
+     * @param username
+     *     The username provided with the authentication attempt, or null if
+     *     no username was provided.
+     *
+     * @param remoteAddress
+     *     The address of the client making the authentication attempt, or
+     *     null if unknown.
+     *
+     * @param outcome
+     *     The outcome of the authentication attempt, as defined by
+     *     OUTCOME_SUCCESS, OUTCOME_REJECTED, or OUTCOME_ERROR.
+     *
+     * @param source
+     *     The source of the UserData for the authentication attempt.
+     *
+     * @param latency
+     *     The duration of the authentication attempt, in milliseconds.
+     *
+     * @param endpoint
+     *     The callback endpoint which would be or was invoked, or null if no
+     *     endpoint is defined.
+     */
+    public AuditEvent(String username, String remoteAddress, String outcome,
+            String source, long latency, String endpoint) {
+        this.timestamp = System.currentTimeMillis();
+        this.username = username;
+        this.remoteAddress = remoteAddress;
+        this.outcome = outcome;
+        this.source = source;
+        this.latency = latency;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the value of System.currentTimeMillis() when the authentication
+     * attempt completed.
+     *
+     * @return
+     *     The time at which the authentication attempt completed.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the username provided with the authentication attempt.
+     *
+     * @return
+     *     The username provided with the authentication attempt, or null if
+     *     no username was provided.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the address of the client making the authentication attempt.
+     *
+     * @return
+     *     The address of the client making the authentication attempt, or
+     *     null if unknown.
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Returns the outcome of the authentication attempt.
+     *
+     * @return
+     *     The outcome of the authentication attempt, as defined by
+     *     OUTCOME_SUCCESS, OUTCOME_REJECTED, or OUTCOME_ERROR.
+     */
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Returns the source of the UserData for the authentication attempt,
+     * such as "resume", "cache", or "callback".
+     *
+     * @return
+     *     The source of the UserData for the authentication attempt.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the duration of the authentication attempt, in milliseconds.
+     *
+     * @return
+     *     The duration of the authentication attempt, in milliseconds.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the callback endpoint which would be or was invoked.
+     *
+     * @return
+     *     The callback endpoint which would be or was invoked, or null if no
+     *     endpoint is defined.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.audit;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue of audit events which may be offered to by any
+ * number of threads and drained by a single thread. Offering never blocks:
+ * if the buffer is full, the event is rejected.
+ */
+public class AuditRingBuffer {
+
+    /**
+     * The slots of the buffer. A slot is null until the event claimed for it
+     * has been published.
+     */
+    private final AtomicReferenceArray<AuditEvent> slots;
+
+    /**
+     * The bitmask which maps a sequence number to its slot.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next slot to be claimed by offer().
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The sequence number of the next slot to be drained. This is written
+     * only by the draining thread.
+     */
+    private volatile long head;
+
+    /**
+     * Creates a new AuditRingBuffer which holds at least the given number of
+     * events. The actual capacity is rounded up to the next power of two.
+     *
+     * @param capacity
+     *     The minimum number of events the buffer must hold.
+     */
+    public AuditRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<AuditEvent>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds the given event to the buffer if there is room.
+     *
+     * @param event
+     *     The event to add.
+     *
+     * @return
+     *     true if the event was added, false if the buffer is full.
+     */
+    public boolean offer(AuditEvent event) {
+
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= slots.length())
+                return false;
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        slots.lazySet((int) (sequence & mask), event);
+        return true;
+
+    }
+
+    /**
+     * Removes events from the buffer, in the order they were offered, and
+     * adds them to the given list. Draining stops at the first event which
+     * has been claimed but not yet published. This function must only be
+     * invoked by one thread at a time.
+     *
+     * @param events
+     *     The list to add removed events to.
+     *
+     * @param max
+     *     The maximum number of events to remove.
+     *
+     * @return
+     *     The number of events removed.
+     */
+    public int drain(List<AuditEvent> events, int max) {
+
+        long sequence = head;
+        int count = 0;
+        while (count < max) {
+
+            int index = (int) (sequence & mask);
+            AuditEvent event = slots.get(index);
+            if (event == null)
+                break;
+
+            slots.lazySet(index, null);
+            events.add(event);
+            sequence++;
+            count++;
+
+        }
+
+        head = sequence;
+        return count;
+
+    }
+
+}
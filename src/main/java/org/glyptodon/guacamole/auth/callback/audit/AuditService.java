@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.audit;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which maintains an audit trail of authentication outcomes using
+ * the AuditSink configured via "callback-audit". Events are placed within a
+ * bounded, lock-free buffer and written in batches by a background thread,
+ * such that authenticating threads never wait for the sink. If the buffer is
+ * full, events are dropped and counted, and the number dropped is passed to
+ * the sink with the next batch.
+ */
+@Singleton
+public class AuditService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(AuditService.class);
+
+    /**
+     * The value of "callback-audit" which selects RotatingFileAuditSink.
+     */
+    public static final String FILE_SINK = "file";
+
+    /**
+     * The maximum number of events written in a single batch.
+     */
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    /**
+     * The number of milliseconds between checks for events awaiting writing.
+     */
+    private static final long WRITE_INTERVAL = 100;
+
+    /**
+     * The injector of the CallbackAuthenticationProvider, used to create the
+     * configured AuditSink.
+     */
+    @Inject
+    private Injector injector;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * Whether start() has been invoked.
+     */
+    private boolean started;
+
+    /**
+     * The buffer of events awaiting writing, or null if no audit trail is
+     * maintained.
+     */
+    private volatile AuditRingBuffer buffer;
+
+    /**
+     * The configured sink, used only by the writer thread.
+     */
+    private AuditSink sink;
+
+    /**
+     * The number of events dropped since the previous batch was written.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The total number of events dropped since the audit trail was started.
+     */
+    private final AtomicLong totalDropped = new AtomicLong();
+
+    /**
+     * Creates a new daemon thread for writing the audit trail.
+     */
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "callback-audit-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    };
+
+    /**
+     * Creates the sink configured via "callback-audit".
+     *
+     * @param type
+     *     The value of "callback-audit".
+     *
+     * @return
+     *     The configured sink.
+     *
+     * @throws GuacamoleException
+     *     If the configured sink cannot be created.
+     */
+    @SuppressWarnings("unchecked") // Type of class is verified before cast
+    private AuditSink createSink(String type) throws GuacamoleException {
+
+        if (FILE_SINK.equals(type))
+            return injector.getInstance(RotatingFileAuditSink.class);
+
+        Class<?> sinkClass;
+        try {
+            sinkClass = Class.forName(type);
+        }
+        catch (ClassNotFoundException e) {
+            throw new GuacamoleServerException("Property \"callback-audit\" "
+                    + "must be \"" + FILE_SINK + "\" or the name of a class "
+                    + "implementing AuditSink.", e);
+        }
+
+        if (!AuditSink.class.isAssignableFrom(sinkClass))
+            throw new GuacamoleServerException("Class \"" + type + "\" does "
+                    + "not implement AuditSink.");
+
+        return injector.getInstance((Class<? extends AuditSink>) sinkClass);
+
+    }
+
+    /**
+     * Creates the configured sink and begins writing the audit trail in the
+     * background. If no sink is configured via "callback-audit", this
+     * function has no effect. Subsequent invocations of this function also
+     * have no effect.
+     *
+     * @throws GuacamoleException
+     *     If the properties configuring the audit trail could not be parsed,
+     *     or the configured sink cannot be created.
+     */
+    public synchronized void start() throws GuacamoleException {
+
+        if (started)
+            return;
+
+        started = true;
+
+        // Maintain no audit trail if no sink is defined
+        String type = confService.getAuditType();
+        if (type == null)
+            return;
+
+        sink = createSink(type);
+        buffer = new AuditRingBuffer(confService.getAuditBufferSize());
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                write();
+            }
+
+        }, WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        logger.debug("Writing audit trail to sink \"{}\".", type);
+
+    }
+
+    /**
+     * Writes all events awaiting writing to the configured sink, in batches.
+     * This function is invoked only by the writer thread.
+     */
+    private void write() {
+
+        List<AuditEvent> batch = new ArrayList<AuditEvent>(MAX_BATCH_SIZE);
+        do {
+
+            batch.clear();
+            buffer.drain(batch, MAX_BATCH_SIZE);
+
+            long droppedCount = dropped.getAndSet(0);
+            if (batch.isEmpty() && droppedCount == 0)
+                return;
+
+            if (droppedCount > 0)
+                logger.warn("{} audit events were dropped as the audit sink "
+                        + "could not keep up ({} in total).", droppedCount,
+                        totalDropped.get());
+
+            try {
+                sink.write(batch, droppedCount);
+            }
+            catch (IOException e) {
+                logger.warn("{} audit events could not be written: {}",
+                        batch.size(), e.getMessage());
+                logger.debug("Audit sink failed.", e);
+            }
+            catch (RuntimeException e) {
+                logger.error("Audit sink failed unexpectedly.", e);
+            }
+
+        } while (batch.size() == MAX_BATCH_SIZE);
+
+    }
+
+    /**
+     * Returns whether an audit trail is maintained. If not, there is no need
+     * to create events.
+     *
+     * @return
+     *     true if an audit trail is maintained, false otherwise.
+     */
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Adds the given event to the audit trail, without waiting for it to be
+     * written. If too many events are already awaiting writing, the event is
+     * dropped and counted. If no audit trail is maintained, this function has
+     * no effect.
+     *
+     * @param event
+     *     The event to add.
+     */
+    public void record(AuditEvent event) {
+
+        AuditRingBuffer current = buffer;
+        if (current == null)
+            return;
+
+        if (!current.offer(event)) {
+            dropped.incrementAndGet();
+            totalDropped.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * Returns the total number of events dropped since the audit trail was
+     * started because too many events were awaiting writing.
+     *
+     * @return
+     *     The total number of events dropped.
+     */
+    public long getDroppedCount() {
+        return totalDropped.get();
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.audit;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the audit trail of authentication outcomes. Batches of
+ * events are written from a single background thread, and thus
+ * implementations need not be thread-safe and may block. Implementations
+ * other than those provided with this extension are created through Guice
+ * and may inject the services of this extension.
+ */
+public interface AuditSink {
+
+    /**
+     * Writes the given batch of events, in the order they occurred.
+     *
+     * @param events
+     *     The events to write.
+     *
+     * @param dropped
+     *     The number of events dropped since the previous batch because too
+     *     many events were awaiting writing.
+     *
+     * @throws IOException
+     *     If the events cannot be written. The events are then lost.
+     */
+    void write(List<AuditEvent> events, long dropped) throws IOException;
+
+}
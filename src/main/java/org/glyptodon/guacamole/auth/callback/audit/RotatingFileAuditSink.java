@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.audit;
+
+import com.google.inject.Inject;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import org.apache.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+
+/**
+ * AuditSink which appends events as lines of key=value pairs to
+ * "audit.log" within the audit directory in GUACAMOLE_HOME. Once the file
+ * reaches the configured size, it is renamed to "audit.log.1", any existing
+ * rotated files are shifted up by one, and the oldest is deleted.
+ */
+public class RotatingFileAuditSink implements AuditSink {
+
+    /**
+     * The name of the current audit log file.
+     */
+    private static final String FILENAME = "audit.log";
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * The format of the timestamp beginning each line. Only the writer
+     * thread uses this format.
+     */
+    private final DateFormat dateFormat =
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    /**
+     * Appends the given value to the given line, quoting and escaping the
+     * value if it contains whitespace, quotes, or equals signs, such that
+     * values provided by users cannot forge additional fields or lines.
+     *
+     * @param line
+     *     The line to append to.
+     *
+     * @param name
+     *     The name of the field.
+     *
+     * @param value
+     *     The value of the field, or null if there is no value.
+     */
+    private static void append(StringBuilder line, String name, Object value) {
+
+        line.append(' ').append(name).append('=');
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+
+        String text = value.toString();
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+        }
+
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < ' ')
+                line.append(String.format("\\u%04x", (int) c));
+            else
+                line.append(c);
+        }
+        line.append('"');
+
+    }
+
+    /**
+     * Rotates the given audit log file, retaining at most the given number of
+     * rotated files.
+     *
+     * @param file
+     *     The current audit log file.
+     *
+     * @param retained
+     *     The number of rotated files to retain.
+     *
+     * @throws IOException
+     *     If the current file cannot be rotated.
+     */
+    private void rotate(File file, int retained) throws IOException {
+
+        File directory = file.getParentFile();
+
+        // Delete oldest file if it would exceed the retained count, shifting
+        // all others up by one
+        for (int i = retained; i >= 1; i--) {
+
+            File rotated = new File(directory, FILENAME + "." + i);
+            if (!rotated.exists())
+                continue;
+
+            if (i == retained)
+                rotated.delete();
+            else
+                rotated.renameTo(new File(directory, FILENAME + "." + (i + 1)));
+
+        }
+
+        boolean rotated = retained > 0
+                ? file.renameTo(new File(directory, FILENAME + ".1"))
+                : file.delete();
+
+        if (!rotated)
+            throw new IOException("Audit log \"" + file + "\" could not be rotated.");
+
+    }
+
+    @Override
+    public void write(List<AuditEvent> events, long dropped) throws IOException {
+
+        File directory = confService.getAuditDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Audit directory \"" + directory + "\" "
+                    + "could not be created.");
+
+        // Rotate if the current file has reached its maximum size
+        File file = new File(directory, FILENAME);
+        try {
+            if (file.length() >= confService.getAuditFileSize() * 1024L)
+                rotate(file, confService.getAuditFiles());
+        }
+        catch (GuacamoleException e) {
+            throw new IOException("Audit configuration is invalid.", e);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), "UTF-8"));
+        try {
+
+            // Note any gap in the trail
+            if (dropped > 0) {
+                StringBuilder line = new StringBuilder(dateFormat.format(new Date()));
+                append(line, "dropped", dropped);
+                writer.write(line.append('\n').toString());
+            }
+
+            for (AuditEvent event : events) {
+                StringBuilder line = new StringBuilder(dateFormat.format(new Date(event.getTimestamp())));
+                append(line, "username", event.getUsername());
+                append(line, "address", event.getRemoteAddress());
+                append(line, "outcome", event.getOutcome());
+                append(line, "source", event.getSource());
+                append(line, "latency_ms", event.getLatency());
+                append(line, "endpoint", event.getEndpoint());
+                writer.write(line.append('\n').toString());
+            }
+
+        }
+        finally {
+            writer.close();
+        }
+
+    }
+
+}
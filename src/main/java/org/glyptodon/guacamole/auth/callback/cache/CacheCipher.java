@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keys and cryptographic operations used to store callback responses outside
+ * the memory of the current session. All keys are derived from a single
+ * secret. Stored data is encrypted with AES-CBC and authenticated with
+ * HMAC-SHA256, and is identified by a keyed hash of the parameters of the
+ * authentication attempt which produced it.
+ */
+public class CacheCipher {
+
+    /**
+     * The length of each key identifying stored data, in bytes.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    /**
+     * The length of the initialization vector of sealed data, in bytes.
+     */
+    private static final int IV_LENGTH = 16;
+
+    /**
+     * The length of the message authentication code of sealed data, in bytes.
+     */
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * The length of the AES key used to encrypt data, in bytes.
+     */
+    private static final int ENCRYPTION_KEY_LENGTH = 16;
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Hexadecimal digits, indexed by value.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Source of random initialization vectors and secrets.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The key used to encrypt data.
+     */
+    private final SecretKeySpec encryptionKey;
+
+    /**
+     * The key used to authenticate data.
+     */
+    private final SecretKeySpec authenticationKey;
+
+    /**
+     * The key used to hash the parameters of each authentication attempt.
+     */
+    private final SecretKeySpec credentialsKey;
+
+    /**
+     * Creates a new CacheCipher whose keys are all derived from the given
+     * secret.
+     *
+     * @param secret
+     *     The secret from which all keys should be derived.
+     *
+     * @throws GeneralSecurityException
+     *     If SHA-256 is not supported.
+     */
+    public CacheCipher(String secret) throws GeneralSecurityException {
+        encryptionKey = new SecretKeySpec(Arrays.copyOf(derive(secret, "encryption"),
+                ENCRYPTION_KEY_LENGTH), "AES");
+        authenticationKey = new SecretKeySpec(derive(secret, "authentication"), "HmacSHA256");
+        credentialsKey = new SecretKeySpec(derive(secret, "credentials"), "HmacSHA256");
+    }
+
+    /**
+     * Generates a new random secret, suitable for data which need only be
+     * readable by the current process.
+     *
+     * @return
+     *     A new random secret.
+     */
+    public static String generateSecret() {
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        return toHex(secret);
+    }
+
+    /**
+     * Derives a key for the given purpose from the given secret.
+     *
+     * @param secret
+     *     The secret from which the key should be derived.
+     *
+     * @param purpose
+     *     An arbitrary name describing the purpose of the key.
+     *
+     * @return
+     *     The derived key.
+     *
+     * @throws GeneralSecurityException
+     *     If SHA-256 is not supported.
+     */
+    private static byte[] derive(String secret, String purpose)
+            throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(purpose.getBytes(UTF8));
+        digest.update((byte) 0);
+        return digest.digest(secret.getBytes(UTF8));
+    }
+
+    /**
+     * Returns the key identifying data stored for authentication attempts
+     * having the same parameters as the given request.
+     *
+     * @param request
+     *     The request of the authentication attempt.
+     *
+     * @return
+     *     The key identifying data stored for the given request.
+     *
+     * @throws GeneralSecurityException
+     *     If the parameters of the request cannot be hashed.
+     */
+    public byte[] getKey(HttpServletRequest request)
+            throws GeneralSecurityException {
+        return CredentialsDigest.digest(request, credentialsKey);
+    }
+
+    /**
+     * Encrypts and authenticates the given data, returning the
+     * initialization vector, ciphertext and message authentication code, in
+     * that order.
+     *
+     * @param key
+     *     The key identifying the data, which is included in the message
+     *     authentication code.
+     *
+     * @param timestamp
+     *     The time the data was produced, which is included in the message
+     *     authentication code.
+     *
+     * @param data
+     *     The data to encrypt.
+     *
+     * @return
+     *     The initialization vector, ciphertext and message authentication
+     *     code, in that order.
+     *
+     * @throws GeneralSecurityException
+     *     If the data cannot be encrypted.
+     */
+    public byte[] seal(byte[] key, long timestamp, byte[] data)
+            throws GeneralSecurityException {
+
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(data);
+
+        ByteBuffer sealed = ByteBuffer.allocate(IV_LENGTH + ciphertext.length + MAC_LENGTH);
+        sealed.put(iv).put(ciphertext);
+        sealed.put(authenticate(key, timestamp, sealed.array(), sealed.position()));
+        return sealed.array();
+
+    }
+
+    /**
+     * Verifies and decrypts data previously returned by seal().
+     *
+     * @param key
+     *     The key identifying the data, as provided to seal().
+     *
+     * @param timestamp
+     *     The time the data was produced, as provided to seal().
+     *
+     * @param sealed
+     *     The data returned by seal().
+     *
+     * @return
+     *     The decrypted data.
+     *
+     * @throws GeneralSecurityException
+     *     If the data has been tampered with or cannot be decrypted.
+     */
+    public byte[] unseal(byte[] key, long timestamp, byte[] sealed)
+            throws GeneralSecurityException {
+
+        int length = sealed.length - MAC_LENGTH;
+        if (length < IV_LENGTH)
+            throw new GeneralSecurityException("Sealed data is truncated.");
+
+        // Verify data before decrypting
+        byte[] expected = authenticate(key, timestamp, sealed, length);
+        byte[] actual = Arrays.copyOfRange(sealed, length, sealed.length);
+        if (!MessageDigest.isEqual(expected, actual))
+            throw new GeneralSecurityException("Sealed data failed authentication.");
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey,
+                new IvParameterSpec(sealed, 0, IV_LENGTH));
+        return cipher.doFinal(sealed, IV_LENGTH, length - IV_LENGTH);
+
+    }
+
+    /**
+     * Calculates the message authentication code of sealed data.
+     *
+     * @param key
+     *     The key identifying the data.
+     *
+     * @param timestamp
+     *     The time the data was produced.
+     *
+     * @param sealed
+     *     A buffer beginning with the initialization vector and ciphertext.
+     *
+     * @param length
+     *     The combined length of the initialization vector and ciphertext.
+     *
+     * @return
+     *     The message authentication code of the data.
+     *
+     * @throws GeneralSecurityException
+     *     If HMAC-SHA256 is not supported.
+     */
+    private byte[] authenticate(byte[] key, long timestamp, byte[] sealed,
+            int length) throws GeneralSecurityException {
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(authenticationKey);
+        mac.update(key);
+        mac.update(ByteBuffer.allocate(8).putLong(timestamp).array());
+        mac.update(sealed, 0, length);
+        return mac.doFinal();
+
+    }
+
+    /**
+     * Converts the given bytes to hexadecimal.
+     *
+     * @param bytes
+     *     The bytes to convert.
+     *
+     * @return
+     *     The hexadecimal form of the given bytes.
+     */
+    public static String toHex(byte[] bytes) {
+
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+
+        return new String(hex);
+
+    }
+
+    /**
+     * Converts the given hexadecimal string to bytes.
+     *
+     * @param hex
+     *     The hexadecimal string to convert.
+     *
+     * @return
+     *     The bytes represented by the given hexadecimal string.
+     */
+    public static byte[] fromHex(String hex) {
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+
+        return bytes;
+
+    }
+
+}
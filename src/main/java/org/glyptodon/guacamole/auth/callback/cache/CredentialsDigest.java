@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Utility class for hashing the parameters of an authentication attempt,
+ * such that attempts with identical parameters can be recognized without
+ * retaining those parameters.
+ */
+public class CredentialsDigest {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * This class should not be instantiated.
+     */
+    private CredentialsDigest() {}
+
+    /**
+     * Adds the given string to the given Mac, prefixed with its length such
+     * that adjacent strings cannot be confused with each other.
+     *
+     * @param mac
+     *     The Mac to update.
+     *
+     * @param value
+     *     The string to add.
+     */
+    private static void update(Mac mac, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        mac.update(bytes);
+    }
+
+    /**
+     * Calculates a keyed hash of all parameter names and values within the
+     * given request. The order of parameters does not affect the result.
+     *
+     * @param request
+     *     The request whose parameters should be hashed.
+     *
+     * @param key
+     *     The HMAC-SHA256 key to use.
+     *
+     * @return
+     *     The HMAC-SHA256 of all parameter names and values.
+     *
+     * @throws GeneralSecurityException
+     *     If HMAC-SHA256 is not supported or the key is invalid.
+     */
+    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
+    public static byte[] digest(HttpServletRequest request, SecretKeySpec key)
+            throws GeneralSecurityException {
+
+        Map<String, String[]> parameterMap = (Map<String, String[]>)
+                request.getParameterMap();
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key);
+
+        // Hash parameters in a consistent order
+        String[] names = parameterMap.keySet().toArray(new String[parameterMap.size()]);
+        Arrays.sort(names);
+        for (String name : names) {
+
+            String[] values = parameterMap.get(name);
+            update(mac, name);
+            mac.update(ByteBuffer.allocate(4).putInt(values.length).array());
+            for (String value : values)
+                update(mac, value);
+
+        }
+
+        return mac.doFinal();
+
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.Inject;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+
+/**
+ * UserDataCache implementation which stores callback responses within the
+ * memory of the current Guacamole server only. A new instance is created
+ * whenever the cache configuration changes, discarding all cached responses.
+ */
+public class InMemoryUserDataCache implements UserDataCache {
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * All cached responses, where the key of each entry is the key
+     * identifying the authentication attempt.
+     */
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * A single cached callback response.
+     */
+    private static class Entry {
+
+        /**
+         * The cached UserData.
+         */
+        private final UserData userData;
+
+        /**
+         * The time at which this entry expires, in milliseconds since the
+         * epoch.
+         */
+        private final long expires;
+
+        /**
+         * Creates a new Entry containing the given UserData.
+         *
+         * @param userData
+         *     The UserData to cache.
+         *
+         * @param expires
+         *     The time at which this entry expires, in milliseconds since the
+         *     epoch.
+         */
+        public Entry(UserData userData, long expires) {
+            this.userData = userData;
+            this.expires = expires;
+        }
+
+    }
+
+    @Override
+    public UserData get(String key) {
+
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        // Drop expired entries upon access
+        if (System.currentTimeMillis() >= entry.expires) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        return entry.userData;
+
+    }
+
+    @Override
+    public void put(String key, UserData userData) throws GuacamoleException {
+
+        long now = System.currentTimeMillis();
+
+        // Remove expired entries if the cache has grown too large
+        int maxSize = confService.getCacheSize();
+        if (entries.size() >= maxSize) {
+
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                if (now >= iterator.next().expires)
+                    iterator.remove();
+            }
+
+            // Cache nothing further until entries expire
+            if (entries.size() >= maxSize)
+                return;
+
+        }
+
+        entries.put(key, new Entry(userData, now + confService.getCacheTTL() * 1000L));
+
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+}
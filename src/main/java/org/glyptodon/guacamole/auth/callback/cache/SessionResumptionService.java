@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Credentials;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which issues and accepts short-lived, signed session resumption
+ * tokens, allowing a browser which has recently authenticated to
+ * authenticate again without invoking the callback. Each token contains the
+ * digest of the UserData it was issued for, which is retained locally until
+ * the token expires, and the name of the tenant whose callback provided that
+ * UserData, such that a token is accepted only for requests of the same
+ * tenant. Tokens are signed using the keys within the keyring
+ * file in GUACAMOLE_HOME, and are only issued or accepted while that file
+ * exists.
+ */
+@Singleton
+public class SessionResumptionService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(SessionResumptionService.class);
+
+    /**
+     * The name of the request parameter which may contain a session
+     * resumption token, and of the user attribute exposing newly-issued
+     * tokens.
+     */
+    public static final String RESUME_TOKEN_PARAMETER = "callback-resume-token";
+
+    /**
+     * The character separating the fields of a session resumption token.
+     */
+    private static final char FIELD_SEPARATOR = '.';
+
+    /**
+     * The number of fields within a session resumption token: the key ID, the
+     * hexadecimal tenant name, the expiration timestamp, the UserData digest,
+     * and the signature.
+     */
+    private static final int FIELD_COUNT = 5;
+
+    /**
+     * The minimum interval between checks for modifications to the keyring
+     * file, in milliseconds.
+     */
+    private static final long KEYRING_CHECK_INTERVAL = 1000;
+
+    /**
+     * The minimum interval between removals of expired UserData, in
+     * milliseconds.
+     */
+    private static final long PRUNE_INTERVAL = 60000;
+
+    /**
+     * The algorithm used to sign session resumption tokens.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The charset used to encode keys and tokens.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * ObjectMapper for serializing/deserializing JSON.
+     */
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * All UserData for which unexpired tokens may exist, keyed by the
+     * hexadecimal digest of that UserData.
+     */
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The time that expired UserData was last removed, in milliseconds since
+     * the epoch.
+     */
+    private final AtomicLong lastPruned = new AtomicLong();
+
+    /**
+     * The most recently read contents of the keyring file.
+     */
+    private volatile Keyring keyring = Keyring.EMPTY;
+
+    /**
+     * UserData retained for unexpired session resumption tokens.
+     */
+    private static class Entry {
+
+        /**
+         * The UserData which the token was issued for.
+         */
+        private final UserData userData;
+
+        /**
+         * The time that the most recently issued token for the UserData
+         * expires, in milliseconds since the epoch.
+         */
+        private final long expires;
+
+        /**
+         * Creates a new Entry retaining the given UserData until the given
+         * time.
+         *
+         * @param userData
+         *     The UserData which the token was issued for.
+         *
+         * @param expires
+         *     The time that the token expires, in milliseconds since the
+         *     epoch.
+         */
+        public Entry(UserData userData, long expires) {
+            this.userData = userData;
+            this.expires = expires;
+        }
+
+    }
+
+    /**
+     * The keys read from the keyring file. Each non-empty line of the keyring
+     * file which does not begin with "#" defines a key as a key ID and a
+     * secret separated by whitespace. The first key is used to sign new
+     * tokens, while all keys are accepted when verifying tokens, allowing
+     * keys to be rotated by adding a new key at the beginning of the file
+     * and revoked by removing them.
+     */
+    private static class Keyring {
+
+        /**
+         * A keyring containing no keys, representing a missing keyring file.
+         */
+        public static final Keyring EMPTY = new Keyring(0, 0, null,
+                Collections.<String, SecretKeySpec>emptyMap());
+
+        /**
+         * The modification time of the keyring file when it was read, in
+         * milliseconds since the epoch.
+         */
+        private final long lastModified;
+
+        /**
+         * The time that the keyring file was last checked for modification,
+         * in milliseconds since the epoch.
+         */
+        private final long lastChecked;
+
+        /**
+         * The ID of the key used to sign new tokens, or null if there are no
+         * keys.
+         */
+        private final String signingKeyId;
+
+        /**
+         * All keys within the keyring, keyed by key ID.
+         */
+        private final Map<String, SecretKeySpec> keys;
+
+        /**
+         * Creates a new Keyring containing the given keys.
+         *
+         * @param lastModified
+         *     The modification time of the keyring file when it was read, in
+         *     milliseconds since the epoch.
+         *
+         * @param lastChecked
+         *     The time that the keyring file was last checked for
+         *     modification, in milliseconds since the epoch.
+         *
+         * @param signingKeyId
+         *     The ID of the key used to sign new tokens, or null if there are
+         *     no keys.
+         *
+         * @param keys
+         *     All keys within the keyring, keyed by key ID.
+         */
+        public Keyring(long lastModified, long lastChecked,
+                String signingKeyId, Map<String, SecretKeySpec> keys) {
+            this.lastModified = lastModified;
+            this.lastChecked = lastChecked;
+            this.signingKeyId = signingKeyId;
+            this.keys = keys;
+        }
+
+    }
+
+    /**
+     * Returns the current contents of the keyring file, re-reading that file
+     * if it has been modified. If the keyring file does not exist or cannot
+     * be read, the returned keyring will contain no keys.
+     *
+     * @return
+     *     The current contents of the keyring file.
+     */
+    private Keyring getKeyring() {
+
+        long now = System.currentTimeMillis();
+
+        // Avoid checking the file for every authentication attempt
+        Keyring current = keyring;
+        if (now - current.lastChecked < KEYRING_CHECK_INTERVAL)
+            return current;
+
+        File file = confService.getKeyringFile();
+        long lastModified = file.lastModified();
+
+        // Keep existing keys if unmodified
+        if (lastModified == current.lastModified) {
+            keyring = new Keyring(current.lastModified, now,
+                    current.signingKeyId, current.keys);
+            return keyring;
+        }
+
+        // lastModified() is zero if the file does not exist
+        if (lastModified == 0) {
+            logger.debug("Keyring \"{}\" does not exist. Session resumption "
+                    + "tokens will not be used.", file);
+            keyring = new Keyring(0, now, null, Keyring.EMPTY.keys);
+            return keyring;
+        }
+
+        String signingKeyId = null;
+        Map<String, SecretKeySpec> keys = new HashMap<String, SecretKeySpec>();
+
+        try {
+
+            Reader reader = new InputStreamReader(new FileInputStream(file), UTF8);
+            try {
+
+                BufferedReader lines = new BufferedReader(reader);
+                String line;
+                while ((line = lines.readLine()) != null) {
+
+                    // Skip blank lines and comments
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+
+                    String[] fields = line.split("\\s+", 2);
+                    if (fields.length != 2 || fields[0].indexOf(FIELD_SEPARATOR) != -1) {
+                        logger.warn("Ignoring malformed line within keyring \"{}\".", file);
+                        continue;
+                    }
+
+                    // The first key signs new tokens
+                    if (signingKeyId == null)
+                        signingKeyId = fields[0];
+
+                    keys.put(fields[0], new SecretKeySpec(
+                            fields[1].getBytes(UTF8), MAC_ALGORITHM));
+
+                }
+
+            }
+            finally {
+                reader.close();
+            }
+
+        }
+        catch (IOException e) {
+            logger.warn("Keyring \"{}\" could not be read: {}", file, e.getMessage());
+            logger.debug("Unable to read keyring.", e);
+            signingKeyId = null;
+            keys.clear();
+        }
+
+        logger.debug("Read {} key(s) from keyring \"{}\".", keys.size(), file);
+        keyring = new Keyring(lastModified, now, signingKeyId, keys);
+        return keyring;
+
+    }
+
+    /**
+     * Returns the signature of the given token contents, as a hexadecimal
+     * string.
+     *
+     * @param key
+     *     The key to sign the token contents with.
+     *
+     * @param contents
+     *     The contents of the token, excluding the signature.
+     *
+     * @return
+     *     The hexadecimal signature of the given token contents.
+     *
+     * @throws GeneralSecurityException
+     *     If the token contents cannot be signed.
+     */
+    private String sign(SecretKeySpec key, String contents)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(key);
+        return CacheCipher.toHex(mac.doFinal(contents.getBytes(UTF8)));
+    }
+
+    /**
+     * Returns the hexadecimal representation of the UTF-8 name of the given
+     * tenant, as stored within session resumption tokens. The name is
+     * encoded such that it cannot contain the field separator.
+     *
+     * @param tenant
+     *     The tenant of the authentication attempt, or null if the attempt
+     *     does not belong to any tenant.
+     *
+     * @return
+     *     The hexadecimal name of the given tenant, or an empty string if
+     *     there is no tenant.
+     */
+    private static String getTenantField(Tenant tenant) {
+
+        if (tenant == null)
+            return "";
+
+        return CacheCipher.toHex(tenant.getName().getBytes(UTF8));
+
+    }
+
+    /**
+     * Removes all retained UserData whose tokens have expired, if not done
+     * recently.
+     *
+     * @param now
+     *     The current time, in milliseconds since the epoch.
+     */
+    private void prune(long now) {
+
+        long last = lastPruned.get();
+        if (now - last < PRUNE_INTERVAL || !lastPruned.compareAndSet(last, now))
+            return;
+
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (now >= iterator.next().expires)
+                iterator.remove();
+        }
+
+    }
+
+    /**
+     * Issues a new session resumption token for the given UserData, which
+     * will be accepted only for authentication attempts of the given tenant.
+     * The UserData is retained until the token expires.
+     *
+     * @param userData
+     *     The UserData to issue a token for.
+     *
+     * @param tenant
+     *     The tenant whose callback provided the UserData, or null if the
+     *     authentication attempt did not belong to any tenant.
+     *
+     * @return
+     *     A new session resumption token for the given UserData, or null if
+     *     session resumption tokens are not in use.
+     *
+     * @throws GuacamoleException
+     *     If the "callback-resume-ttl" property cannot be parsed.
+     */
+    public String issue(UserData userData, Tenant tenant)
+            throws GuacamoleException {
+
+        Keyring current = getKeyring();
+        if (current.signingKeyId == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        long expires = now + confService.getResumeTTL() * 1000L;
+        prune(now);
+
+        try {
+
+            String digest = CacheCipher.toHex(MessageDigest.getInstance("SHA-256")
+                    .digest(mapper.writeValueAsBytes(userData)));
+
+            // Retain UserData for at least as long as the new token is valid
+            entries.put(digest, new Entry(userData, expires));
+
+            String contents = current.signingKeyId + FIELD_SEPARATOR
+                    + getTenantField(tenant) + FIELD_SEPARATOR + expires
+                    + FIELD_SEPARATOR + digest;
+            return contents + FIELD_SEPARATOR
+                    + sign(current.keys.get(current.signingKeyId), contents);
+
+        }
+        catch (IOException e) {
+            logger.debug("UserData could not be serialized for digest.", e);
+            return null;
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Session resumption token could not be signed.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Returns the session resumption token within the given credentials, if
+     * any. The token is not verified.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @return
+     *     The session resumption token within the given credentials, or null
+     *     if no token was provided.
+     */
+    public String getToken(Credentials credentials) {
+
+        HttpServletRequest request = credentials.getRequest();
+        if (request == null)
+            return null;
+
+        return request.getParameter(RESUME_TOKEN_PARAMETER);
+
+    }
+
+    /**
+     * Returns the UserData associated with the session resumption token
+     * within the given credentials, if that token is present, valid,
+     * unexpired, and was issued for the given tenant, and the UserData it
+     * was issued for is still retained.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @param tenant
+     *     The tenant of the authentication attempt, or null if the attempt
+     *     does not belong to any tenant.
+     *
+     * @return
+     *     The UserData associated with the session resumption token within
+     *     the given credentials, or null if the callback must be invoked.
+     */
+    public UserData resume(Credentials credentials, Tenant tenant) {
+
+        String token = getToken(credentials);
+        if (token == null)
+            return null;
+
+        Keyring current = getKeyring();
+        if (current.keys.isEmpty())
+            return null;
+
+        // Split token into key ID, tenant, expiration, digest, and signature
+        String[] fields = token.split("\\" + FIELD_SEPARATOR, -1);
+        if (fields.length != FIELD_COUNT) {
+            logger.debug("Ignoring malformed session resumption token.");
+            return null;
+        }
+
+        // Tokens signed with keys removed from the keyring are revoked
+        SecretKeySpec key = current.keys.get(fields[0]);
+        if (key == null) {
+            logger.debug("Ignoring session resumption token signed with "
+                    + "unknown key \"{}\".", fields[0]);
+            return null;
+        }
+
+        String contents = fields[0] + FIELD_SEPARATOR + fields[1]
+                + FIELD_SEPARATOR + fields[2] + FIELD_SEPARATOR + fields[3];
+
+        try {
+            byte[] expected = sign(key, contents).getBytes(UTF8);
+            if (!MessageDigest.isEqual(expected, fields[4].getBytes(UTF8))) {
+                logger.debug("Ignoring session resumption token with invalid signature.");
+                return null;
+            }
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Session resumption token could not be verified.", e);
+            return null;
+        }
+
+        // Tokens issued for one tenant must not grant access via another
+        if (!fields[1].equals(getTenantField(tenant))) {
+            logger.debug("Ignoring session resumption token issued for a "
+                    + "different tenant.");
+            return null;
+        }
+
+        long expires;
+        try {
+            expires = Long.parseLong(fields[2]);
+        }
+        catch (NumberFormatException e) {
+            logger.debug("Ignoring session resumption token with invalid expiration.");
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= expires) {
+            logger.debug("Ignoring expired session resumption token.");
+            return null;
+        }
+
+        // UserData is only available if retained by this server
+        Entry entry = entries.get(fields[3]);
+        if (entry == null) {
+            logger.debug("UserData for session resumption token is not "
+                    + "available. Invoking callback.");
+            return null;
+        }
+
+        return entry.userData;
+
+    }
+
+}
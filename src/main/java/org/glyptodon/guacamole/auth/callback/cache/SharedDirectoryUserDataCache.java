@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.Inject;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UserDataCache implementation which stores callback responses within a
+ * directory shared by all Guacamole servers, such as a directory on shared
+ * storage. Each server appends encrypted responses only to segment files of
+ * its own, and reads the segment files of other servers incrementally, thus
+ * no server ever needs to lock a file. Each server moves on to a new segment
+ * file once half the cache lifetime has passed since it began the current
+ * file, thus a segment file which has not been written within the cache
+ * lifetime has been abandoned by its server, and is deleted by whichever
+ * server notices first. A new instance is created whenever the cache
+ * configuration changes, and the previous instance is closed.
+ */
+public class SharedDirectoryUserDataCache implements UserDataCache, Closeable {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(SharedDirectoryUserDataCache.class);
+
+    /**
+     * The filename extension of all segment files.
+     */
+    private static final String SEGMENT_EXTENSION = ".seg";
+
+    /**
+     * The size at which a segment file is no longer appended to, in bytes.
+     */
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The size of the fixed portion of each record, in bytes: the length of
+     * the sealed data, the key, and the timestamp.
+     */
+    private static final int RECORD_HEADER_LENGTH = 4 + CacheCipher.KEY_LENGTH + 8;
+
+    /**
+     * The largest sealed data that will be read from any segment file, in
+     * bytes. Larger lengths indicate a corrupt segment.
+     */
+    private static final int MAX_SEALED_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The minimum interval between scans of the shared directory, in
+     * milliseconds.
+     */
+    private static final long REFRESH_INTERVAL = 250;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * ObjectMapper for serializing/deserializing JSON.
+     */
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * Shared reader for the JSON representation of UserData.
+     */
+    @Inject
+    private UserDataReader userDataReader;
+
+    /**
+     * Random identifier unique to this Guacamole server, used as the prefix
+     * of all segment files written by this server.
+     */
+    private final String nodeId = CacheCipher.generateSecret().substring(0, 16);
+
+    /**
+     * All records read or written thus far, where the key of each entry is
+     * the hexadecimal key identifying the authentication attempt.
+     */
+    private final ConcurrentMap<String, Record> records =
+            new ConcurrentHashMap<String, Record>();
+
+    /**
+     * The number of bytes read thus far from each segment file of other
+     * servers, where the key of each entry is the segment filename. Access
+     * is guarded by synchronizing on this map.
+     */
+    private final Map<String, Long> readOffsets = new HashMap<String, Long>();
+
+    /**
+     * The time of the last scan of the shared directory, in milliseconds
+     * since the epoch. Access is guarded by synchronizing on readOffsets.
+     */
+    private long lastRefresh;
+
+    /**
+     * The cipher used to encrypt records, or null if not yet initialized.
+     */
+    private CacheCipher cipher;
+
+    /**
+     * The segment file currently being appended to, or null if no such file
+     * has been opened. Access is guarded by synchronizing on this object.
+     */
+    private OutputStream segment;
+
+    /**
+     * The segment file currently being appended to, or null if no such file
+     * has been opened.
+     */
+    private File segmentFile;
+
+    /**
+     * The name of the segment file currently being appended to, or null if
+     * no such file has been opened.
+     */
+    private volatile String segmentName;
+
+    /**
+     * The time the current segment file was started, in milliseconds since
+     * the epoch.
+     */
+    private long segmentStarted;
+
+    /**
+     * The number of bytes written to the current segment file.
+     */
+    private long segmentSize;
+
+    /**
+     * The number of segment files created by this server.
+     */
+    private int segmentCount;
+
+    /**
+     * Whether this cache has been closed, in which case no further records
+     * are written.
+     */
+    private boolean closed;
+
+    /**
+     * A single cached callback response, or the removal of a response.
+     */
+    private static class Record {
+
+        /**
+         * The key identifying the authentication attempt.
+         */
+        private final byte[] key;
+
+        /**
+         * The time this record was written, in milliseconds since the epoch.
+         */
+        private final long timestamp;
+
+        /**
+         * The encrypted JSON of the UserData, as returned by
+         * CacheCipher.seal(), or an empty array if this record represents a
+         * removal.
+         */
+        private final byte[] sealed;
+
+        /**
+         * Creates a new Record with the given contents.
+         *
+         * @param key
+         *     The key identifying the authentication attempt.
+         *
+         * @param timestamp
+         *     The time this record was written, in milliseconds since the
+         *     epoch.
+         *
+         * @param sealed
+         *     The encrypted JSON of the UserData, or an empty array if this
+         *     record represents a removal.
+         */
+        public Record(byte[] key, long timestamp, byte[] sealed) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.sealed = sealed;
+        }
+
+    }
+
+    /**
+     * Returns the cipher used to encrypt records, deriving its keys from the
+     * secret defined by "callback-cache-key" if not yet initialized.
+     *
+     * @return
+     *     The cipher used to encrypt records.
+     *
+     * @throws GuacamoleException
+     *     If "callback-cache-key" is not defined or cannot be parsed.
+     */
+    private synchronized CacheCipher getCipher() throws GuacamoleException {
+
+        if (cipher != null)
+            return cipher;
+
+        // All servers must share the same secret
+        String secret = confService.getCacheKey();
+        if (secret == null)
+            throw new GuacamoleServerException("Property \"callback-cache-key\" "
+                    + "is required by the shared cache.");
+
+        try {
+            cipher = new CacheCipher(secret);
+        }
+        catch (GeneralSecurityException e) {
+            throw new GuacamoleServerException("Keys for shared cache could not be derived.", e);
+        }
+
+        return cipher;
+
+    }
+
+    /**
+     * Stores the given record within the in-memory index, unless a newer
+     * record having the same key is already stored.
+     *
+     * @param hexKey
+     *     The hexadecimal form of the key of the given record.
+     *
+     * @param record
+     *     The record to store.
+     */
+    private void index(String hexKey, Record record) {
+
+        for (;;) {
+
+            Record existing = records.putIfAbsent(hexKey, record);
+            if (existing == null)
+                return;
+
+            // Retain newer records
+            if (existing.timestamp > record.timestamp)
+                return;
+
+            if (records.replace(hexKey, existing, record))
+                return;
+
+        }
+
+    }
+
+    /**
+     * Appends the given record to the segment file of this server, starting
+     * a new segment file if the current file is full, has been written for
+     * half the cache lifetime, or has been deleted by another server.
+     *
+     * @param record
+     *     The record to append.
+     *
+     * @throws IOException
+     *     If the record cannot be written.
+     *
+     * @throws GuacamoleException
+     *     If the shared directory is not defined.
+     */
+    private synchronized void append(Record record)
+            throws IOException, GuacamoleException {
+
+        if (closed)
+            throw new IOException("Shared cache has been replaced.");
+
+        // Start a new segment once the current segment is full, or before
+        // other servers may consider it abandoned. A segment deleted despite
+        // this (for example, due to clock skew between servers) is replaced,
+        // as records appended to a deleted file would be seen by no server.
+        long ttl = confService.getCacheTTL() * 1000L;
+        if (segment == null || segmentSize >= MAX_SEGMENT_SIZE
+                || record.timestamp - segmentStarted >= ttl / 2
+                || !segmentFile.exists()) {
+
+            if (segment != null)
+                segment.close();
+
+            File directory = confService.getCacheDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Shared cache directory \"" + directory
+                        + "\" could not be created.");
+
+            segmentName = nodeId + "-" + (segmentCount++) + SEGMENT_EXTENSION;
+            segmentFile = new File(directory, segmentName);
+            segment = new FileOutputStream(segmentFile, true);
+            segmentStarted = record.timestamp;
+            segmentSize = 0;
+
+        }
+
+        // Write each record with a single call, such that other servers see
+        // either the whole record or a truncated record which is skipped
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + record.sealed.length);
+        buffer.putInt(record.sealed.length).put(record.key)
+                .putLong(record.timestamp).put(record.sealed);
+
+        segment.write(buffer.array());
+        segment.flush();
+        segmentSize += buffer.capacity();
+
+    }
+
+    /**
+     * Scans the shared directory as described by scan(), unless the
+     * directory was already scanned within the last REFRESH_INTERVAL.
+     *
+     * @throws GuacamoleException
+     *     If the shared directory or cache lifetime cannot be determined.
+     */
+    private void refresh() throws GuacamoleException {
+
+        synchronized (readOffsets) {
+            if (System.currentTimeMillis() - lastRefresh >= REFRESH_INTERVAL)
+                scan();
+        }
+
+    }
+
+    /**
+     * Reads all records appended by other servers since the last scan of the
+     * shared directory, deleting any segment files which have been abandoned
+     * by their servers. As each server starts a new segment file well within
+     * the cache lifetime, a segment file which has not been written within
+     * the cache lifetime is abandoned, and all its records have expired.
+     *
+     * @throws GuacamoleException
+     *     If the shared directory or cache lifetime cannot be determined.
+     */
+    void scan() throws GuacamoleException {
+
+        File directory = confService.getCacheDirectory();
+        long now = System.currentTimeMillis();
+        long ttl = confService.getCacheTTL() * 1000L;
+
+        synchronized (readOffsets) {
+
+            lastRefresh = now;
+
+            File[] files = directory.listFiles();
+            if (files == null) {
+                logger.warn("Shared cache directory \"{}\" cannot be read.", directory);
+                return;
+            }
+
+            for (File file : files) {
+
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_EXTENSION) || name.equals(segmentName))
+                    continue;
+
+                // Delete segments which have been abandoned by their servers
+                if (now - file.lastModified() > ttl) {
+                    if (file.delete())
+                        readOffsets.remove(name);
+                    continue;
+                }
+
+                // Records written by this server are already indexed
+                if (name.startsWith(nodeId))
+                    continue;
+
+                Long offset = readOffsets.get(name);
+                readOffsets.put(name, read(file, offset == null ? 0 : offset));
+
+            }
+
+            // Forget offsets of segments deleted by other servers
+            Iterator<String> names = readOffsets.keySet().iterator();
+            while (names.hasNext()) {
+                if (!new File(directory, names.next()).exists())
+                    names.remove();
+            }
+
+            // Drop expired records
+            Iterator<Record> iterator = records.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().timestamp > ttl)
+                    iterator.remove();
+            }
+
+        }
+
+    }
+
+    /**
+     * Reads all complete records from the given segment file, starting at the
+     * given offset.
+     *
+     * @param file
+     *     The segment file to read.
+     *
+     * @param offset
+     *     The offset of the first unread record.
+     *
+     * @return
+     *     The offset following the last complete record read.
+     */
+    private long read(File file, long offset) {
+
+        try {
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+
+                long length = input.length();
+                while (length - offset >= RECORD_HEADER_LENGTH) {
+
+                    input.seek(offset);
+                    int sealedLength = input.readInt();
+
+                    // Never read beyond corrupt data
+                    if (sealedLength < 0 || sealedLength > MAX_SEALED_LENGTH) {
+                        logger.warn("Shared cache segment \"{}\" is corrupt.", file);
+                        return length;
+                    }
+
+                    // Stop at truncated records, which may still be in the
+                    // process of being written
+                    if (length - offset < RECORD_HEADER_LENGTH + sealedLength)
+                        break;
+
+                    byte[] key = new byte[CacheCipher.KEY_LENGTH];
+                    input.readFully(key);
+                    long timestamp = input.readLong();
+                    byte[] sealed = new byte[sealedLength];
+                    input.readFully(sealed);
+
+                    index(CacheCipher.toHex(key), new Record(key, timestamp, sealed));
+                    offset += RECORD_HEADER_LENGTH + sealedLength;
+
+                }
+
+            }
+            finally {
+                input.close();
+            }
+
+        }
+        catch (IOException e) {
+            logger.debug("Shared cache segment \"{}\" could not be read.", file, e);
+        }
+
+        return offset;
+
+    }
+
+    @Override
+    public UserData get(String key) throws GuacamoleException {
+
+        long ttl = confService.getCacheTTL() * 1000L;
+
+        // Check for records written by other servers if not known locally
+        Record record = records.get(key);
+        if (record == null || System.currentTimeMillis() - record.timestamp > ttl) {
+            refresh();
+            record = records.get(key);
+        }
+
+        // Ignore removals and expired records
+        if (record == null || record.sealed.length == 0
+                || System.currentTimeMillis() - record.timestamp > ttl)
+            return null;
+
+        try {
+            return userDataReader.read(getCipher().unseal(record.key,
+                    record.timestamp, record.sealed));
+        }
+        catch (IOException e) {
+            logger.debug("Shared cache record could not be parsed.", e);
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Shared cache record could not be decrypted.", e);
+        }
+
+        return null;
+
+    }
+
+    @Override
+    public void put(String key, UserData userData) throws GuacamoleException {
+
+        byte[] rawKey = CacheCipher.fromHex(key);
+        long timestamp = System.currentTimeMillis();
+
+        try {
+            Record record = new Record(rawKey, timestamp,
+                    getCipher().seal(rawKey, timestamp, mapper.writeValueAsBytes(userData)));
+            append(record);
+            index(key, record);
+        }
+        catch (IOException e) {
+            logger.warn("Unable to write to shared cache: {}", e.getMessage());
+            logger.debug("Failed to append record to shared cache.", e);
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Callback response could not be encrypted for shared cache.", e);
+        }
+
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        closed = true;
+
+        // Other servers continue to read the records already written
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+
+    }
+
+    @Override
+    public void remove(String key) throws GuacamoleException {
+
+        // Removals are represented by records lacking data
+        Record record = new Record(CacheCipher.fromHex(key),
+                System.currentTimeMillis(), new byte[0]);
+
+        try {
+            append(record);
+            index(key, record);
+        }
+        catch (IOException e) {
+            logger.warn("Unable to write to shared cache: {}", e.getMessage());
+            logger.debug("Failed to append removal to shared cache.", e);
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import org.apache.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+
+/**
+ * A cache of callback responses, where each response is identified by a key
+ * derived from the parameters of the authentication attempt which produced
+ * it. Implementations are created through dependency injection, and thus may
+ * inject any service of the CallbackAuthenticationProvider, such as the
+ * ConfigurationService. Implementations must be threadsafe. A new instance
+ * is requested whenever "callback-cache", "callback-cache-key" or
+ * "callback-cache-ttl" change, and the previous instance is closed if it
+ * implements java.io.Closeable.
+ */
+public interface UserDataCache {
+
+    /**
+     * Returns the UserData stored under the given key, if that data has not
+     * yet expired.
+     *
+     * @param key
+     *     The hexadecimal key identifying the authentication attempt.
+     *
+     * @return
+     *     The UserData stored under the given key, or null if there is no
+     *     such data or the data has expired.
+     *
+     * @throws GuacamoleException
+     *     If the cache cannot be read.
+     */
+    UserData get(String key) throws GuacamoleException;
+
+    /**
+     * Stores the given UserData under the given key, replacing any existing
+     * data stored under that key.
+     *
+     * @param key
+     *     The hexadecimal key identifying the authentication attempt.
+     *
+     * @param userData
+     *     The UserData to store.
+     *
+     * @throws GuacamoleException
+     *     If the cache cannot be written.
+     */
+    void put(String key, UserData userData) throws GuacamoleException;
+
+    /**
+     * Removes any UserData stored under the given key.
+     *
+     * @param key
+     *     The hexadecimal key identifying the authentication attempt.
+     *
+     * @throws GuacamoleException
+     *     If the cache cannot be written.
+     */
+    void remove(String key) throws GuacamoleException;
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which caches callback responses using the UserDataCache
+ * implementation configured via "callback-cache", such that identical
+ * authentication attempts within the lifetime of the cache do not result in
+ * repeated callback requests. The cache is rebuilt, discarding all cached
+ * responses, whenever "callback-cache", "callback-cache-key" or
+ * "callback-cache-ttl" change.
+ */
+@Singleton
+public class UserDataCacheService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(UserDataCacheService.class);
+
+    /**
+     * The value of "callback-cache" which selects InMemoryUserDataCache.
+     */
+    public static final String MEMORY_CACHE = "memory";
+
+    /**
+     * The value of "callback-cache" which selects
+     * SharedDirectoryUserDataCache.
+     */
+    public static final String SHARED_CACHE = "shared";
+
+    /**
+     * The injector of the CallbackAuthenticationProvider, used to create the
+     * configured UserDataCache.
+     */
+    @Inject
+    private Injector injector;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * The configured cache and cipher, along with the configuration they were
+     * created for, or null if not yet created. Each login reads this field
+     * without locking, synchronizing only when the cache must be recreated.
+     */
+    private volatile ConfiguredCache current;
+
+    /**
+     * An immutable pairing of the configured cache and the cipher used to
+     * derive its keys with the configuration they were created for.
+     */
+    private static final class ConfiguredCache {
+
+        /**
+         * The value of "callback-cache" when the cache was created.
+         */
+        private final String type;
+
+        /**
+         * The value of "callback-cache-key" when the cache was created.
+         */
+        private final String secret;
+
+        /**
+         * The value of "callback-cache-ttl" when the cache was created.
+         */
+        private final int ttl;
+
+        /**
+         * The configured cache, or null if no cache is used.
+         */
+        private final UserDataCache cache;
+
+        /**
+         * The cipher used to derive the key of each authentication attempt,
+         * or null if no cache is used.
+         */
+        private final CacheCipher cipher;
+
+        /**
+         * Creates a new ConfiguredCache pairing the given cache and cipher
+         * with the configuration they were created for.
+         *
+         * @param type
+         *     The value of "callback-cache".
+         *
+         * @param secret
+         *     The value of "callback-cache-key".
+         *
+         * @param ttl
+         *     The value of "callback-cache-ttl".
+         *
+         * @param cache
+         *     The configured cache, or null if no cache is used.
+         *
+         * @param cipher
+         *     The cipher used to derive keys, or null if no cache is used.
+         */
+        public ConfiguredCache(String type, String secret, int ttl,
+                UserDataCache cache, CacheCipher cipher) {
+            this.type = type;
+            this.secret = secret;
+            this.ttl = ttl;
+            this.cache = cache;
+            this.cipher = cipher;
+        }
+
+        /**
+         * Returns whether this cache was created for the given
+         * configuration.
+         *
+         * @param type
+         *     The current value of "callback-cache".
+         *
+         * @param secret
+         *     The current value of "callback-cache-key".
+         *
+         * @param ttl
+         *     The current value of "callback-cache-ttl".
+         *
+         * @return
+         *     true if this cache was created for the given configuration,
+         *     false otherwise.
+         */
+        public boolean matches(String type, String secret, int ttl) {
+            return equal(type, this.type) && equal(secret, this.secret)
+                    && ttl == this.ttl;
+        }
+
+    }
+
+    /**
+     * Returns whether the given strings are equal, where either or both may
+     * be null.
+     *
+     * @param a
+     *     The first string to compare, or null.
+     *
+     * @param b
+     *     The second string to compare, or null.
+     *
+     * @return
+     *     true if both strings are null or equal, false otherwise.
+     */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Closes the given cache, if it holds resources which must be closed.
+     * Any failure to close the cache is logged.
+     *
+     * @param previous
+     *     The cache to close, or null.
+     */
+    private void close(UserDataCache previous) {
+
+        if (!(previous instanceof Closeable))
+            return;
+
+        try {
+            ((Closeable) previous).close();
+        }
+        catch (IOException e) {
+            logger.debug("Previous callback response cache could not be closed.", e);
+        }
+
+    }
+
+    /**
+     * Creates the configured cache and the cipher used to derive keys, if not
+     * already created for the current configuration. If the cache
+     * configuration has changed since the cache was created, the previous
+     * cache and everything within it is discarded.
+     *
+     * @return
+     *     The configured cache and cipher, which are null if no cache is
+     *     used.
+     *
+     * @throws GuacamoleException
+     *     If the cache configuration is invalid.
+     */
+    private ConfiguredCache getCache() throws GuacamoleException {
+
+        String type = confService.getCacheType();
+        String configuredSecret = confService.getCacheKey();
+        int ttl = confService.getCacheTTL();
+
+        // Reuse the current cache unless its configuration has changed
+        ConfiguredCache configured = current;
+        if (configured != null && configured.matches(type, configuredSecret, ttl))
+            return configured;
+
+        synchronized (this) {
+
+            // Another thread may have already recreated the cache
+            configured = current;
+            if (configured != null && configured.matches(type, configuredSecret, ttl))
+                return configured;
+
+            // Discard any previous cache, including all responses within it
+            if (configured != null) {
+                current = null;
+                close(configured.cache);
+            }
+
+            if (type == null)
+                configured = new ConfiguredCache(type, configuredSecret, ttl, null, null);
+            else {
+                CacheCipher cipher = createCipher(configuredSecret);
+                configured = new ConfiguredCache(type, configuredSecret, ttl,
+                        createCache(type), cipher);
+                logger.debug("Using callback response cache \"{}\".", type);
+            }
+
+            current = configured;
+            return configured;
+
+        }
+
+    }
+
+    /**
+     * Creates the cipher used to derive the keys of cached responses.
+     *
+     * @param configuredSecret
+     *     The value of "callback-cache-key", or null if a random secret
+     *     should be used.
+     *
+     * @return
+     *     A new cipher deriving keys from the given secret.
+     *
+     * @throws GuacamoleException
+     *     If keys cannot be derived.
+     */
+    private CacheCipher createCipher(String configuredSecret)
+            throws GuacamoleException {
+
+        // Use the configured secret if any, as all servers sharing a cache
+        // must derive identical keys
+        String secret = configuredSecret;
+        if (secret == null)
+            secret = CacheCipher.generateSecret();
+
+        try {
+            return new CacheCipher(secret);
+        }
+        catch (GeneralSecurityException e) {
+            throw new GuacamoleServerException("Keys for cache could not be derived.", e);
+        }
+
+    }
+
+    /**
+     * Creates a new cache of the given type.
+     *
+     * @param type
+     *     The value of "callback-cache".
+     *
+     * @return
+     *     A new cache of the given type.
+     *
+     * @throws GuacamoleException
+     *     If the cache configuration is invalid.
+     */
+    @SuppressWarnings("unchecked") // Type of class is verified before cast
+    private UserDataCache createCache(String type) throws GuacamoleException {
+
+        // Create the requested cache
+        if (MEMORY_CACHE.equals(type))
+            return injector.getInstance(InMemoryUserDataCache.class);
+
+        if (SHARED_CACHE.equals(type))
+            return injector.getInstance(SharedDirectoryUserDataCache.class);
+
+
+        Class<?> cacheClass;
+        try {
+            cacheClass = Class.forName(type);
+        }
+        catch (ClassNotFoundException e) {
+            throw new GuacamoleServerException("Property \"callback-cache\" "
+                    + "must be \"" + MEMORY_CACHE + "\", \"" + SHARED_CACHE
+                    + "\", or the name of a class implementing UserDataCache.", e);
+        }
+
+        if (!UserDataCache.class.isAssignableFrom(cacheClass))
+            throw new GuacamoleServerException("Class \"" + type + "\" does "
+                    + "not implement UserDataCache.");
+
+        return injector.getInstance((Class<? extends UserDataCache>) cacheClass);
+
+    }
+
+    /**
+     * Returns the key identifying cached responses for authentication
+     * attempts having the same parameters as the given credentials.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @return
+     *     The hexadecimal key identifying cached responses for the given
+     *     credentials, or null if no cache is used or the credentials have no
+     *     associated request.
+     *
+     * @throws GuacamoleException
+     *     If the cache configuration is invalid.
+     */
+    public String getKey(Credentials credentials) throws GuacamoleException {
+
+        HttpServletRequest request = credentials.getRequest();
+        CacheCipher cipher = getCache().cipher;
+        if (cipher == null || request == null)
+            return null;
+
+        try {
+            return CacheCipher.toHex(cipher.getKey(request));
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Parameters of authentication attempt could not be hashed.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Returns the cached UserData stored under the given key, if any.
+     *
+     * @param key
+     *     The key returned by getKey(), or null.
+     *
+     * @return
+     *     The cached UserData stored under the given key, or null if there is
+     *     no such data.
+     *
+     * @throws GuacamoleException
+     *     If the cache cannot be read.
+     */
+    public UserData get(String key) throws GuacamoleException {
+
+        UserDataCache currentCache = getCache().cache;
+        if (currentCache == null || key == null)
+            return null;
+
+        return currentCache.get(key);
+
+    }
+
+    /**
+     * Caches the given UserData under the given key.
+     *
+     * @param key
+     *     The key returned by getKey(), or null.
+     *
+     * @param userData
+     *     The UserData to cache.
+     *
+     * @throws GuacamoleException
+     *     If the cache cannot be written.
+     */
+    public void put(String key, UserData userData) throws GuacamoleException {
+
+        UserDataCache currentCache = getCache().cache;
+        if (currentCache == null || key == null)
+            return;
+
+        currentCache.put(key, userData);
+
+    }
+
+}
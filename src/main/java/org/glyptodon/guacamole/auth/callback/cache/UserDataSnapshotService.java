@@ -0,0 +1,653 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Credentials;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which maintains an encrypted snapshot of recent successful callback
+ * responses within GUACAMOLE_HOME, such that those responses survive a
+ * restart. Each response is keyed by a keyed hash of the parameters of the
+ * authentication attempt which produced it, and may be used in place of the
+ * callback if the callback is unavailable, or immediately after a restart if
+ * warm start is enabled.
+ */
+@Singleton
+public class UserDataSnapshotService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(UserDataSnapshotService.class);
+
+    /**
+     * The value at the beginning of every snapshot file, identifying the
+     * file format.
+     */
+    private static final int MAGIC = 0x47435331;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * ObjectMapper for serializing/deserializing JSON.
+     */
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * Shared reader for the JSON representation of UserData.
+     */
+    @Inject
+    private UserDataReader userDataReader;
+
+    /**
+     * All entries within the snapshot, where the key of each entry is the
+     * hexadecimal form of the key identifying the entry.
+     */
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * All entries added to the snapshot, in the order they were added. An
+     * entry within this queue may since have been replaced or removed, in
+     * which case it is simply discarded when it reaches the head of the
+     * queue.
+     */
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * The number of entries within the order queue. This is tracked
+     * separately, as determining the size of a ConcurrentLinkedQueue
+     * requires traversing the entire queue.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Whether the entries within the snapshot have changed since the
+     * snapshot was last written.
+     */
+    private final AtomicBoolean modified = new AtomicBoolean(false);
+
+    /**
+     * The cipher used to encrypt snapshot entries, whose keys are derived from
+     * the configured secret, or null if no snapshot is maintained.
+     */
+    private volatile CacheCipher cipher;
+
+    /**
+     * Whether start() has been invoked.
+     */
+    private boolean started;
+
+    /**
+     * A single callback response within the snapshot.
+     */
+    private static class Entry {
+
+        /**
+         * The key identifying this entry.
+         */
+        private final byte[] key;
+
+        /**
+         * The hexadecimal form of the key identifying this entry.
+         */
+        private final String id;
+
+        /**
+         * The time that the callback response was received, in milliseconds
+         * since the epoch.
+         */
+        private final long timestamp;
+
+        /**
+         * The initialization vector, encrypted JSON of the UserData, and
+         * message authentication code, in that order.
+         */
+        private final byte[] sealed;
+
+        /**
+         * Whether this entry was restored from the snapshot file, rather than
+         * received from the callback since startup.
+         */
+        private final boolean restored;
+
+        /**
+         * Creates a new Entry with the given contents.
+         *
+         * @param key
+         *     The key identifying this entry.
+         *
+         * @param timestamp
+         *     The time that the callback response was received, in
+         *     milliseconds since the epoch.
+         *
+         * @param sealed
+         *     The initialization vector, encrypted JSON of the UserData, and
+         *     message authentication code, in that order.
+         *
+         * @param restored
+         *     Whether this entry was restored from the snapshot file.
+         */
+        public Entry(byte[] key, long timestamp, byte[] sealed, boolean restored) {
+            this.key = key;
+            this.id = CacheCipher.toHex(key);
+            this.timestamp = timestamp;
+            this.sealed = sealed;
+            this.restored = restored;
+        }
+
+    }
+
+    /**
+     * Orders entries by the time their callback responses were received,
+     * oldest first.
+     */
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.timestamp < b.timestamp ? -1 : (a.timestamp == b.timestamp ? 0 : 1);
+        }
+
+    };
+
+    /**
+     * Creates a new daemon thread for writing the snapshot.
+     */
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "callback-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    };
+
+    /**
+     * Restores all entries from the snapshot file, if any, and begins
+     * periodically writing the snapshot. If no secret is defined via
+     * "callback-snapshot-key", this function has no effect. Subsequent
+     * invocations of this function also have no effect.
+     *
+     * @throws GuacamoleException
+     *     If the properties configuring the snapshot could not be parsed.
+     */
+    public synchronized void start() throws GuacamoleException {
+
+        if (started)
+            return;
+
+        started = true;
+
+        // Maintain no snapshot if no secret is defined
+        String secret = confService.getSnapshotKey();
+        if (secret == null)
+            return;
+
+        try {
+            cipher = new CacheCipher(secret);
+        }
+        catch (GeneralSecurityException e) {
+            logger.warn("Snapshot of callback responses is disabled: {}", e.getMessage());
+            logger.debug("Keys for snapshot could not be derived.", e);
+            return;
+        }
+
+        restore();
+
+        // Write snapshot periodically in the background
+        int interval = confService.getSnapshotInterval();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                write();
+            }
+
+        }, interval, interval, TimeUnit.SECONDS);
+
+    }
+
+    /**
+     * Returns the key identifying snapshot entries for authentication
+     * attempts having the same parameters as the given credentials. The key
+     * is a keyed hash of all parameter names and values, and thus does not
+     * reveal those parameters.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @return
+     *     The hexadecimal form of the key identifying snapshot entries for
+     *     the given credentials, or null if no snapshot is maintained or the
+     *     credentials have no associated request.
+     */
+    public String getKey(Credentials credentials) {
+
+        CacheCipher currentCipher = cipher;
+        HttpServletRequest request = credentials.getRequest();
+        if (currentCipher == null || request == null)
+            return null;
+
+        try {
+            return CacheCipher.toHex(currentCipher.getKey(request));
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Parameters of authentication attempt could not be hashed.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Stores the given successful callback response within the snapshot,
+     * replacing any existing entry having the same key.
+     *
+     * @param key
+     *     The key returned by getKey() for the credentials of the
+     *     authentication attempt, or null.
+     *
+     * @param userData
+     *     The UserData returned by the callback.
+     */
+    public void put(String key, UserData userData) {
+
+        CacheCipher currentCipher = cipher;
+        if (currentCipher == null || key == null)
+            return;
+
+        try {
+            byte[] rawKey = CacheCipher.fromHex(key);
+            long timestamp = System.currentTimeMillis();
+            byte[] sealed = currentCipher.seal(rawKey, timestamp, mapper.writeValueAsBytes(userData));
+            add(new Entry(rawKey, timestamp, sealed, false), true);
+            modified.set(true);
+        }
+        catch (IOException e) {
+            logger.debug("Callback response could not be serialized for snapshot.", e);
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Callback response could not be encrypted for snapshot.", e);
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Maximum size of snapshot could not be read.", e);
+        }
+
+    }
+
+    /**
+     * Adds the given entry to the snapshot, discarding the oldest entries if
+     * the snapshot would otherwise exceed its maximum size.
+     *
+     * @param entry
+     *     The entry to add.
+     *
+     * @param replace
+     *     Whether the given entry should replace any existing entry having
+     *     the same key. If false, the given entry is added only if no such
+     *     entry exists.
+     *
+     * @return
+     *     true if the given entry was added, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the maximum size of the snapshot could not be read.
+     */
+    private boolean add(Entry entry, boolean replace)
+            throws GuacamoleException {
+
+        if (replace)
+            entries.put(entry.id, entry);
+        else if (entries.putIfAbsent(entry.id, entry) != null)
+            return false;
+
+        order.add(entry);
+        queued.incrementAndGet();
+
+        // Discard oldest entries while there are too many, including entries
+        // which were replaced or removed if those have accumulated beyond
+        // the number that can actually be stored
+        int maxSize = confService.getSnapshotSize();
+        while (entries.size() > maxSize || queued.get() > maxSize * 2) {
+
+            Entry oldest = order.poll();
+            if (oldest == null)
+                break;
+
+            queued.decrementAndGet();
+
+            // Remove the entry only if it has not since been replaced
+            entries.remove(oldest.id, oldest);
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Removes any entry having the given key from the snapshot. This should
+     * be invoked when the callback rejects an authentication attempt, such
+     * that a previous response is never used for rejected credentials.
+     *
+     * @param key
+     *     The key returned by getKey() for the credentials of the
+     *     authentication attempt, or null.
+     */
+    public void remove(String key) {
+        if (key != null && entries.remove(key) != null)
+            modified.set(true);
+    }
+
+    /**
+     * Returns the UserData stored within the snapshot under the given key,
+     * regardless of whether that data was restored from the snapshot file or
+     * received since startup. Entries older than the maximum age are ignored.
+     *
+     * @param key
+     *     The key returned by getKey() for the credentials of the
+     *     authentication attempt, or null.
+     *
+     * @return
+     *     The UserData stored under the given key, or null if there is no
+     *     such data.
+     *
+     * @throws GuacamoleException
+     *     If the maximum age of snapshot entries could not be parsed.
+     */
+    public UserData get(String key) throws GuacamoleException {
+        return get(key, false);
+    }
+
+    /**
+     * Returns the UserData stored within the snapshot under the given key,
+     * only if that data was restored from the snapshot file and warm start is
+     * enabled. Entries older than the maximum age are ignored.
+     *
+     * @param key
+     *     The key returned by getKey() for the credentials of the
+     *     authentication attempt, or null.
+     *
+     * @return
+     *     The UserData restored from the snapshot file under the given key, or
+     *     null if there is no such data or warm start is disabled.
+     *
+     * @throws GuacamoleException
+     *     If the properties configuring the snapshot could not be parsed.
+     */
+    public UserData getRestored(String key) throws GuacamoleException {
+
+        if (!confService.useSnapshotWarmStart())
+            return null;
+
+        return get(key, true);
+
+    }
+
+    /**
+     * Returns the UserData stored within the snapshot under the given key.
+     * Entries older than the maximum age are ignored.
+     *
+     * @param key
+     *     The key returned by getKey() for the credentials of the
+     *     authentication attempt, or null.
+     *
+     * @param restoredOnly
+     *     Whether only entries restored from the snapshot file should be
+     *     considered.
+     *
+     * @return
+     *     The UserData stored under the given key, or null if there is no
+     *     such data.
+     *
+     * @throws GuacamoleException
+     *     If the maximum age of snapshot entries could not be parsed.
+     */
+    private UserData get(String key, boolean restoredOnly)
+            throws GuacamoleException {
+
+        CacheCipher currentCipher = cipher;
+        if (currentCipher == null || key == null)
+            return null;
+
+        Entry entry = entries.get(key);
+        if (entry == null || (restoredOnly && !entry.restored) || isExpired(entry))
+            return null;
+
+        try {
+            return userDataReader.read(currentCipher.unseal(entry.key,
+                    entry.timestamp, entry.sealed));
+        }
+        catch (IOException e) {
+            logger.debug("Snapshot entry could not be parsed.", e);
+        }
+        catch (GeneralSecurityException e) {
+            logger.debug("Snapshot entry could not be decrypted.", e);
+        }
+
+        // Never retry entries which cannot be read
+        remove(key);
+        return null;
+
+    }
+
+    /**
+     * Returns whether the given entry is older than the maximum age of
+     * snapshot entries.
+     *
+     * @param entry
+     *     The entry to test.
+     *
+     * @return
+     *     true if the given entry is older than the maximum age, false
+     *     otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the maximum age of snapshot entries could not be parsed.
+     */
+    private boolean isExpired(Entry entry) throws GuacamoleException {
+        long maxAge = confService.getSnapshotMaxAge() * 1000L;
+        return System.currentTimeMillis() - entry.timestamp > maxAge;
+    }
+
+    /**
+     * Restores all unexpired entries from the snapshot file, if it exists. If
+     * the file contains more entries than the maximum size of the snapshot,
+     * only the most recently received entries are kept. Any failure to read
+     * the file is logged, and results in an empty snapshot.
+     *
+     * @throws GuacamoleException
+     *     If the maximum age or size of snapshot entries could not be parsed.
+     */
+    private void restore() throws GuacamoleException {
+
+        File file = confService.getSnapshotFile();
+        if (!file.exists())
+            return;
+
+        long now = System.currentTimeMillis();
+        long maxAge = confService.getSnapshotMaxAge() * 1000L;
+        long length = file.length();
+
+        int restored = 0;
+        try {
+
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+
+                if (input.readInt() != MAGIC)
+                    throw new IOException("Not a snapshot file.");
+
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+
+                    byte[] key = new byte[CacheCipher.KEY_LENGTH];
+                    input.readFully(key);
+                    long timestamp = input.readLong();
+
+                    // Refuse to allocate beyond what the file could contain
+                    int sealedLength = input.readInt();
+                    if (sealedLength < 0 || sealedLength > length)
+                        throw new IOException("Snapshot entry has invalid length.");
+
+                    byte[] sealed = new byte[sealedLength];
+                    input.readFully(sealed);
+
+                    // Skip entries which can no longer be used
+                    if (now - timestamp > maxAge)
+                        continue;
+
+                    if (add(new Entry(key, timestamp, sealed, true), false))
+                        restored++;
+
+                }
+
+            }
+            finally {
+                input.close();
+            }
+
+        }
+        catch (EOFException e) {
+            logger.warn("Snapshot of callback responses within \"{}\" is truncated.", file);
+            logger.debug("Failed to read snapshot.", e);
+        }
+        catch (IOException e) {
+            logger.warn("Snapshot of callback responses could not be read from \"{}\": {}", file, e.getMessage());
+            logger.debug("Failed to read snapshot.", e);
+        }
+
+        logger.debug("Restored {} callback responses from snapshot.", restored);
+
+    }
+
+    /**
+     * Writes all unexpired entries to the snapshot file, if any entries have
+     * changed since the snapshot was last written. The snapshot is written
+     * to a temporary file which then replaces the snapshot file. Any failure
+     * to write the snapshot is logged.
+     */
+    private void write() {
+
+        File file = confService.getSnapshotFile();
+        File temporary = new File(file.getPath() + ".tmp");
+
+        try {
+
+            // Remove expired entries
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                if (isExpired(iterator.next())) {
+                    iterator.remove();
+                    modified.set(true);
+                }
+            }
+
+            if (!modified.getAndSet(false))
+                return;
+
+            // Write oldest entries first, such that entries are restored in
+            // the order they were received
+            List<Entry> current = new ArrayList<Entry>(entries.values());
+            Collections.sort(current, OLDEST_FIRST);
+
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+
+                output.writeInt(MAGIC);
+                output.writeInt(current.size());
+                for (Entry entry : current) {
+                    output.write(entry.key);
+                    output.writeLong(entry.timestamp);
+                    output.writeInt(entry.sealed.length);
+                    output.write(entry.sealed);
+                }
+
+            }
+            finally {
+                output.close();
+            }
+
+            // Replace previous snapshot
+            if (!temporary.renameTo(file) && (!file.delete() || !temporary.renameTo(file)))
+                throw new IOException("Snapshot file could not be replaced.");
+
+        }
+        catch (IOException e) {
+            modified.set(true);
+            logger.warn("Snapshot of callback responses could not be written to \"{}\": {}", file, e.getMessage());
+            logger.debug("Failed to write snapshot.", e);
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Snapshot of callback responses could not be written: {}", e.getMessage());
+            logger.debug("Failed to write snapshot.", e);
+        }
+
+    }
+
+}
@@ -0,0 +1,2169 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.conf;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.FileGuacamoleProperty;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.properties.StringGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable, validated snapshot of all properties within
+ * guacamole.properties which affect the callback authentication provider.
+ * A new CallbackConfiguration is read each time guacamole.properties changes,
+ * and is never modified after being read.
+ */
+public class CallbackConfiguration {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(CallbackConfiguration.class);
+
+    /**
+     * The default maximum number of callback responses stored within the
+     * snapshot.
+     */
+    private static final int DEFAULT_SNAPSHOT_SIZE = 10000;
+
+    /**
+     * The default maximum number of users for which connection history is
+     * retained.
+     */
+    private static final int DEFAULT_HISTORY_USERS = 10000;
+
+    /**
+     * The default maximum number of connections of individual users for
+     * which connection history is retained.
+     */
+    private static final int DEFAULT_HISTORY_CONNECTIONS = 50000;
+
+    /**
+     * The default number of recent connection records retained for each user
+     * and for each connection of each user.
+     */
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+
+    /**
+     * The default percentage of the maximum concurrent requests to callbacks
+     * which background work may use.
+     */
+    private static final int DEFAULT_BACKGROUND_SHARE = 25;
+
+    /**
+     * The default maximum number of concurrent requests to callbacks, where
+     * zero means unlimited.
+     */
+    private static final int DEFAULT_MAX_REQUESTS = 0;
+
+    /**
+     * The default maximum time to wait for each additional callback, in
+     * milliseconds.
+     */
+    private static final int DEFAULT_SOURCE_DEADLINE = 2000;
+
+    /**
+     * The default number of rotated audit log files retained.
+     */
+    private static final int DEFAULT_AUDIT_FILES = 10;
+
+    /**
+     * The default size at which the audit log file is rotated, in kilobytes.
+     */
+    private static final int DEFAULT_AUDIT_FILE_SIZE = 10240;
+
+    /**
+     * The default maximum number of audit events awaiting writing.
+     */
+    private static final int DEFAULT_AUDIT_BUFFER_SIZE = 8192;
+
+    /**
+     * The default minimum duration of a recorded directory build, in
+     * milliseconds.
+     */
+    private static final int DEFAULT_EVENT_DIRECTORY_THRESHOLD = 100;
+
+    /**
+     * The default minimum duration of a recorded read of the default response,
+     * in milliseconds.
+     */
+    private static final int DEFAULT_EVENT_DEFAULT_RESPONSE_THRESHOLD = 100;
+
+    /**
+     * The default minimum duration of a recorded authentication attempt, in
+     * milliseconds.
+     */
+    private static final int DEFAULT_EVENT_ATTEMPT_THRESHOLD = 1000;
+
+    /**
+     * The value of "callback-deadline-fallback" which uses the most recent
+     * snapshot of a response for the same parameters, or else the default
+     * response, when an authentication attempt exceeds its deadline.
+     */
+    public static final String DEADLINE_FALLBACK_STALE = "stale";
+
+    /**
+     * The value of "callback-deadline-fallback" which uses the default
+     * response when an authentication attempt exceeds its deadline.
+     */
+    public static final String DEADLINE_FALLBACK_DEFAULT = "default";
+
+    /**
+     * The value of "callback-deadline-fallback" which rejects authentication
+     * attempts which exceed their deadline.
+     */
+    public static final String DEADLINE_FALLBACK_REJECT = "reject";
+
+    /**
+     * The value of "callback-merge-policy" which keeps the connection or
+     * connection group defined by the first callback to respond with a given
+     * identifier, in the order the callbacks are defined, ignoring others.
+     */
+    public static final String MERGE_POLICY_FIRST = "first";
+
+    /**
+     * The value of "callback-merge-policy" which prefixes the identifiers
+     * of connections and connection groups from each additional callback
+     * with the name of that callback and NAMESPACE_SEPARATOR.
+     */
+    public static final String MERGE_POLICY_NAMESPACED = "namespaced";
+
+    /**
+     * The character separating the name of an additional callback from the
+     * identifiers of its connections and connection groups, if namespaced.
+     */
+    public static final char NAMESPACE_SEPARATOR = ':';
+
+    /**
+     * The default policy for resolving conflicting identifiers when merging
+     * the responses of several callbacks.
+     */
+    private static final String DEFAULT_MERGE_POLICY = MERGE_POLICY_FIRST;
+
+    /**
+     * The value of "callback-parameter-encoding" which sends parameters
+     * within the query string of the request.
+     */
+    public static final String PARAMETER_ENCODING_QUERY = "query";
+
+    /**
+     * The value of "callback-parameter-encoding" which sends parameters
+     * within an "application/x-www-form-urlencoded" request body.
+     */
+    public static final String PARAMETER_ENCODING_FORM = "form";
+
+    /**
+     * The value of "callback-parameter-encoding" which sends parameters
+     * within an "application/json" request body.
+     */
+    public static final String PARAMETER_ENCODING_JSON = "json";
+
+    /**
+     * The default encoding of the parameters of authentication attempts.
+     */
+    private static final String DEFAULT_PARAMETER_ENCODING = PARAMETER_ENCODING_QUERY;
+
+    /**
+     * The default maximum duration of each authentication attempt, in
+     * milliseconds.
+     */
+    private static final int DEFAULT_DEADLINE = 10000;
+
+    /**
+     * The default number of retries permitted for every 100 requests to the
+     * callback.
+     */
+    private static final int DEFAULT_RETRY_BUDGET = 10;
+
+    /**
+     * The default maximum delay before the first retry of a request to the
+     * callback, in milliseconds.
+     */
+    private static final int DEFAULT_RETRY_BACKOFF = 100;
+
+    /**
+     * The default maximum number of times a request to the callback is retried
+     * after a transient failure.
+     */
+    private static final int DEFAULT_RETRIES = 0;
+
+    /**
+     * The default number of connections to the callback opened when the
+     * extension is loaded.
+     */
+    private static final int DEFAULT_WARM_UP_CONNECTIONS = 2;
+
+    /**
+     * The default lifetime of each session resumption token, in seconds.
+     */
+    private static final int DEFAULT_RESUME_TTL = 300;
+
+    /**
+     * The default maximum age of any callback response stored within the
+     * snapshot, in seconds.
+     */
+    private static final int DEFAULT_SNAPSHOT_MAX_AGE = 3600;
+
+    /**
+     * The default interval between writes of the snapshot, in seconds.
+     */
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 60;
+
+    /**
+     * The name of the directory within GUACAMOLE_HOME which should be used by
+     * the shared cache if no other directory is specified.
+     */
+    private static final String DEFAULT_CACHE_DIRECTORY = "callback-cache";
+
+    /**
+     * The default lifetime of each cached callback response, in seconds.
+     */
+    private static final int DEFAULT_CACHE_TTL = 60;
+
+    /**
+     * The default maximum number of callback responses cached in memory.
+     */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * The property which defines the HTTP or HTTPS URI which should be used as
+     * the authentication callback.
+     */
+    private static final URIGuacamoleProperty CALLBACK_AUTH_URI =
+            new URIGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-auth-uri";
+        }
+
+    };
+
+    /**
+     * The property which defines the HTTP or HTTPS URI which should be invoked
+     * to retrieve the parameters of a single connection at the moment that
+     * connection is used. If omitted, all connection parameters must be
+     * provided by the authentication callback itself.
+     */
+    private static final URIGuacamoleProperty CALLBACK_PARAMETERS_URI =
+            new URIGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-parameters-uri";
+        }
+
+    };
+
+    /**
+     * The property which defines whether a mock authentication callback
+     * service should be used, rather than making actual HTTP requests to the
+     * configured callback URI.
+     */
+    private static final BooleanGuacamoleProperty CALLBACK_USE_MOCK_SERVICE =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-use-mock-service";
+        }
+
+    };
+
+    /**
+     * The property which defines the secret used to encrypt and authenticate
+     * the snapshot of recent successful callback responses. If omitted, no
+     * snapshot is maintained.
+     */
+    private static final StringGuacamoleProperty CALLBACK_SNAPSHOT_KEY =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-snapshot-key";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum age of any callback response
+     * stored within the snapshot, in seconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_SNAPSHOT_MAX_AGE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-snapshot-max-age";
+        }
+
+    };
+
+    /**
+     * The property which defines the interval between writes of the
+     * snapshot, in seconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_SNAPSHOT_INTERVAL =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-snapshot-interval";
+        }
+
+    };
+
+    /**
+     * The property which defines whether callback responses restored from the
+     * snapshot after a restart should be used without invoking the callback.
+     */
+    private static final BooleanGuacamoleProperty CALLBACK_SNAPSHOT_WARM_START =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-snapshot-warm-start";
+        }
+
+    };
+
+    /**
+     * The property which defines the lifetime of each session resumption
+     * token, in seconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_RESUME_TTL =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-resume-ttl";
+        }
+
+    };
+
+    /**
+     * The property which defines the cache used to avoid repeated callback
+     * requests for identical authentication attempts: "memory", "shared", or
+     * the name of a class implementing UserDataCache.
+     */
+    private static final StringGuacamoleProperty CALLBACK_CACHE =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-cache";
+        }
+
+    };
+
+    /**
+     * The property which defines the lifetime of each cached callback
+     * response, in seconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_CACHE_TTL =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-cache-ttl";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of callback responses
+     * cached in memory.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_CACHE_SIZE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-cache-size";
+        }
+
+    };
+
+    /**
+     * The property which defines the directory shared by all Guacamole
+     * servers which should be used by the shared cache.
+     */
+    private static final FileGuacamoleProperty CALLBACK_CACHE_DIRECTORY =
+            new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-cache-directory";
+        }
+
+    };
+
+    /**
+     * The property which defines the secret shared by all Guacamole servers
+     * which is used to identify and encrypt cached callback responses.
+     */
+    private static final StringGuacamoleProperty CALLBACK_CACHE_KEY =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-cache-key";
+        }
+
+    };
+
+    /**
+     * The property which defines whether services, JSON readers, the default
+     * response, and connections to the callback should be prepared when the
+     * extension is loaded, rather than upon first use.
+     */
+    private static final BooleanGuacamoleProperty CALLBACK_WARM_UP =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-warm-up";
+        }
+
+    };
+
+    /**
+     * The property which defines the number of connections to the callback
+     * which should be opened when the extension is loaded.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_WARM_UP_CONNECTIONS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-warm-up-connections";
+        }
+
+    };
+
+    /**
+     * The property which defines whether callback responses should be parsed
+     * with the hand-written parser for the UserData schema rather than generic
+     * data binding.
+     */
+    private static final BooleanGuacamoleProperty CALLBACK_STREAMING_PARSER =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-streaming-parser";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of times a request to the
+     * callback is retried after a transient failure.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_RETRIES =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-retries";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum delay before the first retry of a
+     * request to the callback, in milliseconds. The maximum delay doubles with
+     * each subsequent retry.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_RETRY_BACKOFF =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-retry-backoff";
+        }
+
+    };
+
+    /**
+     * The property which defines the number of retries permitted for every 100
+     * requests to the callback.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_RETRY_BUDGET =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-retry-budget";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum duration of each authentication
+     * attempt, in milliseconds, including all requests to the callback.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_DEADLINE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-deadline";
+        }
+
+    };
+
+    /**
+     * The property which defines the result of an authentication attempt which
+     * exceeds its deadline: "stale", "default", or "reject".
+     */
+    private static final StringGuacamoleProperty CALLBACK_DEADLINE_FALLBACK =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-deadline-fallback";
+        }
+
+    };
+
+    /**
+     * The property which defines the minimum duration of an authentication
+     * attempt for an event describing that attempt to be recorded, in
+     * milliseconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_EVENT_ATTEMPT_THRESHOLD =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-event-attempt-threshold";
+        }
+
+    };
+
+    /**
+     * The property which defines the minimum duration of a read of the default
+     * response for an event describing that read to be recorded, in
+     * milliseconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_EVENT_DEFAULT_RESPONSE_THRESHOLD =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-event-default-response-threshold";
+        }
+
+    };
+
+    /**
+     * The property which defines the minimum duration of building a user's
+     * connection directory or connection group tree for an event describing
+     * that build to be recorded, in milliseconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_EVENT_DIRECTORY_THRESHOLD =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-event-directory-threshold";
+        }
+
+    };
+
+    /**
+     * The property which defines the file to which the anonymized shape of
+     * each request to the callback should be recorded.
+     */
+    private static final FileGuacamoleProperty CALLBACK_RECORDING_FILE =
+            new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-recording-file";
+        }
+
+    };
+
+    /**
+     * The property which defines the sink to which the outcome of every
+     * authentication attempt should be written. This may be "file" or the
+     * fully-qualified name of a class implementing AuditSink.
+     */
+    private static final StringGuacamoleProperty CALLBACK_AUDIT =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-audit";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of audit events which may
+     * await writing. Further events are dropped until the backlog is written.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_AUDIT_BUFFER_SIZE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-audit-buffer-size";
+        }
+
+    };
+
+    /**
+     * The property which defines the size at which the audit log file is
+     * rotated, in kilobytes.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_AUDIT_FILE_SIZE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-audit-file-size";
+        }
+
+    };
+
+    /**
+     * The property which defines the number of rotated audit log files
+     * retained in addition to the current file.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_AUDIT_FILES =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-audit-files";
+        }
+
+    };
+
+    /**
+     * The property which defines the additional callbacks queried in parallel
+     * with the authentication callback, as a comma-separated list of NAME=URI
+     * pairs.
+     */
+    private static final StringGuacamoleProperty CALLBACK_ADDITIONAL_SOURCES =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-additional-sources";
+        }
+
+    };
+
+    /**
+     * The property which defines how conflicting connection and connection
+     * group identifiers are resolved when merging the responses of several
+     * callbacks.
+     */
+    private static final StringGuacamoleProperty CALLBACK_MERGE_POLICY =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-merge-policy";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum time to wait for each additional
+     * callback, in milliseconds.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_SOURCE_DEADLINE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-source-deadline";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of requests to callbacks
+     * which may be in progress at once, shared between authentication attempts
+     * and background work.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_MAX_REQUESTS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-max-requests";
+        }
+
+    };
+
+    /**
+     * The property which defines the percentage of the maximum concurrent
+     * requests to callbacks which background work may use.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_BACKGROUND_SHARE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-background-share";
+        }
+
+    };
+
+    /**
+     * The property which defines whether the connection parameters of each
+     * session should be stored outside the Java heap.
+     */
+    private static final BooleanGuacamoleProperty CALLBACK_OFF_HEAP_PARAMETERS =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-off-heap-parameters";
+        }
+
+    };
+
+    /**
+     * The property which defines the number of recent connection records
+     * retained for each user and for each connection of each user.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_HISTORY_SIZE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-history-size";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of users for which
+     * connection history is retained.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_HISTORY_USERS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-history-users";
+        }
+
+    };
+
+    /**
+     * The property which defines the maximum number of connections of
+     * individual users for which connection history is retained.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_HISTORY_CONNECTIONS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-history-connections";
+        }
+
+    };
+
+    /**
+     * The property which defines how the parameters of authentication
+     * attempts are sent to the authentication callback and additional
+     * sources.
+     */
+    private static final StringGuacamoleProperty CALLBACK_PARAMETER_ENCODING =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-parameter-encoding";
+        }
+
+    };
+
+    /**
+     * The property which defines the names of the only request parameters
+     * which should be sent to the authentication callback and additional
+     * sources.
+     */
+    private static final StringGuacamoleProperty CALLBACK_PARAMETER_ALLOWLIST =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-parameter-allowlist";
+        }
+
+    };
+
+    /**
+     * The property which defines the names of request parameters which
+     * should never be sent to the authentication callback and additional
+     * sources.
+     */
+    private static final StringGuacamoleProperty CALLBACK_PARAMETER_DENYLIST =
+            new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-parameter-denylist";
+        }
+
+    };
+
+    /**
+     * The maximum number of callback responses stored within the snapshot.
+     */
+    private static final IntegerGuacamoleProperty CALLBACK_SNAPSHOT_SIZE =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "callback-snapshot-size";
+        }
+
+    };
+
+    /**
+     * The HTTP or HTTPS URI which should be used as the authentication
+     * callback, or null if the mock callback service is used.
+     */
+    private final URI callbackURI;
+
+    /**
+     * The HTTP or HTTPS URI which should be invoked to retrieve the
+     * parameters of a connection when that connection is used, or null if
+     * connection parameters are never retrieved separately.
+     */
+    private final URI parametersURI;
+
+    /**
+     * Whether a mock authentication callback service should be used.
+     */
+    private final boolean mockService;
+
+    /**
+     * The secret used to encrypt and authenticate the snapshot of recent
+     * successful callback responses, or null if no snapshot is maintained.
+     */
+    private final String snapshotKey;
+
+    /**
+     * The maximum age of any callback response stored within the snapshot,
+     * in seconds.
+     */
+    private final int snapshotMaxAge;
+
+    /**
+     * The interval between writes of the snapshot, in seconds.
+     */
+    private final int snapshotInterval;
+
+    /**
+     * Whether callback responses restored from the snapshot should be used
+     * without invoking the callback.
+     */
+    private final boolean snapshotWarmStart;
+
+    /**
+     * The cache which should be used to avoid repeated callback requests,
+     * or null if no cache is used.
+     */
+    private final String cacheType;
+
+    /**
+     * The lifetime of each cached callback response, in seconds.
+     */
+    private final int cacheTTL;
+
+    /**
+     * The maximum number of callback responses cached in memory.
+     */
+    private final int cacheSize;
+
+    /**
+     * The directory which should be used by the shared cache.
+     */
+    private final File cacheDirectory;
+
+    /**
+     * The secret used to identify and encrypt cached callback responses, or
+     * null if no such secret is defined.
+     */
+    private final String cacheKey;
+
+    /**
+     * The lifetime of each session resumption token, in seconds.
+     */
+    private final int resumeTTL;
+
+    /**
+     * Whether the extension should be prepared for use when loaded.
+     */
+    private final boolean warmUp;
+
+    /**
+     * The number of connections to the callback which should be opened when
+     * the extension is loaded.
+     */
+    private final int warmUpConnections;
+
+    /**
+     * Whether callback responses should be parsed with the hand-written
+     * parser for the UserData schema.
+     */
+    private final boolean streamingParser;
+
+    /**
+     * The maximum number of times a request to the callback is retried after
+     * a transient failure.
+     */
+    private final int retries;
+
+    /**
+     * The maximum delay before the first retry of a request to the callback,
+     * in milliseconds.
+     */
+    private final int retryBackoff;
+
+    /**
+     * The number of retries permitted for every 100 requests to the callback.
+     */
+    private final int retryBudget;
+
+    /**
+     * The maximum duration of each authentication attempt, in milliseconds,
+     * or zero if authentication attempts are unbounded.
+     */
+    private final int deadline;
+
+    /**
+     * The result of an authentication attempt which exceeds its deadline.
+     */
+    private final String deadlineFallback;
+
+    /**
+     * The minimum duration of a recorded authentication attempt, in
+     * milliseconds.
+     */
+    private final int eventAttemptThreshold;
+
+    /**
+     * The minimum duration of a recorded read of the default response, in
+     * milliseconds.
+     */
+    private final int eventDefaultResponseThreshold;
+
+    /**
+     * The minimum duration of a recorded directory build, in milliseconds.
+     */
+    private final int eventDirectoryThreshold;
+
+    /**
+     * The file to which the anonymized shape of each request to the callback
+     * should be recorded, or null if requests should not be recorded.
+     */
+    private final File recordingFile;
+
+    /**
+     * The sink to which the outcome of every authentication attempt should be
+     * written, or null if no audit trail should be written.
+     */
+    private final String auditType;
+
+    /**
+     * The maximum number of audit events which may await writing.
+     */
+    private final int auditBufferSize;
+
+    /**
+     * The size at which the audit log file is rotated, in kilobytes.
+     */
+    private final int auditFileSize;
+
+    /**
+     * The number of rotated audit log files retained in addition to the
+     * current file.
+     */
+    private final int auditFiles;
+
+    /**
+     * The additional callbacks queried in parallel with the authentication
+     * callback, keyed by name in the order defined.
+     */
+    private final Map<String, URI> additionalSources;
+
+    /**
+     * How conflicting identifiers are resolved when merging the responses of
+     * several callbacks.
+     */
+    private final String mergePolicy;
+
+    /**
+     * The maximum time to wait for each additional callback, in milliseconds.
+     */
+    private final int sourceDeadline;
+
+    /**
+     * The maximum number of concurrent requests to callbacks, or zero if
+     * unlimited.
+     */
+    private final int maxRequests;
+
+    /**
+     * The percentage of the maximum concurrent requests to callbacks which
+     * background work may use.
+     */
+    private final int backgroundShare;
+
+    /**
+     * Whether the connection parameters of each session should be stored
+     * outside the Java heap.
+     */
+    private final boolean offHeapParameters;
+
+    /**
+     * The number of recent connection records retained for each user and for
+     * each connection of each user.
+     */
+    private final int historySize;
+
+    /**
+     * The maximum number of users for which connection history is retained.
+     */
+    private final int historyUsers;
+
+    /**
+     * The maximum number of connections of individual users for which
+     * connection history is retained.
+     */
+    private final int historyConnections;
+
+    /**
+     * How the parameters of authentication attempts are sent to the
+     * authentication callback and additional sources.
+     */
+    private final String parameterEncoding;
+
+    /**
+     * The names of the only request parameters which should be sent to the
+     * authentication callback and additional sources, or null if all
+     * parameters not within the denylist should be sent.
+     */
+    private final Set<String> parameterAllowlist;
+
+    /**
+     * The names of request parameters which should never be sent to the
+     * authentication callback and additional sources.
+     */
+    private final Set<String> parameterDenylist;
+
+    /**
+     * The maximum number of callback responses stored within the snapshot.
+     */
+    private final int snapshotSize;
+
+    /**
+     * Whether invalid optional properties are replaced by their default
+     * values, rather than causing the configuration to be rejected.
+     */
+    private final boolean lenient;
+
+    /**
+     * Reads and validates all properties affecting the callback
+     * authentication provider from the given environment.
+     *
+     * @param environment
+     *     The Guacamole server environment to read properties from.
+     *
+     * @throws GuacamoleException
+     *     If any property cannot be parsed, or if any property has an invalid
+     *     value.
+     */
+    public CallbackConfiguration(Environment environment)
+            throws GuacamoleException {
+        this(environment, false);
+    }
+
+    /**
+     * Reads and validates all properties affecting the callback
+     * authentication provider from the given environment. If lenient, each
+     * optional property which cannot be parsed or has an invalid value is
+     * logged and replaced by its default value, such that only an invalid
+     * "callback-auth-uri" causes the configuration to be rejected.
+     *
+     * @param environment
+     *     The Guacamole server environment to read properties from.
+     *
+     * @param lenient
+     *     Whether invalid optional properties should be replaced by their
+     *     default values rather than causing the configuration to be
+     *     rejected.
+     *
+     * @throws GuacamoleException
+     *     If any required property is missing or invalid, or, if not lenient,
+     *     if any property cannot be parsed or has an invalid value.
+     */
+    public CallbackConfiguration(Environment environment, boolean lenient)
+            throws GuacamoleException {
+
+        this.lenient = lenient;
+
+        mockService = getProperty(environment, CALLBACK_USE_MOCK_SERVICE, false);
+
+        // The callback itself is required unless simulated
+        if (mockService)
+            callbackURI = getProperty(environment, CALLBACK_AUTH_URI, null);
+        else
+            callbackURI = environment.getRequiredProperty(CALLBACK_AUTH_URI);
+
+        validateHTTP(CALLBACK_AUTH_URI, callbackURI);
+
+        URI parameters = getProperty(environment, CALLBACK_PARAMETERS_URI, null);
+        try {
+            validateHTTP(CALLBACK_PARAMETERS_URI, parameters);
+        }
+        catch (GuacamoleException e) {
+            parameters = invalid(e, null);
+        }
+        parametersURI = parameters;
+
+        snapshotKey = getProperty(environment, CALLBACK_SNAPSHOT_KEY, null);
+        snapshotMaxAge = getPositiveProperty(environment,
+                CALLBACK_SNAPSHOT_MAX_AGE, DEFAULT_SNAPSHOT_MAX_AGE);
+        snapshotInterval = getPositiveProperty(environment,
+                CALLBACK_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL);
+        snapshotWarmStart = getProperty(environment, CALLBACK_SNAPSHOT_WARM_START, false);
+
+        cacheType = getProperty(environment, CALLBACK_CACHE, null);
+        cacheTTL = getPositiveProperty(environment, CALLBACK_CACHE_TTL,
+                DEFAULT_CACHE_TTL);
+        cacheSize = getPositiveProperty(environment, CALLBACK_CACHE_SIZE,
+                DEFAULT_CACHE_SIZE);
+        cacheDirectory = getProperty(environment, CALLBACK_CACHE_DIRECTORY,
+                new File(environment.getGuacamoleHome(), DEFAULT_CACHE_DIRECTORY));
+        cacheKey = getProperty(environment, CALLBACK_CACHE_KEY, null);
+
+        resumeTTL = getPositiveProperty(environment, CALLBACK_RESUME_TTL,
+                DEFAULT_RESUME_TTL);
+
+        warmUp = getProperty(environment, CALLBACK_WARM_UP, false);
+
+        warmUpConnections = getNonNegativeProperty(environment,
+                CALLBACK_WARM_UP_CONNECTIONS, DEFAULT_WARM_UP_CONNECTIONS);
+
+        streamingParser = getProperty(environment, CALLBACK_STREAMING_PARSER, false);
+
+        retries = getNonNegativeProperty(environment, CALLBACK_RETRIES,
+                DEFAULT_RETRIES);
+
+        retryBackoff = getPositiveProperty(environment, CALLBACK_RETRY_BACKOFF,
+                DEFAULT_RETRY_BACKOFF);
+
+        retryBudget = getPercentageProperty(environment, CALLBACK_RETRY_BUDGET,
+                DEFAULT_RETRY_BUDGET);
+
+        deadline = getNonNegativeProperty(environment, CALLBACK_DEADLINE,
+                DEFAULT_DEADLINE);
+
+        deadlineFallback = getChoiceProperty(environment,
+                CALLBACK_DEADLINE_FALLBACK, DEADLINE_FALLBACK_STALE,
+                DEADLINE_FALLBACK_STALE, DEADLINE_FALLBACK_DEFAULT,
+                DEADLINE_FALLBACK_REJECT);
+
+        eventAttemptThreshold = getNonNegativeProperty(environment,
+                CALLBACK_EVENT_ATTEMPT_THRESHOLD, DEFAULT_EVENT_ATTEMPT_THRESHOLD);
+
+        eventDefaultResponseThreshold = getNonNegativeProperty(environment,
+                CALLBACK_EVENT_DEFAULT_RESPONSE_THRESHOLD,
+                DEFAULT_EVENT_DEFAULT_RESPONSE_THRESHOLD);
+
+        eventDirectoryThreshold = getNonNegativeProperty(environment,
+                CALLBACK_EVENT_DIRECTORY_THRESHOLD, DEFAULT_EVENT_DIRECTORY_THRESHOLD);
+
+        recordingFile = getProperty(environment, CALLBACK_RECORDING_FILE, null);
+
+        auditType = getProperty(environment, CALLBACK_AUDIT, null);
+
+        auditBufferSize = getPositiveProperty(environment,
+                CALLBACK_AUDIT_BUFFER_SIZE, DEFAULT_AUDIT_BUFFER_SIZE);
+
+        auditFileSize = getPositiveProperty(environment,
+                CALLBACK_AUDIT_FILE_SIZE, DEFAULT_AUDIT_FILE_SIZE);
+
+        auditFiles = getNonNegativeProperty(environment,
+                CALLBACK_AUDIT_FILES, DEFAULT_AUDIT_FILES);
+
+        Map<String, URI> sources;
+        try {
+            sources = parseSources(getProperty(environment,
+                    CALLBACK_ADDITIONAL_SOURCES, null));
+        }
+        catch (GuacamoleException e) {
+            sources = invalid(e, Collections.<String, URI>emptyMap());
+        }
+        additionalSources = sources;
+
+        mergePolicy = getChoiceProperty(environment, CALLBACK_MERGE_POLICY,
+                DEFAULT_MERGE_POLICY, MERGE_POLICY_FIRST,
+                MERGE_POLICY_NAMESPACED);
+
+        sourceDeadline = getPositiveProperty(environment,
+                CALLBACK_SOURCE_DEADLINE, DEFAULT_SOURCE_DEADLINE);
+
+        maxRequests = getNonNegativeProperty(environment,
+                CALLBACK_MAX_REQUESTS, DEFAULT_MAX_REQUESTS);
+
+        backgroundShare = getPercentageProperty(environment,
+                CALLBACK_BACKGROUND_SHARE, DEFAULT_BACKGROUND_SHARE);
+
+        offHeapParameters = getProperty(environment, CALLBACK_OFF_HEAP_PARAMETERS, false);
+
+        historySize = getNonNegativeProperty(environment, CALLBACK_HISTORY_SIZE,
+                DEFAULT_HISTORY_SIZE);
+
+        historyUsers = getPositiveProperty(environment, CALLBACK_HISTORY_USERS,
+                DEFAULT_HISTORY_USERS);
+
+        historyConnections = getPositiveProperty(environment,
+                CALLBACK_HISTORY_CONNECTIONS, DEFAULT_HISTORY_CONNECTIONS);
+
+        parameterEncoding = getChoiceProperty(environment,
+                CALLBACK_PARAMETER_ENCODING, DEFAULT_PARAMETER_ENCODING,
+                PARAMETER_ENCODING_QUERY, PARAMETER_ENCODING_FORM,
+                PARAMETER_ENCODING_JSON);
+
+        String allowlist = getProperty(environment, CALLBACK_PARAMETER_ALLOWLIST, null);
+        parameterAllowlist = allowlist != null ? parseNames(allowlist) : null;
+
+        parameterDenylist = parseNames(getProperty(environment,
+                CALLBACK_PARAMETER_DENYLIST, null));
+
+        snapshotSize = getPositiveProperty(environment,
+                CALLBACK_SNAPSHOT_SIZE, DEFAULT_SNAPSHOT_SIZE);
+
+    }
+
+    /**
+     * Parses the value of "callback-additional-sources", a comma-separated
+     * list of NAME=URI pairs, where each URI must be an HTTP or HTTPS URI.
+     *
+     * @param value
+     *     The value to parse, or null if the property is not defined.
+     *
+     * @return
+     *     An unmodifiable map of each URI, keyed by name in the order
+     *     defined, which is empty if the given value is null or empty.
+     *
+     * @throws GuacamoleException
+     *     If the value is malformed.
+     */
+    private static Map<String, URI> parseSources(String value)
+            throws GuacamoleException {
+
+        if (value == null || value.trim().isEmpty())
+            return Collections.<String, URI>emptyMap();
+
+        Map<String, URI> sources = new LinkedHashMap<String, URI>();
+        for (String source : value.split(",")) {
+
+            int separator = source.indexOf('=');
+            String name = separator > 0 ? source.substring(0, separator).trim() : "";
+            if (name.isEmpty() || name.indexOf(NAMESPACE_SEPARATOR) != -1
+                    || sources.containsKey(name))
+                throw new GuacamoleServerException("Property \""
+                        + CALLBACK_ADDITIONAL_SOURCES.getName() + "\" must be "
+                        + "a comma-separated list of NAME=URI pairs having "
+                        + "unique names which do not contain \""
+                        + NAMESPACE_SEPARATOR + "\".");
+
+            URI uri;
+            try {
+                uri = new URI(source.substring(separator + 1).trim());
+            }
+            catch (URISyntaxException e) {
+                throw new GuacamoleServerException("Property \""
+                        + CALLBACK_ADDITIONAL_SOURCES.getName() + "\" contains "
+                        + "an invalid URI for \"" + name + "\".", e);
+            }
+
+            String scheme = uri.getScheme();
+            if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme))
+                throw new GuacamoleServerException("Property \""
+                        + CALLBACK_ADDITIONAL_SOURCES.getName() + "\" must "
+                        + "contain only HTTP or HTTPS URIs.");
+
+            sources.put(name, uri);
+
+        }
+
+        return Collections.unmodifiableMap(sources);
+
+    }
+
+    /**
+     * Parses a comma-separated list of names, such as the value of
+     * "callback-parameter-allowlist" or "callback-parameter-denylist".
+     * Whitespace surrounding each name is ignored, as are empty names.
+     *
+     * @param value
+     *     The value to parse, or null if the property is not defined.
+     *
+     * @return
+     *     An unmodifiable set of all names within the given value, which is
+     *     empty if the given value is null or empty.
+     */
+    private static Set<String> parseNames(String value) {
+
+        if (value == null)
+            return Collections.<String>emptySet();
+
+        Set<String> names = new HashSet<String>();
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty())
+                names.add(name);
+        }
+
+        return Collections.unmodifiableSet(names);
+
+    }
+
+    /**
+     * Verifies that the given URI, if defined, is an absolute HTTP or HTTPS
+     * URI.
+     *
+     * @param property
+     *     The property from which the URI was read.
+     *
+     * @param uri
+     *     The URI to verify, or null if the property is not defined.
+     *
+     * @throws GuacamoleException
+     *     If the given URI is not an absolute HTTP or HTTPS URI.
+     */
+    private static void validateHTTP(GuacamoleProperty<URI> property, URI uri)
+            throws GuacamoleException {
+
+        if (uri == null)
+            return;
+
+        String scheme = uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme))
+            throw new GuacamoleServerException("Property \"" + property.getName()
+                    + "\" must be an HTTP or HTTPS URI.");
+
+    }
+
+    /**
+     * Handles an optional property which cannot be parsed or has an invalid
+     * value. If lenient, the error is logged and the given default value is
+     * returned. Otherwise, the error is rethrown.
+     *
+     * @param <T>
+     *     The type of the default value.
+     *
+     * @param error
+     *     The error describing the invalid property.
+     *
+     * @param defaultValue
+     *     The value which should be used in place of the invalid property.
+     *
+     * @return
+     *     The given default value.
+     *
+     * @throws GuacamoleException
+     *     The given error, if this configuration is not lenient.
+     */
+    private <T> T invalid(GuacamoleException error, T defaultValue)
+            throws GuacamoleException {
+
+        if (!lenient)
+            throw error;
+
+        logger.warn("{} The default value will be used.", error.getMessage());
+        logger.debug("Invalid callback authentication property.", error);
+        return defaultValue;
+
+    }
+
+    /**
+     * Reads the given optional property, which need not satisfy any
+     * constraint beyond being parseable.
+     *
+     * @param <T>
+     *     The type of value stored within the property.
+     *
+     * @param environment
+     *     The Guacamole server environment to read the property from.
+     *
+     * @param property
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is not defined.
+     *
+     * @return
+     *     The value of the given property, or the given default value if the
+     *     property is not defined or, if lenient, cannot be parsed.
+     *
+     * @throws GuacamoleException
+     *     If the property cannot be parsed, and this configuration is not
+     *     lenient.
+     */
+    private <T> T getProperty(Environment environment,
+            GuacamoleProperty<T> property, T defaultValue)
+            throws GuacamoleException {
+
+        try {
+            return environment.getProperty(property, defaultValue);
+        }
+        catch (GuacamoleException e) {
+            return invalid(e, defaultValue);
+        }
+
+    }
+
+    /**
+     * Reads the given string property, which must be one of the given
+     * choices if defined.
+     *
+     * @param environment
+     *     The Guacamole server environment to read the property from.
+     *
+     * @param property
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is not defined.
+     *
+     * @param choices
+     *     All values which the property may have.
+     *
+     * @return
+     *     The value of the given property, or the given default value if the
+     *     property is not defined or, if lenient, is not one of the given
+     *     choices.
+     *
+     * @throws GuacamoleException
+     *     If the property is not one of the given choices, and this
+     *     configuration is not lenient.
+     */
+    private String getChoiceProperty(Environment environment,
+            StringGuacamoleProperty property, String defaultValue,
+            String... choices) throws GuacamoleException {
+
+        String value = getProperty(environment, property, defaultValue);
+        for (String choice : choices) {
+            if (choice.equals(value))
+                return value;
+        }
+
+        StringBuilder message = new StringBuilder("Property \"")
+                .append(property.getName()).append("\" must be ");
+        for (int i = 0; i < choices.length; i++) {
+            if (i > 0)
+                message.append(i == choices.length - 1 ? " or " : ", ");
+            message.append('"').append(choices[i]).append('"');
+        }
+
+        return invalid(new GuacamoleServerException(message.append('.').toString()),
+                defaultValue);
+
+    }
+
+    /**
+     * Reads the given integer property, which must be positive if defined.
+     *
+     * @param environment
+     *     The Guacamole server environment to read the property from.
+     *
+     * @param property
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is not defined.
+     *
+     * @return
+     *     The value of the given property, or the given default value if the
+     *     property is not defined or, if lenient, is invalid.
+     *
+     * @throws GuacamoleException
+     *     If the property cannot be parsed or is not positive, and this
+     *     configuration is not lenient.
+     */
+    private int getPositiveProperty(Environment environment,
+            IntegerGuacamoleProperty property, int defaultValue)
+            throws GuacamoleException {
+
+        int value = getProperty(environment, property, defaultValue);
+        if (value <= 0)
+            return invalid(new GuacamoleServerException("Property \""
+                    + property.getName() + "\" must be a positive integer."),
+                    defaultValue);
+
+        return value;
+
+    }
+
+    /**
+     * Reads the given integer property, which must not be negative if
+     * defined.
+     *
+     * @param environment
+     *     The Guacamole server environment to read the property from.
+     *
+     * @param property
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is not defined.
+     *
+     * @return
+     *     The value of the given property, or the given default value if the
+     *     property is not defined or, if lenient, is invalid.
+     *
+     * @throws GuacamoleException
+     *     If the property cannot be parsed or is negative, and this
+     *     configuration is not lenient.
+     */
+    private int getNonNegativeProperty(Environment environment,
+            IntegerGuacamoleProperty property, int defaultValue)
+            throws GuacamoleException {
+
+        int value = getProperty(environment, property, defaultValue);
+        if (value < 0)
+            return invalid(new GuacamoleServerException("Property \""
+                    + property.getName() + "\" must not be negative."),
+                    defaultValue);
+
+        return value;
+
+    }
+
+    /**
+     * Reads the given integer property, which must be between 0 and 100
+     * inclusive if defined.
+     *
+     * @param environment
+     *     The Guacamole server environment to read the property from.
+     *
+     * @param property
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is not defined.
+     *
+     * @return
+     *     The value of the given property, or the given default value if the
+     *     property is not defined or, if lenient, is invalid.
+     *
+     * @throws GuacamoleException
+     *     If the property cannot be parsed or is not between 0 and 100, and
+     *     this configuration is not lenient.
+     */
+    private int getPercentageProperty(Environment environment,
+            IntegerGuacamoleProperty property, int defaultValue)
+            throws GuacamoleException {
+
+        int value = getProperty(environment, property, defaultValue);
+        if (value < 0 || value > 100)
+            return invalid(new GuacamoleServerException("Property \""
+                    + property.getName() + "\" must be between 0 and 100."),
+                    defaultValue);
+
+        return value;
+
+    }
+
+    /**
+     * Returns the HTTP or HTTPS URI which should be used as the authentication
+     * callback.
+     *
+     * @return
+     *     The HTTP or HTTPS URI which should be used as the authentication
+     *     callback, or null if the mock callback service is used.
+     */
+    public URI getCallbackURI() {
+        return callbackURI;
+    }
+
+    /**
+     * Returns the HTTP or HTTPS URI which should be invoked to retrieve the
+     * parameters of a connection whose parameters were omitted by the
+     * authentication callback, if any.
+     *
+     * @return
+     *     The HTTP or HTTPS URI which should be invoked to retrieve the
+     *     parameters of a connection when that connection is used, or null if
+     *     connection parameters are never retrieved separately.
+     */
+    public URI getParametersURI() {
+        return parametersURI;
+    }
+
+    /**
+     * Returns whether a mock authentication callback service should be used,
+     * rather than making actual HTTP requests to the configured callback URI.
+     *
+     * @return
+     *     true if a mock authentication callback service should be used, false
+     *     otherwise.
+     */
+    public boolean useMockService() {
+        return mockService;
+    }
+
+    /**
+     * Returns the secret used to encrypt and authenticate the snapshot of
+     * recent successful callback responses.
+     *
+     * @return
+     *     The secret used to encrypt and authenticate the snapshot, or null if
+     *     no snapshot should be maintained.
+     */
+    public String getSnapshotKey() {
+        return snapshotKey;
+    }
+
+    /**
+     * Returns the maximum age of any callback response stored within the
+     * snapshot, in seconds.
+     *
+     * @return
+     *     The maximum age of any callback response stored within the
+     *     snapshot, in seconds.
+     */
+    public int getSnapshotMaxAge() {
+        return snapshotMaxAge;
+    }
+
+    /**
+     * Returns the interval between writes of the snapshot, in seconds.
+     *
+     * @return
+     *     The interval between writes of the snapshot, in seconds.
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Returns whether callback responses restored from the snapshot after a
+     * restart should be used without invoking the callback.
+     *
+     * @return
+     *     true if callback responses restored from the snapshot should be used
+     *     without invoking the callback, false otherwise.
+     */
+    public boolean useSnapshotWarmStart() {
+        return snapshotWarmStart;
+    }
+
+    /**
+     * Returns the cache which should be used to avoid repeated callback
+     * requests for identical authentication attempts.
+     *
+     * @return
+     *     The cache which should be used, or null if no cache should be used.
+     */
+    public String getCacheType() {
+        return cacheType;
+    }
+
+    /**
+     * Returns the lifetime of each cached callback response, in seconds.
+     *
+     * @return
+     *     The lifetime of each cached callback response, in seconds.
+     */
+    public int getCacheTTL() {
+        return cacheTTL;
+    }
+
+    /**
+     * Returns the maximum number of callback responses which should be
+     * cached in memory.
+     *
+     * @return
+     *     The maximum number of callback responses which should be cached in
+     *     memory.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Returns the directory shared by all Guacamole servers which should be
+     * used by the shared cache.
+     *
+     * @return
+     *     The directory which should be used by the shared cache.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Returns the secret shared by all Guacamole servers which is used to
+     * identify and encrypt cached callback responses.
+     *
+     * @return
+     *     The secret used to identify and encrypt cached callback responses,
+     *     or null if no such secret is defined.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Returns the lifetime of each session resumption token, in seconds.
+     *
+     * @return
+     *     The lifetime of each session resumption token, in seconds.
+     */
+    public int getResumeTTL() {
+        return resumeTTL;
+    }
+
+    /**
+     * Returns whether services, JSON readers, the default response, and
+     * connections to the callback should be prepared when the extension is
+     * loaded, rather than upon first use. By default, this is false.
+     *
+     * @return
+     *     true if the extension should be prepared for use when loaded, false
+     *     otherwise.
+     */
+    public boolean useWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Returns the number of connections to the callback which should be
+     * opened when the extension is loaded, if warm-up is enabled. By default,
+     * this is 2.
+     *
+     * @return
+     *     The number of connections to the callback which should be opened
+     *     when the extension is loaded.
+     */
+    public int getWarmUpConnections() {
+        return warmUpConnections;
+    }
+
+    /**
+     * Returns whether callback responses, the default response, and cached
+     * responses should be parsed with the hand-written parser for the UserData
+     * schema rather than generic data binding. By default, this is false.
+     *
+     * @return
+     *     true if the hand-written parser should be used, false otherwise.
+     */
+    public boolean useStreamingParser() {
+        return streamingParser;
+    }
+
+    /**
+     * Returns the maximum number of times a request to the callback is
+     * retried after a transient failure, such as a refused connection or a
+     * 502, 503 or 504 response. By default, this is 2.
+     *
+     * @return
+     *     The maximum number of times a request to the callback is retried
+     *     after a transient failure.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the maximum delay before the first retry of a request to the
+     * callback, in milliseconds. The maximum delay doubles with each
+     * subsequent retry, and the actual delay is chosen randomly between zero
+     * and that maximum. By default, this is 100 milliseconds.
+     *
+     * @return
+     *     The maximum delay before the first retry of a request to the
+     *     callback, in milliseconds.
+     */
+    public int getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * Returns the number of retries permitted for every 100 requests to the
+     * callback, limiting the additional load that retries may place on a
+     * callback which is failing. By default, this is 10.
+     *
+     * @return
+     *     The number of retries permitted for every 100 requests to the
+     *     callback.
+     */
+    public int getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Returns the maximum duration of each authentication attempt, in
+     * milliseconds, including connecting to the callback, waiting for and
+     * parsing its response, and any retries. By default, this is 10 seconds.
+     *
+     * @return
+     *     The maximum duration of each authentication attempt, in
+     *     milliseconds, or zero if authentication attempts are unbounded.
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the result of an authentication attempt which exceeds its
+     * deadline: DEADLINE_FALLBACK_STALE to use the most recent snapshot of a
+     * response for the same parameters or else the default response,
+     * DEADLINE_FALLBACK_DEFAULT to use the default response, or
+     * DEADLINE_FALLBACK_REJECT to reject the attempt. By default, this is
+     * DEADLINE_FALLBACK_STALE.
+     *
+     * @return
+     *     The result of an authentication attempt which exceeds its deadline.
+     */
+    public String getDeadlineFallback() {
+        return deadlineFallback;
+    }
+
+    /**
+     * Returns the minimum duration of an authentication attempt for an event
+     * describing that attempt to be recorded, in milliseconds. By default,
+     * this is one second.
+     *
+     * @return
+     *     The minimum duration of a recorded authentication attempt, in
+     *     milliseconds.
+     */
+    public int getEventAttemptThreshold() {
+        return eventAttemptThreshold;
+    }
+
+    /**
+     * Returns the minimum duration of a read of the default response for an
+     * event describing that read to be recorded, in milliseconds. By default,
+     * this is 100 milliseconds.
+     *
+     * @return
+     *     The minimum duration of a recorded read of the default response, in
+     *     milliseconds.
+     */
+    public int getEventDefaultResponseThreshold() {
+        return eventDefaultResponseThreshold;
+    }
+
+    /**
+     * Returns the minimum duration of building a user's connection directory
+     * or connection group tree for an event describing that build to be
+     * recorded, in milliseconds. By default, this is 100 milliseconds.
+     *
+     * @return
+     *     The minimum duration of a recorded directory build, in milliseconds.
+     */
+    public int getEventDirectoryThreshold() {
+        return eventDirectoryThreshold;
+    }
+
+    /**
+     * Returns the file to which the anonymized shape of each request to the
+     * callback should be recorded, such that the same load can later be
+     * replayed. Only the names of parameters, the sizes of their values, the
+     * status and size of each response, the number of connections within each
+     * response, and the time between requests are recorded. By default, no
+     * requests are recorded.
+     *
+     * @return
+     *     The file to which the anonymized shape of each request to the
+     *     callback should be recorded, or null if requests should not be
+     *     recorded.
+     */
+    public File getRecordingFile() {
+        return recordingFile;
+    }
+
+    /**
+     * Returns the sink to which the outcome of every authentication attempt
+     * should be written. This may be "file" or the fully-qualified name of a
+     * class implementing AuditSink. By default, no audit trail is written.
+     *
+     * @return
+     *     The sink to which the outcome of every authentication attempt
+     *     should be written, or null if no audit trail should be written.
+     */
+    public String getAuditType() {
+        return auditType;
+    }
+
+    /**
+     * Returns the maximum number of audit events which may await writing.
+     * Further events are dropped and counted until the backlog is written. By
+     * default, this is 8192.
+     *
+     * @return
+     *     The maximum number of audit events which may await writing.
+     */
+    public int getAuditBufferSize() {
+        return auditBufferSize;
+    }
+
+    /**
+     * Returns the size at which the audit log file is rotated, in kilobytes.
+     * By default, this is 10240 (ten megabytes).
+     *
+     * @return
+     *     The size at which the audit log file is rotated, in kilobytes.
+     */
+    public int getAuditFileSize() {
+        return auditFileSize;
+    }
+
+    /**
+     * Returns the number of rotated audit log files retained in addition to
+     * the current file. By default, this is 10.
+     *
+     * @return
+     *     The number of rotated audit log files retained in addition to the
+     *     current file.
+     */
+    public int getAuditFiles() {
+        return auditFiles;
+    }
+
+    /**
+     * Returns the additional callbacks which should be queried in parallel
+     * with the authentication callback for each authentication attempt, such
+     * that the connections they return are merged with those of the
+     * authentication callback. By default, there are no additional callbacks.
+     *
+     * @return
+     *     An unmodifiable map of the additional callbacks, keyed by name in
+     *     the order defined, which is empty if there are none.
+     */
+    public Map<String, URI> getAdditionalSources() {
+        return additionalSources;
+    }
+
+    /**
+     * Returns how conflicting connection and connection group identifiers are
+     * resolved when merging the responses of several callbacks. This may be
+     * MERGE_POLICY_FIRST or MERGE_POLICY_NAMESPACED. By default, the first
+     * response defining an identifier wins.
+     *
+     * @return
+     *     How conflicting identifiers are resolved when merging the responses
+     *     of several callbacks.
+     */
+    public String getMergePolicy() {
+        return mergePolicy;
+    }
+
+    /**
+     * Returns the maximum time to wait for each additional callback, in
+     * milliseconds. Additional callbacks which do not respond in time are
+     * omitted from the merged response. By default, this is two seconds.
+     *
+     * @return
+     *     The maximum time to wait for each additional callback, in
+     *     milliseconds.
+     */
+    public int getSourceDeadline() {
+        return sourceDeadline;
+    }
+
+    /**
+     * Returns the maximum number of requests to callbacks which may be in
+     * progress at once, shared between authentication attempts and background
+     * work. By default, there is no limit.
+     *
+     * @return
+     *     The maximum number of concurrent requests to callbacks, or zero if
+     *     unlimited.
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Returns the percentage of the maximum concurrent requests to callbacks
+     * which background work may use, and then only while no authentication
+     * attempt is waiting. This only applies if the number of concurrent
+     * requests is limited. By default, this is 25%.
+     *
+     * @return
+     *     The percentage of the maximum concurrent requests to callbacks
+     *     which background work may use.
+     */
+    public int getBackgroundShare() {
+        return backgroundShare;
+    }
+
+    /**
+     * Returns whether the connection parameters of each session should be
+     * encoded within a single direct buffer outside the Java heap, and decoded
+     * only when accessed, rather than stored as individual objects. By
+     * default, this is false.
+     *
+     * @return
+     *     true if connection parameters should be stored outside the Java heap,
+     *     false otherwise.
+     */
+    public boolean useOffHeapParameters() {
+        return offHeapParameters;
+    }
+
+    /**
+     * Returns the number of recent connection records retained for each user
+     * and for each connection of each user. If zero, no connection history is
+     * retained, though active connections are still tracked. By default, this
+     * is 20.
+     *
+     * @return
+     *     The number of recent connection records retained for each user and
+     *     for each connection of each user.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Returns the maximum number of users for which connection history is
+     * retained. Once this number is exceeded, the history of the user tracked
+     * longest is discarded. By default, this is 10000.
+     *
+     * @return
+     *     The maximum number of users for which connection history is
+     *     retained.
+     */
+    public int getHistoryUsers() {
+        return historyUsers;
+    }
+
+    /**
+     * Returns the maximum number of connections of individual users for
+     * which connection history is retained. Once this number is exceeded, the
+     * history of the connection tracked longest is discarded. By default,
+     * this is 50000.
+     *
+     * @return
+     *     The maximum number of connections of individual users for which
+     *     connection history is retained.
+     */
+    public int getHistoryConnections() {
+        return historyConnections;
+    }
+
+    /**
+     * Returns how the parameters of authentication attempts are sent to the
+     * authentication callback and additional sources: PARAMETER_ENCODING_QUERY,
+     * PARAMETER_ENCODING_FORM or PARAMETER_ENCODING_JSON. By default,
+     * parameters are sent within the query string.
+     *
+     * @return
+     *     The encoding of the parameters of authentication attempts.
+     */
+    public String getParameterEncoding() {
+        return parameterEncoding;
+    }
+
+    /**
+     * Returns the names of the only request parameters which should be sent
+     * to the authentication callback and additional sources. By default, all
+     * parameters not within the denylist are sent.
+     *
+     * @return
+     *     An unmodifiable set of the names of the only request parameters which
+     *     should be sent, or null if all parameters not within the denylist
+     *     should be sent.
+     */
+    public Set<String> getParameterAllowlist() {
+        return parameterAllowlist;
+    }
+
+    /**
+     * Returns the names of request parameters which should never be sent to
+     * the authentication callback and additional sources, even if within the
+     * allowlist. By default, no parameters are excluded.
+     *
+     * @return
+     *     An unmodifiable set of the names of request parameters which should
+     *     never be sent, which is empty if no parameters are excluded.
+     */
+    public Set<String> getParameterDenylist() {
+        return parameterDenylist;
+    }
+
+    /**
+     * Returns whether the request parameter having the given name should be
+     * sent to the authentication callback and additional sources, according
+     * to the allowlist and denylist.
+     *
+     * @param name
+     *     The name of the request parameter.
+     *
+     * @return
+     *     true if the parameter should be sent, false otherwise.
+     */
+    public boolean isForwardedParameter(String name) {
+        return (parameterAllowlist == null || parameterAllowlist.contains(name))
+                && !parameterDenylist.contains(name);
+    }
+
+    /**
+     * Returns the maximum number of callback responses stored within the
+     * snapshot. Once this number is reached, the oldest responses are
+     * discarded first.
+     *
+     * @return
+     *     The maximum number of callback responses stored within the snapshot.
+     */
+    public int getSnapshotSize() {
+        return snapshotSize;
+    }
+
+}
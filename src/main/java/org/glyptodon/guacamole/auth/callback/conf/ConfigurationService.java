@@ -23,21 +23,31 @@
 package org.glyptodon.guacamole.auth.callback.conf;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.environment.Environment;
-import org.apache.guacamole.properties.BooleanGuacamoleProperty;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.glyptodon.guacamole.auth.callback.CallbackEvents;
 import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.glyptodon.guacamole.auth.callback.user.UserDataReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Service for retrieving configuration information regarding the callback
- * authentication provider.
+ * authentication provider. All properties are read into an immutable
+ * CallbackConfiguration, which is replaced whenever guacamole.properties is
+ * modified, such that changes take effect without restarting Guacamole.
  */
+@Singleton
 public class ConfigurationService {
 
     /**
@@ -52,10 +62,17 @@ public class ConfigurationService {
     private Environment environment;
 
     /**
-     * ObjectMapper for serializing/deserializing JSON.
+     * Shared reader for the JSON representation of UserData.
      */
     @Inject
-    private ObjectMapper mapper;
+    private UserDataReader userDataReader;
+
+    /**
+     * Service for recording events describing slow reads of the default
+     * response.
+     */
+    @Inject
+    private CallbackEvents events;
 
     /**
      * The filename of the JSON file within GUACAMOLE_HOME which should be used
@@ -65,83 +82,336 @@ public class ConfigurationService {
             "callback-default-response.json";
 
     /**
-     * The property which defines the HTTP or HTTPS URI which should be used as
-     * the authentication callback.
+     * The filename of the file within GUACAMOLE_HOME to which recent
+     * successful callback responses should be periodically written.
+     */
+    private static final String SNAPSHOT_FILENAME = "callback-snapshot.dat";
+
+    /**
+     * The name of the file within GUACAMOLE_HOME containing the keys used to
+     * sign and verify session resumption tokens.
+     */
+    private static final String KEYRING_FILENAME = "callback-keyring";
+
+    /**
+     * The name of the directory within GUACAMOLE_HOME to which the audit log
+     * is written.
+     */
+    private static final String AUDIT_DIRECTORY = "callback-audit";
+
+    /**
+     * The name of the file within GUACAMOLE_HOME containing the rules which
+     * route authentication attempts to the callbacks of individual tenants.
+     */
+    private static final String TENANTS_FILENAME = "callback-tenants";
+
+    /**
+     * The filename of the file within GUACAMOLE_HOME containing the
+     * properties of the Guacamole server.
+     */
+    private static final String PROPERTIES_FILENAME = "guacamole.properties";
+
+    /**
+     * The interval between checks for modifications to guacamole.properties,
+     * in seconds. Each check compares only the modification time of the
+     * file, which is not expected to change often.
+     */
+    private static final int WATCH_INTERVAL = 30;
+
+    /**
+     * The number of watcher threads created thus far, used only to name each
+     * thread.
+     */
+    private static final AtomicInteger watcherCount = new AtomicInteger();
+
+    /**
+     * The executor periodically checking guacamole.properties for
+     * modifications, or null if not watching.
+     */
+    private ScheduledExecutorService watcher;
+
+    /**
+     * The current configuration, or null if guacamole.properties has never
+     * been successfully read.
+     */
+    private volatile CallbackConfiguration configuration;
+
+    /**
+     * The error which prevented guacamole.properties from being read, if
+     * no configuration has been successfully read.
+     */
+    private volatile GuacamoleException configurationError =
+            new GuacamoleServerException("Configuration has not yet been read.");
+
+    /**
+     * The modification time of guacamole.properties when it was last read, in
+     * milliseconds since the epoch. This is only accessed by start() and the
+     * watcher thread.
      */
-    private static final URIGuacamoleProperty CALLBACK_AUTH_URI =
-            new URIGuacamoleProperty() {
+    private long lastModified;
 
-        @Override
-        public String getName() {
-            return "callback-auth-uri";
+    /**
+     * The most recently read default response, or null if the default
+     * response has not yet been read.
+     */
+    private volatile DefaultResponse defaultResponse;
+
+    /**
+     * The contents of the default response file, along with the
+     * modification time and length of that file when it was read.
+     */
+    private static class DefaultResponse {
+
+        /**
+         * The modification time of the file when it was read, in
+         * milliseconds since the epoch, or zero if the file did not exist.
+         */
+        private final long lastModified;
+
+        /**
+         * The length of the file when it was read, in bytes.
+         */
+        private final long length;
+
+        /**
+         * The UserData read from the file, or null if the file did not exist
+         * or could not be parsed.
+         */
+        private final UserData userData;
+
+        /**
+         * Creates a new DefaultResponse containing the given UserData.
+         *
+         * @param lastModified
+         *     The modification time of the file when it was read, in
+         *     milliseconds since the epoch.
+         *
+         * @param length
+         *     The length of the file when it was read, in bytes.
+         *
+         * @param userData
+         *     The UserData read from the file, or null if the file did not
+         *     exist or could not be parsed.
+         */
+        public DefaultResponse(long lastModified, long length,
+                UserData userData) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.userData = userData;
         }
 
-    };
+    }
 
     /**
-     * The property which defines whether a mock authentication callback
-     * service should be used, rather than making actual HTTP requests to the
-     * configured callback URI.
+     * Reads the current configuration and begins watching guacamole.properties
+     * for modifications. This function must be invoked once, before any
+     * other function of this service. Watching continues until stop() is
+     * invoked.
      */
-    private static final BooleanGuacamoleProperty CALLBACK_USE_MOCK_SERVICE =
-            new BooleanGuacamoleProperty() {
+    public synchronized void start() {
+
+        // Never leave a previous watcher running
+        stop();
 
-        @Override
-        public String getName() {
-            return "callback-use-mock-service";
+        File properties = new File(environment.getGuacamoleHome(), PROPERTIES_FILENAME);
+        lastModified = properties.lastModified();
+
+        // Read initial configuration from the environment used by Guacamole
+        try {
+            configuration = readConfiguration(environment);
         }
+        catch (GuacamoleException e) {
+            logger.error("Configuration of callback authentication is "
+                    + "invalid: {}", e.getMessage());
+            logger.debug("Unable to read configuration.", e);
+            configurationError = e;
+        }
+
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "callback-configuration-watcher-"
+                        + watcherCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
 
-    };
+        watcher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                reload();
+            }
+
+        }, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.SECONDS);
+
+    }
+
+    /**
+     * Stops watching guacamole.properties for modifications, terminating the
+     * watcher thread. The most recently read configuration remains in use.
+     * If not watching, this function has no effect.
+     */
+    public synchronized void stop() {
+
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+
+    }
 
     /**
-     * Returns the HTTP or HTTPS URI which should be used as the authentication
-     * callback.
+     * Reads the configuration of the callback authentication provider from
+     * the given environment. If any property is invalid and no configuration
+     * has yet been read, the configuration is re-read such that each invalid
+     * optional property is logged and replaced by its default value, rather
+     * than rejecting every authentication attempt. If a configuration has
+     * already been read, it is left as the last valid configuration and the
+     * error is rethrown.
+     *
+     * @param environment
+     *     The Guacamole server environment to read properties from.
      *
      * @return
-     *     The HTTP or HTTPS URI which should be used as the authentication
-     *     callback.
+     *     The configuration read from the given environment.
      *
      * @throws GuacamoleException
-     *     If the "callback-auth-uri" property is missing or contains an
-     *     invalid URI.
+     *     If any property is invalid and a configuration has already been
+     *     read, or if a required property is missing or invalid.
+     */
+    private CallbackConfiguration readConfiguration(Environment environment)
+            throws GuacamoleException {
+
+        try {
+            return new CallbackConfiguration(environment);
+        }
+        catch (GuacamoleException e) {
+
+            // Retain the last valid configuration, if any
+            if (configuration != null)
+                throw e;
+
+            logger.warn("Configuration of callback authentication is invalid: "
+                    + "{} Invalid optional properties will be replaced by "
+                    + "their default values.", e.getMessage());
+            logger.debug("Unable to read configuration.", e);
+
+            return new CallbackConfiguration(environment, true);
+
+        }
+
+    }
+
+    /**
+     * Re-reads guacamole.properties if it has been modified since it was last
+     * read, replacing the current configuration. If the modified properties
+     * are invalid, the current configuration is retained.
      */
-    public URI getCallbackURI() throws GuacamoleException {
-        return environment.getRequiredProperty(CALLBACK_AUTH_URI);
+    private synchronized void reload() {
+
+        File properties = new File(environment.getGuacamoleHome(), PROPERTIES_FILENAME);
+        long modified = properties.lastModified();
+        if (modified == lastModified)
+            return;
+
+        lastModified = modified;
+
+        try {
+
+            // LocalEnvironment reads guacamole.properties only when created
+            CallbackConfiguration updated = readConfiguration(new LocalEnvironment());
+
+            // Connections and sessions already established are unaffected
+            configuration = updated;
+            logger.info("Configuration of callback authentication reloaded "
+                    + "from \"{}\".", properties);
+
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Modified configuration of callback authentication is "
+                    + "invalid and will be ignored: {}", e.getMessage());
+            logger.debug("Unable to reload configuration.", e);
+        }
+        catch (RuntimeException e) {
+            logger.warn("Modified configuration of callback authentication "
+                    + "could not be read: {}", e.getMessage());
+            logger.debug("Unable to reload configuration.", e);
+        }
+
     }
 
     /**
-     * Returns whether a mock authentication callback service should be used,
-     * rather than making actual HTTP requests to the configured callback URI.
-     * The mock callback service simply returns the default user data, if
-     * available, and fails authentication if no default user data is provided.
+     * Returns the current configuration of the callback authentication
+     * provider, as most recently read from guacamole.properties.
      *
      * @return
-     *     true if a mock authentication callback service should be used, false
-     *     otherwise.
+     *     The current configuration.
      *
      * @throws GuacamoleException
-     *     If the "callback-use-mock-service" property could not be parsed.
+     *     If guacamole.properties has never been successfully read, or the
+     *     callback configuration within it is invalid.
      */
-    public boolean useMockService() throws GuacamoleException {
-        return environment.getProperty(CALLBACK_USE_MOCK_SERVICE, false);
+    public CallbackConfiguration getConfiguration() throws GuacamoleException {
+
+        CallbackConfiguration current = configuration;
+        if (current == null)
+            throw configurationError;
+
+        return current;
+
     }
 
     /**
-     * Returns a new UserData object representing the data which should be
+     * Returns the UserData object representing the data which should be
      * exposed to any authenticated user for whom the arbitrary HTTP callback
-     * does not return specific data.
+     * does not return specific data. The default response is read only when
+     * the file containing it has been modified, and the same UserData object
+     * is otherwise returned for all users. It must not be modified.
      *
      * @return
-     *     A new UserData object representing the data which should be exposed
+     *     The UserData object representing the data which should be exposed
      *     to authenticated users by default, if the arbitrary HTTP callback
      *     returned a successful response which did not contain specific data,
      *     or null if no such data is available.
      */
     public UserData getDefaultResponse() {
 
-        File defaultResponse = new File(environment.getGuacamoleHome(),
+        File file = new File(environment.getGuacamoleHome(),
                 DEFAULT_USERDATA_FILENAME);
 
+        // Reuse previously-read response if file is unchanged
+        DefaultResponse current = defaultResponse;
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (current != null && current.lastModified == lastModified
+                && current.length == length)
+            return current.userData;
+
+        long start = System.nanoTime();
+        UserData userData = readDefaultResponse(file);
+        events.recordDefaultResponseLoad(file, userData != null,
+                System.nanoTime() - start);
+        defaultResponse = new DefaultResponse(lastModified, length, userData);
+        return userData;
+
+    }
+
+    /**
+     * Reads the default response from the given file.
+     *
+     * @param defaultResponse
+     *     The file containing the default response.
+     *
+     * @return
+     *     The UserData object read from the given file, or null if the file
+     *     does not exist or cannot be parsed.
+     */
+    private UserData readDefaultResponse(File defaultResponse) {
+
         // Do nothing if file does not appear to exist
         if (!defaultResponse.exists()) {
             logger.debug("Default response file \"{}\" does not appear to "
@@ -151,7 +421,7 @@ public class ConfigurationService {
 
         // Attempt to parse file
         try {
-            return mapper.readValue(defaultResponse, UserData.class);
+            return userDataReader.read(defaultResponse);
         }
 
         // Return no data if file could not be parsed
@@ -163,4 +433,351 @@ public class ConfigurationService {
 
     }
 
+    /**
+     * Returns the file to which recent successful callback responses should
+     * be periodically written, and from which those responses should be
+     * restored after a restart.
+     *
+     * @return
+     *     The file containing the snapshot of recent successful callback
+     *     responses.
+     */
+    public File getSnapshotFile() {
+        return new File(environment.getGuacamoleHome(), SNAPSHOT_FILENAME);
+    }
+
+    /**
+     * Returns the secret used to encrypt and authenticate the snapshot of
+     * recent successful callback responses. If no such secret is defined,
+     * no snapshot should be maintained.
+     *
+     * @return
+     *     The secret used to encrypt and authenticate the snapshot, or null if
+     *     no snapshot should be maintained.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public String getSnapshotKey() throws GuacamoleException {
+        return getConfiguration().getSnapshotKey();
+    }
+
+    /**
+     * Returns the maximum age of any callback response stored within the
+     * snapshot, in seconds. Responses older than this are never used and are
+     * omitted from subsequent writes of the snapshot. By default, this is one
+     * hour.
+     *
+     * @return
+     *     The maximum age of any callback response stored within the
+     *     snapshot, in seconds.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getSnapshotMaxAge() throws GuacamoleException {
+        return getConfiguration().getSnapshotMaxAge();
+    }
+
+    /**
+     * Returns the interval between writes of the snapshot, in seconds. By
+     * default, this is one minute.
+     *
+     * @return
+     *     The interval between writes of the snapshot, in seconds.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getSnapshotInterval() throws GuacamoleException {
+        return getConfiguration().getSnapshotInterval();
+    }
+
+    /**
+     * Returns whether callback responses restored from the snapshot after a
+     * restart should be used for authentication attempts with identical
+     * parameters without invoking the callback, so long as those responses
+     * are within the maximum age. Regardless of this setting, responses
+     * within the snapshot are used if the callback is unavailable. By
+     * default, this is false.
+     *
+     * @return
+     *     true if restored callback responses should be used without invoking
+     *     the callback, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public boolean useSnapshotWarmStart() throws GuacamoleException {
+        return getConfiguration().useSnapshotWarmStart();
+    }
+
+    /**
+     * Returns the cache which should be used to avoid repeated callback
+     * requests for identical authentication attempts. This may be "memory",
+     * "shared", or the fully-qualified name of a class implementing
+     * UserDataCache. By default, no cache is used.
+     *
+     * @return
+     *     The cache which should be used, or null if no cache should be used.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public String getCacheType() throws GuacamoleException {
+        return getConfiguration().getCacheType();
+    }
+
+    /**
+     * Returns the lifetime of each cached callback response, in seconds. By
+     * default, this is one minute.
+     *
+     * @return
+     *     The lifetime of each cached callback response, in seconds.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getCacheTTL() throws GuacamoleException {
+        return getConfiguration().getCacheTTL();
+    }
+
+    /**
+     * Returns the maximum number of callback responses which should be
+     * cached in memory. By default, this is 10000.
+     *
+     * @return
+     *     The maximum number of callback responses which should be cached in
+     *     memory.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getCacheSize() throws GuacamoleException {
+        return getConfiguration().getCacheSize();
+    }
+
+    /**
+     * Returns the directory shared by all Guacamole servers which should be
+     * used by the shared cache. By default, this is the "callback-cache"
+     * directory within GUACAMOLE_HOME.
+     *
+     * @return
+     *     The directory which should be used by the shared cache.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public File getCacheDirectory() throws GuacamoleException {
+        return getConfiguration().getCacheDirectory();
+    }
+
+    /**
+     * Returns the secret shared by all Guacamole servers which is used to
+     * identify and encrypt cached callback responses. This is required by the
+     * shared cache, and is otherwise optional.
+     *
+     * @return
+     *     The secret used to identify and encrypt cached callback responses,
+     *     or null if no such secret is defined.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public String getCacheKey() throws GuacamoleException {
+        return getConfiguration().getCacheKey();
+    }
+
+    /**
+     * Returns the file containing the keys used to sign and verify session
+     * resumption tokens. If this file does not exist, session resumption
+     * tokens should not be issued or accepted.
+     *
+     * @return
+     *     The file containing the keys used to sign and verify session
+     *     resumption tokens.
+     */
+    public File getKeyringFile() {
+        return new File(environment.getGuacamoleHome(), KEYRING_FILENAME);
+    }
+
+    /**
+     * Returns the directory to which the audit log of authentication outcomes
+     * should be written if the "file" audit sink is used.
+     *
+     * @return
+     *     The directory to which the audit log should be written.
+     */
+    public File getAuditDirectory() {
+        return new File(environment.getGuacamoleHome(), AUDIT_DIRECTORY);
+    }
+
+    /**
+     * Returns the file containing the rules which route authentication
+     * attempts to the callbacks of individual tenants. If this file does not
+     * exist, all authentication attempts use the callback defined by
+     * "callback-auth-uri".
+     *
+     * @return
+     *     The file containing the tenant routing rules.
+     */
+    public File getTenantsFile() {
+        return new File(environment.getGuacamoleHome(), TENANTS_FILENAME);
+    }
+
+    /**
+     * Returns the lifetime of each session resumption token, in seconds. By
+     * default, this is five minutes.
+     *
+     * @return
+     *     The lifetime of each session resumption token, in seconds.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getResumeTTL() throws GuacamoleException {
+        return getConfiguration().getResumeTTL();
+    }
+
+    /**
+     * Returns whether callback responses, the default response, and cached
+     * responses should be parsed with the hand-written parser for the UserData
+     * schema rather than generic data binding. By default, this is false.
+     *
+     * @return
+     *     true if the hand-written parser should be used, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public boolean useStreamingParser() throws GuacamoleException {
+        return getConfiguration().useStreamingParser();
+    }
+
+    /**
+     * Returns the maximum duration of each authentication attempt, in
+     * milliseconds, including connecting to the callback, waiting for and
+     * parsing its response, and any retries. By default, this is 10 seconds.
+     *
+     * @return
+     *     The maximum duration of each authentication attempt, in
+     *     milliseconds, or zero if authentication attempts are unbounded.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getDeadline() throws GuacamoleException {
+        return getConfiguration().getDeadline();
+    }
+
+    /**
+     * Returns the sink to which the outcome of every authentication attempt
+     * should be written. This may be "file" or the fully-qualified name of a
+     * class implementing AuditSink. By default, no audit trail is written.
+     *
+     * @return
+     *     The sink to which the outcome of every authentication attempt
+     *     should be written, or null if no audit trail should be written.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public String getAuditType() throws GuacamoleException {
+        return getConfiguration().getAuditType();
+    }
+
+    /**
+     * Returns the maximum number of audit events which may await writing.
+     * Further events are dropped and counted until the backlog is written. By
+     * default, this is 8192.
+     *
+     * @return
+     *     The maximum number of audit events which may await writing.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getAuditBufferSize() throws GuacamoleException {
+        return getConfiguration().getAuditBufferSize();
+    }
+
+    /**
+     * Returns the size at which the audit log file is rotated, in kilobytes.
+     * By default, this is 10240 (ten megabytes).
+     *
+     * @return
+     *     The size at which the audit log file is rotated, in kilobytes.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getAuditFileSize() throws GuacamoleException {
+        return getConfiguration().getAuditFileSize();
+    }
+
+    /**
+     * Returns the number of rotated audit log files retained in addition to
+     * the current file. By default, this is 10.
+     *
+     * @return
+     *     The number of rotated audit log files retained in addition to the
+     *     current file.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getAuditFiles() throws GuacamoleException {
+        return getConfiguration().getAuditFiles();
+    }
+
+    /**
+     * Returns whether the connection parameters of each session should be
+     * encoded within a single direct buffer outside the Java heap, and decoded
+     * only when accessed, rather than stored as individual objects. By
+     * default, this is false.
+     *
+     * @return
+     *     true if connection parameters should be stored outside the Java heap,
+     *     false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public boolean useOffHeapParameters() throws GuacamoleException {
+        return getConfiguration().useOffHeapParameters();
+    }
+
+    /**
+     * Returns the maximum number of callback responses stored within the
+     * snapshot. Once this number is reached, the oldest responses are
+     * discarded first.
+     *
+     * @return
+     *     The maximum number of callback responses stored within the snapshot.
+     *
+     * @throws GuacamoleException
+     *     If the callback configuration within guacamole.properties is
+     *     invalid.
+     */
+    public int getSnapshotSize() throws GuacamoleException {
+        return getConfiguration().getSnapshotSize();
+    }
+
 }
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.history;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.AbstractActiveConnection;
+import org.apache.guacamole.net.auth.ActiveConnection;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+
+/**
+ * Service which tracks the connections defined by the callback that are in
+ * use across the entire Guacamole server, along with the most recent uses of
+ * each connection by each user. Active connections are tracked within a
+ * concurrent registry, and recent uses within fixed-size rings for each user
+ * and for each connection of each user. The number of rings is itself
+ * bounded, such that memory use does not grow with traffic. Connections are
+ * tracked by the history scope of each user, as returned by getScope(), such
+ * that users of different tenants, and anonymous users of different sessions,
+ * never see each other's connections.
+ */
+@Singleton
+public class ConnectionTracker {
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * The number of history scopes issued for anonymous users, used to give
+     * the scope of each anonymous session a distinct value.
+     */
+    private static final AtomicLong anonymousScopes = new AtomicLong();
+
+    /**
+     * All active connections, keyed by the identifier of each record.
+     */
+    private final ConcurrentMap<String, TrackedConnectionRecord> active =
+            new ConcurrentHashMap<String, TrackedConnectionRecord>();
+
+    /**
+     * The number of active connections for each connection of each history
+     * scope, keyed by the value returned by getConnectionKey(). Counters which
+     * reach zero are retired by setting them to -1 and removed, such that
+     * only connections actually in use have counters.
+     */
+    private final ConcurrentMap<String, AtomicInteger> activeCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The recent connection records of each history scope, keyed by scope.
+     */
+    private final ConcurrentMap<String, RecordRing> userHistory =
+            new ConcurrentHashMap<String, RecordRing>();
+
+    /**
+     * The rings of userHistory, in the order they were added.
+     */
+    private final Queue<RingEntry> userHistoryOrder =
+            new ConcurrentLinkedQueue<RingEntry>();
+
+    /**
+     * The recent connection records of each connection of each history
+     * scope, keyed by the value returned by getConnectionKey().
+     */
+    private final ConcurrentMap<String, RecordRing> connectionHistory =
+            new ConcurrentHashMap<String, RecordRing>();
+
+    /**
+     * The rings of connectionHistory, in the order they were added.
+     */
+    private final Queue<RingEntry> connectionHistoryOrder =
+            new ConcurrentLinkedQueue<RingEntry>();
+
+    /**
+     * A ring which was added to a map of rings, along with its key. As a
+     * ring may be discarded and another ring later added under the same key,
+     * the key alone does not identify which ring was added.
+     */
+    private static class RingEntry {
+
+        /**
+         * The key of the ring.
+         */
+        private final String key;
+
+        /**
+         * The ring which was added.
+         */
+        private final RecordRing ring;
+
+        /**
+         * Creates a new RingEntry for the given ring, added under the given
+         * key.
+         *
+         * @param key
+         *     The key of the ring.
+         *
+         * @param ring
+         *     The ring which was added.
+         */
+        public RingEntry(String key, RecordRing ring) {
+            this.key = key;
+            this.ring = ring;
+        }
+
+    }
+
+    /**
+     * Returns the history scope of a user having the given username and
+     * authenticated by the given tenant. Users having a username share a
+     * scope only if they have the same username and tenant. Anonymous users,
+     * having no username or an empty username, are indistinguishable from
+     * one another and are thus given a new scope each time this function is
+     * invoked, such that each anonymous session sees only its own
+     * connections. The lengths of the tenant name and username are included
+     * such that no two such pairs share a scope, and anonymous scopes begin
+     * with a character that no other scope begins with.
+     *
+     * @param tenant
+     *     The tenant which authenticated the user, or null if no tenant
+     *     applies.
+     *
+     * @param username
+     *     The username of the user, or null if the user has no username.
+     *
+     * @return
+     *     The history scope of the user.
+     */
+    public static String getScope(Tenant tenant, String username) {
+
+        if (username == null || username.isEmpty())
+            return "#" + anonymousScopes.incrementAndGet();
+
+        String tenantName = tenant != null ? tenant.getName() : "";
+        return tenantName.length() + ":" + tenantName
+                + username.length() + ":" + username;
+
+    }
+
+    /**
+     * Returns the key which identifies the given connection of the given
+     * history scope within connectionHistory and activeCounts. The length of
+     * the scope is included such that no two pairs of scope and connection
+     * share a key.
+     *
+     * @param scope
+     *     The history scope of the user, as returned by getScope().
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection.
+     *
+     * @return
+     *     The key identifying the given connection of the given scope.
+     */
+    private static String getConnectionKey(String scope,
+            String connectionIdentifier) {
+        return scope.length() + ":" + scope + connectionIdentifier;
+    }
+
+    /**
+     * Increments the number of active connections having the given key,
+     * creating a counter if necessary.
+     *
+     * @param key
+     *     The key of the connection, as returned by getConnectionKey().
+     */
+    private void incrementActiveCount(String key) {
+
+        for (;;) {
+
+            AtomicInteger count = activeCounts.get(key);
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger();
+                count = activeCounts.putIfAbsent(key, created);
+                if (count == null)
+                    count = created;
+            }
+
+            // Retired counters are about to be removed and must be replaced
+            int value = count.get();
+            if (value < 0)
+                activeCounts.remove(key, count);
+            else if (count.compareAndSet(value, value + 1))
+                return;
+
+        }
+
+    }
+
+    /**
+     * Decrements the number of active connections having the given key,
+     * retiring and removing the counter once it reaches zero.
+     *
+     * @param key
+     *     The key of the connection, as returned by getConnectionKey().
+     */
+    private void decrementActiveCount(String key) {
+
+        AtomicInteger count = activeCounts.get(key);
+        if (count != null && count.decrementAndGet() == 0
+                && count.compareAndSet(0, -1))
+            activeCounts.remove(key, count);
+
+    }
+
+    /**
+     * Adds the given record to the ring having the given key, creating that
+     * ring if necessary. If creating the ring would cause the number of
+     * rings to exceed the given maximum, the rings added longest ago are
+     * discarded.
+     *
+     * @param rings
+     *     The rings to add the record to, keyed by user or connection.
+     *
+     * @param order
+     *     The given rings, in the order they were added.
+     *
+     * @param key
+     *     The key of the ring to add the record to.
+     *
+     * @param record
+     *     The record to add.
+     *
+     * @param size
+     *     The number of records retained by each ring.
+     *
+     * @param max
+     *     The maximum number of rings.
+     */
+    private static void addToRing(ConcurrentMap<String, RecordRing> rings,
+            Queue<RingEntry> order, String key, TrackedConnectionRecord record,
+            int size, int max) {
+
+        RecordRing ring = rings.get(key);
+        if (ring == null) {
+
+            RecordRing created = new RecordRing(size);
+            ring = rings.putIfAbsent(key, created);
+            if (ring == null) {
+
+                ring = created;
+                order.add(new RingEntry(key, ring));
+
+                // Discard the rings tracked longest once the limit is
+                // exceeded, leaving any ring which has since replaced an
+                // already-discarded ring having the same key
+                while (rings.size() > max) {
+                    RingEntry evicted = order.poll();
+                    if (evicted == null)
+                        break;
+                    rings.remove(evicted.key, evicted.ring);
+                }
+
+            }
+
+        }
+
+        ring.add(record);
+
+    }
+
+    /**
+     * Creates a new record for a use of the given connection by the given
+     * user. The connection is not considered active until activate() is
+     * invoked with the returned record.
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection being used.
+     *
+     * @param scope
+     *     The history scope of the user using the connection, as returned by
+     *     getScope().
+     *
+     * @param username
+     *     The username of the user using the connection.
+     *
+     * @param remoteHost
+     *     The address of the client of the user, or null if unknown.
+     *
+     * @return
+     *     A new record for the use of the given connection.
+     */
+    public TrackedConnectionRecord begin(String connectionIdentifier,
+            String scope, String username, String remoteHost) {
+        return new TrackedConnectionRecord(connectionIdentifier, scope,
+                username, remoteHost);
+    }
+
+    /**
+     * Marks the connection described by the given record as active using
+     * the given tunnel, adding the record to the history of the user and of
+     * the connection.
+     *
+     * @param record
+     *     The record returned by begin() for the connection.
+     *
+     * @param tunnel
+     *     The tunnel of the established connection.
+     */
+    public void activate(TrackedConnectionRecord record, GuacamoleTunnel tunnel) {
+
+        String scope = record.getScope();
+        String connectionKey = getConnectionKey(scope,
+                record.getConnectionIdentifier());
+
+        // Count the connection before it becomes visible to end(), which
+        // decrements the count only if it removes the record
+        record.setTunnel(tunnel);
+        incrementActiveCount(connectionKey);
+        active.put(record.getIdentifier(), record);
+
+        // The tunnel may have closed while being registered
+        if (!record.isActive() && active.remove(record.getIdentifier()) != null)
+            decrementActiveCount(connectionKey);
+
+        // Retain history only if enabled and the configuration is valid
+        CallbackConfiguration config;
+        try {
+            config = confService.getConfiguration();
+        }
+        catch (GuacamoleException e) {
+            return;
+        }
+
+        int size = config.getHistorySize();
+        if (size == 0)
+            return;
+
+        addToRing(userHistory, userHistoryOrder, scope, record, size,
+                config.getHistoryUsers());
+        addToRing(connectionHistory, connectionHistoryOrder, connectionKey,
+                record, size, config.getHistoryConnections());
+
+    }
+
+    /**
+     * Marks the connection described by the given record as closed. This
+     * function may be invoked multiple times, and for records which were
+     * never activated.
+     *
+     * @param record
+     *     The record returned by begin() for the connection.
+     */
+    public void end(TrackedConnectionRecord record) {
+        if (record.end() && active.remove(record.getIdentifier()) != null)
+            decrementActiveCount(getConnectionKey(record.getScope(),
+                    record.getConnectionIdentifier()));
+    }
+
+    /**
+     * Returns all active connections of the given history scope, keyed by
+     * the identifier of each active connection.
+     *
+     * @param scope
+     *     The history scope of the user whose active connections should be
+     *     returned, as returned by getScope().
+     *
+     * @return
+     *     A new map of all active connections of the given history scope.
+     */
+    public Map<String, ActiveConnection> getActiveConnections(String scope) {
+
+        Map<String, ActiveConnection> connections = new HashMap<String, ActiveConnection>();
+        for (TrackedConnectionRecord record : active.values()) {
+
+            if (!scope.equals(record.getScope()))
+                continue;
+
+            ActiveConnection connection = new AbstractActiveConnection() {};
+            connection.setIdentifier(record.getIdentifier());
+            connection.setConnectionIdentifier(record.getConnectionIdentifier());
+            connection.setStartDate(record.getStartDate());
+            connection.setRemoteHost(record.getRemoteHost());
+            connection.setUsername(record.getUsername());
+            connection.setTunnel(record.getTunnel());
+            connections.put(record.getIdentifier(), connection);
+
+        }
+
+        return connections;
+
+    }
+
+    /**
+     * Returns the number of active uses of the given connection within the
+     * given history scope. The count is maintained as connections are
+     * activated and end, and is not recalculated on each call.
+     *
+     * @param scope
+     *     The history scope of the user, as returned by getScope().
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection.
+     *
+     * @return
+     *     The number of active uses of the given connection within the given
+     *     history scope.
+     */
+    public int getActiveConnectionCount(String scope,
+            String connectionIdentifier) {
+
+        AtomicInteger count = activeCounts.get(getConnectionKey(scope,
+                connectionIdentifier));
+        return count != null ? Math.max(count.get(), 0) : 0;
+
+    }
+
+    /**
+     * Returns the most recent uses of any connection within the given
+     * history scope, most recent first.
+     *
+     * @param scope
+     *     The history scope of the user whose history should be returned, as
+     *     returned by getScope().
+     *
+     * @return
+     *     A new list of the most recent uses of any connection within the
+     *     given history scope.
+     */
+    public List<TrackedConnectionRecord> getUserHistory(String scope) {
+        RecordRing ring = userHistory.get(scope);
+        return ring != null ? ring.getRecords()
+                : Collections.<TrackedConnectionRecord>emptyList();
+    }
+
+    /**
+     * Returns the most recent uses of the given connection within the given
+     * history scope, most recent first.
+     *
+     * @param scope
+     *     The history scope of the user whose history should be returned, as
+     *     returned by getScope().
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection whose history should be returned.
+     *
+     * @return
+     *     A new list of the most recent uses of the given connection within
+     *     the given history scope.
+     */
+    public List<TrackedConnectionRecord> getConnectionHistory(String scope,
+            String connectionIdentifier) {
+        RecordRing ring = connectionHistory.get(getConnectionKey(scope,
+                connectionIdentifier));
+        return ring != null ? ring.getRecords()
+                : Collections.<TrackedConnectionRecord>emptyList();
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size, lock-free ring of the most recent connection records. Adding a
+ * record never blocks and overwrites the oldest record once the ring is full,
+ * such that the memory used by a ring does not grow with traffic.
+ */
+public class RecordRing {
+
+    /**
+     * The slots of the ring, each containing a record or null if no record
+     * has yet been written to that slot.
+     */
+    private final AtomicReferenceArray<TrackedConnectionRecord> slots;
+
+    /**
+     * The sequence number of the next slot to be written.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Creates a new RecordRing which retains the given number of the most
+     * recent records.
+     *
+     * @param size
+     *     The number of records to retain.
+     */
+    public RecordRing(int size) {
+        slots = new AtomicReferenceArray<TrackedConnectionRecord>(size);
+    }
+
+    /**
+     * Adds the given record to the ring, replacing the oldest record if the
+     * ring is full.
+     *
+     * @param record
+     *     The record to add.
+     */
+    public void add(TrackedConnectionRecord record) {
+        long sequence = next.getAndIncrement();
+        slots.set((int) (sequence % slots.length()), record);
+    }
+
+    /**
+     * Returns the records within this ring, most recent first. Records added
+     * while the ring is being read may or may not be included.
+     *
+     * @return
+     *     A new list of the records within this ring, most recent first.
+     */
+    public List<TrackedConnectionRecord> getRecords() {
+
+        int size = slots.length();
+        long sequence = next.get();
+        int count = (int) Math.min(sequence, size);
+
+        List<TrackedConnectionRecord> records = new ArrayList<TrackedConnectionRecord>(count);
+        for (long i = sequence - 1; i >= sequence - count; i--) {
+            TrackedConnectionRecord record = slots.get((int) (i % size));
+            if (record != null)
+                records.add(record);
+        }
+
+        return records;
+
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.history;
+
+import java.util.Date;
+import java.util.UUID;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.ConnectionRecord;
+
+/**
+ * The record of a single use of a connection defined by the callback. A
+ * record is created when the connection is established, and its end date is
+ * set exactly once, when the tunnel of the connection is closed. All other
+ * properties are immutable.
+ */
+public class TrackedConnectionRecord implements ConnectionRecord {
+
+    /**
+     * The unique identifier of this use of the connection, which is also
+     * the identifier of the corresponding active connection.
+     */
+    private final String identifier = UUID.randomUUID().toString();
+
+    /**
+     * The identifier of the connection, which is also its name.
+     */
+    private final String connectionIdentifier;
+
+    /**
+     * The history scope of the user that used the connection, as returned by
+     * ConnectionTracker.getScope().
+     */
+    private final String scope;
+
+    /**
+     * The username of the user that used the connection.
+     */
+    private final String username;
+
+    /**
+     * The address of the client of the user, or null if unknown.
+     */
+    private final String remoteHost;
+
+    /**
+     * The time the connection was established, in milliseconds since the
+     * epoch.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * The time the connection was closed, in milliseconds since the epoch,
+     * or zero if the connection is still active.
+     */
+    private volatile long endTime;
+
+    /**
+     * The tunnel of the connection, or null if the tunnel has not yet been
+     * established or has been closed.
+     */
+    private volatile GuacamoleTunnel tunnel;
+
+    /**
+     * Creates a new TrackedConnectionRecord for a use of the given connection
+     * which begins now.
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection, which is also its name.
+     *
+     * @param scope
+     *     The history scope of the user using the connection, as returned by
+     *     ConnectionTracker.getScope().
+     *
+     * @param username
+     *     The username of the user using the connection.
+     *
+     * @param remoteHost
+     *     The address of the client of the user, or null if unknown.
+     */
+    public TrackedConnectionRecord(String connectionIdentifier, String scope,
+            String username, String remoteHost) {
+        this.connectionIdentifier = connectionIdentifier;
+        this.scope = scope;
+        this.username = username;
+        this.remoteHost = remoteHost;
+    }
+
+    /**
+     * Returns the unique identifier of this use of the connection.
+     *
+     * @return
+     *     The unique identifier of this use of the connection.
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Returns the history scope of the user that used the connection.
+     *
+     * @return
+     *     The history scope of the user that used the connection, as returned
+     *     by ConnectionTracker.getScope().
+     */
+    String getScope() {
+        return scope;
+    }
+
+    /**
+     * Returns the tunnel of the connection, if still active.
+     *
+     * @return
+     *     The tunnel of the connection, or null if the tunnel has not yet
+     *     been established or has been closed.
+     */
+    public GuacamoleTunnel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * Sets the tunnel of the connection once established. The tunnel is not
+     * retained if the connection has already been closed.
+     *
+     * @param tunnel
+     *     The tunnel of the connection.
+     */
+    synchronized void setTunnel(GuacamoleTunnel tunnel) {
+        if (endTime == 0)
+            this.tunnel = tunnel;
+    }
+
+    /**
+     * Marks the connection as closed as of now, if not already closed.
+     *
+     * @return
+     *     true if the connection was marked as closed by this call, false if
+     *     it had already been closed.
+     */
+    synchronized boolean end() {
+
+        if (endTime != 0)
+            return false;
+
+        endTime = System.currentTimeMillis();
+        tunnel = null;
+        return true;
+
+    }
+
+    @Override
+    public String getConnectionIdentifier() {
+        return connectionIdentifier;
+    }
+
+    @Override
+    public String getConnectionName() {
+        return connectionIdentifier;
+    }
+
+    @Override
+    public String getSharingProfileIdentifier() {
+        return null;
+    }
+
+    @Override
+    public String getSharingProfileName() {
+        return null;
+    }
+
+    @Override
+    public Date getStartDate() {
+        return new Date(startTime);
+    }
+
+    @Override
+    public Date getEndDate() {
+        long end = endTime;
+        return end != 0 ? new Date(end) : null;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public boolean isActive() {
+        return endTime == 0;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.history;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import org.apache.guacamole.net.auth.ConnectionRecord;
+import org.apache.guacamole.net.auth.ConnectionRecordSet;
+
+/**
+ * ConnectionRecordSet containing a fixed list of tracked connection records.
+ * Each operation returns a new set, leaving the original set unchanged.
+ */
+public class TrackedConnectionRecordSet implements ConnectionRecordSet {
+
+    /**
+     * Comparator which orders records by start date, oldest first.
+     */
+    private static final Comparator<ConnectionRecord> START_DATE_ORDER =
+            new Comparator<ConnectionRecord>() {
+
+        @Override
+        public int compare(ConnectionRecord a, ConnectionRecord b) {
+            return a.getStartDate().compareTo(b.getStartDate());
+        }
+
+    };
+
+    /**
+     * The records within this set.
+     */
+    private final List<ConnectionRecord> records;
+
+    /**
+     * Creates a new TrackedConnectionRecordSet containing the given records.
+     * The given list must not be modified further by the caller.
+     *
+     * @param records
+     *     The records to include within the set.
+     */
+    public TrackedConnectionRecordSet(List<? extends ConnectionRecord> records) {
+        this.records = Collections.<ConnectionRecord>unmodifiableList(records);
+    }
+
+    @Override
+    public Collection<ConnectionRecord> asCollection() {
+        return records;
+    }
+
+    @Override
+    public ConnectionRecordSet contains(String value) {
+
+        String lowercaseValue = value.toLowerCase(Locale.ENGLISH);
+        List<ConnectionRecord> matching = new ArrayList<ConnectionRecord>();
+        for (ConnectionRecord record : records) {
+            if (containsIgnoreCase(record.getUsername(), lowercaseValue)
+                    || containsIgnoreCase(record.getConnectionName(), lowercaseValue)
+                    || containsIgnoreCase(record.getRemoteHost(), lowercaseValue))
+                matching.add(record);
+        }
+
+        return new TrackedConnectionRecordSet(matching);
+
+    }
+
+    /**
+     * Returns whether the given string contains the given lowercase value,
+     * ignoring case.
+     *
+     * @param string
+     *     The string to search, or null.
+     *
+     * @param lowercaseValue
+     *     The lowercase value to search for.
+     *
+     * @return
+     *     true if the given string is non-null and contains the given value,
+     *     false otherwise.
+     */
+    private static boolean containsIgnoreCase(String string,
+            String lowercaseValue) {
+        return string != null
+                && string.toLowerCase(Locale.ENGLISH).contains(lowercaseValue);
+    }
+
+    @Override
+    public ConnectionRecordSet limit(int limit) {
+        if (limit >= records.size())
+            return this;
+        return new TrackedConnectionRecordSet(new ArrayList<ConnectionRecord>(
+                records.subList(0, Math.max(0, limit))));
+    }
+
+    @Override
+    public ConnectionRecordSet sort(SortableProperty property,
+            boolean desc) {
+
+        // Records may only be sorted by start date
+        List<ConnectionRecord> sorted = new ArrayList<ConnectionRecord>(records);
+        Collections.sort(sorted, desc ? Collections.reverseOrder(START_DATE_ORDER)
+                : START_DATE_ORDER);
+
+        return new TrackedConnectionRecordSet(sorted);
+
+    }
+
+}
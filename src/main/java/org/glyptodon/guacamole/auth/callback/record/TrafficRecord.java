@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.record;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The anonymized shape of a single request to the callback, as stored within
+ * a recording. Parameter values are never recorded; only their sizes.
+ * Numbers within the recording are stored as unsigned variable-length
+ * integers, seven bits per byte, least significant group first, such that
+ * typical records occupy only a few dozen bytes.
+ */
+public class TrafficRecord {
+
+    /**
+     * The value which must begin every recording, the ASCII characters
+     * "GCBR".
+     */
+    public static final int MAGIC = 0x47434252;
+
+    /**
+     * The version of the recording format written by this class.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The number of milliseconds between the previous request and this
+     * request.
+     */
+    private final long interval;
+
+    /**
+     * The names of all parameters of the request, with one entry for each
+     * value of each parameter.
+     */
+    private final List<String> parameterNames;
+
+    /**
+     * The sizes of all parameter values of the request, in characters, in
+     * the same order as parameterNames.
+     */
+    private final List<Integer> parameterSizes;
+
+    /**
+     * The HTTP status code of the response, or 0 if no response was received.
+     */
+    private final int status;
+
+    /**
+     * The size of the response body, in bytes.
+     */
+    private final long responseSize;
+
+    /**
+     * The number of connections within the response.
+     */
+    private final int connections;
+
+    /**
+     * Creates a new TrafficRecord describing a request having the given
+     * shape.
+     *
+     * @param interval
+     *     The number of milliseconds between the previous request and this
+     *     request.
+     *
+     * @param parameterNames
+     *     The names of all parameters of the request, with one entry for each
+     *     value of each parameter.
+     *
+     * @param parameterSizes
+     *     The sizes of all parameter values of the request, in characters, in
+     *     the same order as parameterNames.
+     *
+     * @param status
+     *     The HTTP status code of the response, or 0 if no response was
+     *     received.
+     *
+     * @param responseSize
+     *     The size of the response body, in bytes.
+     *
+     * @param connections
+     *     The number of connections within the response.
+     */
+    public TrafficRecord(long interval, List<String> parameterNames,
+            List<Integer> parameterSizes, int status, long responseSize,
+            int connections) {
+        this.interval = interval;
+        this.parameterNames = Collections.unmodifiableList(parameterNames);
+        this.parameterSizes = Collections.unmodifiableList(parameterSizes);
+        this.status = status;
+        this.responseSize = responseSize;
+        this.connections = connections;
+    }
+
+    /**
+     * Returns the number of milliseconds between the previous request and
+     * this request.
+     *
+     * @return
+     *     The number of milliseconds between the previous request and this
+     *     request.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the names of all parameters of the request, with one entry for
+     * each value of each parameter.
+     *
+     * @return
+     *     The names of all parameters of the request.
+     */
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Returns the sizes of all parameter values of the request, in
+     * characters, in the same order as the names returned by
+     * getParameterNames().
+     *
+     * @return
+     *     The sizes of all parameter values of the request.
+     */
+    public List<Integer> getParameterSizes() {
+        return parameterSizes;
+    }
+
+    /**
+     * Returns the HTTP status code of the response.
+     *
+     * @return
+     *     The HTTP status code of the response, or 0 if no response was
+     *     received.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the size of the response body, in bytes.
+     *
+     * @return
+     *     The size of the response body, in bytes.
+     */
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    /**
+     * Returns the number of connections within the response.
+     *
+     * @return
+     *     The number of connections within the response.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Writes the given non-negative number as an unsigned variable-length
+     * integer.
+     *
+     * @param output
+     *     The output to write to.
+     *
+     * @param value
+     *     The number to write.
+     *
+     * @throws IOException
+     *     If the number cannot be written.
+     */
+    private static void writeNumber(DataOutput output, long value)
+            throws IOException {
+
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+
+    }
+
+    /**
+     * Reads a number written by writeNumber().
+     *
+     * @param input
+     *     The input to read from.
+     *
+     * @return
+     *     The number read.
+     *
+     * @throws IOException
+     *     If the number cannot be read or is malformed.
+     */
+    private static long readNumber(DataInput input) throws IOException {
+
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int current = input.readUnsignedByte();
+            value |= ((long) (current & 0x7F)) << shift;
+            if ((current & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed number within recording.");
+
+    }
+
+    /**
+     * Writes the header which must begin every recording.
+     *
+     * @param output
+     *     The output to write to.
+     *
+     * @throws IOException
+     *     If the header cannot be written.
+     */
+    public static void writeHeader(DataOutput output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+    }
+
+    /**
+     * Reads and verifies the header which must begin every recording.
+     *
+     * @param input
+     *     The input to read from.
+     *
+     * @throws IOException
+     *     If the header cannot be read, or the input is not a recording in a
+     *     supported format.
+     */
+    public static void readHeader(DataInput input) throws IOException {
+
+        if (input.readInt() != MAGIC)
+            throw new IOException("Not a recording of callback traffic.");
+
+        int version = input.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported recording version: " + version);
+
+    }
+
+    /**
+     * Writes this record.
+     *
+     * @param output
+     *     The output to write to.
+     *
+     * @throws IOException
+     *     If the record cannot be written.
+     */
+    public void write(DataOutput output) throws IOException {
+
+        writeNumber(output, interval);
+
+        writeNumber(output, parameterNames.size());
+        for (int i = 0; i < parameterNames.size(); i++) {
+            output.writeUTF(parameterNames.get(i));
+            writeNumber(output, parameterSizes.get(i));
+        }
+
+        writeNumber(output, status);
+        writeNumber(output, responseSize);
+        writeNumber(output, connections);
+
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param input
+     *     The input to read from.
+     *
+     * @return
+     *     The record read, or null if the end of the recording has been
+     *     reached.
+     *
+     * @throws IOException
+     *     If the record cannot be read or is malformed.
+     */
+    public static TrafficRecord read(DataInput input) throws IOException {
+
+        long interval;
+        try {
+            interval = readNumber(input);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+
+        int count = (int) readNumber(input);
+        List<String> names = new ArrayList<String>(count);
+        List<Integer> sizes = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(input.readUTF());
+            sizes.add((int) readNumber(input));
+        }
+
+        int status = (int) readNumber(input);
+        long responseSize = readNumber(input);
+        int connections = (int) readNumber(input);
+
+        return new TrafficRecord(interval, names, sizes, status, responseSize,
+                connections);
+
+    }
+
+}
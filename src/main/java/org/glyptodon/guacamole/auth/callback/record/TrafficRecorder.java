@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.record;
+
+import com.google.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which records the anonymized shape of each request to the callback
+ * to the configured recording file, such that production-shaped load can
+ * later be replayed with TrafficReplay. Only parameters which are actually
+ * sent to the callback are recorded. Records are placed within a bounded
+ * queue and written by a single background thread, such that authenticating
+ * threads never wait for the file. If the queue is full, records are
+ * dropped and counted. Recordings are appended to, and a change to the
+ * configured file takes effect with the next request.
+ */
+@Singleton
+public class TrafficRecorder {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    /**
+     * The maximum number of records which may await writing.
+     */
+    private static final int QUEUE_SIZE = 8192;
+
+    /**
+     * The shape of a single request which has not yet been written, along
+     * with the file it should be written to.
+     */
+    private static class PendingRecord {
+
+        /**
+         * The file the record should be written to, or null if recording
+         * should stop and the current file should be closed.
+         */
+        private final File file;
+
+        /**
+         * The value of System.currentTimeMillis() when the request was
+         * recorded.
+         */
+        private final long time;
+
+        /**
+         * The names of all parameters sent, with one entry for each value.
+         */
+        private final List<String> names;
+
+        /**
+         * The sizes of all parameter values sent, in the same order as
+         * names.
+         */
+        private final List<Integer> sizes;
+
+        /**
+         * The HTTP status code of the response, or 0 if no response was
+         * received.
+         */
+        private final int status;
+
+        /**
+         * The size of the response body, in bytes.
+         */
+        private final long responseSize;
+
+        /**
+         * The number of connections defined by the response.
+         */
+        private final int connections;
+
+        /**
+         * Creates a new PendingRecord describing a single request.
+         *
+         * @param file
+         *     The file the record should be written to, or null if recording
+         *     should stop and the current file should be closed.
+         *
+         * @param time
+         *     The value of System.currentTimeMillis() when the request was
+         *     recorded.
+         *
+         * @param names
+         *     The names of all parameters sent, with one entry for each
+         *     value.
+         *
+         * @param sizes
+         *     The sizes of all parameter values sent, in the same order as
+         *     names.
+         *
+         * @param status
+         *     The HTTP status code of the response, or 0 if no response was
+         *     received.
+         *
+         * @param responseSize
+         *     The size of the response body, in bytes.
+         *
+         * @param connections
+         *     The number of connections defined by the response.
+         */
+        public PendingRecord(File file, long time, List<String> names,
+                List<Integer> sizes, int status, long responseSize,
+                int connections) {
+            this.file = file;
+            this.time = time;
+            this.names = names;
+            this.sizes = sizes;
+            this.status = status;
+            this.responseSize = responseSize;
+            this.connections = connections;
+        }
+
+    }
+
+    /**
+     * Records awaiting writing, in the order they were recorded.
+     */
+    private final BlockingQueue<PendingRecord> queue =
+            new ArrayBlockingQueue<PendingRecord>(QUEUE_SIZE);
+
+    /**
+     * Whether the writer thread has been started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The number of records dropped since the writer last reported drops.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Whether any record has been queued since recording last stopped, such
+     * that a request to stop recording must be passed to the writer thread.
+     */
+    private volatile boolean recording;
+
+    /**
+     * The file which could not be written, if any. Recording to this file is
+     * not attempted again unless another file is configured in the meantime.
+     */
+    private volatile File failedFile;
+
+    /**
+     * The file currently being recorded to, or null if no file is open. This
+     * is only accessed by the writer thread.
+     */
+    private File file;
+
+    /**
+     * The output stream of the file currently being recorded to, or null if
+     * no file is open. This is only accessed by the writer thread.
+     */
+    private DataOutputStream output;
+
+    /**
+     * The time of the previous record written, as returned by
+     * System.currentTimeMillis(), or 0 if no request has yet been written
+     * to the current file. This is only accessed by the writer thread.
+     */
+    private long lastRecorded;
+
+    /**
+     * Closes the file currently being recorded to, if any.
+     */
+    private void close() {
+
+        if (output == null)
+            return;
+
+        try {
+            output.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close recording \"{}\".", file, e);
+        }
+
+        output = null;
+        file = null;
+
+    }
+
+    /**
+     * Opens the given file for recording, closing any previously-open file.
+     * The header is written only if the file is new or empty.
+     *
+     * @param recordingFile
+     *     The file to open.
+     *
+     * @throws IOException
+     *     If the file cannot be opened or the header cannot be written.
+     */
+    private void open(File recordingFile) throws IOException {
+
+        close();
+
+        boolean empty = recordingFile.length() == 0;
+        output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(recordingFile, true)));
+        file = recordingFile;
+
+        if (empty)
+            TrafficRecord.writeHeader(output);
+
+        lastRecorded = 0;
+        logger.info("Recording shape of callback requests to \"{}\".", file);
+
+    }
+
+    /**
+     * Writes the given record to its file, opening that file if necessary,
+     * or closes the current file if the record requests that recording
+     * stop. This function is invoked only by the writer thread.
+     *
+     * @param record
+     *     The record to write.
+     */
+    private void write(PendingRecord record) {
+
+        // Stop recording if no longer configured
+        if (record.file == null) {
+            close();
+            failedFile = null;
+            return;
+        }
+
+        // Skip remaining records for a file which could not be written
+        if (record.file.equals(failedFile))
+            return;
+
+        try {
+
+            if (!record.file.equals(file))
+                open(record.file);
+
+            long interval = lastRecorded != 0
+                    ? Math.max(0, record.time - lastRecorded) : 0;
+            lastRecorded = record.time;
+
+            new TrafficRecord(interval, record.names, record.sizes,
+                    record.status, record.responseSize,
+                    record.connections).write(output);
+
+        }
+        catch (IOException e) {
+            logger.warn("Unable to record to \"{}\": {}", record.file, e.getMessage());
+            logger.debug("Recording of callback request failed.", e);
+            close();
+            failedFile = record.file;
+        }
+
+    }
+
+    /**
+     * Writes records as they are queued, flushing the current file whenever
+     * no further records are waiting. This function is invoked only by the
+     * writer thread, and runs until that thread is interrupted.
+     */
+    private void drain() {
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                PendingRecord record = queue.take();
+                do {
+                    write(record);
+                } while ((record = queue.poll()) != null);
+
+                if (output != null) {
+                    try {
+                        output.flush();
+                    }
+                    catch (IOException e) {
+                        logger.warn("Unable to record to \"{}\": {}", file, e.getMessage());
+                        logger.debug("Recording of callback requests failed.", e);
+                        failedFile = file;
+                        close();
+                    }
+                }
+
+                long droppedCount = dropped.getAndSet(0);
+                if (droppedCount > 0)
+                    logger.warn("{} callback requests were not recorded as "
+                            + "the recording could not keep up.", droppedCount);
+
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            close();
+        }
+
+    }
+
+    /**
+     * Starts the writer thread, if not already started.
+     */
+    private void start() {
+
+        if (!started.compareAndSet(false, true))
+            return;
+
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+
+        }, "callback-recording-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+    }
+
+    /**
+     * Queues the given record for writing, dropping and counting it if too
+     * many records are already awaiting writing.
+     *
+     * @param record
+     *     The record to queue.
+     */
+    private void enqueue(PendingRecord record) {
+        start();
+        if (!queue.offer(record))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Records the anonymized shape of a single request to the callback, if a
+     * recording file is configured, without waiting for it to be written.
+     * Failures to record are logged and never affect the authentication
+     * attempt.
+     *
+     * @param config
+     *     The configuration of the request.
+     *
+     * @param request
+     *     The HTTP request whose parameters were sent to the callback, or
+     *     null if no parameters were sent.
+     *
+     * @param status
+     *     The HTTP status code of the response, or 0 if no response was
+     *     received.
+     *
+     * @param responseSize
+     *     The size of the response body, in bytes.
+     *
+     * @param userData
+     *     The UserData within the response, or null if the response did not
+     *     contain UserData.
+     */
+    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
+    public void record(CallbackConfiguration config,
+            HttpServletRequest request, int status, long responseSize,
+            UserData userData) {
+
+        // Stop recording if no longer configured
+        File recordingFile = config.getRecordingFile();
+        if (recordingFile == null) {
+            if (recording) {
+                recording = false;
+                enqueue(new PendingRecord(null, 0, null, null, 0, 0, 0));
+            }
+            return;
+        }
+
+        // Do not repeatedly attempt to write to a broken file
+        if (recordingFile.equals(failedFile))
+            return;
+
+        // Record only the names and sizes of parameters actually sent
+        List<String> names = new ArrayList<String>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        if (request != null) {
+            Map<String, String[]> parameterMap = (Map<String, String[]>)
+                    request.getParameterMap();
+            for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+
+                String name = entry.getKey();
+                if (!config.isForwardedParameter(name))
+                    continue;
+
+                for (String value : entry.getValue()) {
+                    names.add(name);
+                    sizes.add(value.length());
+                }
+
+            }
+        }
+
+        Map<String, UserData.Connection> connections = userData != null
+                ? userData.getConnections() : null;
+
+        recording = true;
+        enqueue(new PendingRecord(recordingFile, System.currentTimeMillis(),
+                names, sizes, status, responseSize,
+                connections != null ? connections.size() : 0));
+
+    }
+
+}
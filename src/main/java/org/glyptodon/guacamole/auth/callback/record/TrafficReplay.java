@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.record;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command-line tool which replays a recording of callback traffic against a
+ * Guacamole server, typically one using the mock callback service. Each
+ * recorded request is replayed as a login attempt submitted to the given
+ * token endpoint, with parameters having the recorded names and synthetic
+ * values of the recorded sizes, at the recorded intervals divided by the
+ * requested speed. Requests are sent without waiting for earlier requests to
+ * complete, reproducing the recorded concurrency. Once all requests have
+ * completed, a summary is printed as key=value lines.
+ *
+ * Usage: TrafficReplay RECORDING TOKEN_URL [SPEED]
+ */
+public class TrafficReplay {
+
+    /**
+     * The maximum factor by which a recording may be sped up.
+     */
+    private static final int MAX_SPEED = 50;
+
+    /**
+     * The number of milliseconds to wait for outstanding requests once the
+     * entire recording has been replayed.
+     */
+    private static final long COMPLETION_TIMEOUT = 300000;
+
+    /**
+     * The latencies of all completed requests, in milliseconds.
+     */
+    private final List<Long> latencies =
+            Collections.synchronizedList(new ArrayList<Long>());
+
+    /**
+     * The number of requests which received a successful response.
+     */
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    /**
+     * The number of requests which received an unsuccessful response or no
+     * response at all.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * The URL of the token endpoint of the Guacamole server.
+     */
+    private final URL tokenURL;
+
+    /**
+     * Creates a new TrafficReplay which submits requests to the given token
+     * endpoint.
+     *
+     * @param tokenURL
+     *     The URL of the token endpoint of the Guacamole server.
+     */
+    public TrafficReplay(URL tokenURL) {
+        this.tokenURL = tokenURL;
+    }
+
+    /**
+     * Produces the form body of a login attempt having the shape of the
+     * given record.
+     *
+     * @param record
+     *     The record to reproduce.
+     *
+     * @return
+     *     An application/x-www-form-urlencoded body containing parameters
+     *     with the recorded names and synthetic values of the recorded sizes.
+     *
+     * @throws IOException
+     *     If the body cannot be encoded.
+     */
+    private static String getBody(TrafficRecord record) throws IOException {
+
+        StringBuilder body = new StringBuilder();
+        List<String> names = record.getParameterNames();
+        List<Integer> sizes = record.getParameterSizes();
+        for (int i = 0; i < names.size(); i++) {
+
+            if (body.length() > 0)
+                body.append('&');
+
+            body.append(URLEncoder.encode(names.get(i), "UTF-8")).append('=');
+            for (int j = 0; j < sizes.get(i); j++)
+                body.append('x');
+
+        }
+
+        return body.toString();
+
+    }
+
+    /**
+     * Submits a single login attempt having the shape of the given record,
+     * recording its latency and outcome.
+     *
+     * @param record
+     *     The record to reproduce.
+     */
+    private void send(TrafficRecord record) {
+
+        long start = System.nanoTime();
+        try {
+
+            byte[] body = getBody(record).getBytes("UTF-8");
+
+            HttpURLConnection connection = (HttpURLConnection) tokenURL.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type",
+                    "application/x-www-form-urlencoded");
+
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(body);
+            }
+            finally {
+                output.close();
+            }
+
+            // Read entire response such that the connection may be reused
+            int status = connection.getResponseCode();
+            InputStream input = status < 400 ? connection.getInputStream()
+                    : connection.getErrorStream();
+            if (input != null) {
+                try {
+                    byte[] buffer = new byte[8192];
+                    while (input.read(buffer) != -1);
+                }
+                finally {
+                    input.close();
+                }
+            }
+
+            if (status < 400)
+                succeeded.incrementAndGet();
+            else
+                failed.incrementAndGet();
+
+        }
+        catch (IOException e) {
+            failed.incrementAndGet();
+        }
+
+        latencies.add((System.nanoTime() - start) / 1000000);
+
+    }
+
+    /**
+     * Returns the given percentile of the given sorted latencies.
+     *
+     * @param sorted
+     *     The latencies, sorted in ascending order.
+     *
+     * @param percentile
+     *     The percentile to return, between 0 and 100 inclusive.
+     *
+     * @return
+     *     The given percentile of the given latencies, or 0 if there are no
+     *     latencies.
+     */
+    private static long getPercentile(List<Long> sorted, double percentile) {
+
+        if (sorted.isEmpty())
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+
+    }
+
+    /**
+     * Replays the given recording at the given speed, printing a summary once
+     * all requests have completed.
+     *
+     * @param input
+     *     The recording to replay.
+     *
+     * @param speed
+     *     The factor by which the recorded intervals between requests should
+     *     be divided.
+     *
+     * @throws IOException
+     *     If the recording cannot be read.
+     *
+     * @throws InterruptedException
+     *     If the current thread is interrupted while replaying.
+     */
+    public void replay(DataInputStream input, int speed)
+            throws IOException, InterruptedException {
+
+        TrafficRecord.readHeader(input);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        long recordedResponseSize = 0;
+        long recordedConnections = 0;
+        int requests = 0;
+
+        long start = System.currentTimeMillis();
+        long recordedElapsed = 0;
+
+        TrafficRecord record;
+        while ((record = TrafficRecord.read(input)) != null) {
+
+            // Wait until the request is due, relative to the start of the
+            // replay to avoid accumulating drift
+            recordedElapsed += record.getInterval();
+            long delay = start + recordedElapsed / speed - System.currentTimeMillis();
+            if (delay > 0)
+                Thread.sleep(delay);
+
+            final TrafficRecord current = record;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    send(current);
+                }
+
+            });
+
+            recordedResponseSize += record.getResponseSize();
+            recordedConnections += record.getConnections();
+            requests++;
+
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(COMPLETION_TIMEOUT, TimeUnit.MILLISECONDS);
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<Long>(latencies);
+        }
+        Collections.sort(sorted);
+
+        System.out.println("requests=" + requests);
+        System.out.println("succeeded=" + succeeded.get());
+        System.out.println("failed=" + failed.get());
+        System.out.println("speed=" + speed);
+        System.out.println("duration_ms=" + duration);
+        System.out.println("throughput_per_s=" + (sorted.size() * 1000L / duration));
+        System.out.println("latency_p50_ms=" + getPercentile(sorted, 50));
+        System.out.println("latency_p90_ms=" + getPercentile(sorted, 90));
+        System.out.println("latency_p99_ms=" + getPercentile(sorted, 99));
+        System.out.println("latency_max_ms=" + getPercentile(sorted, 100));
+        System.out.println("recorded_response_bytes_avg="
+                + (requests > 0 ? recordedResponseSize / requests : 0));
+        System.out.println("recorded_connections_avg="
+                + (requests > 0 ? recordedConnections / requests : 0));
+
+    }
+
+    /**
+     * Replays the recording given on the command line.
+     *
+     * @param args
+     *     The path of the recording, the URL of the token endpoint of the
+     *     Guacamole server (such as
+     *     "http://localhost:8080/guacamole/api/tokens"), and optionally the
+     *     factor by which the recording should be sped up, between 1 and 50.
+     *
+     * @throws Exception
+     *     If the recording cannot be read or replayed.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: TrafficReplay RECORDING TOKEN_URL [SPEED]");
+            System.exit(1);
+        }
+
+        int speed = args.length == 3 ? Integer.parseInt(args[2]) : 1;
+        if (speed < 1 || speed > MAX_SPEED) {
+            System.err.println("Speed must be between 1 and " + MAX_SPEED + ".");
+            System.exit(1);
+        }
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(args[0])));
+        try {
+            new TrafficReplay(new URL(args[1])).replay(input, speed);
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.tenant;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import org.glyptodon.guacamole.auth.callback.Deadline;
+
+/**
+ * A single tenant served by this Guacamole server, having its own callback
+ * and its own limit on concurrent requests to that callback. Authentication
+ * attempts are routed to a tenant by matching the host name, path, or a
+ * parameter of the HTTP request.
+ */
+public class Tenant {
+
+    /**
+     * The match type which compares the host name of the request, ignoring
+     * case.
+     */
+    public static final String MATCH_HOST = "host";
+
+    /**
+     * The match type which compares the beginning of the path of the
+     * request.
+     */
+    public static final String MATCH_PATH = "path";
+
+    /**
+     * The match type which compares the value of a request parameter. The
+     * pattern of such a match has the form NAME:VALUE.
+     */
+    public static final String MATCH_PARAMETER = "param";
+
+    /**
+     * The unique name of this tenant.
+     */
+    private final String name;
+
+    /**
+     * The match type of the routing rule of this tenant.
+     */
+    private final String matchType;
+
+    /**
+     * The host name, path prefix, or parameter value which requests must
+     * have to be routed to this tenant.
+     */
+    private final String matchValue;
+
+    /**
+     * The name of the parameter compared if the match type is
+     * MATCH_PARAMETER, or null otherwise.
+     */
+    private final String matchParameter;
+
+    /**
+     * The callback of this tenant.
+     */
+    private final URI callbackURI;
+
+    /**
+     * The maximum number of concurrent requests to the callback of this
+     * tenant, or zero if unlimited.
+     */
+    private final int limit;
+
+    /**
+     * The permits for concurrent requests to the callback of this tenant, or
+     * null if unlimited.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The number of requests to the callback of this tenant.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The number of authentication attempts which could not invoke the
+     * callback of this tenant before their deadline because the limit on
+     * concurrent requests was reached.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Creates a new Tenant having the given routing rule, callback, and
+     * concurrency limit.
+     *
+     * @param name
+     *     The unique name of the tenant.
+     *
+     * @param matchType
+     *     The match type of the routing rule, as defined by MATCH_HOST,
+     *     MATCH_PATH, or MATCH_PARAMETER.
+     *
+     * @param pattern
+     *     The host name, path prefix, or NAME:VALUE parameter pair which
+     *     requests must have to be routed to the tenant.
+     *
+     * @param callbackURI
+     *     The callback of the tenant.
+     *
+     * @param limit
+     *     The maximum number of concurrent requests to the callback of the
+     *     tenant, or zero if unlimited.
+     *
+     * @throws IllegalArgumentException
+     *     If the match type is not recognized, or a parameter pattern lacks
+     *     a parameter name.
+     */
+    public Tenant(String name, String matchType, String pattern,
+            URI callbackURI, int limit) throws IllegalArgumentException {
+
+        if (MATCH_PARAMETER.equals(matchType)) {
+            int separator = pattern.indexOf(':');
+            if (separator <= 0)
+                throw new IllegalArgumentException("Parameter rules must have "
+                        + "the form " + MATCH_PARAMETER + "=NAME:VALUE.");
+            this.matchParameter = pattern.substring(0, separator);
+            this.matchValue = pattern.substring(separator + 1);
+        }
+        else if (MATCH_HOST.equals(matchType) || MATCH_PATH.equals(matchType)) {
+            this.matchParameter = null;
+            this.matchValue = pattern;
+        }
+        else
+            throw new IllegalArgumentException("Unknown match type \""
+                    + matchType + "\".");
+
+        this.name = name;
+        this.matchType = matchType;
+        this.callbackURI = callbackURI;
+        this.limit = limit;
+        this.permits = limit > 0 ? new Semaphore(limit) : null;
+
+    }
+
+    /**
+     * Returns the unique name of this tenant.
+     *
+     * @return
+     *     The unique name of this tenant.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the callback of this tenant.
+     *
+     * @return
+     *     The callback of this tenant.
+     */
+    public URI getCallbackURI() {
+        return callbackURI;
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests to the callback of
+     * this tenant.
+     *
+     * @return
+     *     The maximum number of concurrent requests to the callback of this
+     *     tenant, or zero if unlimited.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns whether this tenant has the same definition as the given
+     * tenant, such that the given tenant may be replaced by this tenant
+     * without affecting requests in progress.
+     *
+     * @param tenant
+     *     The tenant to compare against.
+     *
+     * @return
+     *     true if both tenants have the same name, routing rule, callback,
+     *     and limit, false otherwise.
+     */
+    public boolean isSameDefinition(Tenant tenant) {
+        return name.equals(tenant.name)
+            && matchType.equals(tenant.matchType)
+            && matchValue.equals(tenant.matchValue)
+            && (matchParameter == null ? tenant.matchParameter == null
+                    : matchParameter.equals(tenant.matchParameter))
+            && callbackURI.equals(tenant.callbackURI)
+            && limit == tenant.limit;
+    }
+
+    /**
+     * Returns whether the given HTTP request should be routed to this
+     * tenant.
+     *
+     * @param request
+     *     The HTTP request of the authentication attempt.
+     *
+     * @return
+     *     true if the request matches the routing rule of this tenant, false
+     *     otherwise.
+     */
+    public boolean matches(HttpServletRequest request) {
+
+        if (MATCH_HOST.equals(matchType))
+            return matchValue.equalsIgnoreCase(request.getServerName());
+
+        if (MATCH_PATH.equals(matchType)) {
+            String path = request.getRequestURI();
+            return path != null && path.startsWith(matchValue);
+        }
+
+        return matchValue.equals(request.getParameter(matchParameter));
+
+    }
+
+    /**
+     * Waits until a request to the callback of this tenant may be made
+     * without exceeding its concurrency limit, or until the given deadline
+     * expires. If a request may be made, release() must be invoked once that
+     * request has completed.
+     *
+     * @param deadline
+     *     The deadline of the authentication attempt.
+     *
+     * @return
+     *     true if a request may be made, false if the deadline expired first.
+     */
+    public boolean acquire(Deadline deadline) {
+
+        requests.incrementAndGet();
+        if (permits == null)
+            return true;
+
+        try {
+            if (permits.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS))
+                return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        throttled.incrementAndGet();
+        return false;
+
+    }
+
+    /**
+     * Releases the permit obtained by a successful call to acquire().
+     */
+    public void release() {
+        if (permits != null)
+            permits.release();
+    }
+
+    /**
+     * Returns the number of requests to the callback of this tenant which
+     * are currently in progress.
+     *
+     * @return
+     *     The number of requests currently in progress, or zero if this
+     *     tenant has no concurrency limit.
+     */
+    public int getActiveRequests() {
+        return permits != null ? limit - permits.availablePermits() : 0;
+    }
+
+    /**
+     * Returns the number of authentication attempts routed to this tenant
+     * which required a request to its callback.
+     *
+     * @return
+     *     The number of authentication attempts requiring a request to the
+     *     callback of this tenant.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of authentication attempts which could not invoke
+     * the callback of this tenant before their deadline because its
+     * concurrency limit was reached.
+     *
+     * @return
+     *     The number of throttled authentication attempts.
+     */
+    public long getThrottledRequests() {
+        return throttled.get();
+    }
+
+}
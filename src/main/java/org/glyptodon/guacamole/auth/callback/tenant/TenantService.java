@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.tenant;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.auth.callback.cache.CacheCipher;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which routes authentication attempts to the callbacks of
+ * individual tenants, as defined by the "callback-tenants" file within
+ * GUACAMOLE_HOME. Each non-empty line of that file defines one tenant:
+ *
+ * <pre>
+ * NAME MATCH=PATTERN CALLBACK-URI [LIMIT]
+ * </pre>
+ *
+ * where MATCH is "host", "path", or "param" (with a PATTERN of the form
+ * NAME:VALUE), and LIMIT is the maximum number of concurrent requests to the
+ * tenant's callback. The first matching tenant is used. Authentication
+ * attempts matching no tenant use the callback defined by
+ * "callback-auth-uri". The file is read again whenever it is modified.
+ */
+@Singleton
+public class TenantService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(TenantService.class);
+
+    /**
+     * The charset of the tenants file.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The minimum interval between checks for modifications to the tenants
+     * file, in milliseconds.
+     */
+    private static final long TENANTS_CHECK_INTERVAL = 1000;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * The most recently read contents of the tenants file.
+     */
+    private volatile Tenants tenants = Tenants.EMPTY;
+
+    /**
+     * The tenants read from the tenants file, in the order they were
+     * defined.
+     */
+    private static class Tenants {
+
+        /**
+         * An empty list of tenants, representing a missing tenants file.
+         */
+        public static final Tenants EMPTY = new Tenants(0, 0,
+                Collections.<Tenant>emptyList());
+
+        /**
+         * The modification time of the tenants file when it was read, in
+         * milliseconds since the epoch, or 0 if the file did not exist.
+         */
+        private final long lastModified;
+
+        /**
+         * The time that the tenants file was last checked for modification,
+         * in milliseconds since the epoch.
+         */
+        private final long lastChecked;
+
+        /**
+         * All tenants, in the order they were defined.
+         */
+        private final List<Tenant> tenants;
+
+        /**
+         * Creates a new Tenants containing the given tenants.
+         *
+         * @param lastModified
+         *     The modification time of the tenants file when it was read, in
+         *     milliseconds since the epoch, or 0 if the file did not exist.
+         *
+         * @param lastChecked
+         *     The time that the tenants file was last checked for
+         *     modification, in milliseconds since the epoch.
+         *
+         * @param tenants
+         *     All tenants, in the order they were defined.
+         */
+        public Tenants(long lastModified, long lastChecked,
+                List<Tenant> tenants) {
+            this.lastModified = lastModified;
+            this.lastChecked = lastChecked;
+            this.tenants = tenants;
+        }
+
+    }
+
+    /**
+     * Parses a single line of the tenants file.
+     *
+     * @param line
+     *     The line to parse, with surrounding whitespace removed.
+     *
+     * @return
+     *     The tenant defined by the given line.
+     *
+     * @throws IllegalArgumentException
+     *     If the line is malformed.
+     */
+    private Tenant parse(String line) throws IllegalArgumentException {
+
+        String[] fields = line.split("\\s+");
+        if (fields.length < 3 || fields.length > 4)
+            throw new IllegalArgumentException("Expected NAME MATCH=PATTERN "
+                    + "CALLBACK-URI [LIMIT].");
+
+        int separator = fields[1].indexOf('=');
+        if (separator <= 0)
+            throw new IllegalArgumentException("Expected MATCH=PATTERN.");
+
+        URI callbackURI;
+        try {
+            callbackURI = new URI(fields[2]);
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid callback URI.", e);
+        }
+
+        String scheme = callbackURI.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme))
+            throw new IllegalArgumentException("Callback must be an HTTP or "
+                    + "HTTPS URI.");
+
+        int limit = 0;
+        if (fields.length == 4) {
+            limit = Integer.parseInt(fields[3]);
+            if (limit < 0)
+                throw new IllegalArgumentException("Limit must not be negative.");
+        }
+
+        return new Tenant(fields[0], fields[1].substring(0, separator),
+                fields[1].substring(separator + 1), callbackURI, limit);
+
+    }
+
+    /**
+     * Returns the current contents of the tenants file, re-reading that file
+     * if it has been modified. Tenants whose definitions are unchanged are
+     * retained, such that requests in progress continue to count against
+     * their limits. If the tenants file does not exist or cannot be read, no
+     * tenants are defined.
+     *
+     * @return
+     *     The current contents of the tenants file.
+     */
+    private Tenants getTenants() {
+
+        long now = System.currentTimeMillis();
+
+        // Avoid checking the file for every authentication attempt
+        Tenants current = tenants;
+        if (now - current.lastChecked < TENANTS_CHECK_INTERVAL)
+            return current;
+
+        File file = confService.getTenantsFile();
+        long lastModified = file.lastModified();
+
+        // Keep existing tenants if unmodified
+        if (lastModified == current.lastModified) {
+            tenants = new Tenants(current.lastModified, now, current.tenants);
+            return tenants;
+        }
+
+        // lastModified() is zero if the file does not exist
+        if (lastModified == 0) {
+            tenants = new Tenants(0, now, Tenants.EMPTY.tenants);
+            return tenants;
+        }
+
+        Map<String, Tenant> previous = new HashMap<String, Tenant>();
+        for (Tenant tenant : current.tenants)
+            previous.put(tenant.getName(), tenant);
+
+        List<Tenant> parsed = new ArrayList<Tenant>();
+
+        try {
+
+            Reader reader = new InputStreamReader(new FileInputStream(file), UTF8);
+            try {
+
+                BufferedReader lines = new BufferedReader(reader);
+                String line;
+                while ((line = lines.readLine()) != null) {
+
+                    // Skip blank lines and comments
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+
+                    Tenant tenant;
+                    try {
+                        tenant = parse(line);
+                    }
+                    catch (IllegalArgumentException e) {
+                        logger.warn("Ignoring malformed line within tenants "
+                                + "file \"{}\": {}", file, e.getMessage());
+                        continue;
+                    }
+
+                    // Retain unchanged tenants along with their state
+                    Tenant existing = previous.get(tenant.getName());
+                    if (existing != null && existing.isSameDefinition(tenant))
+                        tenant = existing;
+
+                    parsed.add(tenant);
+
+                }
+
+            }
+            finally {
+                reader.close();
+            }
+
+        }
+        catch (IOException e) {
+            logger.warn("Tenants file \"{}\" could not be read: {}", file, e.getMessage());
+            logger.debug("Unable to read tenants file.", e);
+            parsed.clear();
+        }
+
+        logger.debug("Read {} tenant(s) from \"{}\".", parsed.size(), file);
+        tenants = new Tenants(lastModified, now,
+                Collections.unmodifiableList(parsed));
+        return tenants;
+
+    }
+
+    /**
+     * Returns the tenant to which the given authentication attempt should be
+     * routed.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @return
+     *     The tenant whose routing rule matches the authentication attempt,
+     *     or null if the callback defined by "callback-auth-uri" should be
+     *     used.
+     */
+    public Tenant getTenant(Credentials credentials) {
+
+        HttpServletRequest request = credentials.getRequest();
+        if (request == null)
+            return null;
+
+        for (Tenant tenant : getTenants().tenants) {
+            if (tenant.matches(request))
+                return tenant;
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Derives the key identifying cached or snapshotted responses of the
+     * given tenant from the given key, such that identical parameters sent
+     * to different tenants never share responses.
+     *
+     * @param tenant
+     *     The tenant of the authentication attempt, or null if no tenant
+     *     applies.
+     *
+     * @param key
+     *     The hexadecimal key derived from the parameters of the
+     *     authentication attempt, or null.
+     *
+     * @return
+     *     The hexadecimal key identifying responses of the given tenant, the
+     *     given key if no tenant applies, or null if the given key is null.
+     */
+    public String partition(Tenant tenant, String key) {
+
+        if (tenant == null || key == null)
+            return key;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(tenant.getName().getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(CacheCipher.fromHex(key));
+            return CacheCipher.toHex(digest.digest());
+        }
+
+        // SHA-256 is required of all Java implementations
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
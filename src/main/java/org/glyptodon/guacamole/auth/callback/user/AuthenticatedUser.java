@@ -23,9 +23,12 @@
 package org.glyptodon.guacamole.auth.callback.user;
 
 import com.google.inject.Inject;
+import java.util.Map;
 import org.apache.guacamole.net.auth.AbstractAuthenticatedUser;
 import org.apache.guacamole.net.auth.AuthenticationProvider;
 import org.apache.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.auth.callback.history.ConnectionTracker;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
 
 /**
  * An implementation of AuthenticatedUser specific to the
@@ -42,7 +45,10 @@ public class AuthenticatedUser extends AbstractAuthenticatedUser {
     private AuthenticationProvider authProvider;
 
     /**
-     * The credentials provided when this user was authenticated.
+     * A copy of the parts of the credentials provided when this user was
+     * authenticated which are read later, which holds a read-only view of
+     * the HTTP request of the authentication attempt rather than the request
+     * itself.
      */
     private Credentials credentials;
 
@@ -52,10 +58,36 @@ public class AuthenticatedUser extends AbstractAuthenticatedUser {
      */
     private UserData userData;
 
+    /**
+     * The session resumption token issued when this user was authenticated,
+     * or null if no such token was issued.
+     */
+    private String resumeToken;
+
+    /**
+     * The values of the tokens which may be substituted into the parameters
+     * of this user's connections, where the key of each entry is the token
+     * name.
+     */
+    private Map<String, String> tokenValues;
+
+    /**
+     * The history scope of this user, as returned by
+     * ConnectionTracker.getScope(), which determines the active connections
+     * and history visible to this user.
+     */
+    private String historyScope;
+
     /**
      * Initializes this AuthenticatedUser using the given credentials and
      * UserData object. The provided UserData object MUST have been derived
-     * from the data submitted when the user authenticated.
+     * from the data submitted when the user authenticated. The given
+     * credentials are copied rather than retained, as their HTTP request is
+     * recycled by the servlet container once authentication completes. The
+     * values of any tokens referenced by the parameters of the connections
+     * within the given UserData are determined now, as is the history scope
+     * of this user, such that anonymous users are never given the active
+     * connections or history of another session.
      *
      * @param credentials
      *     The credentials provided when this user was authenticated.
@@ -63,10 +95,24 @@ public class AuthenticatedUser extends AbstractAuthenticatedUser {
      * @param userData
      *     The UserData object derived from the data submitted when this user
      *     was authenticated.
+     *
+     * @param resumeToken
+     *     The session resumption token issued when this user was
+     *     authenticated, or null if no such token was issued.
+     *
+     * @param tenant
+     *     The tenant which authenticated this user, or null if no tenant
+     *     applies.
      */
-    public void init(Credentials credentials, UserData userData) {
-        this.credentials = credentials;
+    public void init(Credentials credentials, UserData userData,
+            String resumeToken, Tenant tenant) {
         this.userData = userData;
+        this.resumeToken = resumeToken;
+        this.tokenValues = ParameterTemplate.getTokenValues(credentials,
+                userData.getTokens(), userData.hasDeferredParameters());
+        this.credentials = new CredentialsSnapshot(credentials, tokenValues);
+        this.historyScope = ConnectionTracker.getScope(tenant,
+                userData.getUsername());
         setIdentifier(userData.getUsername());
     }
 
@@ -92,4 +138,43 @@ public class AuthenticatedUser extends AbstractAuthenticatedUser {
         return userData;
     }
 
+    /**
+     * Returns the session resumption token issued when this user was
+     * authenticated. This token may be submitted as the
+     * "callback-resume-token" parameter of later authentication attempts to
+     * avoid invoking the callback while the token remains valid.
+     *
+     * @return
+     *     The session resumption token issued when this user was
+     *     authenticated, or null if no such token was issued.
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Returns the values of the tokens which may be substituted into the
+     * parameters of this user's connections, as determined when this user
+     * was authenticated.
+     *
+     * @return
+     *     An unmodifiable map of token values, where the key of each entry is
+     *     the token name.
+     */
+    public Map<String, String> getTokenValues() {
+        return tokenValues;
+    }
+
+    /**
+     * Returns the history scope of this user, which determines the active
+     * connections and history visible to this user.
+     *
+     * @return
+     *     The history scope of this user, as returned by
+     *     ConnectionTracker.getScope().
+     */
+    public String getHistoryScope() {
+        return historyScope;
+    }
+
 }
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.net.auth.ConnectionGroup;
+import org.apache.guacamole.net.auth.Directory;
+import org.apache.guacamole.net.auth.simple.SimpleConnectionGroup;
+
+/**
+ * The hierarchy of connection groups defined within a UserData object. The
+ * tree is built once from the UserData, with each group assigned an integer
+ * index and the children of each group stored contiguously within flat
+ * arrays. ConnectionGroup objects are created only as they are requested.
+ */
+public class ConnectionGroupTree {
+
+    /**
+     * The index of the root connection group.
+     */
+    private static final int ROOT_INDEX = 0;
+
+    /**
+     * Traversal state of a group whose path to the root has not yet been
+     * checked for cycles.
+     */
+    private static final byte UNVISITED = 0;
+
+    /**
+     * Traversal state of a group within the path currently being checked for
+     * cycles.
+     */
+    private static final byte VISITING = 1;
+
+    /**
+     * Traversal state of a group known to descend from the root group.
+     */
+    private static final byte VISITED = 2;
+
+    /**
+     * The identifiers of all connection groups, indexed by group index. The
+     * root connection group is always at index 0.
+     */
+    private final String[] groupIdentifiers;
+
+    /**
+     * The group index associated with each connection group identifier.
+     */
+    private final Map<String, Integer> groupIndexes;
+
+    /**
+     * The index of the parent group of each connection group, indexed by
+     * group index. The root group is its own parent.
+     */
+    private final int[] groupParents;
+
+    /**
+     * The offset within childGroups of the first child group of each
+     * connection group, indexed by group index. The child groups of the group
+     * at index i occupy childGroups[childGroupOffsets[i]] through
+     * childGroups[childGroupOffsets[i + 1] - 1].
+     */
+    private final int[] childGroupOffsets;
+
+    /**
+     * The indexes of all child groups, grouped by parent.
+     */
+    private final int[] childGroups;
+
+    /**
+     * The offset within childConnections of the first child connection of
+     * each connection group, indexed by group index, using the same layout as
+     * childGroupOffsets.
+     */
+    private final int[] childConnectionOffsets;
+
+    /**
+     * The identifiers of all connections, grouped by parent.
+     */
+    private final String[] childConnections;
+
+    /**
+     * All ConnectionGroup objects created thus far, indexed by group index.
+     */
+    private final AtomicReferenceArray<ConnectionGroup> connectionGroups;
+
+    /**
+     * Creates a new ConnectionGroupTree containing all connection groups and
+     * connections defined within the given UserData object. Groups or
+     * connections whose parent is not defined are placed within the root
+     * group, as is the first group encountered within any cycle of groups.
+     *
+     * @param userData
+     *     The UserData object defining the connection groups and connections
+     *     within the tree.
+     */
+    public ConnectionGroupTree(UserData userData) {
+
+        Map<String, UserData.Group> groups = userData.getGroups();
+        if (groups == null)
+            groups = Collections.<String, UserData.Group>emptyMap();
+
+        Map<String, UserData.Connection> connections = userData.getConnections();
+        if (connections == null)
+            connections = Collections.<String, UserData.Connection>emptyMap();
+
+        // Assign an index to each group, reserving index 0 for the root
+        int groupCount = groups.size() + 1;
+        groupIdentifiers = new String[groupCount];
+        groupIndexes = new HashMap<String, Integer>(groupCount * 2);
+        groupIdentifiers[ROOT_INDEX] = UserDataService.ROOT_CONNECTION_GROUP;
+        groupIndexes.put(UserDataService.ROOT_CONNECTION_GROUP, ROOT_INDEX);
+
+        int index = 1;
+        for (String identifier : groups.keySet()) {
+
+            // The root group cannot be redefined
+            if (UserDataService.ROOT_CONNECTION_GROUP.equals(identifier))
+                continue;
+
+            groupIdentifiers[index] = identifier;
+            groupIndexes.put(identifier, index);
+            index++;
+
+        }
+
+        // Omit any unused slot left by an attempt to redefine the root group
+        groupCount = index;
+
+        // Resolve the parent of each group
+        groupParents = new int[groupCount];
+        for (int i = 1; i < groupCount; i++)
+            groupParents[i] = getIndex(groups.get(groupIdentifiers[i]).getParent());
+
+        breakCycles(groupParents);
+
+        // Index child groups by parent
+        childGroupOffsets = new int[groupCount + 1];
+        childGroups = new int[groupCount - 1];
+        int[] insertPositions = countChildren(groupParents, 1, groupCount, childGroupOffsets);
+        for (int i = 1; i < groupCount; i++)
+            childGroups[insertPositions[groupParents[i]]++] = i;
+
+        // Resolve the parent of each connection
+        int connectionCount = connections.size();
+        String[] connectionIdentifiers = new String[connectionCount];
+        int[] connectionParents = new int[connectionCount];
+        index = 0;
+        for (Map.Entry<String, UserData.Connection> entry : connections.entrySet()) {
+            connectionIdentifiers[index] = entry.getKey();
+            connectionParents[index] = getIndex(entry.getValue().getParent());
+            index++;
+        }
+
+        // Index child connections by parent
+        childConnectionOffsets = new int[groupCount + 1];
+        childConnections = new String[connectionCount];
+        insertPositions = countChildren(connectionParents, 0, connectionCount, childConnectionOffsets);
+        for (int i = 0; i < connectionCount; i++)
+            childConnections[insertPositions[connectionParents[i]]++] = connectionIdentifiers[i];
+
+        connectionGroups = new AtomicReferenceArray<ConnectionGroup>(groupCount);
+
+    }
+
+    /**
+     * Returns the index of the connection group having the given identifier.
+     * If there is no such group, the index of the root group is returned.
+     *
+     * @param identifier
+     *     The identifier of the connection group to look up, or null.
+     *
+     * @return
+     *     The index of the connection group having the given identifier, or
+     *     the index of the root group if there is no such group.
+     */
+    private int getIndex(String identifier) {
+
+        if (identifier == null)
+            return ROOT_INDEX;
+
+        Integer index = groupIndexes.get(identifier);
+        if (index == null)
+            return ROOT_INDEX;
+
+        return index;
+
+    }
+
+    /**
+     * Reassigns the first group encountered within each cycle of groups to
+     * the root group, such that every group is ultimately a descendant of the
+     * root group.
+     *
+     * @param parents
+     *     The index of the parent group of each group, indexed by group
+     *     index. This array is modified in place.
+     */
+    private static void breakCycles(int[] parents) {
+
+        byte[] states = new byte[parents.length];
+        states[ROOT_INDEX] = VISITED;
+
+        int[] path = new int[parents.length];
+        for (int i = 1; i < parents.length; i++) {
+
+            // Walk towards the root until reaching a group already known to
+            // descend from the root, or a group within the current path
+            int length = 0;
+            int current = i;
+            while (states[current] == UNVISITED) {
+                states[current] = VISITING;
+                path[length++] = current;
+                current = parents[current];
+            }
+
+            // A group within the current path indicates a cycle
+            if (states[current] == VISITING)
+                parents[current] = ROOT_INDEX;
+
+            for (int j = 0; j < length; j++)
+                states[path[j]] = VISITED;
+
+        }
+
+    }
+
+    /**
+     * Counts the children of each group, storing the resulting offset of
+     * each group's children within the given offsets array.
+     *
+     * @param parents
+     *     The index of the parent group of each child.
+     *
+     * @param start
+     *     The index of the first child within the parents array.
+     *
+     * @param end
+     *     The index after the last child within the parents array.
+     *
+     * @param offsets
+     *     The array which should receive the offset of the children of each
+     *     group, having one more element than there are groups.
+     *
+     * @return
+     *     A copy of the resulting offsets which may be used to track the
+     *     insertion position for the children of each group.
+     */
+    private static int[] countChildren(int[] parents, int start, int end,
+            int[] offsets) {
+
+        for (int i = start; i < end; i++)
+            offsets[parents[i] + 1]++;
+
+        for (int i = 1; i < offsets.length; i++)
+            offsets[i] += offsets[i - 1];
+
+        int[] positions = new int[offsets.length - 1];
+        System.arraycopy(offsets, 0, positions, 0, positions.length);
+        return positions;
+
+    }
+
+    /**
+     * Returns the ConnectionGroup object for the group at the given index,
+     * creating that object if it has not yet been created.
+     *
+     * @param index
+     *     The index of the connection group to return.
+     *
+     * @return
+     *     The ConnectionGroup object for the group at the given index.
+     */
+    private ConnectionGroup getConnectionGroup(final int index) {
+
+        ConnectionGroup group = connectionGroups.get(index);
+        if (group != null)
+            return group;
+
+        // Child group identifiers
+        List<String> groupChildren = new AbstractList<String>() {
+
+            @Override
+            public String get(int i) {
+                return groupIdentifiers[childGroups[childGroupOffsets[index] + i]];
+            }
+
+            @Override
+            public int size() {
+                return childGroupOffsets[index + 1] - childGroupOffsets[index];
+            }
+
+        };
+
+        // Child connection identifiers
+        List<String> connectionChildren = Arrays.asList(childConnections).subList(
+            childConnectionOffsets[index],
+            childConnectionOffsets[index + 1]
+        );
+
+        String identifier = groupIdentifiers[index];
+        group = new SimpleConnectionGroup(identifier, identifier,
+                connectionChildren, groupChildren);
+
+        if (index != ROOT_INDEX)
+            group.setParentIdentifier(groupIdentifiers[groupParents[index]]);
+
+        // Use whichever object was stored first if created concurrently
+        if (!connectionGroups.compareAndSet(index, null, group))
+            return connectionGroups.get(index);
+
+        return group;
+
+    }
+
+    /**
+     * Returns the root connection group, containing all connections and
+     * connection groups which are not within another group.
+     *
+     * @return
+     *     The root connection group.
+     */
+    public ConnectionGroup getRootConnectionGroup() {
+        return getConnectionGroup(ROOT_INDEX);
+    }
+
+    /**
+     * Returns a Directory containing all connection groups within this tree,
+     * including the root connection group.
+     *
+     * @return
+     *     A Directory containing all connection groups within this tree.
+     */
+    public Directory<ConnectionGroup> getConnectionGroupDirectory() {
+
+        final Set<String> identifiers = Collections.unmodifiableSet(groupIndexes.keySet());
+
+        return new Directory<ConnectionGroup>() {
+
+            @Override
+            public ConnectionGroup get(String identifier) {
+
+                Integer index = groupIndexes.get(identifier);
+                if (index == null)
+                    return null;
+
+                return getConnectionGroup(index);
+
+            }
+
+            @Override
+            public Collection<ConnectionGroup> getAll(Collection<String> identifiers) {
+
+                Collection<ConnectionGroup> groups = new ArrayList<ConnectionGroup>(identifiers.size());
+                for (String identifier : identifiers) {
+                    ConnectionGroup group = get(identifier);
+                    if (group != null)
+                        groups.add(group);
+                }
+
+                return groups;
+
+            }
+
+            @Override
+            public Set<String> getIdentifiers() {
+                return identifiers;
+            }
+
+            @Override
+            public void add(ConnectionGroup object) throws GuacamoleException {
+                throw new GuacamoleSecurityException("Permission denied.");
+            }
+
+            @Override
+            public void update(ConnectionGroup object) throws GuacamoleException {
+                throw new GuacamoleSecurityException("Permission denied.");
+            }
+
+            @Override
+            public void remove(String identifier) throws GuacamoleException {
+                throw new GuacamoleSecurityException("Permission denied.");
+            }
+
+        };
+
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.GuacamoleClientTooManyException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+
+/**
+ * Service which enforces the concurrency limits of connections, counting
+ * the active uses of each pool of connections, and of each connection by
+ * each user, across all sessions. Counters are updated only through compare-and-set,
+ * and a counter is removed once no uses remain, such that the number of
+ * counters is bounded by the number of active connections.
+ */
+@Singleton
+public class ConnectionLimitService {
+
+    /**
+     * The value of a counter which has been removed from its map. A counter
+     * having this value must no longer be used.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * The number of active uses of each pool of connections, where the key
+     * of each entry is the value returned by getPoolKey().
+     */
+    private final ConcurrentMap<String, AtomicInteger> connectionCounters =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The number of active uses of each connection by each user, where the
+     * key of each entry is the value returned by getUserKey().
+     */
+    private final ConcurrentMap<String, AtomicInteger> userCounters =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Returns the key which identifies the given connection of the given
+     * user within userCounters. The length of the username is included such
+     * that no two pairs of username and connection share a key, and users
+     * without a username share a prefix which no username can produce.
+     *
+     * @param identifier
+     *     The identifier of the connection.
+     *
+     * @param username
+     *     The username of the user, or null if the user has no username.
+     *
+     * @return
+     *     The key identifying the given connection of the given user.
+     */
+    private static String getUserKey(String identifier, String username) {
+
+        if (username == null)
+            return "-1:" + identifier;
+
+        return username.length() + ":" + username + identifier;
+
+    }
+
+    /**
+     * Returns the key which identifies the pool of the given connection
+     * within connectionCounters. Connections explicitly within a pool share
+     * the key of that pool. As unrelated connections of different users may
+     * have the same identifier, any other connection is its own pool, shared
+     * only by the uses of that connection by the same user. Keys of named
+     * pools begin with "*", which no key returned by getUserKey() does.
+     *
+     * @param identifier
+     *     The identifier of the connection.
+     *
+     * @param username
+     *     The username of the user, or null if the user has no username.
+     *
+     * @param connection
+     *     The connection data defining the pool, if any.
+     *
+     * @return
+     *     The key identifying the pool of the given connection.
+     */
+    private static String getPoolKey(String identifier, String username,
+            UserData.Connection connection) {
+
+        String pool = connection.getPool();
+        if (pool != null)
+            return "*" + pool;
+
+        return getUserKey(identifier, username);
+
+    }
+
+    /**
+     * Increments the counter having the given key, creating that counter if
+     * necessary, unless the counter has already reached the given limit.
+     *
+     * @param counters
+     *     The counters to update.
+     *
+     * @param key
+     *     The key of the counter to increment.
+     *
+     * @param limit
+     *     The value the counter must remain below to be incremented, or zero
+     *     if there is no limit.
+     *
+     * @return
+     *     true if the counter was incremented, false if the limit has been
+     *     reached.
+     */
+    private static boolean tryIncrement(ConcurrentMap<String, AtomicInteger> counters,
+            String key, int limit) {
+
+        for (;;) {
+
+            AtomicInteger counter = counters.get(key);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = counters.putIfAbsent(key, created);
+                if (counter == null)
+                    counter = created;
+            }
+
+            for (int active = counter.get(); active != REMOVED; active = counter.get()) {
+
+                if (limit > 0 && active >= limit)
+                    return false;
+
+                if (counter.compareAndSet(active, active + 1))
+                    return true;
+
+            }
+
+            // The counter was removed concurrently; help remove it and retry
+            // with a new counter
+            counters.remove(key, counter);
+
+        }
+
+    }
+
+    /**
+     * Decrements the counter having the given key, which must previously
+     * have been incremented by tryIncrement(). The counter is removed if no
+     * active uses remain.
+     *
+     * @param counters
+     *     The counters to update.
+     *
+     * @param key
+     *     The key of the counter to decrement.
+     */
+    private static void decrement(ConcurrentMap<String, AtomicInteger> counters,
+            String key) {
+
+        AtomicInteger counter = counters.get(key);
+        if (counter == null)
+            return;
+
+        // Remove the counter only if no use has begun in the meantime
+        if (counter.decrementAndGet() == 0 && counter.compareAndSet(0, REMOVED))
+            counters.remove(key, counter);
+
+    }
+
+    /**
+     * Records a new use of the given connection by the given user, failing
+     * if either concurrency limit of the connection has been reached. Each
+     * successful call MUST later be paired with a call to release() having
+     * the same arguments.
+     *
+     * @param identifier
+     *     The identifier of the connection.
+     *
+     * @param username
+     *     The username of the user using the connection, or null if the user
+     *     has no username.
+     *
+     * @param connection
+     *     The connection data defining the concurrency limits.
+     *
+     * @throws GuacamoleException
+     *     If the connection is already in use by the maximum number of users
+     *     or the maximum number of times by the given user.
+     */
+    public void acquire(String identifier, String username,
+            UserData.Connection connection) throws GuacamoleException {
+
+        String poolKey = getPoolKey(identifier, username, connection);
+        if (!tryIncrement(connectionCounters, poolKey,
+                connection.getMaxConnections()))
+            throw new GuacamoleResourceConflictException("Cannot connect. "
+                    + "This connection is in use.");
+
+        if (!tryIncrement(userCounters, getUserKey(identifier, username),
+                connection.getMaxConnectionsPerUser())) {
+            decrement(connectionCounters, poolKey);
+            throw new GuacamoleClientTooManyException("Cannot connect. "
+                    + "Connection already in use by this user.");
+        }
+
+    }
+
+    /**
+     * Records that a use of the given connection by the given user,
+     * previously recorded by acquire(), has ended.
+     *
+     * @param identifier
+     *     The identifier of the connection.
+     *
+     * @param username
+     *     The username of the user that was using the connection, or null if
+     *     the user has no username.
+     *
+     * @param connection
+     *     The connection data defining the concurrency limits.
+     */
+    public void release(String identifier, String username,
+            UserData.Connection connection) {
+        decrement(userCounters, getUserKey(identifier, username));
+        decrement(connectionCounters, getPoolKey(identifier, username, connection));
+    }
+
+}
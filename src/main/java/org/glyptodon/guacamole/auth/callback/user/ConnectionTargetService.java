@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which selects one of the equivalent targets of a connection,
+ * tracking the number of active connections to each target across all
+ * sessions. Counters are updated only through compare-and-set, and a counter
+ * is removed once no connections to its target remain, such that the number
+ * of counters is bounded by the number of active connections.
+ */
+@Singleton
+public class ConnectionTargetService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(ConnectionTargetService.class);
+
+    /**
+     * The balancing strategy which selects the target having the fewest
+     * active connections.
+     */
+    public static final String LEAST_CONNECTIONS = "least-connections";
+
+    /**
+     * The balancing strategy which selects the target having the fewest
+     * active connections relative to its weight.
+     */
+    public static final String WEIGHTED = "weighted";
+
+    /**
+     * The balancing strategy which selects the first target having fewer
+     * active connections than its weight.
+     */
+    public static final String FAILOVER = "failover";
+
+    /**
+     * The value of a counter which has been removed from activeConnections.
+     * A counter having this value must no longer be used.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * The number of active connections to each target, where the key of each
+     * entry is the value returned by getKey().
+     */
+    private final ConcurrentMap<String, AtomicInteger> activeConnections =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Returns the key which identifies the given target within
+     * activeConnections.
+     *
+     * @param target
+     *     The target whose key should be returned.
+     *
+     * @return
+     *     The key identifying the given target.
+     */
+    private static String getKey(UserData.Target target) {
+        return target.getHostname() + ":" + target.getPort();
+    }
+
+    /**
+     * Returns the number of active connections to the given target.
+     *
+     * @param target
+     *     The target whose active connections should be counted.
+     *
+     * @return
+     *     The number of active connections to the given target.
+     */
+    private int getActiveCount(UserData.Target target) {
+
+        AtomicInteger counter = activeConnections.get(getKey(target));
+        if (counter == null)
+            return 0;
+
+        return Math.max(0, counter.get());
+
+    }
+
+    /**
+     * Increments the counter of the given target, creating that counter if
+     * necessary, unless the counter has already reached the given limit.
+     *
+     * @param target
+     *     The target whose counter should be incremented.
+     *
+     * @param limit
+     *     The value the counter must remain below to be incremented, or zero
+     *     if there is no limit.
+     *
+     * @return
+     *     true if the counter was incremented, false if the limit has been
+     *     reached.
+     */
+    private boolean tryIncrement(UserData.Target target, int limit) {
+
+        String key = getKey(target);
+
+        for (;;) {
+
+            AtomicInteger counter = activeConnections.get(key);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = activeConnections.putIfAbsent(key, created);
+                if (counter == null)
+                    counter = created;
+            }
+
+            for (int active = counter.get(); active != REMOVED; active = counter.get()) {
+
+                if (limit > 0 && active >= limit)
+                    return false;
+
+                if (counter.compareAndSet(active, active + 1))
+                    return true;
+
+            }
+
+            // The counter was removed concurrently; help remove it and retry
+            // with a new counter
+            activeConnections.remove(key, counter);
+
+        }
+
+    }
+
+    /**
+     * Returns the weight of the given target, treating any non-positive
+     * weight as 1.
+     *
+     * @param target
+     *     The target whose weight should be returned.
+     *
+     * @return
+     *     The weight of the given target.
+     */
+    private static int getWeight(UserData.Target target) {
+        return Math.max(1, target.getWeight());
+    }
+
+    /**
+     * Returns the target having the fewest active connections, optionally
+     * relative to the weight of each target.
+     *
+     * @param targets
+     *     The targets to choose from.
+     *
+     * @param weighted
+     *     Whether active connections should be considered relative to the
+     *     weight of each target.
+     *
+     * @return
+     *     The target having the fewest active connections.
+     */
+    private UserData.Target getLeastLoaded(List<UserData.Target> targets,
+            boolean weighted) {
+
+        UserData.Target best = null;
+        long bestLoad = 0;
+        int bestWeight = 1;
+
+        for (UserData.Target target : targets) {
+
+            long load = getActiveCount(target) + 1;
+            int weight = weighted ? getWeight(target) : 1;
+
+            // Compare load / weight without division
+            if (best == null || load * bestWeight < bestLoad * weight) {
+                best = target;
+                bestLoad = load;
+                bestWeight = weight;
+            }
+
+        }
+
+        return best;
+
+    }
+
+    /**
+     * Selects one of the targets of the given connection according to its
+     * balancing strategy, recording a new active connection to that target.
+     * The returned target MUST later be passed to release() once the
+     * connection has been closed.
+     *
+     * @param connection
+     *     The connection whose target should be selected.
+     *
+     * @return
+     *     The selected target, or null if the given connection does not
+     *     define any targets.
+     */
+    public UserData.Target acquire(UserData.Connection connection) {
+
+        List<UserData.Target> targets = connection.getTargets();
+        if (targets == null || targets.isEmpty())
+            return null;
+
+        String balancing = connection.getBalancing();
+
+        // Use the first target which has spare capacity
+        if (FAILOVER.equals(balancing)) {
+
+            for (UserData.Target target : targets) {
+                if (tryIncrement(target, getWeight(target)))
+                    return target;
+            }
+
+            // If all targets are at capacity, spread the overflow evenly
+            UserData.Target target = getLeastLoaded(targets, true);
+            tryIncrement(target, 0);
+            return target;
+
+        }
+
+        if (balancing != null && !WEIGHTED.equals(balancing)
+                && !LEAST_CONNECTIONS.equals(balancing))
+            logger.debug("Unknown balancing strategy \"{}\". Using \"{}\".",
+                    balancing, LEAST_CONNECTIONS);
+
+        // Otherwise, use the least loaded target
+        UserData.Target target = getLeastLoaded(targets, WEIGHTED.equals(balancing));
+        tryIncrement(target, 0);
+        return target;
+
+    }
+
+    /**
+     * Records that a connection to the given target, previously returned by
+     * acquire(), has been closed. The counter of the target is removed if no
+     * active connections remain.
+     *
+     * @param target
+     *     The target whose connection has been closed.
+     */
+    public void release(UserData.Target target) {
+
+        String key = getKey(target);
+        AtomicInteger counter = activeConnections.get(key);
+        if (counter == null)
+            return;
+
+        // Remove the counter only if no connection has begun in the meantime
+        if (counter.decrementAndGet() == 0 && counter.compareAndSet(0, REMOVED))
+            activeConnections.remove(key, counter);
+
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.Map;
+import org.apache.guacamole.net.auth.Credentials;
+
+/**
+ * A copy of a set of credentials which remains valid, and holds no reference
+ * to the HTTP request of the authentication attempt, after that request has
+ * completed. Only what is read after authentication is retained: the
+ * username, the password if referenced by the user's connections, and, in
+ * place of the HTTP request, a read-only RequestSnapshot exposing the address
+ * and hostname of the client and the referenced request parameters. These
+ * values are shared with the token values of the user rather than copied.
+ * The HTTP session is not retained. Servlet containers recycle the original
+ * request once it completes, so retaining it would keep its buffers and
+ * parameter maps reachable for the lifetime of the Guacamole session.
+ * Reading it later would see whatever request the container reused it for.
+ *
+ * <p>This is what AuthenticatedUser.getCredentials() returns. Callers of that
+ * function include Guacamole itself and other extensions which receive this
+ * extension's AuthenticatedUser, for example when building their own
+ * UserContext or when applying standard parameter tokens such as
+ * ${GUAC_CLIENT_ADDRESS}. Like any Credentials, a CredentialsSnapshot may be
+ * modified through its setters.
+ */
+class CredentialsSnapshot extends Credentials {
+
+    /**
+     * The version of this class, for serialization.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new CredentialsSnapshot containing the parts of the given
+     * credentials which were captured within the given token values. The
+     * given credentials are not referenced by the new CredentialsSnapshot.
+     *
+     * @param credentials
+     *     The credentials to copy.
+     *
+     * @param tokenValues
+     *     The token values of the user authenticated by the given
+     *     credentials, as returned by ParameterTemplate.getTokenValues().
+     */
+    public CredentialsSnapshot(Credentials credentials,
+            Map<String, String> tokenValues) {
+
+        setUsername(credentials.getUsername());
+        setPassword(tokenValues.get(ParameterTemplate.PASSWORD_TOKEN));
+
+        if (credentials.getRequest() != null)
+            setRequest(new RequestSnapshot(tokenValues));
+
+    }
+
+}
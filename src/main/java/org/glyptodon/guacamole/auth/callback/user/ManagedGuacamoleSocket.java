@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleSocket;
+
+/**
+ * GuacamoleSocket implementation which wraps another GuacamoleSocket, invoking
+ * a given task exactly once when the socket is closed.
+ */
+public class ManagedGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * The wrapped socket.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The task to invoke when this socket is closed.
+     */
+    private final Runnable onClose;
+
+    /**
+     * Whether the task associated with this socket has already been invoked.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Creates a new ManagedGuacamoleSocket which wraps the given socket,
+     * invoking the given task exactly once when closed.
+     *
+     * @param socket
+     *     The socket to wrap.
+     *
+     * @param onClose
+     *     The task to invoke when this socket is closed.
+     */
+    public ManagedGuacamoleSocket(GuacamoleSocket socket, Runnable onClose) {
+        this.socket = socket;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return socket.getReader();
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return socket.getWriter();
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        try {
+            socket.close();
+        }
+
+        // Invoke task only once, regardless of whether close succeeded
+        finally {
+            if (closed.compareAndSet(false, true))
+                onClose.run();
+        }
+
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+}
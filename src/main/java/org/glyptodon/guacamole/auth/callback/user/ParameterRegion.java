@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * The protocols and parameters of all connections of a single session,
+ * encoded within one direct buffer outside the Java heap. Each configuration
+ * is decoded only when accessed, such that an idle session holds a single
+ * buffer rather than many small strings and maps. The buffer is released
+ * when the region, and thus the session referencing it, is garbage
+ * collected. A ParameterRegion is immutable and may be read concurrently.
+ */
+public class ParameterRegion {
+
+    /**
+     * The UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The length written in place of a null string.
+     */
+    private static final int NULL_LENGTH = -1;
+
+    /**
+     * The direct buffer containing all encoded configurations. This buffer is
+     * only read using absolute positions and is never modified.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The offset of each encoded configuration within the buffer, indexed by
+     * the value returned by Builder.add().
+     */
+    private final int[] offsets;
+
+    /**
+     * Accumulates the configurations of a session before they are copied
+     * into a ParameterRegion. A Builder is not threadsafe.
+     */
+    public static class Builder {
+
+        /**
+         * The encoded configurations added so far.
+         */
+        private final Encoder encoded = new Encoder();
+
+        /**
+         * The offset of each configuration added so far.
+         */
+        private final List<Integer> offsets = new ArrayList<Integer>();
+
+        /**
+         * Encodes the given configuration, returning the index which may
+         * later be used to decode it from the built ParameterRegion.
+         *
+         * @param config
+         *     The configuration to encode.
+         *
+         * @return
+         *     The index of the encoded configuration.
+         */
+        public int add(GuacamoleConfiguration config) {
+
+            offsets.add(encoded.size());
+            encoded.writeString(config.getProtocol());
+
+            Map<String, String> parameters = config.getParameters();
+            encoded.writeInt(parameters.size());
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                encoded.writeString(parameter.getKey());
+                encoded.writeString(parameter.getValue());
+            }
+
+            return offsets.size() - 1;
+
+        }
+
+        /**
+         * Copies all configurations added so far into a new direct buffer of
+         * exactly the required size.
+         *
+         * @return
+         *     A new ParameterRegion containing all configurations added so
+         *     far.
+         */
+        public ParameterRegion build() {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.size());
+            buffer.put(encoded.getBuffer(), 0, encoded.size());
+
+            int[] offsetArray = new int[offsets.size()];
+            for (int i = 0; i < offsetArray.length; i++)
+                offsetArray[i] = offsets.get(i);
+
+            return new ParameterRegion(buffer, offsetArray);
+
+        }
+
+    }
+
+    /**
+     * ByteArrayOutputStream which writes the length-prefixed values of
+     * encoded configurations and exposes its internal buffer, avoiding a copy
+     * when that buffer is transferred to the direct buffer.
+     */
+    private static class Encoder extends ByteArrayOutputStream {
+
+        /**
+         * Writes the given integer as four bytes, most significant first.
+         *
+         * @param value
+         *     The integer to write.
+         */
+        public void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Writes the length of the UTF-8 encoding of the given string
+         * followed by that encoding.
+         *
+         * @param value
+         *     The string to write, or null.
+         */
+        public void writeString(String value) {
+
+            if (value == null) {
+                writeInt(NULL_LENGTH);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(UTF8);
+            writeInt(bytes.length);
+            write(bytes, 0, bytes.length);
+
+        }
+
+        /**
+         * Returns the internal buffer of this stream. Only the first size()
+         * bytes of the returned array are valid.
+         *
+         * @return
+         *     The internal buffer of this stream.
+         */
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+    /**
+     * Creates a new ParameterRegion using the given buffer and offsets.
+     *
+     * @param buffer
+     *     The direct buffer containing all encoded configurations.
+     *
+     * @param offsets
+     *     The offset of each encoded configuration within the buffer.
+     */
+    private ParameterRegion(ByteBuffer buffer, int[] offsets) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Returns the number of bytes occupied by this region outside the Java
+     * heap.
+     *
+     * @return
+     *     The number of bytes occupied by this region outside the Java heap.
+     */
+    public int getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Decodes the configuration having the given index, as returned by
+     * Builder.add().
+     *
+     * @param index
+     *     The index of the configuration to decode.
+     *
+     * @return
+     *     A new GuacamoleConfiguration containing the decoded protocol and
+     *     parameters.
+     */
+    public GuacamoleConfiguration getConfiguration(int index) {
+
+        // Read from a private view such that concurrent reads do not share a
+        // position
+        ByteBuffer view = buffer.duplicate();
+        view.position(offsets[index]);
+
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol(readString(view));
+
+        int count = view.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(view);
+            config.setParameter(name, readString(view));
+        }
+
+        return config;
+
+    }
+
+    /**
+     * Reads a string written by Encoder.writeString() from the given buffer,
+     * advancing its position.
+     *
+     * @param view
+     *     The buffer to read from.
+     *
+     * @return
+     *     The string read, or null if a null string was written.
+     */
+    private static String readString(ByteBuffer view) {
+
+        int length = view.getInt();
+        if (length == NULL_LENGTH)
+            return null;
+
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, UTF8);
+
+    }
+
+}
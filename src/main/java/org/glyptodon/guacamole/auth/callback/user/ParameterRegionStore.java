@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import com.google.inject.Singleton;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which builds the ParameterRegions holding the connection parameters
+ * of sessions outside the Java heap, and which measures the memory those
+ * regions occupy. As the extension API provides no notification when a
+ * session is invalidated, each region is released when the session
+ * referencing it is garbage collected, and that release is observed through
+ * a phantom reference.
+ */
+@Singleton
+public class ParameterRegionStore {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ParameterRegionStore.class);
+
+    /**
+     * The minimum number of milliseconds between logged summaries of the
+     * memory occupied by all regions.
+     */
+    private static final long SUMMARY_INTERVAL = 600000;
+
+    /**
+     * Queue receiving the phantom references of regions which have been
+     * garbage collected.
+     */
+    private final ReferenceQueue<ParameterRegion> released =
+            new ReferenceQueue<ParameterRegion>();
+
+    /**
+     * The size of each region which has not yet been garbage collected,
+     * keyed by the phantom reference to that region. The references
+     * themselves must remain reachable until enqueued.
+     */
+    private final Map<Reference<ParameterRegion>, Integer> live =
+            new ConcurrentHashMap<Reference<ParameterRegion>, Integer>();
+
+    /**
+     * The total number of bytes occupied by regions which have not yet been
+     * garbage collected.
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * The total number of regions ever built.
+     */
+    private final AtomicLong built = new AtomicLong();
+
+    /**
+     * The time that the memory occupied by all regions was last logged, in
+     * milliseconds since the epoch.
+     */
+    private final AtomicLong lastSummary = new AtomicLong();
+
+    /**
+     * Builds a new ParameterRegion from the given builder, recording the
+     * memory it occupies until it is garbage collected.
+     *
+     * @param builder
+     *     The builder containing the configurations of a session.
+     *
+     * @return
+     *     A new ParameterRegion containing all configurations within the
+     *     given builder.
+     */
+    public ParameterRegion build(ParameterRegion.Builder builder) {
+
+        ParameterRegion region = builder.build();
+        int size = region.getSize();
+
+        expunge();
+        live.put(new PhantomReference<ParameterRegion>(region, released), size);
+        liveBytes.addAndGet(size);
+        built.incrementAndGet();
+
+        logSummary();
+        return region;
+
+    }
+
+    /**
+     * Removes the records of all regions which have been garbage collected.
+     */
+    private void expunge() {
+        Reference<? extends ParameterRegion> reference;
+        while ((reference = released.poll()) != null) {
+            Integer size = live.remove(reference);
+            if (size != null)
+                liveBytes.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Returns the number of regions which have not yet been garbage
+     * collected. This is the number of sessions whose connection parameters
+     * are currently stored outside the Java heap.
+     *
+     * @return
+     *     The number of regions which have not yet been garbage collected.
+     */
+    public int getLiveRegions() {
+        expunge();
+        return live.size();
+    }
+
+    /**
+     * Returns the total number of bytes occupied outside the Java heap by
+     * regions which have not yet been garbage collected.
+     *
+     * @return
+     *     The total number of bytes occupied by live regions.
+     */
+    public long getLiveBytes() {
+        expunge();
+        return liveBytes.get();
+    }
+
+    /**
+     * Returns the total number of regions built since this service was
+     * created.
+     *
+     * @return
+     *     The total number of regions built.
+     */
+    public long getBuiltRegions() {
+        return built.get();
+    }
+
+    /**
+     * Logs the memory occupied by all regions, along with the number of
+     * garbage collections and the total time spent collecting, so that the
+     * effect of storing parameters outside the heap can be compared with
+     * storing them within the heap. A summary is logged at most once per
+     * SUMMARY_INTERVAL.
+     */
+    private void logSummary() {
+
+        long now = System.currentTimeMillis();
+        long last = lastSummary.get();
+        if (now - last < SUMMARY_INTERVAL || !lastSummary.compareAndSet(last, now))
+            return;
+
+        long collections = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+
+        logger.info("Connection parameters of {} sessions occupy {} bytes "
+                + "outside the heap ({} regions built). Heap: {} bytes used, "
+                + "{} collections taking {} ms.", new Object[] {
+                    getLiveRegions(), getLiveBytes(), getBuiltRegions(),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                    collections, collectionTime
+                });
+
+    }
+
+}
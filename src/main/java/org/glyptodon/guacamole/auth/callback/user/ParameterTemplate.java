@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.net.auth.Credentials;
+
+/**
+ * A connection parameter value containing placeholders, such as
+ * "${GUAC_USERNAME}", which has been parsed into alternating literal and
+ * token segments. Compiling a value once allows the same connection
+ * definitions to be shared by all users, with each user's values substituted
+ * by simple concatenation. Placeholders which name unknown tokens are left
+ * untouched, and "$${" produces a literal "${".
+ */
+public class ParameterTemplate {
+
+    /**
+     * The token which is replaced with the username of the current user.
+     */
+    public static final String USERNAME_TOKEN = "GUAC_USERNAME";
+
+    /**
+     * The token which is replaced with the password of the current user.
+     */
+    public static final String PASSWORD_TOKEN = "GUAC_PASSWORD";
+
+    /**
+     * The token which is replaced with the IP address of the client of the
+     * current user.
+     */
+    public static final String CLIENT_ADDRESS_TOKEN = "GUAC_CLIENT_ADDRESS";
+
+    /**
+     * The token which is replaced with the hostname of the client of the
+     * current user. As determining this hostname may require a reverse DNS
+     * lookup, its value is determined only if referenced.
+     */
+    public static final String CLIENT_HOSTNAME_TOKEN = "GUAC_CLIENT_HOSTNAME";
+
+    /**
+     * The prefix of all tokens which are replaced with the value of the
+     * request parameter named by the remainder of the token, as submitted
+     * when the current user authenticated.
+     */
+    public static final String PARAMETER_TOKEN_PREFIX = "GUAC_PARAMETER_";
+
+    /**
+     * The literal text preceding each token. The final element is the literal
+     * text following the last token, such that there is always exactly one
+     * more literal than there are tokens.
+     */
+    private final String[] literals;
+
+    /**
+     * The names of all tokens within the template, in order. The value of
+     * each token is inserted after the literal having the same index.
+     */
+    private final String[] tokens;
+
+    /**
+     * The total length of all literals, used to size the expanded value.
+     */
+    private final int literalLength;
+
+    /**
+     * Creates a new ParameterTemplate from the given literals and tokens.
+     *
+     * @param literals
+     *     The literal text preceding each token, followed by the literal text
+     *     following the last token.
+     *
+     * @param tokens
+     *     The names of all tokens within the template, in order.
+     */
+    private ParameterTemplate(List<String> literals, List<String> tokens) {
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.tokens = tokens.toArray(new String[tokens.size()]);
+
+        int length = 0;
+        for (String literal : this.literals)
+            length += literal.length();
+        this.literalLength = length;
+
+    }
+
+    /**
+     * Parses the given connection parameter value, returning the compiled
+     * template if the value contains any placeholders or escaped
+     * placeholders.
+     *
+     * @param value
+     *     The connection parameter value to parse.
+     *
+     * @return
+     *     The compiled template, or null if the value contains no
+     *     placeholders and can be used as-is.
+     */
+    public static ParameterTemplate compile(String value) {
+
+        // Most values contain no placeholders at all
+        if (value == null || value.indexOf("${") == -1)
+            return null;
+
+        List<String> literals = new ArrayList<String>();
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder(value.length());
+
+        int index = 0;
+        int start;
+        while ((start = value.indexOf("${", index)) != -1) {
+
+            // Unescape "$${" as a literal "${"
+            if (start > index && value.charAt(start - 1) == '$') {
+                literal.append(value, index, start - 1).append("${");
+                index = start + 2;
+                continue;
+            }
+
+            // Unterminated placeholders are literal text
+            int end = value.indexOf('}', start + 2);
+            if (end == -1)
+                break;
+
+            literal.append(value, index, start);
+            literals.add(literal.toString());
+            tokens.add(value.substring(start + 2, end));
+            literal.setLength(0);
+            index = end + 1;
+
+        }
+
+        literal.append(value, index, value.length());
+        literals.add(literal.toString());
+        return new ParameterTemplate(literals, tokens);
+
+    }
+
+    /**
+     * Returns the names of all tokens referenced by this template.
+     *
+     * @return
+     *     An unmodifiable list of the names of all tokens referenced by this
+     *     template, in order.
+     */
+    public List<String> getTokens() {
+        return Collections.unmodifiableList(Arrays.asList(tokens));
+    }
+
+    /**
+     * Produces the value of this template, replacing each token with its
+     * value from the given map. Tokens which have no value are left in their
+     * original "${NAME}" form.
+     *
+     * @param values
+     *     The values of all known tokens, where the key of each entry is the
+     *     token name.
+     *
+     * @return
+     *     The value of this template with all known tokens replaced.
+     */
+    public String expand(Map<String, String> values) {
+
+        StringBuilder expanded = new StringBuilder(literalLength + 16 * tokens.length);
+        for (int i = 0; i < tokens.length; i++) {
+
+            expanded.append(literals[i]);
+
+            String value = values.get(tokens[i]);
+            if (value != null)
+                expanded.append(value);
+            else
+                expanded.append("${").append(tokens[i]).append('}');
+
+        }
+
+        return expanded.append(literals[tokens.length]).toString();
+
+    }
+
+    /**
+     * Returns the values of the tokens available to templates for the user
+     * authenticated by the given credentials. The username and client
+     * address are always included. Unless all tokens are requested, the
+     * password, client hostname and request parameters are included only if
+     * named within the given collection of referenced tokens, such that no
+     * reverse DNS lookup occurs and neither the password nor unrelated
+     * request parameters are retained unless actually needed. All tokens are needed if templates not yet
+     * known, such as parameters later retrieved from the connection
+     * parameters endpoint, may be expanded using the returned values.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @param referenced
+     *     The names of all tokens referenced by the templates which may later
+     *     be expanded using the returned values.
+     *
+     * @param all
+     *     Whether the password, client hostname and all request parameters
+     *     should be included, regardless of whether they are referenced.
+     *
+     * @return
+     *     An unmodifiable map of token values, where the key of each entry is
+     *     the token name.
+     */
+    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
+    public static Map<String, String> getTokenValues(Credentials credentials,
+            Collection<String> referenced, boolean all) {
+
+        Map<String, String> values = new HashMap<String, String>();
+        putIfNotNull(values, USERNAME_TOKEN, credentials.getUsername());
+
+        // Retain the password only if actually used
+        if (all || referenced.contains(PASSWORD_TOKEN))
+            putIfNotNull(values, PASSWORD_TOKEN, credentials.getPassword());
+
+        HttpServletRequest request = credentials.getRequest();
+        if (request != null) {
+
+            putIfNotNull(values, CLIENT_ADDRESS_TOKEN, request.getRemoteAddr());
+
+            // Retain everything any template could reference
+            if (all) {
+
+                putIfNotNull(values, CLIENT_HOSTNAME_TOKEN, request.getRemoteHost());
+
+                Map<String, String[]> parameters = (Map<String, String[]>)
+                        request.getParameterMap();
+                for (String name : parameters.keySet())
+                    putIfNotNull(values, PARAMETER_TOKEN_PREFIX + name,
+                            request.getParameter(name));
+
+            }
+
+            // Otherwise, retain only what is known to be referenced
+            else for (String token : referenced) {
+
+                // Look up client hostname only if actually used
+                if (CLIENT_HOSTNAME_TOKEN.equals(token))
+                    putIfNotNull(values, token, request.getRemoteHost());
+
+                // Retain only the request parameters actually used
+                else if (token.startsWith(PARAMETER_TOKEN_PREFIX))
+                    putIfNotNull(values, token, request.getParameter(
+                            token.substring(PARAMETER_TOKEN_PREFIX.length())));
+
+            }
+
+        }
+
+        return Collections.unmodifiableMap(values);
+
+    }
+
+    /**
+     * Adds the given token value to the given map, unless that value is
+     * null.
+     *
+     * @param values
+     *     The map of token values to add to.
+     *
+     * @param token
+     *     The name of the token.
+     *
+     * @param value
+     *     The value of the token, or null if the token has no value.
+     */
+    private static void putIfNotNull(Map<String, String> values, String token,
+            String value) {
+        if (value != null)
+            values.put(token, value);
+    }
+
+}
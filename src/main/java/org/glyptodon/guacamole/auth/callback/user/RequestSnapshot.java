@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.io.BufferedReader;
+import java.io.UnsupportedEncodingException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A read-only view of the HTTP request of an authentication attempt which
+ * remains valid after that request has completed. Servlet containers recycle
+ * request objects once a request completes, thus the original request can
+ * neither be safely read nor retained beyond authentication. A
+ * RequestSnapshot instead exposes only what is read after authentication, as
+ * already captured within the token values of the user: the address and
+ * hostname of the client, and the request parameters referenced by the
+ * user's connections. Nothing else is retained, such that each session holds
+ * no more of its request than its connections need. Headers, cookies and
+ * attributes are always empty, there is no session, and any attempt to read
+ * the body fails.
+ */
+class RequestSnapshot implements HttpServletRequest {
+
+    /**
+     * The token values of the user which authenticated with the original
+     * request, as returned by ParameterTemplate.getTokenValues(). This map is
+     * shared with the user and is never modified.
+     */
+    private final Map<String, String> tokenValues;
+
+    /**
+     * Creates a new RequestSnapshot which exposes the parts of the original
+     * request captured within the given token values. Neither the original
+     * request nor any other part of it is referenced.
+     *
+     * @param tokenValues
+     *     The token values of the user which authenticated with the original
+     *     request, as returned by ParameterTemplate.getTokenValues().
+     */
+    public RequestSnapshot(Map<String, String> tokenValues) {
+        this.tokenValues = tokenValues;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Attributes describe a request while it is in progress, thus
+     * attributes set on a RequestSnapshot are not retained.
+     */
+    @Override
+    public void setAttribute(String name, Object value) {
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return null;
+    }
+
+    @Override
+    public void setCharacterEncoding(String encoding)
+            throws UnsupportedEncodingException {
+        throw new IllegalStateException("The parameters of a completed "
+                + "request have already been read.");
+    }
+
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        throw new IllegalStateException("The body of a completed request "
+                + "cannot be read.");
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        throw new IllegalStateException("The body of a completed request "
+                + "cannot be read.");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Only the parameters referenced by the user's connections are
+     * retained. All other parameters are null.
+     */
+    @Override
+    public String getParameter(String name) {
+        return tokenValues.get(ParameterTemplate.PARAMETER_TOKEN_PREFIX + name);
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(getParameterMap().keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String value = getParameter(name);
+        return value != null ? new String[] { value } : null;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+
+        Map<String, String[]> parameters = new HashMap<String, String[]>();
+        int prefixLength = ParameterTemplate.PARAMETER_TOKEN_PREFIX.length();
+        for (Map.Entry<String, String> token : tokenValues.entrySet()) {
+            if (token.getKey().startsWith(ParameterTemplate.PARAMETER_TOKEN_PREFIX))
+                parameters.put(token.getKey().substring(prefixLength),
+                        new String[] { token.getValue() });
+        }
+
+        return Collections.unmodifiableMap(parameters);
+
+    }
+
+    @Override
+    public String getProtocol() {
+        return null;
+    }
+
+    @Override
+    public String getScheme() {
+        return null;
+    }
+
+    @Override
+    public String getServerName() {
+        return null;
+    }
+
+    @Override
+    public int getServerPort() {
+        return -1;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return tokenValues.get(ParameterTemplate.CLIENT_ADDRESS_TOKEN);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The hostname of the client is retained only if referenced by the
+     * user's connections. Otherwise, as when the servlet container does not
+     * resolve the hostname, this is the address of the client.
+     */
+    @Override
+    public String getRemoteHost() {
+        String hostname = tokenValues.get(ParameterTemplate.CLIENT_HOSTNAME_TOKEN);
+        return hostname != null ? hostname : getRemoteAddr();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return -1;
+    }
+
+    @Override
+    public String getLocalName() {
+        return null;
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return null;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return Locale.getDefault();
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        List<Locale> locales = new ArrayList<Locale>(1);
+        locales.add(Locale.getDefault());
+        return Collections.enumeration(locales);
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path) {
+        return null;
+    }
+
+    @Override
+    @Deprecated
+    public String getRealPath(String path) {
+        return null;
+    }
+
+    @Override
+    public String getAuthType() {
+        return null;
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return null;
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        return -1;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return null;
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        return -1;
+    }
+
+    @Override
+    public String getMethod() {
+        return null;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return null;
+    }
+
+    @Override
+    public String getPathTranslated() {
+        return null;
+    }
+
+    @Override
+    public String getContextPath() {
+        return null;
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Roles can only be determined by the servlet container while the
+     * original request is in progress, thus the user of a RequestSnapshot is
+     * never considered to be in any role.
+     */
+    @Override
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return null;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return null;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        return null;
+    }
+
+    @Override
+    public String getServletPath() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A session cannot be created once the original request has
+     * completed, and the session of the original request is not retained,
+     * thus there is never a session.
+     */
+    @Override
+    public HttpSession getSession(boolean create) {
+        return null;
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return null;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+        return false;
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl() {
+        return false;
+    }
+
+}
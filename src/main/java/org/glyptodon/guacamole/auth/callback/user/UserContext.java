@@ -25,6 +25,7 @@ package org.glyptodon.guacamole.auth.callback.user;
 import com.google.inject.Inject;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.form.Form;
 import org.apache.guacamole.net.auth.ActiveConnection;
@@ -35,8 +36,9 @@ import org.apache.guacamole.net.auth.ConnectionRecordSet;
 import org.apache.guacamole.net.auth.Directory;
 import org.apache.guacamole.net.auth.SharingProfile;
 import org.apache.guacamole.net.auth.User;
-import org.apache.guacamole.net.auth.simple.SimpleConnectionRecordSet;
 import org.apache.guacamole.net.auth.simple.SimpleDirectory;
+import org.glyptodon.guacamole.auth.callback.history.ConnectionTracker;
+import org.glyptodon.guacamole.auth.callback.history.TrackedConnectionRecordSet;
 
 /**
  * An implementation of UserContext specific to the
@@ -58,26 +60,121 @@ public class UserContext implements org.apache.guacamole.net.auth.UserContext {
     @Inject
     private UserDataService userDataService;
 
+    /**
+     * Service for tracking active connections and connection history.
+     */
+    @Inject
+    private ConnectionTracker connectionTracker;
+
     /**
      * The UserData object associated with the user to whom this UserContext
      * belongs.
      */
     private UserData userData;
 
+    /**
+     * The session resumption token issued for the user to whom this
+     * UserContext belongs, or null if no such token was issued.
+     */
+    private String resumeToken;
+
+    /**
+     * The values of the tokens which should be substituted into the
+     * parameters of the connections available to the user to whom this
+     * UserContext belongs.
+     */
+    private Map<String, String> tokenValues;
+
+    /**
+     * The history scope of the user to whom this UserContext belongs, as
+     * returned by ConnectionTracker.getScope().
+     */
+    private String historyScope;
+
+    /**
+     * The tree of all connection groups available to the user to whom this
+     * UserContext belongs. This tree is built only when first needed.
+     */
+    private ConnectionGroupTree connectionGroupTree;
+
+    /**
+     * The directory of all connections available to the user to whom this
+     * UserContext belongs. This directory is built only when first needed.
+     */
+    private Directory<Connection> connectionDirectory;
+
     /**
      * Initializes this UserContext using the data associated with the provided
      * UserData object.
      *
      * @param userData
      *     The UserData object derived from the authentication process.
+     *
+     * @param resumeToken
+     *     The session resumption token issued during the authentication
+     *     process, or null if no such token was issued.
+     *
+     * @param tokenValues
+     *     The values of the tokens which should be substituted into the
+     *     parameters of the user's connections, where the key of each entry
+     *     is the token name.
+     *
+     * @param historyScope
+     *     The history scope of the user, as returned by
+     *     ConnectionTracker.getScope(), which determines the active
+     *     connections and history visible to the user.
      */
-    public void init(UserData userData) {
+    public void init(UserData userData, String resumeToken,
+            Map<String, String> tokenValues, String historyScope) {
         this.userData = userData;
+        this.resumeToken = resumeToken;
+        this.tokenValues = tokenValues;
+        this.historyScope = historyScope;
+    }
+
+    /**
+     * Returns the tree of all connection groups available to the user to
+     * whom this UserContext belongs, building that tree if it has not yet
+     * been built.
+     *
+     * @return
+     *     The tree of all connection groups available to the user to whom
+     *     this UserContext belongs.
+     */
+    private synchronized ConnectionGroupTree getConnectionGroupTree() {
+
+        // Build tree only once per session
+        if (connectionGroupTree == null)
+            connectionGroupTree = userDataService.getConnectionGroupTree(userData);
+
+        return connectionGroupTree;
+
+    }
+
+    /**
+     * Returns the directory of all connections available to the user to whom
+     * this UserContext belongs, building that directory if it has not yet
+     * been built.
+     *
+     * @return
+     *     The directory of all connections available to the user to whom this
+     *     UserContext belongs.
+     */
+    @Override
+    public synchronized Directory<Connection> getConnectionDirectory() {
+
+        // Build directory only once per session
+        if (connectionDirectory == null)
+            connectionDirectory = userDataService.getConnectionDirectory(userData,
+                    tokenValues, historyScope);
+
+        return connectionDirectory;
+
     }
 
     @Override
     public User self() {
-        return userDataService.getUser(userData);
+        return userDataService.getUser(userData, resumeToken);
     }
 
     @Override
@@ -87,17 +184,12 @@ public class UserContext implements org.apache.guacamole.net.auth.UserContext {
 
     @Override
     public Directory<User> getUserDirectory() throws GuacamoleException {
-        return userDataService.getUserDirectory(userData);
-    }
-
-    @Override
-    public Directory<Connection> getConnectionDirectory() {
-        return userDataService.getConnectionDirectory(userData);
+        return userDataService.getUserDirectory(userData, resumeToken);
     }
 
     @Override
     public Directory<ConnectionGroup> getConnectionGroupDirectory() {
-        return userDataService.getConnectionGroupDirectory(userData);
+        return getConnectionGroupTree().getConnectionGroupDirectory();
     }
 
     @Override
@@ -108,19 +200,21 @@ public class UserContext implements org.apache.guacamole.net.auth.UserContext {
 
     @Override
     public ConnectionGroup getRootConnectionGroup() throws GuacamoleException {
-        return userDataService.getRootConnectionGroup(userData);
+        return getConnectionGroupTree().getRootConnectionGroup();
     }
 
     @Override
     public Directory<ActiveConnection> getActiveConnectionDirectory()
             throws GuacamoleException {
-        return new SimpleDirectory<ActiveConnection>();
+        return new SimpleDirectory<ActiveConnection>(
+                connectionTracker.getActiveConnections(historyScope));
     }
 
     @Override
     public ConnectionRecordSet getConnectionHistory()
             throws GuacamoleException {
-        return new SimpleConnectionRecordSet();
+        return new TrackedConnectionRecordSet(
+                connectionTracker.getUserHistory(historyScope));
     }
 
     @Override
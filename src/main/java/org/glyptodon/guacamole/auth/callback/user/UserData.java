@@ -23,7 +23,11 @@
 package org.glyptodon.guacamole.auth.callback.user;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -44,6 +48,159 @@ public class UserData {
      */
     private ConcurrentMap<String, Connection> connections;
 
+    /**
+     * All connection groups accessible by this user, not including the root
+     * connection group. The key of each entry is both the connection group
+     * identifier and the connection group name.
+     */
+    private ConcurrentMap<String, Group> groups;
+
+    /**
+     * The names of all tokens referenced by the parameters of the connections
+     * stored within this UserData object, or null if not yet determined.
+     */
+    private volatile Set<String> tokens;
+
+    /**
+     * One of several equivalent remote desktop servers which may be used to
+     * establish a particular connection.
+     */
+    public static class Target {
+
+        /**
+         * The hostname of the remote desktop server.
+         */
+        private String hostname;
+
+        /**
+         * The port of the remote desktop server, or null if the port
+         * specified within the connection parameters should be used.
+         */
+        private String port;
+
+        /**
+         * The relative capacity of this target. The meaning of this value
+         * depends on the balancing strategy of the connection.
+         */
+        private int weight = 1;
+
+        /**
+         * Returns the hostname of the remote desktop server.
+         *
+         * @return
+         *     The hostname of the remote desktop server.
+         */
+        public String getHostname() {
+            return hostname;
+        }
+
+        /**
+         * Sets the hostname of the remote desktop server.
+         *
+         * @param hostname
+         *     The hostname of the remote desktop server.
+         */
+        public void setHostname(String hostname) {
+            this.hostname = hostname;
+        }
+
+        /**
+         * Returns the port of the remote desktop server, if different from
+         * the port specified within the connection parameters.
+         *
+         * @return
+         *     The port of the remote desktop server, or null if the port
+         *     specified within the connection parameters should be used.
+         */
+        public String getPort() {
+            return port;
+        }
+
+        /**
+         * Sets the port of the remote desktop server, if different from the
+         * port specified within the connection parameters.
+         *
+         * @param port
+         *     The port of the remote desktop server, or null if the port
+         *     specified within the connection parameters should be used.
+         */
+        public void setPort(String port) {
+            this.port = port;
+        }
+
+        /**
+         * Returns the relative capacity of this target. For connections using
+         * the "weighted" strategy, this is the share of connections this
+         * target should receive relative to other targets. For connections
+         * using the "failover" strategy, this is the number of concurrent
+         * connections this target should receive before later targets are
+         * used. By default, this is 1.
+         *
+         * @return
+         *     The relative capacity of this target.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Sets the relative capacity of this target. For connections using
+         * the "weighted" strategy, this is the share of connections this
+         * target should receive relative to other targets. For connections
+         * using the "failover" strategy, this is the number of concurrent
+         * connections this target should receive before later targets are
+         * used.
+         *
+         * @param weight
+         *     The relative capacity of this target.
+         */
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+
+    }
+
+    /**
+     * The data associated with a Guacamole connection group stored within a
+     * UserData object.
+     */
+    public static class Group {
+
+        /**
+         * The identifier of the connection group containing this group. If
+         * null or not the identifier of a group within the same UserData,
+         * this group is within the root group.
+         */
+        private String parent;
+
+        /**
+         * Returns the identifier of the connection group containing this
+         * group. If null or not the identifier of a group within the same
+         * UserData, this group is within the root group.
+         *
+         * @return
+         *     The identifier of the connection group containing this group,
+         *     or null if this group is within the root group.
+         */
+        public String getParent() {
+            return parent;
+        }
+
+        /**
+         * Sets the identifier of the connection group containing this group.
+         * If null or not the identifier of a group within the same UserData,
+         * this group will be within the root group.
+         *
+         * @param parent
+         *     The identifier of the connection group containing this group,
+         *     or null if this group is within the root group.
+         */
+        public void setParent(String parent) {
+            this.parent = parent;
+        }
+
+    }
+
     /**
      * The data associated with a Guacamole connection stored within a UserData
      * object.
@@ -64,6 +221,52 @@ public class UserData {
          */
         private Map<String, String> parameters;
 
+        /**
+         * The identifier of the connection group containing this connection.
+         * If null or not the identifier of a group within the same UserData,
+         * this connection is within the root group.
+         */
+        private String parent;
+
+        /**
+         * The equivalent remote desktop servers which may be used to establish
+         * this connection, or null if only the hostname within the connection
+         * parameters should be used.
+         */
+        private List<Target> targets;
+
+        /**
+         * The strategy used to select one of the defined targets, such as
+         * "least-connections", "weighted" or "failover".
+         */
+        private String balancing;
+
+        /**
+         * The maximum number of concurrent uses of this connection across all
+         * users, or zero if there is no such limit.
+         */
+        private int maxConnections;
+
+        /**
+         * The name of the pool whose connections share the maxConnections
+         * limit across all users, or null if the limit applies only to the
+         * uses of this connection by the same user.
+         */
+        private String pool;
+
+        /**
+         * The maximum number of concurrent uses of this connection by any
+         * single user, or zero if there is no such limit.
+         */
+        private int maxConnectionsPerUser;
+
+        /**
+         * The compiled templates of all parameters containing placeholders,
+         * where the key of each entry is the parameter name, or null if the
+         * parameters have not yet been compiled.
+         */
+        private volatile Map<String, ParameterTemplate> templates;
+
         /**
          * Returns the protocol that this connection should use, such as "vnc"
          * or "rdp".
@@ -112,6 +315,211 @@ public class UserData {
          */
         public void setParameters(Map<String, String> parameters) {
             this.parameters = parameters;
+            this.templates = null;
+        }
+
+        /**
+         * Returns the compiled templates of all parameters of this connection
+         * which contain placeholders, compiling those parameters if not yet
+         * compiled. As connections are shared by every session using the
+         * same UserData, each parameter is compiled only once regardless of
+         * the number of users.
+         *
+         * @return
+         *     An unmodifiable map of the compiled templates of all parameters
+         *     containing placeholders, where the key of each entry is the
+         *     parameter name.
+         */
+        Map<String, ParameterTemplate> getTemplates() {
+
+            Map<String, ParameterTemplate> compiled = templates;
+            if (compiled != null)
+                return compiled;
+
+            // Compile only the parameters actually containing placeholders
+            compiled = Collections.<String, ParameterTemplate>emptyMap();
+            if (parameters != null) {
+                for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+
+                    ParameterTemplate template = ParameterTemplate.compile(parameter.getValue());
+                    if (template == null)
+                        continue;
+
+                    if (compiled.isEmpty())
+                        compiled = new HashMap<String, ParameterTemplate>();
+                    compiled.put(parameter.getKey(), template);
+
+                }
+            }
+
+            templates = compiled.isEmpty() ? compiled
+                    : Collections.unmodifiableMap(compiled);
+            return templates;
+
+        }
+
+        /**
+         * Returns the identifier of the connection group containing this
+         * connection. If null or not the identifier of a group within the
+         * same UserData, this connection is within the root group.
+         *
+         * @return
+         *     The identifier of the connection group containing this
+         *     connection, or null if this connection is within the root group.
+         */
+        public String getParent() {
+            return parent;
+        }
+
+        /**
+         * Sets the identifier of the connection group containing this
+         * connection. If null or not the identifier of a group within the
+         * same UserData, this connection will be within the root group.
+         *
+         * @param parent
+         *     The identifier of the connection group containing this
+         *     connection, or null if this connection is within the root group.
+         */
+        public void setParent(String parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Returns the equivalent remote desktop servers which may be used to
+         * establish this connection. If targets are defined, the hostname and
+         * port of the selected target override those within the connection
+         * parameters.
+         *
+         * @return
+         *     The equivalent remote desktop servers which may be used to
+         *     establish this connection, or null if only the hostname within
+         *     the connection parameters should be used.
+         */
+        public List<Target> getTargets() {
+            return targets;
+        }
+
+        /**
+         * Sets the equivalent remote desktop servers which may be used to
+         * establish this connection. If targets are defined, the hostname and
+         * port of the selected target override those within the connection
+         * parameters.
+         *
+         * @param targets
+         *     The equivalent remote desktop servers which may be used to
+         *     establish this connection, or null if only the hostname within
+         *     the connection parameters should be used.
+         */
+        public void setTargets(List<Target> targets) {
+            this.targets = targets;
+        }
+
+        /**
+         * Returns the strategy used to select one of the defined targets:
+         * "least-connections", "weighted" or "failover". If null, the
+         * "least-connections" strategy is used.
+         *
+         * @return
+         *     The strategy used to select one of the defined targets, or null
+         *     if the default strategy should be used.
+         */
+        public String getBalancing() {
+            return balancing;
+        }
+
+        /**
+         * Sets the strategy used to select one of the defined targets:
+         * "least-connections", "weighted" or "failover". If null, the
+         * "least-connections" strategy is used.
+         *
+         * @param balancing
+         *     The strategy used to select one of the defined targets, or null
+         *     if the default strategy should be used.
+         */
+        public void setBalancing(String balancing) {
+            this.balancing = balancing;
+        }
+
+        /**
+         * Returns the maximum number of concurrent uses of this connection
+         * across all users. Uses are counted across all sessions having a
+         * connection within the same pool, or, if this connection has no
+         * pool, across all sessions of the same user having a connection
+         * with the same identifier.
+         *
+         * @return
+         *     The maximum number of concurrent uses of this connection across
+         *     all users, or zero if there is no such limit.
+         */
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        /**
+         * Sets the maximum number of concurrent uses of this connection
+         * across all users. Uses are counted across all sessions having a
+         * connection within the same pool, or, if this connection has no
+         * pool, across all sessions of the same user having a connection
+         * with the same identifier.
+         *
+         * @param maxConnections
+         *     The maximum number of concurrent uses of this connection across
+         *     all users, or zero if there is no such limit.
+         */
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        /**
+         * Returns the name of the pool whose connections share the
+         * maxConnections limit across all users. As identifiers are chosen
+         * independently for each user, connections of different users share
+         * that limit only if they explicitly name the same pool.
+         *
+         * @return
+         *     The name of the pool containing this connection, or null if
+         *     the connection is not within a pool.
+         */
+        public String getPool() {
+            return pool;
+        }
+
+        /**
+         * Sets the name of the pool whose connections share the
+         * maxConnections limit across all users. As identifiers are chosen
+         * independently for each user, connections of different users share
+         * that limit only if they explicitly name the same pool.
+         *
+         * @param pool
+         *     The name of the pool containing this connection, or null if
+         *     the connection is not within a pool.
+         */
+        public void setPool(String pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Returns the maximum number of concurrent uses of this connection by
+         * any single user. Uses are counted across all sessions of that user.
+         *
+         * @return
+         *     The maximum number of concurrent uses of this connection by any
+         *     single user, or zero if there is no such limit.
+         */
+        public int getMaxConnectionsPerUser() {
+            return maxConnectionsPerUser;
+        }
+
+        /**
+         * Sets the maximum number of concurrent uses of this connection by
+         * any single user. Uses are counted across all sessions of that user.
+         *
+         * @param maxConnectionsPerUser
+         *     The maximum number of concurrent uses of this connection by any
+         *     single user, or zero if there is no such limit.
+         */
+        public void setMaxConnectionsPerUser(int maxConnectionsPerUser) {
+            this.maxConnectionsPerUser = maxConnectionsPerUser;
         }
 
     }
@@ -164,10 +572,125 @@ public class UserData {
      * @param connections
      *     A map of all connections to be stored within this UserData object,
      *     where the key of each entry is the identifier of the corresponding
-     *     connection.
+     *     connection, or null if no connections are defined.
      */
     public void setConnections(Map<String, Connection> connections) {
-        this.connections = new ConcurrentHashMap<String, Connection>(connections);
+        this.connections = connections == null ? null
+                : new ConcurrentHashMap<String, Connection>(connections);
+        this.tokens = null;
+    }
+
+    /**
+     * Replaces all connections stored within this UserData object with the
+     * given map, which is stored directly rather than copied. The given map
+     * must not be modified further by the caller.
+     *
+     * @param connections
+     *     A map of all connections to be stored within this UserData object,
+     *     where the key of each entry is the identifier of the corresponding
+     *     connection, or null if no connections are defined.
+     */
+    void adoptConnections(ConcurrentMap<String, Connection> connections) {
+        this.connections = connections;
+        this.tokens = null;
+    }
+
+    /**
+     * Returns the names of all tokens referenced by placeholders within the
+     * parameters of the connections stored within this UserData object,
+     * compiling those parameters if not yet compiled.
+     *
+     * @return
+     *     An unmodifiable set of the names of all tokens referenced by the
+     *     parameters of the connections stored within this UserData object.
+     */
+    Set<String> getTokens() {
+
+        Set<String> referenced = tokens;
+        if (referenced != null)
+            return referenced;
+
+        referenced = new HashSet<String>();
+        if (connections != null) {
+            for (Connection connection : connections.values()) {
+                for (ParameterTemplate template : connection.getTemplates().values())
+                    referenced.addAll(template.getTokens());
+            }
+        }
+
+        tokens = Collections.unmodifiableSet(referenced);
+        return tokens;
+
+    }
+
+    /**
+     * Returns whether the parameters of any connection stored within this
+     * UserData object were omitted, such that they must be retrieved from
+     * the connection parameters endpoint when the connection is used.
+     *
+     * @return
+     *     true if the parameters of any connection were omitted, false
+     *     otherwise.
+     */
+    boolean hasDeferredParameters() {
+
+        if (connections != null) {
+            for (Connection connection : connections.values()) {
+                if (connection.getParameters() == null)
+                    return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns all connection groups stored within this UserData object as an
+     * unmodifiable map, not including the root connection group. The key of
+     * each entry within the map is the identifier and human-readable name of
+     * the corresponding connection group.
+     *
+     * @return
+     *     An unmodifiable map of all connection groups stored within this
+     *     UserData object, where the key of each entry is the identifier of
+     *     the corresponding connection group, or null if no connection groups
+     *     are defined.
+     */
+    public Map<String, Group> getGroups() {
+        return groups == null ? null : Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * Replaces all connection groups stored within this UserData object with
+     * the given connection groups. The key of each entry within the map is the
+     * identifier and human-readable name of the corresponding connection
+     * group.
+     *
+     * @param groups
+     *     A map of all connection groups to be stored within this UserData
+     *     object, where the key of each entry is the identifier of the
+     *     corresponding connection group, or null if no connection groups
+     *     are defined.
+     */
+    public void setGroups(Map<String, Group> groups) {
+        this.groups = groups == null ? null
+                : new ConcurrentHashMap<String, Group>(groups);
+    }
+
+    /**
+     * Replaces all connection groups stored within this UserData object with
+     * the given map, which is stored directly rather than copied. The given
+     * map must not be modified further by the caller.
+     *
+     * @param groups
+     *     A map of all connection groups to be stored within this UserData
+     *     object, where the key of each entry is the identifier of the
+     *     corresponding connection group, or null if no connection groups
+     *     are defined.
+     */
+    void adoptGroups(ConcurrentMap<String, Group> groups) {
+        this.groups = groups;
     }
 
 }
@@ -22,29 +22,159 @@
 
 package org.glyptodon.guacamole.auth.callback.user;
 
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.InetGuacamoleSocket;
+import org.apache.guacamole.net.SSLGuacamoleSocket;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.net.auth.ConnectionRecord;
 import org.apache.guacamole.net.auth.simple.SimpleConnection;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.glyptodon.guacamole.auth.callback.CallbackService;
+import org.glyptodon.guacamole.auth.callback.history.ConnectionTracker;
+import org.glyptodon.guacamole.auth.callback.history.TrackedConnectionRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Connection implementation which uses the configuration information from the
- * connection data of a UserData object.
+ * connection data of a UserData object. If the connection data omits the
+ * connection parameters, those parameters are retrieved from the HTTP
+ * callback only when the connection is actually used. If the connection data
+ * defines several equivalent targets, one of those targets is selected each
+ * time the connection is used.
  */
 public class UserDataConnection extends SimpleConnection {
 
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(UserDataConnection.class);
+
+    /**
+     * The name of the connection parameter containing the hostname of the
+     * remote desktop server.
+     */
+    private static final String HOSTNAME_PARAMETER = "hostname";
+
+    /**
+     * Words which, if present within the name of a connection parameter,
+     * indicate that the parameter contains a secret, such as "password",
+     * "sftp-passphrase" or "private-key".
+     */
+    private static final String[] SENSITIVE_PARAMETER_WORDS = {
+        "password", "passphrase", "private-key", "secret"
+    };
+
+    /**
+     * The name of the connection parameter containing the port of the remote
+     * desktop server.
+     */
+    private static final String PORT_PARAMETER = "port";
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Service for retrieving connection parameters which were omitted from
+     * the UserData through invoking an arbitrary HTTP callback.
+     */
+    @Inject
+    private CallbackService callbackService;
+
+    /**
+     * Service for selecting one of the equivalent targets of a connection.
+     */
+    @Inject
+    private ConnectionTargetService connectionTargetService;
+
+    /**
+     * Service for tracking active connections and connection history.
+     */
+    @Inject
+    private ConnectionTracker connectionTracker;
+
+    /**
+     * Service for enforcing the concurrency limits of connections.
+     */
+    @Inject
+    private ConnectionLimitService connectionLimitService;
+
+    /**
+     * The UserData object containing this connection.
+     */
+    private UserData userData;
+
+    /**
+     * The connection data associated with this connection.
+     */
+    private UserData.Connection connection;
+
+    /**
+     * The values of the tokens which should be substituted into the
+     * parameters of this connection, where the key of each entry is the token
+     * name.
+     */
+    private Map<String, String> tokenValues;
+
+    /**
+     * The history scope of the user to whom this connection is available,
+     * as returned by ConnectionTracker.getScope().
+     */
+    private String historyScope;
+
+    /**
+     * The region storing the configuration of this connection outside the
+     * Java heap, or null if the configuration is stored within this object.
+     */
+    private ParameterRegion region;
+
+    /**
+     * The index of the configuration of this connection within the region,
+     * if any.
+     */
+    private int regionIndex;
+
+    /**
+     * The parameters of this connection which contain secrets and are
+     * therefore retained within the heap rather than within the region, or
+     * null if the configuration is stored within this object.
+     */
+    private Map<String, String> sensitiveParameters;
+
     /**
      * Generates a new GuacamoleConfiguration from the associated protocol and
-     * parameters of the given UserData.Connection.
+     * parameters of the given UserData.Connection, substituting the given
+     * token values into any parameters containing placeholders.
      *
      * @param connection
      *     The UserData.Connection whose protocol and parameters should be used
      *     to construct the new GuacamoleConfiguration.
      *
+     * @param tokenValues
+     *     The values of the tokens which should be substituted into the
+     *     parameters of the connection, where the key of each entry is the
+     *     token name.
+     *
      * @return
      *     A new GuacamoleConfiguration generated from the associated protocol
      *     and parameters of the given UserData.Connection.
      */
-    private static GuacamoleConfiguration getConfiguration(UserData.Connection connection) {
+    private static GuacamoleConfiguration getConfiguration(UserData.Connection connection,
+            Map<String, String> tokenValues) {
 
         // Create new configuration for given protocol
         GuacamoleConfiguration config = new GuacamoleConfiguration();
@@ -55,12 +185,20 @@ public class UserDataConnection extends SimpleConnection {
         if (parameters != null)
             config.setParameters(parameters);
 
+        // Expand parameters containing placeholders using precompiled
+        // templates
+        for (Map.Entry<String, ParameterTemplate> template : connection.getTemplates().entrySet())
+            config.setParameter(template.getKey(), template.getValue().expand(tokenValues));
+
         return config;
 
     }
 
     /**
-     * Creates a new UserDataConnection based on the given connection data.
+     * Initializes this UserDataConnection based on the given connection data.
+     *
+     * @param userData
+     *     The UserData object containing the given connection data.
      *
      * @param identifier
      *     The identifier associated with this connection within the associated
@@ -68,9 +206,310 @@ public class UserDataConnection extends SimpleConnection {
      *
      * @param connection
      *     The connection data associated with this connection.
+     *
+     * @param tokenValues
+     *     The values of the tokens which should be substituted into the
+     *     parameters of this connection, where the key of each entry is the
+     *     token name.
+     *
+     * @param historyScope
+     *     The history scope of the user to whom this connection is available,
+     *     as returned by ConnectionTracker.getScope().
+     */
+    public void init(UserData userData, String identifier,
+            UserData.Connection connection, Map<String, String> tokenValues,
+            String historyScope) {
+
+        this.userData = userData;
+        this.connection = connection;
+        this.tokenValues = tokenValues;
+        this.historyScope = historyScope;
+
+        setName(identifier);
+        setIdentifier(identifier);
+        setConfiguration(getConfiguration(connection, tokenValues));
+
+    }
+
+    /**
+     * Returns whether the parameter having the given name contains a secret,
+     * either because its name suggests a secret or because its value is
+     * derived from the user's password.
+     *
+     * @param name
+     *     The name of the parameter to test.
+     *
+     * @return
+     *     true if the parameter having the given name contains a secret,
+     *     false otherwise.
      */
-    public UserDataConnection(String identifier, UserData.Connection connection) {
-        super(identifier, identifier, getConfiguration(connection));
+    private boolean isSensitive(String name) {
+
+        String lowerName = name.toLowerCase(Locale.ENGLISH);
+        for (String word : SENSITIVE_PARAMETER_WORDS) {
+            if (lowerName.contains(word))
+                return true;
+        }
+
+        ParameterTemplate template = connection.getTemplates().get(name);
+        return template != null
+                && template.getTokens().contains(ParameterTemplate.PASSWORD_TOKEN);
+
+    }
+
+    /**
+     * Adds the configuration of this connection to the given builder,
+     * omitting any parameters which contain secrets. Secrets are never
+     * copied outside the heap, where they could not be cleared by garbage
+     * collection and could outlive the session within released native
+     * memory. Those parameters are instead retained by this connection once
+     * store() is invoked.
+     *
+     * @param builder
+     *     The builder of the region which will contain the configuration of
+     *     this connection.
+     *
+     * @return
+     *     The index of the configuration of this connection within the built
+     *     region.
+     */
+    public int encode(ParameterRegion.Builder builder) {
+
+        GuacamoleConfiguration config = super.getConfiguration();
+        GuacamoleConfiguration encoded = new GuacamoleConfiguration();
+        encoded.setProtocol(config.getProtocol());
+
+        // Separate secrets from everything else
+        Map<String, String> sensitive = new HashMap<String, String>();
+        for (Map.Entry<String, String> parameter : config.getParameters().entrySet()) {
+            if (isSensitive(parameter.getKey()))
+                sensitive.put(parameter.getKey(), parameter.getValue());
+            else
+                encoded.setParameter(parameter.getKey(), parameter.getValue());
+        }
+
+        sensitiveParameters = sensitive;
+        return builder.add(encoded);
+
+    }
+
+    /**
+     * Moves the configuration of this connection into the given region,
+     * which must already contain that configuration at the given index, as
+     * returned by encode(). The configuration is subsequently decoded from
+     * the region each time it is accessed, combined with any parameters
+     * which encode() retained within the heap.
+     *
+     * @param region
+     *     The region containing the configuration of this connection.
+     *
+     * @param index
+     *     The index of the configuration of this connection within the
+     *     region.
+     */
+    public void store(ParameterRegion region, int index) {
+        this.region = region;
+        this.regionIndex = index;
+        setConfiguration(null);
+    }
+
+    /**
+     * Decodes the configuration of this connection from its region, restoring
+     * any parameters retained within the heap.
+     *
+     * @return
+     *     A new GuacamoleConfiguration containing all parameters of this
+     *     connection.
+     */
+    private GuacamoleConfiguration decode() {
+
+        GuacamoleConfiguration config = region.getConfiguration(regionIndex);
+        if (sensitiveParameters != null && !sensitiveParameters.isEmpty())
+            config.setParameters(sensitiveParameters);
+
+        return config;
+
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration() {
+
+        // Decode configuration only on access if stored outside the heap
+        if (region != null)
+            return decode();
+
+        return super.getConfiguration();
+
+    }
+
+    /**
+     * Returns the GuacamoleConfiguration which should be used to establish
+     * this connection. If the parameters of this connection were omitted from
+     * the UserData, those parameters are retrieved from the HTTP callback
+     * now, and are not retained beyond the returned configuration. Token
+     * values are substituted into retrieved parameters in the same way as
+     * parameters within the UserData.
+     *
+     * @return
+     *     The GuacamoleConfiguration which should be used to establish this
+     *     connection.
+     *
+     * @throws GuacamoleException
+     *     If the parameters of this connection must be retrieved from the
+     *     HTTP callback but cannot be retrieved.
+     */
+    private GuacamoleConfiguration getConnectConfiguration()
+            throws GuacamoleException {
+
+        GuacamoleConfiguration config = region != null
+                ? decode()
+                : getConfiguration(connection, tokenValues);
+
+        // Retrieve deferred parameters only when actually needed
+        if (connection.getParameters() == null) {
+            Map<String, String> parameters =
+                    callbackService.retrieveConnectionParameters(userData, getIdentifier());
+            if (parameters != null) {
+                config.setParameters(parameters);
+                for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                    ParameterTemplate template = ParameterTemplate.compile(parameter.getValue());
+                    if (template != null)
+                        config.setParameter(parameter.getKey(), template.expand(tokenValues));
+                }
+            }
+        }
+
+        return config;
+
+    }
+
+    @Override
+    public GuacamoleTunnel connect(GuacamoleClientInformation info)
+            throws GuacamoleException {
+
+        // Fail fast if either concurrency limit has been reached
+        final String identifier = getIdentifier();
+        final String username = userData.getUsername();
+        connectionLimitService.acquire(identifier, username, connection);
+
+        // Everything acquired must be released if the connection is not
+        // established, whether due to a GuacamoleException or an unchecked
+        // exception
+        UserData.Target target = null;
+        GuacamoleSocket socket = null;
+        boolean connected = false;
+        try {
+
+            GuacamoleConfiguration config = getConnectConfiguration();
+
+            // Select target, if any, overriding hostname and port
+            target = connectionTargetService.acquire(connection);
+            if (target != null) {
+                config.setParameter(HOSTNAME_PARAMETER, target.getHostname());
+                if (target.getPort() != null)
+                    config.setParameter(PORT_PARAMETER, target.getPort());
+            }
+
+            // Track this use of the connection
+            final TrackedConnectionRecord record = connectionTracker.begin(
+                    identifier, historyScope, username,
+                    tokenValues.get(ParameterTemplate.CLIENT_ADDRESS_TOKEN));
+
+            // Release selected target and limits, and end tracking, once the
+            // connection has closed
+            final UserData.Target selected = target;
+            Runnable onClose = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (selected != null)
+                        connectionTargetService.release(selected);
+                    connectionLimitService.release(identifier, username, connection);
+                    connectionTracker.end(record);
+                }
+
+            };
+
+            // Determine guacd connection information
+            String hostname = environment.getProperty(Environment.GUACD_HOSTNAME, "localhost");
+            int port = environment.getProperty(Environment.GUACD_PORT, 4822);
+            boolean useSSL = environment.getProperty(Environment.GUACD_SSL, false);
+
+            // Connect to guacd, using SSL if required
+            if (useSSL)
+                socket = new ManagedGuacamoleSocket(new SSLGuacamoleSocket(hostname, port), onClose);
+            else
+                socket = new ManagedGuacamoleSocket(new InetGuacamoleSocket(hostname, port), onClose);
+
+            GuacamoleTunnel tunnel = new SimpleGuacamoleTunnel(
+                new ConfiguredGuacamoleSocket(socket, config, info)
+            );
+
+            connectionTracker.activate(record, tunnel);
+            connected = true;
+            return tunnel;
+
+        }
+
+        finally {
+            if (!connected)
+                abandon(identifier, username, target, socket);
+        }
+
+    }
+
+    /**
+     * Releases everything acquired by a call to connect() which failed to
+     * establish the connection. Once the socket to guacd has been created,
+     * closing that socket releases everything. Failures to close the socket
+     * are logged rather than thrown, such that they do not replace the
+     * failure which prevented the connection from being established.
+     *
+     * @param identifier
+     *     The identifier of this connection.
+     *
+     * @param username
+     *     The username of the user that attempted to connect, or null if the
+     *     user has no username.
+     *
+     * @param target
+     *     The target selected for the attempt, or null if no target was
+     *     selected.
+     *
+     * @param socket
+     *     The socket to guacd, or null if the socket was not yet created.
+     */
+    private void abandon(String identifier, String username,
+            UserData.Target target, GuacamoleSocket socket) {
+
+        // Closing the socket releases everything via its onClose task
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Unable to close socket of failed connection "
+                        + "attempt.", e);
+            }
+            return;
+        }
+
+        if (target != null)
+            connectionTargetService.release(target);
+        connectionLimitService.release(identifier, username, connection);
+
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connectionTracker.getActiveConnectionCount(historyScope,
+                getIdentifier());
+    }
+
+    @Override
+    public List<ConnectionRecord> getHistory() {
+        return new ArrayList<ConnectionRecord>(connectionTracker.getConnectionHistory(
+                historyScope, getIdentifier()));
     }
 
 }
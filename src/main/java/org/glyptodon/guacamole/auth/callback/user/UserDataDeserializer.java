@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonMappingException;
+
+/**
+ * Hand-written parser for the fixed JSON schema of UserData, reading tokens
+ * directly from a JsonParser. Unlike generic data binding, no reflection is
+ * used, and each map is created once, at its final size and type, rather
+ * than being built as an intermediate map and copied.
+ */
+public class UserDataDeserializer {
+
+    /**
+     * The concurrency level of the maps within each UserData. As UserData is
+     * only modified while being parsed, a single writer is expected. On Java
+     * 6 and 7, this gives each map a single segment rather than the default
+     * sixteen, greatly reducing its size. From Java 8 onward, maps have no
+     * segments, and this only ensures the initial capacity is at least one,
+     * leaving the size of each map unchanged.
+     */
+    private static final int CONCURRENCY_LEVEL = 1;
+
+    /**
+     * The default load factor of the maps within each UserData.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The initial capacity of the parameter map of each connection, which
+     * typically contains only a handful of parameters.
+     */
+    private static final int PARAMETERS_CAPACITY = 8;
+
+    /**
+     * Advances the given parser to the next token, failing if the end of
+     * input is reached.
+     *
+     * @param parser
+     *     The parser to advance.
+     *
+     * @return
+     *     The next token.
+     *
+     * @throws IOException
+     *     If the next token cannot be read, or the end of input has been
+     *     reached.
+     */
+    private static JsonToken next(JsonParser parser) throws IOException {
+
+        JsonToken token = parser.nextToken();
+        if (token == null)
+            throw new JsonMappingException("Unexpected end of JSON.",
+                    parser.getCurrentLocation());
+
+        return token;
+
+    }
+
+    /**
+     * Verifies that the current token of the given parser is the expected
+     * token.
+     *
+     * @param parser
+     *     The parser whose current token should be verified.
+     *
+     * @param expected
+     *     The expected token.
+     *
+     * @throws JsonMappingException
+     *     If the current token is not the expected token.
+     */
+    private static void expect(JsonParser parser, JsonToken expected)
+            throws JsonMappingException {
+
+        JsonToken token = parser.getCurrentToken();
+        if (token != expected)
+            throw new JsonMappingException("Expected " + expected + " but "
+                    + "found " + token + ".", parser.getCurrentLocation());
+
+    }
+
+    /**
+     * Returns the scalar value of the current token as a string, as would be
+     * done by data binding. Numbers and booleans are converted to their
+     * textual form.
+     *
+     * @param parser
+     *     The parser whose current token should be read.
+     *
+     * @return
+     *     The current value as a string, or null if the current value is
+     *     null.
+     *
+     * @throws IOException
+     *     If the current value is an object or array, or cannot be read.
+     */
+    private static String readString(JsonParser parser) throws IOException {
+
+        switch (parser.getCurrentToken()) {
+
+            case VALUE_NULL:
+                return null;
+
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getText();
+
+        }
+
+        throw new JsonMappingException("Expected a string but found "
+                + parser.getCurrentToken() + ".", parser.getCurrentLocation());
+
+    }
+
+    /**
+     * Reads the integer value of the current token. Strings containing
+     * integers are accepted, as would be done by data binding.
+     *
+     * @param parser
+     *     The parser whose current token should be read.
+     *
+     * @param defaultValue
+     *     The value to return if the current value is null.
+     *
+     * @return
+     *     The current value as an integer, or the given default value if the
+     *     current value is null.
+     *
+     * @throws IOException
+     *     If the current value is not an integer, or cannot be read.
+     */
+    private static int readInt(JsonParser parser, int defaultValue)
+            throws IOException {
+
+        switch (parser.getCurrentToken()) {
+
+            case VALUE_NULL:
+                return defaultValue;
+
+            case VALUE_NUMBER_INT:
+                return parser.getIntValue();
+
+            case VALUE_STRING:
+                try {
+                    return Integer.parseInt(parser.getText().trim());
+                }
+                catch (NumberFormatException e) {
+                    break;
+                }
+
+        }
+
+        throw new JsonMappingException("Expected an integer but found "
+                + parser.getCurrentToken() + ".", parser.getCurrentLocation());
+
+    }
+
+    /**
+     * Fails due to the given field being unrecognized, consistent with data
+     * binding, which rejects unknown properties.
+     *
+     * @param parser
+     *     The parser positioned at the unrecognized field.
+     *
+     * @param field
+     *     The name of the unrecognized field.
+     *
+     * @throws JsonMappingException
+     *     Always.
+     */
+    private static void unrecognized(JsonParser parser, String field)
+            throws JsonMappingException {
+        throw new JsonMappingException("Unrecognized field \"" + field + "\".",
+                parser.getCurrentLocation());
+    }
+
+    /**
+     * Parses a JSON object of string values. The parser must be positioned at
+     * the start of the object, and is left positioned at its end.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     A new map of all name/value pairs within the object.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not an object of strings.
+     */
+    private static Map<String, String> parseParameters(JsonParser parser)
+            throws IOException {
+
+        expect(parser, JsonToken.START_OBJECT);
+
+        Map<String, String> parameters = new HashMap<String, String>(PARAMETERS_CAPACITY);
+        while (next(parser) != JsonToken.END_OBJECT) {
+            String name = parser.getCurrentName();
+            next(parser);
+            parameters.put(name, readString(parser));
+        }
+
+        return parameters;
+
+    }
+
+    /**
+     * Parses a single connection target. The parser must be positioned at the
+     * start of the target, and is left positioned at its end.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     The parsed target.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not a valid target.
+     */
+    private static UserData.Target parseTarget(JsonParser parser)
+            throws IOException {
+
+        expect(parser, JsonToken.START_OBJECT);
+
+        UserData.Target target = new UserData.Target();
+        while (next(parser) != JsonToken.END_OBJECT) {
+
+            String field = parser.getCurrentName();
+            next(parser);
+
+            if ("hostname".equals(field))
+                target.setHostname(readString(parser));
+            else if ("port".equals(field))
+                target.setPort(readString(parser));
+            else if ("weight".equals(field))
+                target.setWeight(readInt(parser, target.getWeight()));
+            else
+                unrecognized(parser, field);
+
+        }
+
+        return target;
+
+    }
+
+    /**
+     * Parses an array of connection targets. The parser must be positioned at
+     * the start of the array, and is left positioned at its end.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     A list of all parsed targets, or null if the value is null.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not an array of valid targets.
+     */
+    private static List<UserData.Target> parseTargets(JsonParser parser)
+            throws IOException {
+
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL)
+            return null;
+
+        expect(parser, JsonToken.START_ARRAY);
+
+        ArrayList<UserData.Target> targets = new ArrayList<UserData.Target>();
+        while (next(parser) != JsonToken.END_ARRAY)
+            targets.add(parseTarget(parser));
+
+        targets.trimToSize();
+        return targets;
+
+    }
+
+    /**
+     * Parses a single connection. The parser must be positioned at the start
+     * of the connection, and is left positioned at its end.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     The parsed connection.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not a valid connection.
+     */
+    public static UserData.Connection parseConnection(JsonParser parser)
+            throws IOException {
+
+        expect(parser, JsonToken.START_OBJECT);
+
+        UserData.Connection connection = new UserData.Connection();
+        while (next(parser) != JsonToken.END_OBJECT) {
+
+            String field = parser.getCurrentName();
+            next(parser);
+
+            if ("protocol".equals(field))
+                connection.setProtocol(readString(parser));
+            else if ("parameters".equals(field))
+                connection.setParameters(parser.getCurrentToken() == JsonToken.VALUE_NULL
+                        ? null : parseParameters(parser));
+            else if ("parent".equals(field))
+                connection.setParent(readString(parser));
+            else if ("targets".equals(field))
+                connection.setTargets(parseTargets(parser));
+            else if ("balancing".equals(field))
+                connection.setBalancing(readString(parser));
+            else if ("maxConnections".equals(field))
+                connection.setMaxConnections(readInt(parser,
+                        connection.getMaxConnections()));
+            else if ("pool".equals(field))
+                connection.setPool(readString(parser));
+            else if ("maxConnectionsPerUser".equals(field))
+                connection.setMaxConnectionsPerUser(readInt(parser,
+                        connection.getMaxConnectionsPerUser()));
+            else
+                unrecognized(parser, field);
+
+        }
+
+        return connection;
+
+    }
+
+    /**
+     * Parses a single connection group. The parser must be positioned at the
+     * start of the group, and is left positioned at its end.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     The parsed connection group.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not a valid connection group.
+     */
+    private static UserData.Group parseGroup(JsonParser parser)
+            throws IOException {
+
+        expect(parser, JsonToken.START_OBJECT);
+
+        UserData.Group group = new UserData.Group();
+        while (next(parser) != JsonToken.END_OBJECT) {
+
+            String field = parser.getCurrentName();
+            next(parser);
+
+            if ("parent".equals(field))
+                group.setParent(readString(parser));
+            else
+                unrecognized(parser, field);
+
+        }
+
+        return group;
+
+    }
+
+    /**
+     * Creates a new, compact map for storage within UserData.
+     *
+     * @param <T>
+     *     The type of values stored within the map.
+     *
+     * @return
+     *     A new, empty map.
+     */
+    private static <T> ConcurrentMap<String, T> createMap() {
+        return new ConcurrentHashMap<String, T>(16, LOAD_FACTOR, CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Parses a complete UserData object. The parser must not yet have read
+     * any tokens, and all tokens of the UserData object are consumed.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not valid UserData.
+     */
+    public static UserData parseUserData(JsonParser parser) throws IOException {
+
+        next(parser);
+        expect(parser, JsonToken.START_OBJECT);
+
+        UserData userData = new UserData();
+        while (next(parser) != JsonToken.END_OBJECT) {
+
+            String field = parser.getCurrentName();
+            next(parser);
+
+            // Username
+            if ("username".equals(field))
+                userData.setUsername(readString(parser));
+
+            // Connections, placed directly into the final map
+            else if ("connections".equals(field)) {
+
+                if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+                    userData.adoptConnections(null);
+                    continue;
+                }
+
+                expect(parser, JsonToken.START_OBJECT);
+                ConcurrentMap<String, UserData.Connection> connections = createMap();
+                while (next(parser) != JsonToken.END_OBJECT) {
+                    String identifier = parser.getCurrentName();
+                    next(parser);
+                    connections.put(identifier, parseConnection(parser));
+                }
+
+                userData.adoptConnections(connections);
+
+            }
+
+            // Groups, placed directly into the final map
+            else if ("groups".equals(field)) {
+
+                if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+                    userData.adoptGroups(null);
+                    continue;
+                }
+
+                expect(parser, JsonToken.START_OBJECT);
+                ConcurrentMap<String, UserData.Group> groups = createMap();
+                while (next(parser) != JsonToken.END_OBJECT) {
+                    String identifier = parser.getCurrentName();
+                    next(parser);
+                    groups.put(identifier, parseGroup(parser));
+                }
+
+                userData.adoptGroups(groups);
+
+            }
+
+            else
+                unrecognized(parser, field);
+
+        }
+
+        return userData;
+
+    }
+
+}
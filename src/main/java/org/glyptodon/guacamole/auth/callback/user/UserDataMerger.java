@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+
+/**
+ * Merges the UserData returned by the authentication callback with the
+ * UserData returned by any number of additional callbacks. Each connection
+ * and connection group is inserted exactly once, directly into maps sized
+ * for the combined result, and the UserData being merged are never modified.
+ * Each UserDataMerger may be used for only one merge.
+ */
+public class UserDataMerger {
+
+    /**
+     * The load factor of merged maps, matching that of maps produced by
+     * UserDataDeserializer.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The concurrency level of merged maps, matching that of maps produced by
+     * UserDataDeserializer. Merged UserData is only written while merging,
+     * and is read concurrently thereafter. As with UserDataDeserializer, this
+     * reduces the size of each map only on Java 6 and 7.
+     */
+    private static final int CONCURRENCY_LEVEL = 1;
+
+    /**
+     * Whether identifiers from additional callbacks are prefixed with the
+     * names of those callbacks.
+     */
+    private final boolean namespaced;
+
+    /**
+     * The merged connections, or null if no UserData has defined any.
+     */
+    private ConcurrentMap<String, UserData.Connection> connections;
+
+    /**
+     * The merged connection groups, or null if no UserData has defined any.
+     */
+    private ConcurrentMap<String, UserData.Group> groups;
+
+    /**
+     * The number of connections which were not merged because another
+     * connection with the same identifier was merged first.
+     */
+    private int conflicts;
+
+    /**
+     * Creates a new UserDataMerger which resolves conflicting identifiers
+     * using the given policy.
+     *
+     * @param policy
+     *     The policy for resolving conflicting identifiers, as defined by
+     *     CallbackConfiguration.MERGE_POLICY_FIRST or
+     *     CallbackConfiguration.MERGE_POLICY_NAMESPACED.
+     */
+    public UserDataMerger(String policy) {
+        this.namespaced = CallbackConfiguration.MERGE_POLICY_NAMESPACED.equals(policy);
+    }
+
+    /**
+     * Creates a new map able to hold the given number of entries without
+     * resizing.
+     *
+     * @param <T>
+     *     The type of the values of the map.
+     *
+     * @param size
+     *     The number of entries the map must hold.
+     *
+     * @return
+     *     A new, empty map.
+     */
+    private static <T> ConcurrentMap<String, T> createMap(int size) {
+        return new ConcurrentHashMap<String, T>(
+                (int) (size / LOAD_FACTOR) + 1, LOAD_FACTOR, CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Returns the given identifier within the given namespace.
+     *
+     * @param namespace
+     *     The namespace of the identifier, or null if the identifier is not
+     *     namespaced.
+     *
+     * @param identifier
+     *     The identifier to place within the namespace, or null.
+     *
+     * @return
+     *     The namespaced identifier, or the given identifier if no namespace
+     *     is given or the identifier is null.
+     */
+    private static String qualify(String namespace, String identifier) {
+
+        if (namespace == null || identifier == null)
+            return identifier;
+
+        return namespace + CallbackConfiguration.NAMESPACE_SEPARATOR + identifier;
+
+    }
+
+    /**
+     * Merges the connections and connection groups of the given UserData,
+     * prefixing their identifiers with the given namespace if namespaced.
+     * Connections and connection groups whose identifiers have already been
+     * merged are ignored.
+     *
+     * @param source
+     *     The UserData to merge.
+     *
+     * @param namespace
+     *     The namespace of the identifiers within the given UserData, or null
+     *     if its identifiers must never be namespaced.
+     *
+     * @param expected
+     *     The total number of connections and connection groups expected to
+     *     be merged, used to size the merged maps on first use.
+     */
+    private void add(UserData source, String namespace, int expected) {
+
+        String prefix = namespaced ? namespace : null;
+
+        Map<String, UserData.Group> sourceGroups = source.getGroups();
+        if (sourceGroups != null) {
+
+            if (groups == null)
+                groups = createMap(expected);
+
+            for (Map.Entry<String, UserData.Group> entry : sourceGroups.entrySet()) {
+
+                UserData.Group group = entry.getValue();
+                if (prefix != null) {
+                    UserData.Group qualified = new UserData.Group();
+                    qualified.setParent(qualify(prefix, group.getParent()));
+                    group = qualified;
+                }
+
+                groups.putIfAbsent(qualify(prefix, entry.getKey()), group);
+
+            }
+
+        }
+
+        Map<String, UserData.Connection> sourceConnections = source.getConnections();
+        if (sourceConnections != null) {
+
+            if (connections == null)
+                connections = createMap(expected);
+
+            for (Map.Entry<String, UserData.Connection> entry : sourceConnections.entrySet()) {
+
+                UserData.Connection connection = entry.getValue();
+                if (prefix != null) {
+                    UserData.Connection qualified = new UserData.Connection();
+                    qualified.setProtocol(connection.getProtocol());
+                    qualified.setParameters(connection.getParameters());
+                    qualified.setParent(qualify(prefix, connection.getParent()));
+                    qualified.setTargets(connection.getTargets());
+                    qualified.setBalancing(connection.getBalancing());
+                    qualified.setMaxConnections(connection.getMaxConnections());
+                    qualified.setPool(connection.getPool());
+                    qualified.setMaxConnectionsPerUser(connection.getMaxConnectionsPerUser());
+                    connection = qualified;
+                }
+
+                if (connections.putIfAbsent(qualify(prefix, entry.getKey()), connection) != null)
+                    conflicts++;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns the number of connections and connection groups within the
+     * given UserData.
+     *
+     * @param userData
+     *     The UserData to count, or null.
+     *
+     * @return
+     *     The number of connections and connection groups within the given
+     *     UserData, or zero if the given UserData is null.
+     */
+    private static int size(UserData userData) {
+
+        if (userData == null)
+            return 0;
+
+        Map<String, UserData.Connection> userConnections = userData.getConnections();
+        Map<String, UserData.Group> userGroups = userData.getGroups();
+        return (userConnections != null ? userConnections.size() : 0)
+             + (userGroups != null ? userGroups.size() : 0);
+
+    }
+
+    /**
+     * Merges the given UserData from the authentication callback with the
+     * given UserData from additional callbacks. The identifiers of the
+     * authentication callback are never namespaced, and its connections and
+     * connection groups take precedence over those of additional callbacks.
+     * The username of the result is that of the authentication callback.
+     *
+     * @param primary
+     *     The UserData returned by the authentication callback.
+     *
+     * @param additional
+     *     The UserData returned by each additional callback, keyed by the name
+     *     of that callback, in order of precedence. Callbacks which did not
+     *     return UserData may be omitted or have null values.
+     *
+     * @return
+     *     A new UserData containing the merged connections and connection
+     *     groups, or the given primary UserData if there is nothing to merge.
+     */
+    public UserData merge(UserData primary, Map<String, UserData> additional) {
+
+        int expected = size(primary);
+        for (UserData userData : additional.values())
+            expected += size(userData);
+
+        // Avoid copying if no additional callback contributed anything
+        if (expected == size(primary))
+            return primary;
+
+        add(primary, null, expected);
+        for (Map.Entry<String, UserData> entry : additional.entrySet()) {
+            if (entry.getValue() != null)
+                add(entry.getValue(), entry.getKey(), expected);
+        }
+
+        UserData merged = new UserData();
+        merged.setUsername(primary.getUsername());
+        merged.adoptConnections(connections);
+        merged.adoptGroups(groups);
+        return merged;
+
+    }
+
+    /**
+     * Returns the number of connections ignored by the most recent merge
+     * because another connection with the same identifier took precedence.
+     *
+     * @return
+     *     The number of conflicting connections ignored.
+     */
+    public int getConflicts() {
+        return conflicts;
+    }
+
+}
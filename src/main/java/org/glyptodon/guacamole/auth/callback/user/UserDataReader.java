@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.guacamole.GuacamoleException;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+
+/**
+ * Service which parses the JSON representations of UserData and of
+ * individual connections. All parsing shares the same readers, which are
+ * created once, rather than resolving the target type for each parse. If
+ * "callback-streaming-parser" is enabled, UserDataDeserializer is used
+ * instead of generic data binding.
+ */
+@Singleton
+public class UserDataReader {
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * Factory for the parsers used by UserDataDeserializer.
+     */
+    private final JsonFactory jsonFactory;
+
+    /**
+     * Reader which binds JSON to UserData.
+     */
+    private final ObjectReader userDataReader;
+
+    /**
+     * Reader which binds JSON to UserData.Connection.
+     */
+    private final ObjectReader connectionReader;
+
+    /**
+     * Creates a new UserDataReader which creates all readers using the given
+     * ObjectMapper.
+     *
+     * @param mapper
+     *     The ObjectMapper to use to create readers.
+     */
+    @Inject
+    public UserDataReader(ObjectMapper mapper) {
+        this.jsonFactory = mapper.getJsonFactory();
+        this.userDataReader = mapper.reader(UserData.class);
+        this.connectionReader = mapper.reader(UserData.Connection.class);
+    }
+
+    /**
+     * Returns whether UserDataDeserializer should be used rather than generic
+     * data binding.
+     *
+     * @return
+     *     true if UserDataDeserializer should be used, false otherwise.
+     */
+    private boolean useStreamingParser() {
+
+        // Parsing does not depend on the remaining configuration, and should
+        // succeed even if that configuration is invalid
+        try {
+            return confService.useStreamingParser();
+        }
+        catch (GuacamoleException e) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Parses UserData from the given parser using UserDataDeserializer,
+     * closing the parser afterwards.
+     *
+     * @param parser
+     *     The parser to read from.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not valid UserData.
+     */
+    private UserData parse(JsonParser parser) throws IOException {
+        try {
+            return UserDataDeserializer.parseUserData(parser);
+        }
+        finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Parses UserData from the given stream. The stream is not closed.
+     *
+     * @param input
+     *     The stream containing the JSON representation of UserData.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not valid UserData.
+     */
+    public UserData read(InputStream input) throws IOException {
+
+        if (useStreamingParser())
+            return parse(jsonFactory.createJsonParser(input));
+
+        return userDataReader.readValue(input);
+
+    }
+
+    /**
+     * Parses UserData from the given bytes.
+     *
+     * @param json
+     *     The UTF-8 JSON representation of UserData.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON is not valid UserData.
+     */
+    public UserData read(byte[] json) throws IOException {
+
+        if (useStreamingParser())
+            return parse(jsonFactory.createJsonParser(json));
+
+        return userDataReader.readValue(json);
+
+    }
+
+    /**
+     * Parses UserData from the given file.
+     *
+     * @param file
+     *     The file containing the JSON representation of UserData.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the file cannot be read or does not contain valid UserData.
+     */
+    public UserData read(File file) throws IOException {
+
+        if (useStreamingParser())
+            return parse(jsonFactory.createJsonParser(file));
+
+        return userDataReader.readValue(file);
+
+    }
+
+    /**
+     * Parses a single connection from the given stream, in the same format
+     * as the connections within UserData. The stream is not closed.
+     *
+     * @param input
+     *     The stream containing the JSON representation of the connection.
+     *
+     * @return
+     *     The parsed connection.
+     *
+     * @throws IOException
+     *     If the JSON cannot be read or is not a valid connection.
+     */
+    public UserData.Connection readConnection(InputStream input)
+            throws IOException {
+
+        if (!useStreamingParser())
+            return connectionReader.readValue(input);
+
+        JsonParser parser = jsonFactory.createJsonParser(input);
+        try {
+            parser.nextToken();
+            return UserDataDeserializer.parseConnection(parser);
+        }
+        finally {
+            parser.close();
+        }
+
+    }
+
+}
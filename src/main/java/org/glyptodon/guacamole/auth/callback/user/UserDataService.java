@@ -22,19 +22,23 @@
 
 package org.glyptodon.guacamole.auth.callback.user;
 
+import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.auth.Connection;
-import org.apache.guacamole.net.auth.ConnectionGroup;
 import org.apache.guacamole.net.auth.Directory;
 import org.apache.guacamole.net.auth.User;
-import org.apache.guacamole.net.auth.simple.SimpleConnectionGroup;
-import org.apache.guacamole.net.auth.simple.SimpleConnectionGroupDirectory;
 import org.apache.guacamole.net.auth.simple.SimpleDirectory;
 import org.apache.guacamole.net.auth.simple.SimpleUser;
+import org.glyptodon.guacamole.auth.callback.CallbackEvents;
+import org.glyptodon.guacamole.auth.callback.cache.SessionResumptionService;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
 
 /**
  * Service for deriving Guacamole extension API data from UserData objects.
@@ -47,6 +51,50 @@ public class UserDataService {
      */
     public static final String ROOT_CONNECTION_GROUP = "ROOT";
 
+    /**
+     * Provider for UserDataConnection objects.
+     */
+    @Inject
+    private Provider<UserDataConnection> userDataConnectionProvider;
+
+    /**
+     * Service for recording events describing slow directory builds.
+     */
+    @Inject
+    private CallbackEvents events;
+
+    /**
+     * Service for retrieving configuration information regarding the
+     * CallbackAuthenticationProvider.
+     */
+    @Inject
+    private ConfigurationService confService;
+
+    /**
+     * Service for storing the connection parameters of sessions outside the
+     * Java heap.
+     */
+    @Inject
+    private ParameterRegionStore regionStore;
+
+    /**
+     * Returns whether the connection parameters of each session should be
+     * stored outside the Java heap. If the configuration is invalid,
+     * parameters are stored within the heap.
+     *
+     * @return
+     *     true if connection parameters should be stored outside the Java
+     *     heap, false otherwise.
+     */
+    private boolean useOffHeapParameters() {
+        try {
+            return confService.useOffHeapParameters();
+        }
+        catch (GuacamoleException e) {
+            return false;
+        }
+    }
+
     /**
      * Returns the identifiers of all users readable by the user whose data is
      * given by the provided UserData object. As users of the
@@ -70,28 +118,48 @@ public class UserDataService {
 
     /**
      * Returns the user object of the user to whom the given UserData object
-     * belongs.
+     * belongs. If a session resumption token has been issued for the user,
+     * that token is exposed as an attribute of the user object.
      *
      * @param userData
      *     All data associated with the user whose own user object is being
      *     retrieved.
      *
+     * @param resumeToken
+     *     The session resumption token issued for the user, or null if no
+     *     such token has been issued.
+     *
      * @return
      *     The user object of the user to whom the given UserData object
      *     belongs.
      */
-    public User getUser(UserData userData) {
+    public User getUser(UserData userData, String resumeToken) {
 
         // Pull username from user data
         String username = userData.getUsername();
 
+        // Expose session resumption token, if any, as a user attribute
+        final Map<String, String> attributes = resumeToken == null
+                ? Collections.<String, String>emptyMap()
+                : Collections.singletonMap(
+                    SessionResumptionService.RESUME_TOKEN_PARAMETER,
+                    resumeToken
+                );
+
         // Build user object with READ access to all available data
         return new SimpleUser(
             username,
             getUserIdentifiers(userData),
             getConnectionIdentifiers(userData),
             getConnectionGroupIdentifiers(userData)
-        );
+        ) {
+
+            @Override
+            public Map<String, String> getAttributes() {
+                return attributes;
+            }
+
+        };
 
     }
 
@@ -105,14 +173,19 @@ public class UserDataService {
      *     All data associated with the user whose user directory is being
      *     retrieved.
      *
+     * @param resumeToken
+     *     The session resumption token issued for the user, or null if no
+     *     such token has been issued.
+     *
      * @return
      *     A Directory containing all users accessible by the user whose data
      *     is given by the provided UserData object.
      */
-    public Directory<User> getUserDirectory(UserData userData) {
+    public Directory<User> getUserDirectory(UserData userData,
+            String resumeToken) {
 
         // Get own user object
-        User self = getUser(userData);
+        User self = getUser(userData, resumeToken);
 
         // Return directory containing only self
         return new SimpleDirectory<User>(Collections.singletonMap(
@@ -160,11 +233,24 @@ public class UserDataService {
      *     All data associated with the user whose connection directory is
      *     being retrieved.
      *
+     * @param tokenValues
+     *     The values of the tokens which should be substituted into the
+     *     parameters of the user's connections, where the key of each entry
+     *     is the token name.
+     *
+     * @param historyScope
+     *     The history scope of the user, as returned by
+     *     ConnectionTracker.getScope().
+     *
      * @return
      *     A Directory containing all connections accessible by the user whose
-     *     data is given by the provided UserData object.
+     *     data is given by the provided UserData object. As building this
+     *     Directory requires creating every connection, the returned
+     *     Directory should be retained and reused for the lifetime of the
+     *     user's session.
      */
-    public Directory<Connection> getConnectionDirectory(UserData userData) {
+    public Directory<Connection> getConnectionDirectory(UserData userData,
+            Map<String, String> tokenValues, String historyScope) {
 
         // Do not return any connections if empty
         Map<String, UserData.Connection> connections = userData.getConnections();
@@ -172,6 +258,7 @@ public class UserDataService {
             return new SimpleDirectory<Connection>();
 
         // Convert UserData.Connection objects to normal Connections
+        long start = System.nanoTime();
         Map<String, Connection> directoryContents = new HashMap<String, Connection>();
         for (Map.Entry<String, UserData.Connection> entry : connections.entrySet()) {
 
@@ -181,88 +268,144 @@ public class UserDataService {
 
             // Create Guacamole connection containing the defined identifier
             // and parameters
-            Connection guacConnection = new UserDataConnection(
-                identifier,
-                connection
-            );
+            UserDataConnection guacConnection = userDataConnectionProvider.get();
+            guacConnection.init(userData, identifier, connection, tokenValues,
+                    historyScope);
 
-            // All connections are within the root group
-            guacConnection.setParentIdentifier(ROOT_CONNECTION_GROUP);
+            // Connections are within the root group unless placed within a
+            // defined group
+            guacConnection.setParentIdentifier(getParentIdentifier(userData, connection));
 
             // Add corresponding Connection to directory
             directoryContents.put(identifier, guacConnection);
 
         }
 
+        // Move all configurations into a single region outside the heap, if
+        // enabled
+        if (useOffHeapParameters())
+            storeOffHeap(directoryContents);
+
+        events.recordDirectoryBuild("connections", directoryContents.size(),
+                System.nanoTime() - start);
         return new SimpleDirectory<Connection>(directoryContents);
 
     }
 
     /**
-     * Returns the identifiers of all connection groups readable by the user
-     * whose data is given by the provided UserData object. This will always be
-     * a set containing only the root connection group identifier. The
-     * CallbackAuthenticationProvider does not define any other connection
-     * groups.
+     * Encodes the configurations of all given connections within a single
+     * new ParameterRegion, such that each connection subsequently decodes its
+     * configuration from that region only when accessed. Parameters
+     * containing secrets remain within the heap. The region is
+     * released once the session holding the given connections is garbage
+     * collected.
+     *
+     * @param connections
+     *     The connections whose configurations should be stored outside the
+     *     Java heap, all of which must be UserDataConnections.
+     */
+    private void storeOffHeap(Map<String, Connection> connections) {
+
+        // Encode configurations in directory order, each connection keeping
+        // its own secrets within the heap
+        ParameterRegion.Builder builder = new ParameterRegion.Builder();
+        int[] indexes = new int[connections.size()];
+        int i = 0;
+        for (Connection connection : connections.values())
+            indexes[i++] = ((UserDataConnection) connection).encode(builder);
+
+        // Point each connection at its configuration
+        ParameterRegion region = regionStore.build(builder);
+        i = 0;
+        for (Connection connection : connections.values())
+            ((UserDataConnection) connection).store(region, indexes[i++]);
+
+    }
+
+    /**
+     * Returns the identifier of the connection group containing the given
+     * connection. If the connection does not specify a parent, or specifies a
+     * parent which is not defined within the given UserData, the connection is
+     * within the root connection group.
      *
      * @param userData
-     *     All data associated with the user whose accessible connection group
-     *     identifiers are being retrieved.
+     *     All data associated with the user to whom the given connection is
+     *     available.
+     *
+     * @param connection
+     *     The connection whose parent connection group identifier should be
+     *     determined.
      *
      * @return
-     *     A set containing the identifiers of all connection groups readable
-     *     by the user whose data is given by the provided UserData object.
+     *     The identifier of the connection group containing the given
+     *     connection.
      */
-    public Set<String> getConnectionGroupIdentifiers(UserData userData) {
+    private String getParentIdentifier(UserData userData,
+            UserData.Connection connection) {
 
-        // The only connection group available is the root group
-        return Collections.singleton(ROOT_CONNECTION_GROUP);
+        String parent = connection.getParent();
+        Map<String, UserData.Group> groups = userData.getGroups();
+
+        // Connections are within the root group by default
+        if (parent == null || groups == null || !groups.containsKey(parent))
+            return ROOT_CONNECTION_GROUP;
+
+        return parent;
 
     }
 
     /**
-     * Returns the root connection group, containing all connections defined
-     * within the provided UserData object. If the provided UserData object is
-     * expired, this connection group will be empty.
+     * Returns the identifiers of all connection groups readable by the user
+     * whose data is given by the provided UserData object. This will always be
+     * a set containing the root connection group identifier, along with the
+     * identifiers of any connection groups defined within the UserData.
      *
      * @param userData
-     *     All data associated with the user whose root connection group is
-     *     being retrieved.
+     *     All data associated with the user whose accessible connection group
+     *     identifiers are being retrieved.
      *
      * @return
-     *     The root connection group.
+     *     A set containing the identifiers of all connection groups readable
+     *     by the user whose data is given by the provided UserData object.
      */
-    public ConnectionGroup getRootConnectionGroup(UserData userData) {
+    public Set<String> getConnectionGroupIdentifiers(UserData userData) {
 
-        // The root group contains all connections and no groups
-        return new SimpleConnectionGroup(
-            ROOT_CONNECTION_GROUP,
-            ROOT_CONNECTION_GROUP,
-            getConnectionIdentifiers(userData),
-            Collections.<String>emptyList()
-        );
+        // Only the root group is available if no others are defined
+        Map<String, UserData.Group> groups = userData.getGroups();
+        if (groups == null || groups.isEmpty())
+            return Collections.singleton(ROOT_CONNECTION_GROUP);
+
+        // Otherwise, include all defined groups in addition to the root
+        Set<String> identifiers = new HashSet<String>(groups.keySet());
+        identifiers.add(ROOT_CONNECTION_GROUP);
+        return identifiers;
 
     }
 
     /**
-     * Returns a Directory containing all connection groups accessible by the
-     * user whose data is given by the provided UserData object. This Directory
-     * will always contain only the root connection group.
+     * Returns a new ConnectionGroupTree containing all connection groups and
+     * connections defined within the provided UserData object. As building
+     * the tree requires indexing every group and connection, the returned
+     * tree should be retained and reused for the lifetime of the user's
+     * session.
      *
      * @param userData
-     *     All data associated with the user whose connection group directory
-     *     is being retrieved.
+     *     All data associated with the user whose connection group tree is
+     *     being built.
      *
      * @return
-     *     A Directory containing all connection groups accessible by the user
-     *     whose data is given by the provided UserData object.
+     *     A new ConnectionGroupTree containing all connection groups and
+     *     connections defined within the provided UserData object.
      */
-    public Directory<ConnectionGroup> getConnectionGroupDirectory(UserData userData) {
+    public ConnectionGroupTree getConnectionGroupTree(UserData userData) {
+
+        long start = System.nanoTime();
+        ConnectionGroupTree tree = new ConnectionGroupTree(userData);
 
-        // Expose only the root group in the connection group directory
-        return new SimpleConnectionGroupDirectory(
-            Collections.singleton(getRootConnectionGroup(userData))
-        );
+        Map<String, UserData.Group> groups = userData.getGroups();
+        events.recordDirectoryBuild("groups", groups != null ? groups.size() : 0,
+                System.nanoTime() - start);
+        return tree;
 
     }
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.Provider;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Credentials;
+import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsException;
+import org.glyptodon.guacamole.auth.callback.audit.AuditService;
+import org.glyptodon.guacamole.auth.callback.cache.SessionResumptionService;
+import org.glyptodon.guacamole.auth.callback.cache.UserDataCacheService;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.glyptodon.guacamole.auth.callback.tenant.TenantService;
+import org.glyptodon.guacamole.auth.callback.user.AuthenticatedUser;
+import org.glyptodon.guacamole.auth.callback.user.UserContext;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that AuthenticationProviderService caches only UserData
+ * actually received from the callback, and never the fallbacks used while the
+ * callback is unavailable.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class AuthenticationProviderServiceTest {
+
+    /**
+     * The key under which UserData for the test credentials is cached.
+     */
+    private static final String CACHE_KEY = "0123456789abcdef";
+
+    /**
+     * The session resumption token issued for, or presented with, the test
+     * credentials.
+     */
+    private static final String RESUME_TOKEN = "key.1.digest.signature";
+
+    @Mock
+    private CallbackService callbackService;
+
+    @Mock
+    private ConfigurationService confService;
+
+    @Mock
+    private UserDataCacheService cacheService;
+
+    @Mock
+    private SessionResumptionService resumptionService;
+
+    @Mock
+    private CallbackEvents events;
+
+    @Mock
+    private AuditService auditService;
+
+    @Mock
+    private TenantService tenantService;
+
+    @Mock
+    private Provider<AuthenticatedUser> authenticatedUserProvider;
+
+    @Mock
+    private Provider<UserContext> userContextProvider;
+
+    @Mock
+    private AuthenticatedUser authenticatedUser;
+
+    @InjectMocks
+    private AuthenticationProviderService authService;
+
+    /**
+     * The credentials of the authentication attempt under test.
+     */
+    private final Credentials credentials = new Credentials();
+
+    /**
+     * The UserData which the callback or a fallback returns.
+     */
+    private final UserData userData = new UserData();
+
+    /**
+     * Configures the mocked services such that the authentication attempt is
+     * not resumed, not cached, and routed to no tenant.
+     *
+     * @throws GuacamoleException
+     *     Never, as all services are mocked.
+     */
+    @Before
+    public void setUp() throws GuacamoleException {
+        credentials.setUsername("alice");
+        userData.setUsername("alice");
+        when(confService.getDeadline()).thenReturn(10000);
+        when(cacheService.getKey(credentials)).thenReturn(CACHE_KEY);
+        when(tenantService.partition(ArgumentMatchers.<Tenant>isNull(), anyString()))
+                .thenReturn(CACHE_KEY);
+        when(authenticatedUserProvider.get()).thenReturn(authenticatedUser);
+    }
+
+    /**
+     * Verifies that UserData received from the callback in a successful
+     * response is cached.
+     *
+     * @throws GuacamoleException
+     *     If authentication fails.
+     */
+    @Test
+    public void testLiveResponseCached() throws GuacamoleException {
+
+        when(callbackService.retrieveUserData(any(Credentials.class),
+                ArgumentMatchers.<Tenant>isNull(), any(Deadline.class)))
+                .thenReturn(CallbackResult.live(userData));
+
+        when(resumptionService.issue(userData, null)).thenReturn(RESUME_TOKEN);
+
+        assertSame(authenticatedUser, authService.authenticateUser(credentials));
+        verify(cacheService).put(CACHE_KEY, userData);
+        verify(authenticatedUser).init(credentials, userData, RESUME_TOKEN, null);
+
+    }
+
+    /**
+     * Verifies that a fallback, such as the default response or a snapshot
+     * used during an outage, is used for the authentication attempt but is
+     * not cached.
+     *
+     * @throws GuacamoleException
+     *     If authentication fails.
+     */
+    @Test
+    public void testFallbackNotCached() throws GuacamoleException {
+
+        when(callbackService.retrieveUserData(any(Credentials.class),
+                ArgumentMatchers.<Tenant>isNull(), any(Deadline.class)))
+                .thenReturn(CallbackResult.fallback(userData));
+
+        assertSame(authenticatedUser, authService.authenticateUser(credentials));
+        verify(authenticatedUser).init(credentials, userData, null, null);
+        verify(cacheService, never()).put(anyString(), any(UserData.class));
+        verify(resumptionService, never()).issue(any(UserData.class), ArgumentMatchers.<Tenant>any());
+
+    }
+
+    /**
+     * Verifies that a resumed session keeps the token it was resumed with,
+     * rather than receiving a new token which would extend the session
+     * without consulting the callback.
+     *
+     * @throws GuacamoleException
+     *     If authentication fails.
+     */
+    @Test
+    public void testResumedSessionNotExtended() throws GuacamoleException {
+
+        when(resumptionService.resume(credentials, null)).thenReturn(userData);
+        when(resumptionService.getToken(credentials)).thenReturn(RESUME_TOKEN);
+
+        assertSame(authenticatedUser, authService.authenticateUser(credentials));
+        verify(authenticatedUser).init(credentials, userData, RESUME_TOKEN, null);
+        verify(resumptionService, never()).issue(any(UserData.class), ArgumentMatchers.<Tenant>any());
+        verify(callbackService, never()).retrieveUserData(any(Credentials.class),
+                ArgumentMatchers.<Tenant>any(), any(Deadline.class));
+
+    }
+
+    /**
+     * Verifies that a rejected authentication attempt is neither cached nor
+     * permitted.
+     *
+     * @throws GuacamoleException
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testRejectionNotCached() throws GuacamoleException {
+
+        when(callbackService.retrieveUserData(any(Credentials.class),
+                ArgumentMatchers.<Tenant>isNull(), any(Deadline.class)))
+                .thenReturn(CallbackResult.REJECTED);
+
+        try {
+            authService.authenticateUser(credentials);
+            fail("Rejected authentication attempt was permitted.");
+        }
+        catch (GuacamoleInvalidCredentialsException e) {
+            // Expected
+        }
+
+        verify(cacheService, never()).put(anyString(), any(UserData.class));
+
+    }
+
+}
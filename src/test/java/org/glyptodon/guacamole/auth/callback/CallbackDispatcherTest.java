@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that CallbackDispatcher admits interactive requests
+ * ahead of background requests and in order of arrival, limits background
+ * requests to their share, and admits background requests once capacity is
+ * no longer needed by interactive requests.
+ */
+public class CallbackDispatcherTest {
+
+    /**
+     * The maximum time to wait for a thread to begin or finish waiting, in
+     * milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * A deadline short enough that waiting for it does not noticeably slow
+     * the test, in milliseconds.
+     */
+    private static final long SHORT_DEADLINE = 50;
+
+    /**
+     * The dispatcher being tested.
+     */
+    private CallbackDispatcher dispatcher;
+
+    /**
+     * Configuration allowing four concurrent requests, half of which may be
+     * background requests.
+     */
+    private CallbackConfiguration config;
+
+    /**
+     * Thread which requests admission, recording whether it was admitted
+     * and releasing its request as soon as it is admitted.
+     */
+    private class Waiter extends Thread {
+
+        /**
+         * Whether the request is interactive.
+         */
+        private final boolean interactive;
+
+        /**
+         * The list to which the name of this waiter is appended when
+         * admitted, or null if admission order is not recorded.
+         */
+        private final List<String> order;
+
+        /**
+         * Whether the request was admitted, or null if still waiting.
+         */
+        private volatile Boolean admitted;
+
+        /**
+         * Creates a new Waiter which requests admission with the given
+         * priority once started.
+         *
+         * @param name
+         *     The name of this waiter.
+         *
+         * @param interactive
+         *     Whether the request is interactive.
+         *
+         * @param order
+         *     The list to which the name of this waiter is appended when
+         *     admitted, or null if admission order is not recorded.
+         */
+        public Waiter(String name, boolean interactive, List<String> order) {
+            super(name);
+            this.interactive = interactive;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+
+            admitted = dispatcher.acquire(config, interactive, Deadline.after(TIMEOUT));
+            if (!admitted)
+                return;
+
+            if (order != null)
+                order.add(getName());
+
+            dispatcher.release(interactive);
+
+        }
+
+        /**
+         * Starts this waiter and returns once it is waiting for admission.
+         *
+         * @return
+         *     This waiter.
+         *
+         * @throws InterruptedException
+         *     If interrupted while waiting for this waiter to begin waiting.
+         */
+        public Waiter startWaiting() throws InterruptedException {
+
+            start();
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (getState() != State.TIMED_WAITING && admitted == null
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+
+            assertNull("Waiter was admitted without waiting.", admitted);
+            return this;
+
+        }
+
+        /**
+         * Waits for this waiter to finish, returning whether it was
+         * admitted.
+         *
+         * @return
+         *     true if this waiter was admitted, false otherwise.
+         *
+         * @throws InterruptedException
+         *     If interrupted while waiting for this waiter to finish.
+         */
+        public boolean finish() throws InterruptedException {
+            join(TIMEOUT);
+            assertFalse("Waiter did not finish.", isAlive());
+            return admitted;
+        }
+
+    }
+
+    /**
+     * Creates a new dispatcher allowing four concurrent requests, half of
+     * which may be background requests.
+     */
+    @Before
+    public void setUp() {
+        dispatcher = new CallbackDispatcher();
+        config = mock(CallbackConfiguration.class);
+        when(config.getMaxRequests()).thenReturn(4);
+        when(config.getBackgroundShare()).thenReturn(50);
+    }
+
+    /**
+     * Verifies that all requests are admitted immediately if the number of
+     * concurrent requests is not limited.
+     */
+    @Test
+    public void testUnlimited() {
+
+        when(config.getMaxRequests()).thenReturn(0);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+            assertTrue(dispatcher.acquire(config, false, Deadline.after(SHORT_DEADLINE)));
+        }
+
+    }
+
+    /**
+     * Verifies that background requests are limited to their share even if
+     * further capacity is free, and that the remaining capacity stays
+     * available to interactive requests.
+     */
+    @Test
+    public void testBackgroundShare() {
+
+        assertTrue(dispatcher.acquire(config, false, Deadline.after(SHORT_DEADLINE)));
+        assertTrue(dispatcher.acquire(config, false, Deadline.after(SHORT_DEADLINE)));
+        assertFalse(dispatcher.acquire(config, false, Deadline.after(SHORT_DEADLINE)));
+
+        assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+        assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+        assertFalse(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+
+    }
+
+    /**
+     * Verifies that no background request is admitted if background work
+     * has no share, even if all capacity is free.
+     */
+    @Test
+    public void testNoBackgroundShare() {
+        when(config.getBackgroundShare()).thenReturn(0);
+        assertFalse(dispatcher.acquire(config, false, Deadline.after(SHORT_DEADLINE)));
+        assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+    }
+
+    /**
+     * Verifies that a released request is given to a waiting interactive
+     * request even if a background request has been waiting longer, and that
+     * the background request is admitted once no interactive request needs
+     * the capacity.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the waiters.
+     */
+    @Test
+    public void testInteractivePrecedence() throws InterruptedException {
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Waiter background = new Waiter("background", false, order).startWaiting();
+        Waiter interactive = new Waiter("interactive", true, order).startWaiting();
+
+        // The interactive request takes the first free slot
+        dispatcher.release(true);
+        assertTrue(interactive.finish());
+
+        // The background request then uses the capacity no longer needed
+        assertTrue(background.finish());
+        assertEquals(Arrays.asList("interactive", "background"), order);
+
+    }
+
+    /**
+     * Verifies that background requests are not starved once interactive
+     * requests stop waiting, even if every slot was taken by interactive
+     * requests.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the waiters.
+     */
+    @Test
+    public void testBackgroundNotStarved() throws InterruptedException {
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+
+        List<Waiter> background = new ArrayList<Waiter>();
+        for (int i = 0; i < 3; i++)
+            background.add(new Waiter("background-" + i, false, null).startWaiting());
+
+        for (int i = 0; i < 4; i++)
+            dispatcher.release(true);
+
+        for (Waiter waiter : background)
+            assertTrue(waiter.finish());
+
+    }
+
+    /**
+     * Verifies that interactive requests waiting for capacity are admitted
+     * in order of arrival.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the waiters.
+     */
+    @Test
+    public void testInteractiveFairness() throws InterruptedException {
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(dispatcher.acquire(config, true, Deadline.after(SHORT_DEADLINE)));
+
+        List<String> expected = new ArrayList<String>();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Waiter> waiters = new ArrayList<Waiter>();
+        for (int i = 0; i < 8; i++) {
+            expected.add("interactive-" + i);
+            waiters.add(new Waiter("interactive-" + i, true, order).startWaiting());
+        }
+
+        // Only one slot is freed, so each waiter is admitted only after the
+        // previous waiter releases its request
+        dispatcher.release(true);
+        for (Waiter waiter : waiters)
+            assertTrue(waiter.finish());
+
+        assertEquals(expected, order);
+
+    }
+
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Scopes;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.Credentials;
+import org.apache.guacamole.net.auth.credentials.GuacamoleInvalidCredentialsException;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test which sends thousands of concurrent authentication attempts
+ * through AuthenticationProviderService to a StubCallbackServer, verifying
+ * that each attempt either succeeds or is rejected as the stub dictates. A
+ * summary of each run is printed as key=value lines, in the same format as
+ * TrafficReplay, such that runs can be compared across versions.
+ */
+public class CallbackLoadTest {
+
+    /**
+     * The number of authentication attempts in each full run.
+     */
+    private static final int ATTEMPTS = 2000;
+
+    /**
+     * The number of authentication attempts in progress at once.
+     */
+    private static final int CONCURRENCY = 50;
+
+    /**
+     * The maximum time to wait for all attempts of a run to complete, in
+     * seconds.
+     */
+    private static final long COMPLETION_TIMEOUT = 120;
+
+    /**
+     * Temporary directory used as GUACAMOLE_HOME.
+     */
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    /**
+     * The callback receiving all authentication attempts.
+     */
+    private StubCallbackServer server;
+
+    /**
+     * The service through which all authentication attempts are made.
+     */
+    private AuthenticationProviderService authService;
+
+    /**
+     * The service watching the configuration of the provider under test.
+     */
+    private ConfigurationService confService;
+
+    /**
+     * The outcome of a single run of authentication attempts.
+     */
+    private static class Summary {
+
+        /**
+         * The number of attempts which succeeded.
+         */
+        private final AtomicInteger succeeded = new AtomicInteger();
+
+        /**
+         * The number of attempts which were rejected.
+         */
+        private final AtomicInteger rejected = new AtomicInteger();
+
+        /**
+         * The number of attempts which failed with any other error.
+         */
+        private final AtomicInteger failed = new AtomicInteger();
+
+        /**
+         * The duration of each attempt, in milliseconds.
+         */
+        private final List<Long> latencies =
+                Collections.synchronizedList(new ArrayList<Long>());
+
+    }
+
+    /**
+     * Handler which answers the methods of HttpServletRequest as if for a
+     * login from 10.0.0.1 with "username" and "password" parameters.
+     */
+    private static class RequestHandler implements InvocationHandler {
+
+        /**
+         * The values of all request parameters, keyed by parameter name.
+         */
+        private final Map<String, String[]> parameters =
+                new HashMap<String, String[]>();
+
+        /**
+         * Creates a new RequestHandler for a login with the given username
+         * and password.
+         *
+         * @param username
+         *     The value of the "username" parameter.
+         *
+         * @param password
+         *     The value of the "password" parameter.
+         */
+        public RequestHandler(String username, String password) {
+            parameters.put("username", new String[] { username });
+            parameters.put("password", new String[] { password });
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+
+            String name = method.getName();
+            if (name.equals("getRemoteAddr"))
+                return "10.0.0.1";
+            if (name.equals("getMethod"))
+                return "POST";
+            if (name.equals("getParameterMap"))
+                return Collections.unmodifiableMap(parameters);
+            if (name.equals("getParameterNames"))
+                return Collections.enumeration(parameters.keySet());
+            if (name.equals("getParameterValues"))
+                return parameters.get((String) args[0]);
+            if (name.equals("getParameter")) {
+                String[] values = parameters.get((String) args[0]);
+                return values != null ? values[0] : null;
+            }
+
+            // All other values are unset
+            Class<?> type = method.getReturnType();
+            if (type == Enumeration.class)
+                return Collections.enumeration(Collections.emptyList());
+            if (type == Integer.TYPE)
+                return -1;
+            if (type == Boolean.TYPE)
+                return false;
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Returns an Environment whose GUACAMOLE_HOME is the temporary
+     * directory, whose callback is the stub server, and whose other
+     * properties all have their default values.
+     *
+     * @return
+     *     The Environment used by the authentication provider.
+     *
+     * @throws GuacamoleException
+     *     If the Environment cannot be mocked.
+     */
+    private Environment getEnvironment() throws GuacamoleException {
+
+        Environment environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(home.getRoot());
+        when(environment.getRequiredProperty(ArgumentMatchers.<GuacamoleProperty<Object>>any()))
+                .thenReturn(server.getURI());
+
+        doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return invocation.getArgument(1);
+            }
+
+        }).when(environment).getProperty(
+                ArgumentMatchers.<GuacamoleProperty<Object>>any(),
+                ArgumentMatchers.any());
+
+        return environment;
+
+    }
+
+    /**
+     * Starts the stub callback and an authentication provider using it.
+     *
+     * @throws IOException
+     *     If the stub callback cannot be started.
+     *
+     * @throws GuacamoleException
+     *     If the Environment cannot be mocked.
+     */
+    @Before
+    public void setUp() throws IOException, GuacamoleException {
+
+        server = new StubCallbackServer(1);
+
+        final Environment environment = getEnvironment();
+        final AuthenticationProvider authProvider = mock(AuthenticationProvider.class);
+
+        // Equivalent to CallbackAuthenticationProviderModule, but using the
+        // mocked Environment
+        Injector injector = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(AuthenticationProvider.class).toInstance(authProvider);
+                bind(Environment.class).toInstance(environment);
+                bind(ObjectMapper.class).in(Scopes.SINGLETON);
+                bind(Client.class).toInstance(Client.create(
+                        new DefaultClientConfig(JacksonJsonProvider.class)));
+            }
+
+        });
+
+        confService = injector.getInstance(ConfigurationService.class);
+        confService.start();
+        authService = injector.getInstance(AuthenticationProviderService.class);
+
+    }
+
+    /**
+     * Stops the configuration watcher and the stub callback.
+     */
+    @After
+    public void tearDown() {
+        confService.stop();
+        server.stop();
+    }
+
+    /**
+     * Makes a single authentication attempt, recording its outcome and
+     * duration within the given summary.
+     *
+     * @param attempt
+     *     The number of the attempt, which determines the username.
+     *
+     * @param summary
+     *     The summary to record the outcome within.
+     */
+    private void authenticate(int attempt, Summary summary) {
+
+        String username = "user-" + attempt;
+        Credentials credentials = new Credentials();
+        credentials.setUsername(username);
+        credentials.setPassword("secret");
+        credentials.setRequest((HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new RequestHandler(username, "secret")));
+
+        long start = System.nanoTime();
+        try {
+            authService.authenticateUser(credentials);
+            summary.succeeded.incrementAndGet();
+        }
+        catch (GuacamoleInvalidCredentialsException e) {
+            summary.rejected.incrementAndGet();
+        }
+        catch (GuacamoleException e) {
+            summary.failed.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            summary.failed.incrementAndGet();
+        }
+        finally {
+            summary.latencies.add((System.nanoTime() - start) / 1000000);
+        }
+
+    }
+
+    /**
+     * Returns the given percentile of the given sorted latencies.
+     *
+     * @param sorted
+     *     The latencies, sorted in ascending order.
+     *
+     * @param percentile
+     *     The percentile to return, between 0 and 100 inclusive.
+     *
+     * @return
+     *     The given percentile of the given latencies, or 0 if there are no
+     *     latencies.
+     */
+    private static long getPercentile(List<Long> sorted, double percentile) {
+
+        if (sorted.isEmpty())
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+
+    }
+
+    /**
+     * Makes the given number of authentication attempts, CONCURRENCY at a
+     * time, and prints a summary of their outcomes, throughput, latency, and
+     * the threads and connections used.
+     *
+     * @param name
+     *     The name of the run, included within the summary.
+     *
+     * @param attempts
+     *     The number of authentication attempts to make.
+     *
+     * @return
+     *     The outcome of the run.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the attempts to complete.
+     */
+    private Summary run(String name, int attempts) throws InterruptedException {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        final Summary summary = new Summary();
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < attempts; i++) {
+            final int attempt = i;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    authenticate(attempt, summary);
+                }
+
+            });
+        }
+
+        executor.shutdown();
+        assertTrue("Attempts did not complete in time.",
+                executor.awaitTermination(COMPLETION_TIMEOUT, TimeUnit.SECONDS));
+
+        long duration = Math.max(1, (System.nanoTime() - start) / 1000000);
+        List<Long> sorted = new ArrayList<Long>(summary.latencies);
+        Collections.sort(sorted);
+
+        System.out.println("run=" + name);
+        System.out.println("attempts=" + attempts);
+        System.out.println("concurrency=" + CONCURRENCY);
+        System.out.println("succeeded=" + summary.succeeded.get());
+        System.out.println("rejected=" + summary.rejected.get());
+        System.out.println("failed=" + summary.failed.get());
+        System.out.println("duration_ms=" + duration);
+        System.out.println("throughput_per_s=" + (attempts * 1000L / duration));
+        System.out.println("latency_p50_ms=" + getPercentile(sorted, 50));
+        System.out.println("latency_p90_ms=" + getPercentile(sorted, 90));
+        System.out.println("latency_p99_ms=" + getPercentile(sorted, 99));
+        System.out.println("latency_max_ms=" + getPercentile(sorted, 100));
+        System.out.println("threads_peak=" + threads.getPeakThreadCount());
+        System.out.println("callback_requests=" + server.getRequests());
+        System.out.println("callback_requests_max_active=" + server.getMaxActive());
+        System.out.println("callback_connections=" + server.getConnections());
+
+        return summary;
+
+    }
+
+    /**
+     * Verifies that every attempt succeeds against a healthy callback with
+     * realistic latency and response size.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the attempts to complete.
+     */
+    @Test
+    public void testHealthy() throws InterruptedException {
+
+        server.setLatency(2, 5);
+        server.setConnections(50);
+
+        Summary summary = run("healthy", ATTEMPTS);
+        assertEquals(ATTEMPTS, summary.succeeded.get());
+        assertEquals(0, summary.failed.get());
+        assertEquals(ATTEMPTS, server.getRequests());
+
+    }
+
+    /**
+     * Verifies that attempts whose requests fail with a server error or a
+     * closed connection are rejected, while all others succeed, and that no
+     * failure escapes as any other error.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the attempts to complete.
+     */
+    @Test
+    public void testFaults() throws InterruptedException {
+
+        server.setLatency(1, 5);
+        server.setErrorRate(10);
+        server.setResetRate(5);
+
+        Summary summary = run("faults", ATTEMPTS);
+        assertEquals(0, summary.failed.get());
+        assertEquals(server.getSucceeded(), summary.succeeded.get());
+        assertEquals(ATTEMPTS - server.getSucceeded(), summary.rejected.get());
+        assertTrue(summary.rejected.get() > 0);
+
+    }
+
+    /**
+     * Verifies that every attempt is rejected, rather than failing with any
+     * other error, if the callback cannot be reached.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for the attempts to complete.
+     */
+    @Test
+    public void testUnreachable() throws InterruptedException {
+
+        server.stop();
+
+        Summary summary = run("unreachable", CONCURRENCY * 4);
+        assertEquals(CONCURRENCY * 4, summary.rejected.get());
+        assertEquals(0, summary.failed.get());
+
+    }
+
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.WebResource;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MediaType;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies the encoding of the requests built by
+ * CallbackRequestBuilder, and which measures the time taken and memory
+ * allocated per request compared to adding each parameter to a Jersey
+ * WebResource in turn, as CallbackService previously did.
+ */
+public class CallbackRequestBuilderTest {
+
+    /**
+     * The number of parameters within the request used for measurement.
+     */
+    private static final int PARAMETERS = 100;
+
+    /**
+     * The number of requests built before measuring, such that one-time
+     * allocations and compilation are excluded from the measurement.
+     */
+    private static final int WARM_UP_REQUESTS = 500;
+
+    /**
+     * The number of requests across which time and allocation are measured.
+     */
+    private static final int MEASURED_REQUESTS = 500;
+
+    /**
+     * The name of the parameter which is never forwarded.
+     */
+    private static final String DENIED_PARAMETER = "password";
+
+    /**
+     * The URI of the callback receiving all requests.
+     */
+    private static final URI CALLBACK_URI =
+            URI.create("https://callback.example.net/auth?tenant=a%20b#ignored");
+
+    /**
+     * Jersey client shared by the builder and the per-parameter approach.
+     */
+    private final Client client = Client.create();
+
+    /**
+     * The builder under test.
+     */
+    private CallbackRequestBuilder builder;
+
+    /**
+     * Creates the builder under test.
+     */
+    @Before
+    public void setUp() {
+
+        builder = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(Client.class).toInstance(client);
+            }
+
+        }).getInstance(CallbackRequestBuilder.class);
+
+    }
+
+    /**
+     * Returns a configuration which forwards every parameter except
+     * DENIED_PARAMETER using the given encoding. The configuration is read
+     * from a mocked environment, but is itself a real configuration, such
+     * that measurements do not include the overhead of mocking.
+     *
+     * @param encoding
+     *     The value of "callback-parameter-encoding".
+     *
+     * @return
+     *     A new configuration using the given encoding.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     */
+    private static CallbackConfiguration getConfiguration(String encoding)
+            throws GuacamoleException {
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("callback-parameter-encoding", encoding);
+        properties.put("callback-parameter-denylist", DENIED_PARAMETER);
+
+        Environment environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(new File("."));
+        when(environment.getRequiredProperty(ArgumentMatchers.<GuacamoleProperty<Object>>any()))
+                .thenReturn(CALLBACK_URI);
+
+        doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                GuacamoleProperty<?> property = invocation.getArgument(0);
+                if (!properties.containsKey(property.getName()))
+                    return invocation.getArgument(1);
+                return properties.get(property.getName());
+            }
+
+        }).when(environment).getProperty(
+                ArgumentMatchers.<GuacamoleProperty<Object>>any(),
+                ArgumentMatchers.any());
+
+        return new CallbackConfiguration(environment);
+
+    }
+
+    /**
+     * Returns a new HttpServletRequest having the given parameters.
+     *
+     * @param parameters
+     *     The parameters of the request, in order.
+     *
+     * @return
+     *     A new HttpServletRequest having the given parameters.
+     */
+    private static HttpServletRequest getRequest(
+            final Map<String, String[]> parameters) {
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getParameterMap"))
+                    return Collections.unmodifiableMap(parameters);
+                return null;
+            }
+
+        });
+
+    }
+
+    /**
+     * Returns parameters whose values require percent-encoding, including
+     * reserved characters, non-ASCII characters, a character outside the
+     * Basic Multilingual Plane and a parameter having several values.
+     *
+     * @return
+     *     New parameters requiring percent-encoding.
+     */
+    private static Map<String, String[]> getSpecialParameters() {
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put("username", new String[] { "alice smith" });
+        parameters.put(DENIED_PARAMETER, new String[] { "secret" });
+        parameters.put("a&b=c", new String[] { "x/y?z#w%" });
+        parameters.put("locale", new String[] { "fr\u00E9", "\u65E5\u672C", "\uD83D\uDE00" });
+        parameters.put("unreserved", new String[] { "AZaz09-._~" });
+        return parameters;
+
+    }
+
+    /**
+     * Returns PARAMETERS parameters having typical names and values, such
+     * as those of a login form with additional hidden fields.
+     *
+     * @return
+     *     PARAMETERS new parameters.
+     */
+    private static Map<String, String[]> getManyParameters() {
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < PARAMETERS; i++)
+            parameters.put("field-" + i, new String[] { "value " + i + " \u00E9" });
+        return parameters;
+
+    }
+
+    /**
+     * Adds every parameter of the given request to the given WebResource in
+     * turn, as CallbackService did before CallbackRequestBuilder existed.
+     * Each call to queryParam() creates a new WebResource and re-encodes the
+     * entire URI.
+     *
+     * @param request
+     *     The request whose parameters should be added.
+     *
+     * @param resource
+     *     The WebResource to add parameters to.
+     *
+     * @return
+     *     A new WebResource having all parameters of the given request.
+     */
+    @SuppressWarnings("unchecked") // getParameterMap() is defined as returning Map<String, String[]>
+    private static WebResource copyParameters(HttpServletRequest request,
+            WebResource resource) {
+
+        Map<String, String[]> parameterMap = (Map<String, String[]>)
+                request.getParameterMap();
+
+        for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+            String name = entry.getKey();
+            for (String value : entry.getValue())
+                resource = resource.queryParam(name, value);
+        }
+
+        return resource;
+
+    }
+
+    /**
+     * Decodes the given "application/x-www-form-urlencoded" data into a list
+     * of "NAME=VALUE" strings, in order.
+     *
+     * @param encoded
+     *     The encoded data.
+     *
+     * @return
+     *     The decoded name/value pairs, in order.
+     *
+     * @throws UnsupportedEncodingException
+     *     If UTF-8 is not supported.
+     */
+    private static List<String> decode(String encoded)
+            throws UnsupportedEncodingException {
+
+        List<String> pairs = new ArrayList<String>();
+        for (String pair : encoded.split("&")) {
+            int equals = pair.indexOf('=');
+            pairs.add(URLDecoder.decode(pair.substring(0, equals), "UTF-8")
+                    + "=" + URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+
+        return pairs;
+
+    }
+
+    /**
+     * Verifies that query string encoding appends every forwarded parameter
+     * to the existing query string, omits the fragment, and produces the
+     * same parameters as the per-parameter approach.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     *
+     * @throws UnsupportedEncodingException
+     *     If UTF-8 is not supported.
+     */
+    @Test
+    public void testQueryEncoding() throws GuacamoleException,
+            UnsupportedEncodingException {
+
+        Map<String, String[]> parameters = getSpecialParameters();
+        CallbackRequest request = builder.build(
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_QUERY),
+                CALLBACK_URI, getRequest(parameters));
+        assertNull(request.getEntity());
+
+        URI uri = request.getResource().getURI();
+        assertEquals("https://callback.example.net/auth", uri.toString().substring(0,
+                uri.toString().indexOf('?')));
+        assertNull(uri.getRawFragment());
+        assertEquals("tenant=a%20b&username=alice%20smith"
+                + "&a%26b%3Dc=x%2Fy%3Fz%23w%25"
+                + "&locale=fr%C3%A9&locale=%E6%97%A5%E6%9C%AC&locale=%F0%9F%98%80"
+                + "&unreserved=AZaz09-._~", uri.getRawQuery());
+
+        // Decoded parameters match those added one at a time, except for
+        // characters outside the Basic Multilingual Plane, which Jersey
+        // encodes as two separate (and invalid) UTF-8 sequences
+        parameters.remove(DENIED_PARAMETER);
+        parameters.put("locale", new String[] { "fr\u00E9", "\u65E5\u672C" });
+        uri = builder.build(
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_QUERY),
+                CALLBACK_URI, getRequest(parameters)).getResource().getURI();
+        URI expected = copyParameters(getRequest(parameters),
+                client.resource("https://callback.example.net/auth?tenant=a%20b")).getURI();
+        assertEquals(decode(expected.getRawQuery()), decode(uri.getRawQuery()));
+
+    }
+
+    /**
+     * Verifies that no query delimiter is added if no parameters are
+     * forwarded.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     */
+    @Test
+    public void testNoForwardedParameters() throws GuacamoleException {
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put(DENIED_PARAMETER, new String[] { "secret" });
+
+        URI uri = URI.create("https://callback.example.net/auth");
+        assertEquals(uri, builder.build(
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_QUERY),
+                uri, getRequest(parameters)).getResource().getURI());
+
+    }
+
+    /**
+     * Verifies that form encoding sends every forwarded parameter within the
+     * body, leaving the URI unchanged.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     *
+     * @throws UnsupportedEncodingException
+     *     If UTF-8 is not supported.
+     */
+    @Test
+    public void testFormEncoding() throws GuacamoleException,
+            UnsupportedEncodingException {
+
+        CallbackConfiguration config =
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_FORM);
+
+        URI uri = URI.create("https://callback.example.net/auth");
+        CallbackRequest request = builder.build(config, uri,
+                getRequest(getSpecialParameters()));
+
+        assertEquals(uri, request.getResource().getURI());
+        assertEquals(MediaType.APPLICATION_FORM_URLENCODED, request.getType());
+        assertEquals("username=alice%20smith&a%26b%3Dc=x%2Fy%3Fz%23w%25"
+                + "&locale=fr%C3%A9&locale=%E6%97%A5%E6%9C%AC&locale=%F0%9F%98%80"
+                + "&unreserved=AZaz09-._~", new String(request.getEntity(), "UTF-8"));
+
+    }
+
+    /**
+     * Verifies that JSON encoding maps each forwarded parameter to an array
+     * of its values, escaping characters as required by JSON.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     *
+     * @throws UnsupportedEncodingException
+     *     If UTF-8 is not supported.
+     */
+    @Test
+    public void testJSONEncoding() throws GuacamoleException,
+            UnsupportedEncodingException {
+
+        CallbackConfiguration config =
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_JSON);
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put("username", new String[] { "alice \"al\" \\ smith\n" });
+        parameters.put(DENIED_PARAMETER, new String[] { "secret" });
+        parameters.put("locale", new String[] { "fr\u00E9", "en" });
+
+        CallbackRequest request = builder.build(config, CALLBACK_URI,
+                getRequest(parameters));
+
+        assertEquals(MediaType.APPLICATION_JSON, request.getType());
+        assertEquals("{\"username\":[\"alice \\\"al\\\" \\\\ smith\\u000A\"],"
+                + "\"locale\":[\"fr\u00E9\",\"en\"]}",
+                new String(request.getEntity(), "UTF-8"));
+
+    }
+
+    /**
+     * Verifies that parameters given directly, as sent to the connection
+     * parameters endpoint, are encoded and filtered like the parameters of
+     * an authentication attempt.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     *
+     * @throws UnsupportedEncodingException
+     *     If UTF-8 is not supported.
+     */
+    @Test
+    public void testParameterMap() throws GuacamoleException,
+            UnsupportedEncodingException {
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put(DENIED_PARAMETER, new String[] { "secret" });
+        parameters.put("connection", new String[] { "rdp 1" });
+
+        URI uri = URI.create("https://callback.example.net/parameters");
+        assertEquals(URI.create(uri + "?connection=rdp%201"), builder.build(
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_QUERY),
+                uri, parameters).getResource().getURI());
+
+        CallbackRequest request = builder.build(
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_FORM),
+                uri, parameters);
+        assertEquals(uri, request.getResource().getURI());
+        assertEquals("connection=rdp%201", new String(request.getEntity(), "UTF-8"));
+
+    }
+
+    /**
+     * Builds the URI of a request having the given parameters, using either
+     * CallbackRequestBuilder or the per-parameter approach.
+     *
+     * @param config
+     *     The configuration defining how parameters are forwarded.
+     *
+     * @param request
+     *     The request whose parameters should be forwarded.
+     *
+     * @param perParameter
+     *     Whether each parameter should be added to a WebResource in turn
+     *     rather than using CallbackRequestBuilder.
+     *
+     * @return
+     *     The URI of the built request.
+     */
+    private URI build(CallbackConfiguration config, HttpServletRequest request,
+            boolean perParameter) {
+
+        if (perParameter)
+            return copyParameters(request, client.resource(CALLBACK_URI)).getURI();
+
+        return builder.build(config, CALLBACK_URI, request).getResource().getURI();
+
+    }
+
+    /**
+     * Measures the average time taken and memory allocated by the current
+     * thread for each request built using the given approach.
+     *
+     * @param threads
+     *     The ThreadMXBean which measures allocation by the current thread.
+     *
+     * @param config
+     *     The configuration defining how parameters are forwarded.
+     *
+     * @param request
+     *     The request whose parameters should be forwarded.
+     *
+     * @param perParameter
+     *     Whether each parameter should be added to a WebResource in turn
+     *     rather than using CallbackRequestBuilder.
+     *
+     * @return
+     *     The average number of nanoseconds taken and bytes allocated per
+     *     request, in that order.
+     */
+    private long[] measure(com.sun.management.ThreadMXBean threads,
+            CallbackConfiguration config, HttpServletRequest request,
+            boolean perParameter) {
+
+        for (int i = 0; i < WARM_UP_REQUESTS; i++)
+            assertNotNull(build(config, request, perParameter));
+
+        long thread = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(thread);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MEASURED_REQUESTS; i++)
+            assertNotNull(build(config, request, perParameter));
+
+        return new long[] {
+            (System.nanoTime() - startTime) / MEASURED_REQUESTS,
+            (threads.getThreadAllocatedBytes(thread) - startBytes) / MEASURED_REQUESTS
+        };
+
+    }
+
+    /**
+     * Measures the time taken and memory allocated per request by
+     * CallbackRequestBuilder and by adding each parameter to a WebResource
+     * in turn, verifying that CallbackRequestBuilder allocates less. The
+     * measurements are printed for comparison between revisions. Timings are
+     * not asserted, as they vary with the load of the machine running the
+     * test. This test is skipped if the JVM cannot measure allocation per
+     * thread.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     */
+    @Test
+    public void testPerformance() throws GuacamoleException {
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        CallbackConfiguration config =
+                getConfiguration(CallbackConfiguration.PARAMETER_ENCODING_QUERY);
+        HttpServletRequest request = getRequest(getManyParameters());
+        long[] perParameter = measure(threads, config, request, true);
+        long[] single = measure(threads, config, request, false);
+
+        System.out.printf("Callback request (%d parameters): per-parameter "
+                + "WebResource takes %d ns and allocates %d bytes/request, "
+                + "CallbackRequestBuilder takes %d ns and allocates %d "
+                + "bytes/request.%n", PARAMETERS, perParameter[0],
+                perParameter[1], single[0], single[1]);
+
+        assertTrue(single[1] < perParameter[1]);
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that FanOutService reports merged results as live only
+ * if every additional callback contributed its connections.
+ */
+public class FanOutServiceTest {
+
+    /**
+     * Returns a completed pending result of an additional callback.
+     *
+     * @param task
+     *     The task producing the result.
+     *
+     * @return
+     *     A completed Future containing the outcome of the given task.
+     */
+    private static Future<UserData> complete(Callable<UserData> task) {
+        FutureTask<UserData> future = new FutureTask<UserData>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Returns the configuration used by all tests, which uses the "first"
+     * merge policy.
+     *
+     * @return
+     *     The configuration used by all tests.
+     */
+    private static CallbackConfiguration getConfiguration() {
+        CallbackConfiguration config = mock(CallbackConfiguration.class);
+        when(config.getMergePolicy()).thenReturn(CallbackConfiguration.MERGE_POLICY_FIRST);
+        return config;
+    }
+
+    /**
+     * Verifies that a live result remains live if every additional callback
+     * responds.
+     */
+    @Test
+    public void testCompleteMergeIsLive() {
+
+        Map<String, Future<UserData>> pending = new LinkedHashMap<String, Future<UserData>>();
+        pending.put("extra", complete(new Callable<UserData>() {
+
+            @Override
+            public UserData call() {
+                return new UserData();
+            }
+
+        }));
+
+        CallbackResult result = new FanOutService().merge(getConfiguration(),
+                CallbackResult.live(new UserData()), pending, Deadline.after(10000));
+
+        assertNotNull(result.getUserData());
+        assertTrue(result.isLive());
+
+    }
+
+    /**
+     * Verifies that a live result is no longer live if an additional
+     * callback fails, as the merged result lacks that callback's
+     * connections.
+     */
+    @Test
+    public void testPartialMergeIsNotLive() {
+
+        Map<String, Future<UserData>> pending = new LinkedHashMap<String, Future<UserData>>();
+        pending.put("extra", complete(new Callable<UserData>() {
+
+            @Override
+            public UserData call() throws IOException {
+                throw new IOException("Simulated failure.");
+            }
+
+        }));
+
+        CallbackResult result = new FanOutService().merge(getConfiguration(),
+                CallbackResult.live(new UserData()), pending, Deadline.after(10000));
+
+        assertNotNull(result.getUserData());
+        assertFalse(result.isLive());
+
+    }
+
+    /**
+     * Verifies that a fallback remains a fallback even if there are no
+     * additional callbacks.
+     */
+    @Test
+    public void testFallbackRemainsFallback() {
+
+        CallbackResult result = new FanOutService().merge(getConfiguration(),
+                CallbackResult.fallback(new UserData()),
+                Collections.<String, Future<UserData>>emptyMap(),
+                Deadline.after(10000));
+
+        assertNotNull(result.getUserData());
+        assertFalse(result.isLive());
+
+    }
+
+    /**
+     * Verifies that additional callbacks cannot authenticate a user that the
+     * authentication callback rejected.
+     */
+    @Test
+    public void testRejectionNotMerged() {
+
+        Map<String, Future<UserData>> pending = new LinkedHashMap<String, Future<UserData>>();
+        pending.put("extra", complete(new Callable<UserData>() {
+
+            @Override
+            public UserData call() {
+                return new UserData();
+            }
+
+        }));
+
+        CallbackResult result = new FanOutService().merge(getConfiguration(),
+                CallbackResult.REJECTED, pending, Deadline.after(10000));
+
+        assertNull(result.getUserData());
+        assertFalse(result.isLive());
+
+    }
+
+}
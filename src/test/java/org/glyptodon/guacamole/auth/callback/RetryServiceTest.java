@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.core.header.InBoundHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that RetryService retries only failures which
+ * guarantee that the callback did not process the request, holds the slot of
+ * each request until its response is closed, and bounds the reading of each
+ * response by the deadline.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class RetryServiceTest {
+
+    /**
+     * The media type accepted in response to each request.
+     */
+    private static final String ACCEPT = "application/json";
+
+    @Spy
+    private CallbackDispatcher dispatcher = new CallbackDispatcher();
+
+    @Mock
+    private CallbackConfiguration config;
+
+    @Mock
+    private WebResource resource;
+
+    @Mock
+    private WebResource.Builder builder;
+
+    @Mock
+    private ClientResponse response;
+
+    @InjectMocks
+    private RetryService retryService;
+
+    /**
+     * Configures two retries with negligible backoff, and a resource whose
+     * requests are sent through the mocked builder.
+     */
+    @Before
+    public void setUp() {
+        when(config.getRetries()).thenReturn(2);
+        when(config.getRetryBackoff()).thenReturn(1);
+        when(config.getRetryBudget()).thenReturn(100);
+        when(resource.accept(ACCEPT)).thenReturn(builder);
+        when(builder.header(anyString(), any())).thenReturn(builder);
+        when(response.getStatus()).thenReturn(200);
+    }
+
+    /**
+     * Returns a failure of the HTTP client caused by the given exception.
+     *
+     * @param cause
+     *     The cause of the failure.
+     *
+     * @return
+     *     A ClientHandlerException wrapping the given cause.
+     */
+    private static ClientHandlerException failure(Exception cause) {
+        return new ClientHandlerException(cause);
+    }
+
+    /**
+     * Verifies that only failures to establish the connection are considered
+     * retryable.
+     */
+    @Test
+    public void testFailureClassification() {
+        assertTrue(RetryService.isRetryable(failure(new ConnectException("Connection refused"))));
+        assertTrue(RetryService.isRetryable(failure(new NoRouteToHostException("No route to host"))));
+        assertFalse(RetryService.isRetryable(failure(new SocketException("Connection reset"))));
+        assertFalse(RetryService.isRetryable(failure(new SocketTimeoutException("Read timed out"))));
+        assertFalse(RetryService.isRetryable(failure(new UnknownHostException("example.invalid"))));
+        assertFalse(RetryService.isRetryable(new ClientHandlerException("Deadline expired")));
+    }
+
+    /**
+     * Verifies that only responses indicating a temporarily unavailable
+     * callback are considered retryable.
+     */
+    @Test
+    public void testStatusClassification() {
+        assertTrue(RetryService.isRetryable(502));
+        assertTrue(RetryService.isRetryable(503));
+        assertTrue(RetryService.isRetryable(504));
+        assertFalse(RetryService.isRetryable(200));
+        assertFalse(RetryService.isRetryable(403));
+        assertFalse(RetryService.isRetryable(500));
+    }
+
+    /**
+     * Verifies that a refused connection is retried.
+     */
+    @Test
+    public void testRetryRefused() {
+
+        when(builder.post(ClientResponse.class))
+                .thenThrow(failure(new ConnectException("Connection refused")))
+                .thenReturn(response);
+
+        assertSame(response, retryService.post(new CallbackRequest(resource),
+                ACCEPT, config, Deadline.NONE));
+        verify(builder, times(2)).post(ClientResponse.class);
+
+    }
+
+    /**
+     * Verifies that a connection reset after the request may have been sent
+     * is not retried.
+     */
+    @Test
+    public void testNoRetryReset() {
+
+        when(builder.post(ClientResponse.class))
+                .thenThrow(failure(new SocketException("Connection reset")))
+                .thenReturn(response);
+
+        try {
+            retryService.post(new CallbackRequest(resource), ACCEPT, config,
+                    Deadline.NONE);
+            fail("A reset connection must not be retried.");
+        }
+        catch (ClientHandlerException e) {
+            verify(builder, times(1)).post(ClientResponse.class);
+        }
+
+    }
+
+    /**
+     * Verifies that nothing is retried if retries are disabled, as they are
+     * by default.
+     */
+    @Test
+    public void testRetriesDisabled() {
+
+        when(config.getRetries()).thenReturn(0);
+        when(builder.post(ClientResponse.class))
+                .thenThrow(failure(new ConnectException("Connection refused")))
+                .thenReturn(response);
+
+        try {
+            retryService.post(new CallbackRequest(resource), ACCEPT, config,
+                    Deadline.NONE);
+            fail("Failures must not be retried if retries are disabled.");
+        }
+        catch (ClientHandlerException e) {
+            verify(builder, times(1)).post(ClientResponse.class);
+        }
+
+    }
+
+    /**
+     * Returns a new response having the given body, as would be returned by
+     * the HTTP client.
+     *
+     * @param body
+     *     The body of the response.
+     *
+     * @return
+     *     A new response having the given body.
+     */
+    private static ClientResponse getResponse(String body) {
+        return new ClientResponse(200, new InBoundHeaders(),
+                new ByteArrayInputStream(body.getBytes()), null);
+    }
+
+    /**
+     * Verifies that the slot admitting a request is released only once its
+     * response is closed, and only once regardless of how many times the
+     * response is closed.
+     *
+     * @throws IOException
+     *     If the body of the response cannot be read.
+     */
+    @Test
+    public void testSlotHeldUntilClosed() throws IOException {
+
+        when(builder.post(ClientResponse.class)).thenReturn(getResponse("{}"));
+
+        ClientResponse received = retryService.post(new CallbackRequest(resource),
+                ACCEPT, config, Deadline.NONE);
+
+        InputStream body = received.getEntityInputStream();
+        assertEquals('{', body.read());
+        verify(dispatcher, never()).release(true);
+
+        received.close();
+        received.close();
+        verify(dispatcher, times(1)).release(true);
+
+    }
+
+    /**
+     * Verifies that reading the body of a response fails once the deadline
+     * expires, even if the body is still being received.
+     *
+     * @throws IOException
+     *     If the body of the response cannot be read before the deadline.
+     */
+    @Test
+    public void testDeadlineWhileReading() throws IOException {
+
+        when(builder.post(ClientResponse.class)).thenReturn(getResponse("{}"));
+
+        Deadline deadline = Deadline.after(50);
+        ClientResponse received = retryService.post(new CallbackRequest(resource),
+                ACCEPT, config, deadline);
+
+        InputStream body = received.getEntityInputStream();
+        assertEquals('{', body.read());
+
+        // Further reads fail once the deadline has expired
+        while (!deadline.isExpired())
+            Thread.yield();
+
+        try {
+            body.read();
+            fail("Reads must fail once the deadline has expired.");
+        }
+        catch (SocketTimeoutException e) {
+            received.close();
+            verify(dispatcher, times(1)).release(true);
+        }
+
+    }
+
+}
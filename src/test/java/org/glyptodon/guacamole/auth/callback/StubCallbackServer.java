@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An authentication callback running within the test JVM, which responds to
+ * every request with the same UserData after a configurable latency, and
+ * which fails a configurable percentage of requests with either a server
+ * error or an abruptly closed connection. Random choices are seeded, such
+ * that the same sequence of requests sees the same faults.
+ */
+public class StubCallbackServer {
+
+    /**
+     * The maximum number of bytes of each request body which are read and
+     * discarded before responding.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The underlying HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * The threads handling requests, one per request in progress.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Source of simulated latency and faults.
+     */
+    private final Random random;
+
+    /**
+     * The minimum latency of each response, in milliseconds.
+     */
+    private volatile int latency;
+
+    /**
+     * The mean of the additional, exponentially-distributed latency of each
+     * response, in milliseconds.
+     */
+    private volatile int latencyTail;
+
+    /**
+     * The percentage of requests which fail with a server error.
+     */
+    private volatile int errorRate;
+
+    /**
+     * The percentage of requests whose connection is closed without any
+     * response.
+     */
+    private volatile int resetRate;
+
+    /**
+     * The body of each successful response.
+     */
+    private volatile byte[] response;
+
+    /**
+     * The number of requests received.
+     */
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * The number of requests which received a successful response.
+     */
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    /**
+     * The number of requests currently being handled.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * The largest number of requests handled at once.
+     */
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    /**
+     * The address and port of each distinct client connection, such that
+     * reuse of connections by the HTTP client can be measured.
+     */
+    private final Set<InetSocketAddress> clients = Collections.newSetFromMap(
+            new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+    /**
+     * Creates and starts a new StubCallbackServer listening on an ephemeral
+     * port of the loopback interface, which responds with UserData
+     * containing a single connection and without any latency or faults.
+     *
+     * @param seed
+     *     The seed of the random latency and faults.
+     *
+     * @throws IOException
+     *     If the server cannot be started.
+     */
+    public StubCallbackServer(long seed) throws IOException {
+
+        random = new Random(seed);
+        setConnections(1);
+
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+
+                int current = active.incrementAndGet();
+                int max = maxActive.get();
+                while (current > max && !maxActive.compareAndSet(max, current))
+                    max = maxActive.get();
+
+                try {
+                    respond(exchange);
+                }
+                finally {
+                    active.decrementAndGet();
+                }
+
+            }
+
+        });
+        server.setExecutor(executor);
+        server.start();
+
+    }
+
+    /**
+     * Sets the latency of each response, in milliseconds. Each response is
+     * delayed by the given minimum plus a random, exponentially-distributed
+     * duration having the given mean, such that most responses are fast but
+     * a few are much slower.
+     *
+     * @param latency
+     *     The minimum latency of each response, in milliseconds.
+     *
+     * @param latencyTail
+     *     The mean of the additional latency of each response, in
+     *     milliseconds.
+     */
+    public void setLatency(int latency, int latencyTail) {
+        this.latency = latency;
+        this.latencyTail = latencyTail;
+    }
+
+    /**
+     * Sets the percentage of requests which fail with a server error.
+     *
+     * @param errorRate
+     *     The percentage of requests which should fail with a server error,
+     *     between 0 and 100 inclusive.
+     */
+    public void setErrorRate(int errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the percentage of requests whose connection is closed without any
+     * response.
+     *
+     * @param resetRate
+     *     The percentage of requests whose connection should be closed
+     *     without any response, between 0 and 100 inclusive.
+     */
+    public void setResetRate(int resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    /**
+     * Sets the number of connections defined by the UserData within each
+     * successful response, and thus the size of that response.
+     *
+     * @param connections
+     *     The number of connections which each successful response should
+     *     define.
+     */
+    public void setConnections(int connections) {
+
+        StringBuilder json = new StringBuilder("{\"connections\":{");
+        for (int i = 0; i < connections; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("\"conn-").append(i).append("\":{")
+                .append("\"protocol\":\"rdp\",")
+                .append("\"parameters\":{")
+                    .append("\"hostname\":\"host-").append(i).append(".example.net\",")
+                    .append("\"port\":\"3389\",")
+                    .append("\"username\":\"${GUAC_USERNAME}\"}}");
+        }
+
+        try {
+            response = json.append("}}").toString().getBytes("UTF-8");
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    /**
+     * Returns a random latency for a single response, as defined by
+     * setLatency().
+     *
+     * @return
+     *     The latency of a single response, in milliseconds.
+     */
+    private long nextLatency() {
+
+        int tail = latencyTail;
+        if (tail == 0)
+            return latency;
+
+        double uniform;
+        synchronized (random) {
+            uniform = random.nextDouble();
+        }
+
+        return latency + (long) (-Math.log(1 - uniform) * tail);
+
+    }
+
+    /**
+     * Returns a random integer between 0 inclusive and 100 exclusive, used
+     * to choose whether a request fails.
+     *
+     * @return
+     *     A random integer between 0 and 99 inclusive.
+     */
+    private int nextPercent() {
+        synchronized (random) {
+            return random.nextInt(100);
+        }
+    }
+
+    /**
+     * Handles a single request, waiting for the simulated latency and then
+     * responding or failing as configured.
+     *
+     * @param exchange
+     *     The request and its response.
+     *
+     * @throws IOException
+     *     If the request cannot be read or the response cannot be written.
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+
+        requests.incrementAndGet();
+        clients.add(exchange.getRemoteAddress());
+
+        // Consume the request body, as a real callback would
+        InputStream body = exchange.getRequestBody();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (body.read(buffer) != -1) {
+            // Discard
+        }
+
+        try {
+            Thread.sleep(nextLatency());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Close the connection without responding
+        int fault = nextPercent();
+        if (fault < resetRate) {
+            exchange.close();
+            return;
+        }
+
+        // Fail with a server error
+        if (fault < resetRate + errorRate) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] json = response;
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.length);
+
+        OutputStream output = exchange.getResponseBody();
+        try {
+            output.write(json);
+        }
+        finally {
+            output.close();
+        }
+
+        succeeded.incrementAndGet();
+
+    }
+
+    /**
+     * Returns the URI of this callback.
+     *
+     * @return
+     *     The URI of this callback.
+     */
+    public URI getURI() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getAddress().getHostAddress()
+                + ":" + address.getPort() + "/callback");
+    }
+
+    /**
+     * Returns the number of requests received.
+     *
+     * @return
+     *     The number of requests received.
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of requests which received a successful response.
+     *
+     * @return
+     *     The number of requests which received a successful response.
+     */
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * Returns the largest number of requests handled at once.
+     *
+     * @return
+     *     The largest number of requests handled at once.
+     */
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    /**
+     * Returns the number of distinct connections over which requests were
+     * received.
+     *
+     * @return
+     *     The number of distinct client connections.
+     */
+    public int getConnections() {
+        return clients.size();
+    }
+
+    /**
+     * Stops this server, closing all connections. Further attempts to
+     * connect are refused.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
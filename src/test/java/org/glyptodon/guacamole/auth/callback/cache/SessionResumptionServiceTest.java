@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Credentials;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that session resumption tokens are accepted only for
+ * authentication attempts of the tenant they were issued for.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class SessionResumptionServiceTest {
+
+    @Mock
+    private ConfigurationService confService;
+
+    @Spy
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @InjectMocks
+    private SessionResumptionService resumptionService;
+
+    /**
+     * The keyring file containing the key which signs all tokens.
+     */
+    private File keyring;
+
+    /**
+     * The UserData which all tokens are issued for.
+     */
+    private final UserData userData = new UserData();
+
+    /**
+     * A tenant routed by host name.
+     */
+    private final Tenant tenantA = new Tenant("a", Tenant.MATCH_HOST,
+            "a.example.net", URI.create("https://a.example.net/callback"), 0);
+
+    /**
+     * Another tenant routed by host name.
+     */
+    private final Tenant tenantB = new Tenant("b", Tenant.MATCH_HOST,
+            "b.example.net", URI.create("https://b.example.net/callback"), 0);
+
+    /**
+     * Writes a keyring containing a single key, and configures tokens to
+     * expire after five minutes.
+     *
+     * @throws IOException
+     *     If the keyring cannot be written.
+     *
+     * @throws GuacamoleException
+     *     Never, as the ConfigurationService is mocked.
+     */
+    @Before
+    public void setUp() throws IOException, GuacamoleException {
+
+        keyring = File.createTempFile("callback-keyring", "");
+        OutputStream output = new FileOutputStream(keyring);
+        try {
+            output.write("test secret-key\n".getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+
+        when(confService.getKeyringFile()).thenReturn(keyring);
+        when(confService.getResumeTTL()).thenReturn(300);
+        userData.setUsername("alice");
+
+    }
+
+    /**
+     * Deletes the keyring file.
+     */
+    @After
+    public void tearDown() {
+        keyring.delete();
+    }
+
+    /**
+     * Returns credentials whose request presents the given session
+     * resumption token.
+     *
+     * @param token
+     *     The session resumption token to present.
+     *
+     * @return
+     *     New credentials presenting the given token.
+     */
+    private static Credentials getCredentials(final String token) {
+
+        Credentials credentials = new Credentials();
+        credentials.setRequest((HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getParameter")
+                        && SessionResumptionService.RESUME_TOKEN_PARAMETER.equals(args[0]))
+                    return token;
+                return null;
+            }
+
+        }));
+
+        return credentials;
+
+    }
+
+    /**
+     * Verifies that a token is accepted for the tenant it was issued for,
+     * and rejected for any other tenant or for requests of no tenant.
+     *
+     * @throws GuacamoleException
+     *     If a token cannot be issued.
+     */
+    @Test
+    public void testTenantBound() throws GuacamoleException {
+
+        String token = resumptionService.issue(userData, tenantA);
+        assertNotNull(token);
+
+        Credentials credentials = getCredentials(token);
+        assertSame(userData, resumptionService.resume(credentials, tenantA));
+        assertNull(resumptionService.resume(credentials, tenantB));
+        assertNull(resumptionService.resume(credentials, null));
+
+    }
+
+    /**
+     * Verifies that a token issued for requests of no tenant is rejected for
+     * requests of a tenant.
+     *
+     * @throws GuacamoleException
+     *     If a token cannot be issued.
+     */
+    @Test
+    public void testNoTenant() throws GuacamoleException {
+
+        Credentials credentials = getCredentials(resumptionService.issue(userData, null));
+        assertSame(userData, resumptionService.resume(credentials, null));
+        assertNull(resumptionService.resume(credentials, tenantA));
+
+    }
+
+    /**
+     * Verifies that altering the tenant within a token invalidates its
+     * signature.
+     *
+     * @throws GuacamoleException
+     *     If a token cannot be issued.
+     */
+    @Test
+    public void testTenantSigned() throws GuacamoleException {
+
+        String token = resumptionService.issue(userData, tenantA);
+        String[] fields = token.split("\\.");
+        String forged = fields[0] + "." + CacheCipher.toHex("b".getBytes())
+                + "." + fields[2] + "." + fields[3] + "." + fields[4];
+
+        assertNull(resumptionService.resume(getCredentials(forged), tenantB));
+
+    }
+
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.cache;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Provider;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.user.UserData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which verifies that responses cached by one Guacamole server through
+ * SharedDirectoryUserDataCache are visible to other servers sharing the same
+ * directory. Each server is a separate JVM running Server, such that the
+ * servers share nothing besides the directory.
+ */
+public class SharedDirectoryUserDataCacheTest {
+
+    /**
+     * The key under which responses are cached.
+     */
+    private static final String KEY =
+            "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff";
+
+    /**
+     * A key differing from KEY.
+     */
+    private static final String OTHER_KEY =
+            "ffeeddccbbaa99887766554433221100ffeeddccbbaa99887766554433221100";
+
+    /**
+     * The lifetime of cached responses, in seconds.
+     */
+    private static final int TTL = 60;
+
+    /**
+     * The prefix of each line written by Server in response to a command,
+     * distinguishing responses from any logging of the server.
+     */
+    private static final String RESPONSE_PREFIX = "= ";
+
+    /**
+     * The response of Server to commands which produce no value.
+     */
+    private static final String OK = "ok";
+
+    /**
+     * The response of Server to "get" when no response is cached.
+     */
+    private static final String MISS = "miss";
+
+    /**
+     * The directory shared by all servers.
+     */
+    private File directory;
+
+    /**
+     * All servers started by the current test.
+     */
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    /**
+     * A Guacamole server running within its own JVM, controlled through its
+     * standard input and output.
+     */
+    private class Node {
+
+        /**
+         * The JVM running Server.
+         */
+        private final Process process;
+
+        /**
+         * Writer for the standard input of the server.
+         */
+        private final Writer commands;
+
+        /**
+         * Reader for the standard output of the server.
+         */
+        private final BufferedReader responses;
+
+        /**
+         * Starts a new server which caches responses within the shared
+         * directory.
+         *
+         * @throws IOException
+         *     If the JVM cannot be started.
+         */
+        public Node() throws IOException {
+
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+
+            // Inherit the options of this JVM, except those which would
+            // conflict with this JVM, such as debugging
+            for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!argument.startsWith("-agentlib:") && !argument.startsWith("-Xrunjdwp"))
+                    command.add(argument);
+            }
+
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Server.class.getName());
+            command.add(directory.getPath());
+
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            commands = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            responses = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+
+        }
+
+        /**
+         * Sends the given command to the server, waiting for its response.
+         *
+         * @param command
+         *     The command to send.
+         *
+         * @return
+         *     The response of the server.
+         *
+         * @throws IOException
+         *     If the server exits before responding.
+         */
+        public String send(String command) throws IOException {
+
+            commands.write(command + "\n");
+            commands.flush();
+
+            // Skip anything logged by the server
+            String line;
+            while ((line = responses.readLine()) != null) {
+                if (line.startsWith(RESPONSE_PREFIX))
+                    return line.substring(RESPONSE_PREFIX.length());
+            }
+
+            throw new IOException("Server exited before responding to \""
+                    + command + "\".");
+
+        }
+
+        /**
+         * Terminates the server.
+         */
+        public void destroy() {
+            process.destroy();
+        }
+
+    }
+
+    /**
+     * Entry point of each Guacamole server started by this test, which
+     * reads commands from standard input and writes a single response line
+     * for each command to standard output. Commands are "put KEY USERNAME",
+     * "get KEY", "remove KEY", "scan" (read the shared directory now rather
+     * than waiting for the next periodic scan), and "close".
+     */
+    public static class Server {
+
+        /**
+         * Runs a Guacamole server caching responses within the given
+         * directory until standard input is closed.
+         *
+         * @param args
+         *     The path of the shared directory.
+         *
+         * @throws Exception
+         *     If standard input cannot be read.
+         */
+        public static void main(String[] args) throws Exception {
+
+            final File directory = new File(args[0]);
+            final ConfigurationService confService = new ConfigurationService() {
+
+                @Override
+                public File getCacheDirectory() {
+                    return directory;
+                }
+
+                @Override
+                public String getCacheKey() {
+                    return "shared secret";
+                }
+
+                @Override
+                public int getCacheTTL() {
+                    return TTL;
+                }
+
+            };
+
+            SharedDirectoryUserDataCache cache = Guice.createInjector(new AbstractModule() {
+
+                @Override
+                protected void configure() {
+
+                    // Provide the service through a Provider, as Guice would
+                    // otherwise inject the fields it inherits
+                    bind(ConfigurationService.class).toProvider(new Provider<ConfigurationService>() {
+
+                        @Override
+                        public ConfigurationService get() {
+                            return confService;
+                        }
+
+                    });
+
+                }
+
+            }).getInstance(SharedDirectoryUserDataCache.class);
+
+            BufferedReader input = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            PrintStream output = new PrintStream(System.out, true, "UTF-8");
+
+            String line;
+            while ((line = input.readLine()) != null) {
+
+                String[] command = line.split(" ");
+                String response = OK;
+
+                if (command[0].equals("put")) {
+                    UserData userData = new UserData();
+                    userData.setUsername(command[2]);
+                    cache.put(command[1], userData);
+                }
+
+                else if (command[0].equals("get")) {
+                    UserData userData = cache.get(command[1]);
+                    response = userData == null ? MISS : userData.getUsername();
+                }
+
+                else if (command[0].equals("remove"))
+                    cache.remove(command[1]);
+
+                else if (command[0].equals("scan"))
+                    cache.scan();
+
+                else if (command[0].equals("close"))
+                    cache.close();
+
+                output.println(RESPONSE_PREFIX + response);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Creates a new directory to be shared by all servers.
+     *
+     * @throws IOException
+     *     If the shared directory cannot be created.
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("callback-cache", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Shared directory could not be created.");
+    }
+
+    /**
+     * Terminates all servers, and deletes the shared directory and all
+     * segments within it.
+     */
+    @After
+    public void tearDown() {
+
+        for (Node node : nodes)
+            node.destroy();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+
+    }
+
+    /**
+     * Starts a new Guacamole server sharing the directory of this test.
+     *
+     * @return
+     *     The new server.
+     *
+     * @throws IOException
+     *     If the server cannot be started.
+     */
+    private Node startNode() throws IOException {
+        Node node = new Node();
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Marks every segment within the shared directory as last written
+     * twice the cache lifetime ago, as if each server had been idle since.
+     *
+     * @return
+     *     The number of segments marked.
+     */
+    private int ageSegments() {
+
+        long modified = System.currentTimeMillis() - 2 * TTL * 1000L;
+
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.setLastModified(modified))
+                count++;
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Verifies that a response cached by one server is read by another, and
+     * that a removal by one server is seen by servers which have not yet read
+     * the removed response.
+     *
+     * @throws Exception
+     *     If a server cannot be started or fails to respond.
+     */
+    @Test
+    public void testResponsesShared() throws Exception {
+
+        Node first = startNode();
+        Node second = startNode();
+
+        assertEquals(MISS, second.send("get " + KEY));
+        assertEquals(OK, first.send("put " + KEY + " alice"));
+
+        assertEquals(OK, second.send("scan"));
+        assertEquals("alice", second.send("get " + KEY));
+
+        assertEquals(OK, second.send("remove " + KEY));
+        assertEquals(MISS, second.send("get " + KEY));
+
+        Node third = startNode();
+        assertEquals(MISS, third.send("get " + KEY));
+
+    }
+
+    /**
+     * Verifies that a server which is replaced, as when the cache
+     * configuration changes, no longer writes to the shared directory, while
+     * the records it already wrote remain readable.
+     *
+     * @throws Exception
+     *     If a server cannot be started or fails to respond.
+     */
+    @Test
+    public void testClosedCacheWritesNothing() throws Exception {
+
+        Node first = startNode();
+        assertEquals(OK, first.send("put " + KEY + " alice"));
+        assertEquals(OK, first.send("close"));
+
+        // Writes after closing are dropped
+        assertEquals(OK, first.send("put " + KEY + " bob"));
+
+        Node second = startNode();
+        assertEquals("alice", second.send("get " + KEY));
+
+    }
+
+    /**
+     * Verifies that responses cached by a server after a quiet period remain
+     * visible to other servers, even though its idle segment was deleted by
+     * another server in the meantime.
+     *
+     * @throws Exception
+     *     If a server cannot be started or fails to respond.
+     */
+    @Test
+    public void testQuietServerSegmentDeleted() throws Exception {
+
+        Node first = startNode();
+        Node second = startNode();
+
+        assertEquals(OK, first.send("put " + KEY + " alice"));
+        assertEquals(OK, second.send("scan"));
+        assertEquals("alice", second.send("get " + KEY));
+
+        // The segment of the quiet server is deleted by the other server
+        assertEquals(1, ageSegments());
+        assertEquals(OK, second.send("scan"));
+        assertEquals(0, directory.listFiles().length);
+
+        // Later responses of the quiet server must still be shared
+        assertEquals(OK, first.send("put " + OTHER_KEY + " bob"));
+        assertEquals(OK, second.send("scan"));
+        assertEquals("bob", second.send("get " + OTHER_KEY));
+
+        Node third = startNode();
+        assertEquals("bob", third.send("get " + OTHER_KEY));
+        assertTrue(directory.listFiles().length > 0);
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.conf;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that CallbackConfiguration rejects invalid properties
+ * unless lenient, in which case each invalid optional property is replaced
+ * by its default value.
+ */
+public class CallbackConfigurationTest {
+
+    /**
+     * The values of all defined properties, keyed by property name. Values
+     * which are exceptions are thrown, as if the property could not be
+     * parsed.
+     */
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+
+    /**
+     * Environment which reads properties from the properties map.
+     */
+    private Environment environment;
+
+    /**
+     * Creates an environment which returns the value of each property within
+     * the properties map, or the default value of each property which is not
+     * defined.
+     *
+     * @throws GuacamoleException
+     *     If the environment cannot be mocked.
+     */
+    @Before
+    public void setUp() throws GuacamoleException {
+
+        environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(new File("."));
+        when(environment.getRequiredProperty(ArgumentMatchers.<GuacamoleProperty<Object>>any()))
+                .thenReturn(URI.create("https://example.net/callback"));
+
+        doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+
+                GuacamoleProperty<?> property = invocation.getArgument(0);
+                if (!properties.containsKey(property.getName()))
+                    return invocation.getArgument(1);
+
+                Object value = properties.get(property.getName());
+                if (value instanceof GuacamoleException)
+                    throw (GuacamoleException) value;
+
+                return value;
+
+            }
+
+        }).when(environment).getProperty(
+                ArgumentMatchers.<GuacamoleProperty<Object>>any(),
+                ArgumentMatchers.any());
+
+    }
+
+    /**
+     * Verifies that a valid configuration is read identically whether or
+     * not the configuration is lenient.
+     *
+     * @throws GuacamoleException
+     *     If the configuration is rejected.
+     */
+    @Test
+    public void testValid() throws GuacamoleException {
+
+        properties.put("callback-retry-budget", 25);
+        properties.put("callback-merge-policy", CallbackConfiguration.MERGE_POLICY_NAMESPACED);
+
+        for (boolean lenient : new boolean[] { false, true }) {
+            CallbackConfiguration config = new CallbackConfiguration(environment, lenient);
+            assertEquals(25, config.getRetryBudget());
+            assertEquals(CallbackConfiguration.MERGE_POLICY_NAMESPACED, config.getMergePolicy());
+        }
+
+    }
+
+    /**
+     * Verifies that invalid optional properties are rejected unless the
+     * configuration is lenient, in which case their default values are
+     * used.
+     *
+     * @throws GuacamoleException
+     *     If the lenient configuration is rejected.
+     */
+    @Test
+    public void testInvalidOptional() throws GuacamoleException {
+
+        properties.put("callback-retry-budget", 150);
+        properties.put("callback-merge-policy", "bogus");
+        properties.put("callback-cache-ttl", new GuacamoleServerException("Not a number."));
+        properties.put("callback-additional-sources", "bogus");
+
+        try {
+            new CallbackConfiguration(environment);
+            fail("Invalid properties must be rejected unless lenient.");
+        }
+        catch (GuacamoleServerException e) {
+            // Expected
+        }
+
+        CallbackConfiguration config = new CallbackConfiguration(environment, true);
+        assertEquals(10, config.getRetryBudget());
+        assertEquals(CallbackConfiguration.MERGE_POLICY_FIRST, config.getMergePolicy());
+        assertEquals(60, config.getCacheTTL());
+        assertEquals(0, config.getAdditionalSources().size());
+
+    }
+
+    /**
+     * Verifies that a missing authentication callback is rejected even if
+     * the configuration is lenient.
+     *
+     * @throws GuacamoleException
+     *     If the environment cannot be mocked.
+     */
+    @Test(expected = GuacamoleServerException.class)
+    public void testMissingRequired() throws GuacamoleException {
+        when(environment.getRequiredProperty(ArgumentMatchers.<GuacamoleProperty<Object>>any()))
+                .thenThrow(new GuacamoleServerException("Missing."));
+        new CallbackConfiguration(environment, true);
+    }
+
+}
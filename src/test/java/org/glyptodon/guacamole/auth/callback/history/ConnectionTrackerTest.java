@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.history;
+
+import java.net.URI;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.glyptodon.guacamole.auth.callback.conf.ConfigurationService;
+import org.glyptodon.guacamole.auth.callback.tenant.Tenant;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that ConnectionTracker counts active connections
+ * per history scope and connection, separates the scopes of tenants and of
+ * anonymous sessions, and bounds the rings of scopes and of connections
+ * independently.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ConnectionTrackerTest {
+
+    @Mock
+    private ConfigurationService confService;
+
+    @Mock
+    private CallbackConfiguration config;
+
+    @Mock
+    private GuacamoleTunnel tunnel;
+
+    @InjectMocks
+    private ConnectionTracker tracker;
+
+    /**
+     * The history scope of the user "alice", authenticated without a tenant.
+     */
+    private final String alice = ConnectionTracker.getScope(null, "alice");
+
+    /**
+     * The history scope of the user "bob", authenticated without a tenant.
+     */
+    private final String bob = ConnectionTracker.getScope(null, "bob");
+
+    /**
+     * The history scope of the user "carol", authenticated without a tenant.
+     */
+    private final String carol = ConnectionTracker.getScope(null, "carol");
+
+    /**
+     * Configures history to retain five records for each of at most two
+     * users and at most three connections.
+     *
+     * @throws GuacamoleException
+     *     Never, as all services are mocked.
+     */
+    @Before
+    public void setUp() throws GuacamoleException {
+        when(confService.getConfiguration()).thenReturn(config);
+        when(config.getHistorySize()).thenReturn(5);
+        when(config.getHistoryUsers()).thenReturn(2);
+        when(config.getHistoryConnections()).thenReturn(3);
+    }
+
+    /**
+     * Begins and activates a use of the given connection within the given
+     * history scope.
+     *
+     * @param connectionIdentifier
+     *     The identifier of the connection being used.
+     *
+     * @param scope
+     *     The history scope of the user, as returned by getScope().
+     *
+     * @return
+     *     The record of the active connection.
+     */
+    private TrackedConnectionRecord connect(String connectionIdentifier,
+            String scope) {
+        TrackedConnectionRecord record = tracker.begin(connectionIdentifier,
+                scope, null, "10.0.0.1");
+        tracker.activate(record, tunnel);
+        return record;
+    }
+
+    /**
+     * Verifies that the active count of each connection of each user follows
+     * activation and closure, and that closing a connection twice does not
+     * decrement its count twice.
+     */
+    @Test
+    public void testActiveCount() {
+
+        TrackedConnectionRecord first = connect("rdp", alice);
+        TrackedConnectionRecord second = connect("rdp", alice);
+        connect("rdp", bob);
+        connect("ssh", alice);
+
+        assertEquals(2, tracker.getActiveConnectionCount(alice, "rdp"));
+        assertEquals(1, tracker.getActiveConnectionCount(bob, "rdp"));
+        assertEquals(1, tracker.getActiveConnectionCount(alice, "ssh"));
+        assertEquals(0, tracker.getActiveConnectionCount(bob, "ssh"));
+
+        tracker.end(first);
+        tracker.end(first);
+        assertEquals(1, tracker.getActiveConnectionCount(alice, "rdp"));
+
+        tracker.end(second);
+        assertEquals(0, tracker.getActiveConnectionCount(alice, "rdp"));
+
+        // Counters are recreated after reaching zero
+        connect("rdp", alice);
+        assertEquals(1, tracker.getActiveConnectionCount(alice, "rdp"));
+
+    }
+
+    /**
+     * Verifies that a connection which closes before it is activated is
+     * never counted.
+     */
+    @Test
+    public void testEndedBeforeActivation() {
+
+        TrackedConnectionRecord record = tracker.begin("rdp", alice, "alice",
+                null);
+        tracker.end(record);
+        tracker.activate(record, tunnel);
+
+        assertEquals(0, tracker.getActiveConnectionCount(alice, "rdp"));
+        assertEquals(0, tracker.getActiveConnections(alice).size());
+
+    }
+
+    /**
+     * Verifies that anonymous users, having no username or an empty
+     * username, are given a distinct scope for each session, such that no
+     * anonymous session sees the connections of another.
+     */
+    @Test
+    public void testAnonymousScopes() {
+
+        String first = ConnectionTracker.getScope(null, null);
+        String second = ConnectionTracker.getScope(null, null);
+        String third = ConnectionTracker.getScope(null, "");
+        assertFalse(first.equals(second));
+        assertFalse(second.equals(third));
+
+        TrackedConnectionRecord record = connect("rdp", first);
+        connect("rdp", alice);
+
+        assertEquals(1, tracker.getActiveConnectionCount(first, "rdp"));
+        assertEquals(1, tracker.getActiveConnections(first).size());
+        assertEquals(1, tracker.getUserHistory(first).size());
+        assertEquals(1, tracker.getConnectionHistory(first, "rdp").size());
+
+        assertEquals(0, tracker.getActiveConnectionCount(second, "rdp"));
+        assertEquals(0, tracker.getActiveConnections(second).size());
+        assertEquals(0, tracker.getUserHistory(second).size());
+        assertEquals(0, tracker.getConnectionHistory(second, "rdp").size());
+
+        tracker.end(record);
+        assertEquals(0, tracker.getActiveConnectionCount(first, "rdp"));
+        assertEquals(0, tracker.getActiveConnections(first).size());
+        assertEquals(1, tracker.getActiveConnections(alice).size());
+
+    }
+
+    /**
+     * Verifies that users having the same username but authenticated by
+     * different tenants do not see each other's connections, and that users
+     * having the same username and tenant share a scope.
+     *
+     * @throws Exception
+     *     If the tenants cannot be created.
+     */
+    @Test
+    public void testTenantScopes() throws Exception {
+
+        Tenant east = new Tenant("east", Tenant.MATCH_HOST, "east\\..*",
+                new URI("https://east.example.net/callback"), 0);
+        Tenant west = new Tenant("west", Tenant.MATCH_HOST, "west\\..*",
+                new URI("https://west.example.net/callback"), 0);
+
+        String eastAlice = ConnectionTracker.getScope(east, "alice");
+        String westAlice = ConnectionTracker.getScope(west, "alice");
+        assertEquals(eastAlice, ConnectionTracker.getScope(east, "alice"));
+
+        connect("rdp", eastAlice);
+
+        assertEquals(1, tracker.getActiveConnections(eastAlice).size());
+        assertEquals(0, tracker.getActiveConnections(westAlice).size());
+        assertEquals(0, tracker.getActiveConnections(alice).size());
+        assertEquals(0, tracker.getActiveConnectionCount(westAlice, "rdp"));
+        assertEquals(0, tracker.getUserHistory(westAlice).size());
+
+    }
+
+    /**
+     * Verifies that the number of connection rings is limited independently
+     * of the number of user rings, discarding the connection tracked
+     * longest.
+     */
+    @Test
+    public void testConnectionLimit() {
+
+        connect("a", alice);
+        connect("b", alice);
+        connect("c", alice);
+        assertEquals(1, tracker.getConnectionHistory(alice, "a").size());
+
+        connect("d", alice);
+        assertEquals(0, tracker.getConnectionHistory(alice, "a").size());
+        assertEquals(1, tracker.getConnectionHistory(alice, "b").size());
+        assertEquals(4, tracker.getUserHistory(alice).size());
+
+    }
+
+    /**
+     * Verifies that the number of user rings is limited independently of
+     * the number of connection rings, discarding the user tracked longest,
+     * and that a user whose ring was discarded is tracked afresh.
+     */
+    @Test
+    public void testUserLimit() {
+
+        connect("rdp", alice);
+        connect("rdp", bob);
+        connect("rdp", carol);
+        assertEquals(0, tracker.getUserHistory(alice).size());
+        assertEquals(1, tracker.getUserHistory(bob).size());
+        assertEquals(1, tracker.getConnectionHistory(alice, "rdp").size());
+
+        TrackedConnectionRecord record = connect("rdp", alice);
+        assertEquals(0, tracker.getUserHistory(bob).size());
+        assertEquals(1, tracker.getUserHistory(carol).size());
+        assertEquals(1, tracker.getUserHistory(alice).size());
+        assertSame(record, tracker.getUserHistory(alice).get(0));
+
+    }
+
+}
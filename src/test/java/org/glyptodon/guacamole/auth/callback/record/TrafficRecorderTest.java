@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.record;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that TrafficRecorder writes the shape of each request
+ * in the background, omitting parameters which are not sent to the callback.
+ */
+public class TrafficRecorderTest {
+
+    /**
+     * The maximum time to wait for records to be written, in milliseconds.
+     */
+    private static final long WRITE_TIMEOUT = 5000;
+
+    /**
+     * Temporary directory containing the recording.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns an HttpServletRequest having the given parameters and no other
+     * properties.
+     *
+     * @param parameters
+     *     The values of all request parameters, keyed by parameter name.
+     *
+     * @return
+     *     A new HttpServletRequest having the given parameters.
+     */
+    private static HttpServletRequest getRequest(final Map<String, String[]> parameters) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getParameterMap"))
+                    return parameters;
+                return null;
+            }
+
+        });
+    }
+
+    /**
+     * Reads all complete records from the given recording.
+     *
+     * @param file
+     *     The recording to read.
+     *
+     * @return
+     *     All records read.
+     *
+     * @throws IOException
+     *     If the recording cannot be read.
+     */
+    private static List<TrafficRecord> read(File file) throws IOException {
+
+        List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+        if (file.length() == 0)
+            return records;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            TrafficRecord.readHeader(input);
+            TrafficRecord record;
+            while ((record = TrafficRecord.read(input)) != null)
+                records.add(record);
+        }
+        finally {
+            input.close();
+        }
+
+        return records;
+
+    }
+
+    /**
+     * Reads the given recording once it contains at least the given number
+     * of records, waiting up to WRITE_TIMEOUT for those records to be
+     * written.
+     *
+     * @param file
+     *     The recording to read.
+     *
+     * @param count
+     *     The number of records expected.
+     *
+     * @return
+     *     All records read.
+     *
+     * @throws IOException
+     *     If the recording cannot be read.
+     *
+     * @throws InterruptedException
+     *     If interrupted while waiting for records to be written.
+     */
+    private static List<TrafficRecord> await(File file, int count)
+            throws IOException, InterruptedException {
+
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+        List<TrafficRecord> records = read(file);
+        while (records.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            records = read(file);
+        }
+
+        return records;
+
+    }
+
+    /**
+     * Verifies that each request is recorded in order, and that parameters
+     * which are not forwarded to the callback are left out of the record.
+     *
+     * @throws Exception
+     *     If the recording cannot be read, or the test is interrupted.
+     */
+    @Test
+    public void testRecordForwardedOnly() throws Exception {
+
+        File file = new File(folder.getRoot(), "recording.bin");
+
+        CallbackConfiguration config = mock(CallbackConfiguration.class);
+        when(config.getRecordingFile()).thenReturn(file);
+        when(config.isForwardedParameter(anyString())).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return !"password".equals(invocation.getArgument(0));
+            }
+
+        });
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        parameters.put("username", new String[] { "alice" });
+        parameters.put("password", new String[] { "secret" });
+        parameters.put("tag", new String[] { "a", "bc" });
+
+        TrafficRecorder recorder = new TrafficRecorder();
+        recorder.record(config, getRequest(parameters), 200, 512, null);
+        recorder.record(config, getRequest(parameters), 403, 0, null);
+        recorder.record(config, null, 0, 0, null);
+
+        List<TrafficRecord> records = await(file, 3);
+        assertEquals(3, records.size());
+
+        TrafficRecord first = records.get(0);
+        assertEquals(Arrays.asList("username", "tag", "tag"), first.getParameterNames());
+        assertEquals(Arrays.asList(5, 1, 2), first.getParameterSizes());
+        assertEquals(200, first.getStatus());
+        assertEquals(512, first.getResponseSize());
+
+        assertEquals(403, records.get(1).getStatus());
+        assertEquals(0, records.get(2).getParameterNames().size());
+
+    }
+
+}
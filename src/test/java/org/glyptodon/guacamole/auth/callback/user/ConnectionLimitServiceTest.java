@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import org.apache.guacamole.GuacamoleClientTooManyException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Test which verifies that ConnectionLimitService counts uses of each pool
+ * of connections across users, counts uses of connections outside any pool
+ * only for the same user, and accepts users without a username.
+ */
+public class ConnectionLimitServiceTest {
+
+    /**
+     * The service under test.
+     */
+    private final ConnectionLimitService limitService = new ConnectionLimitService();
+
+    /**
+     * Returns new connection data permitting only a single concurrent use,
+     * within the given pool.
+     *
+     * @param pool
+     *     The name of the pool containing the connection, or null if the
+     *     connection is not within a pool.
+     *
+     * @return
+     *     New connection data permitting only a single concurrent use.
+     */
+    private static UserData.Connection getConnection(String pool) {
+        UserData.Connection connection = new UserData.Connection();
+        connection.setMaxConnections(1);
+        connection.setPool(pool);
+        return connection;
+    }
+
+    /**
+     * Verifies that connections of different users having the same
+     * identifier do not share a limit unless they name the same pool.
+     *
+     * @throws GuacamoleException
+     *     If either connection is refused.
+     */
+    @Test
+    public void testUnpooledIdentifiersIndependent() throws GuacamoleException {
+        UserData.Connection connection = getConnection(null);
+        limitService.acquire("rdp", "alice", connection);
+        limitService.acquire("rdp", "bob", connection);
+    }
+
+    /**
+     * Verifies that connections within the same pool share a limit across
+     * users, regardless of their identifiers, and that releasing a use
+     * permits another.
+     *
+     * @throws GuacamoleException
+     *     If a connection is unexpectedly refused.
+     */
+    @Test
+    public void testPoolSharedAcrossUsers() throws GuacamoleException {
+
+        limitService.acquire("rdp", "alice", getConnection("rdp-host"));
+
+        try {
+            limitService.acquire("desktop", "bob", getConnection("rdp-host"));
+            fail("Pool limit was not enforced.");
+        }
+        catch (GuacamoleResourceConflictException e) {
+            // Expected
+        }
+
+        limitService.release("rdp", "alice", getConnection("rdp-host"));
+        limitService.acquire("desktop", "bob", getConnection("rdp-host"));
+
+    }
+
+    /**
+     * Verifies that users without a username are limited together, and
+     * separately from users having a username.
+     *
+     * @throws GuacamoleException
+     *     If a connection is unexpectedly refused.
+     */
+    @Test
+    public void testNullUsername() throws GuacamoleException {
+
+        UserData.Connection connection = new UserData.Connection();
+        connection.setMaxConnectionsPerUser(1);
+
+        limitService.acquire("rdp", null, connection);
+        limitService.acquire("rdp", "alice", connection);
+
+        try {
+            limitService.acquire("rdp", null, connection);
+            fail("Per-user limit was not enforced.");
+        }
+        catch (GuacamoleClientTooManyException e) {
+            // Expected
+        }
+
+        limitService.release("rdp", null, connection);
+        limitService.acquire("rdp", null, connection);
+
+    }
+
+}
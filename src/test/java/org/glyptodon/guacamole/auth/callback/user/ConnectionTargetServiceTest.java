@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test which verifies that ConnectionTargetService fills targets in order
+ * when failing over, and retains the counter of a target only while
+ * connections to that target remain active.
+ */
+public class ConnectionTargetServiceTest {
+
+    /**
+     * The service under test.
+     */
+    private final ConnectionTargetService targetService = new ConnectionTargetService();
+
+    /**
+     * Returns a new target having the given hostname and weight.
+     *
+     * @param hostname
+     *     The hostname of the target.
+     *
+     * @param weight
+     *     The weight of the target.
+     *
+     * @return
+     *     A new target having the given hostname and weight.
+     */
+    private static UserData.Target getTarget(String hostname, int weight) {
+        UserData.Target target = new UserData.Target();
+        target.setHostname(hostname);
+        target.setPort("3389");
+        target.setWeight(weight);
+        return target;
+    }
+
+    /**
+     * Returns the number of targets for which the service under test
+     * currently retains a counter.
+     *
+     * @return
+     *     The number of retained counters.
+     *
+     * @throws Exception
+     *     If the counters cannot be read.
+     */
+    private int getCounterCount() throws Exception {
+        Field field = ConnectionTargetService.class.getDeclaredField("activeConnections");
+        field.setAccessible(true);
+        return ((Map<?, ?>) field.get(targetService)).size();
+    }
+
+    /**
+     * Verifies that failover fills each target up to its weight before
+     * using the next, and that all counters are removed once every
+     * connection is released.
+     *
+     * @throws Exception
+     *     If the counters cannot be read.
+     */
+    @Test
+    public void testFailover() throws Exception {
+
+        UserData.Target primary = getTarget("primary", 2);
+        UserData.Target secondary = getTarget("secondary", 1);
+
+        List<UserData.Target> targets = new ArrayList<UserData.Target>();
+        targets.add(primary);
+        targets.add(secondary);
+
+        UserData.Connection connection = new UserData.Connection();
+        connection.setBalancing(ConnectionTargetService.FAILOVER);
+        connection.setTargets(targets);
+
+        List<UserData.Target> acquired = new ArrayList<UserData.Target>();
+        for (int i = 0; i < 4; i++)
+            acquired.add(targetService.acquire(connection));
+
+        // Overflow beyond all weights is spread relative to weight
+        assertSame(primary, acquired.get(0));
+        assertSame(primary, acquired.get(1));
+        assertSame(secondary, acquired.get(2));
+        assertSame(primary, acquired.get(3));
+        assertEquals(2, getCounterCount());
+
+        for (UserData.Target target : acquired)
+            targetService.release(target);
+
+        assertEquals(0, getCounterCount());
+
+    }
+
+    /**
+     * Verifies that counters of distinct targets do not accumulate as
+     * connections to ever-changing targets are opened and closed.
+     *
+     * @throws Exception
+     *     If the counters cannot be read.
+     */
+    @Test
+    public void testCountersRemoved() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+
+            List<UserData.Target> targets = new ArrayList<UserData.Target>();
+            targets.add(getTarget("host-" + i, 1));
+
+            UserData.Connection connection = new UserData.Connection();
+            connection.setTargets(targets);
+
+            targetService.release(targetService.acquire(connection));
+
+        }
+
+        assertEquals(0, getCounterCount());
+
+    }
+
+}
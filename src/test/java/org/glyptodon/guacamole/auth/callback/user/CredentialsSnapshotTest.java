@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import org.apache.guacamole.net.auth.Credentials;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which verifies that AuthenticatedUser retains only what is read from
+ * the credentials of the authentication attempt after authentication, and
+ * never the HTTP request or session of that attempt.
+ */
+public class CredentialsSnapshotTest {
+
+    /**
+     * The maximum number of times garbage collection is requested before
+     * concluding that an object is still reachable.
+     */
+    private static final int MAX_GC_ATTEMPTS = 50;
+
+    /**
+     * The number of headers and of parameters of each request.
+     */
+    private static final int REQUEST_FIELDS = 30;
+
+    /**
+     * The number of sessions across which retained heap is measured.
+     */
+    private static final int SESSIONS = 10000;
+
+    /**
+     * The maximum heap which may be retained by each session for its
+     * credentials and token values, in bytes.
+     */
+    private static final long MAX_RETAINED_BYTES = 1024;
+
+    /**
+     * Handler which answers the methods of HttpServletRequest, as if for a
+     * POST from 10.0.0.1 having REQUEST_FIELDS headers, REQUEST_FIELDS
+     * parameters (including "username" and "site") and a cookie. Each value
+     * is a new string, as if freshly parsed from the request.
+     */
+    private static class RequestHandler implements InvocationHandler {
+
+        /**
+         * The parameters of the request.
+         */
+        private final Map<String, String[]> parameters =
+                new LinkedHashMap<String, String[]>();
+
+        /**
+         * The headers of the request.
+         */
+        private final List<String> headers = new ArrayList<String>();
+
+        /**
+         * Creates a new RequestHandler for a request submitted by the given
+         * user.
+         *
+         * @param username
+         *     The value of the "username" parameter.
+         */
+        public RequestHandler(String username) {
+
+            parameters.put("username", new String[] { username });
+            parameters.put("site", new String[] { new String("east") });
+            for (int i = parameters.size(); i < REQUEST_FIELDS; i++)
+                parameters.put("parameter" + i, new String[] { "value" + i });
+
+            headers.add("X-Forwarded-For");
+            for (int i = headers.size(); i < REQUEST_FIELDS; i++)
+                headers.add("X-Header-" + i);
+
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+
+            String name = method.getName();
+            if (name.equals("getRemoteAddr"))
+                return new String("10.0.0.1");
+            if (name.equals("getRemoteHost"))
+                return new String("client.example.net");
+            if (name.equals("getMethod"))
+                return "POST";
+            if (name.equals("getHeaderNames"))
+                return Collections.enumeration(headers);
+            if (name.equals("getHeader"))
+                return new String("192.168.1.1");
+            if (name.equals("getHeaders"))
+                return Collections.enumeration(Collections.singleton(
+                        new String("192.168.1.1")));
+            if (name.equals("getParameterMap"))
+                return Collections.unmodifiableMap(parameters);
+            if (name.equals("getParameterNames"))
+                return Collections.enumeration(parameters.keySet());
+            if (name.equals("getParameter")) {
+                String[] values = parameters.get((String) args[0]);
+                return values != null ? values[0] : null;
+            }
+            if (name.equals("getParameterValues"))
+                return parameters.get((String) args[0]);
+            if (name.equals("getCookies"))
+                return new Cookie[] { new Cookie("JSESSIONID", "0123456789ABCDEF") };
+            if (name.equals("getRequestURL"))
+                return new StringBuffer("https://guacamole.example.net/api/tokens");
+
+            // All other values are unset
+            Class<?> type = method.getReturnType();
+            if (type == Enumeration.class)
+                return Collections.enumeration(Collections.emptyList());
+            if (type == Integer.TYPE)
+                return -1;
+            if (type == Boolean.TYPE)
+                return false;
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Returns new credentials for the given user, submitted with a request
+     * whose methods are answered by RequestHandler, within an HTTP session.
+     *
+     * @param username
+     *     The username of the user.
+     *
+     * @return
+     *     New credentials for the given user.
+     */
+    private static Credentials getCredentials(String username) {
+
+        Credentials credentials = new Credentials();
+        credentials.setUsername(username);
+        credentials.setPassword(new String("secret"));
+        credentials.setSession((HttpSession) Proxy.newProxyInstance(
+                HttpSession.class.getClassLoader(),
+                new Class<?>[] { HttpSession.class },
+                new RequestHandler(username)));
+        credentials.setRequest((HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new RequestHandler(username)));
+
+        return credentials;
+
+    }
+
+    /**
+     * Returns new UserData defining a single connection having the given
+     * parameter values.
+     *
+     * @param values
+     *     The values of the parameters of the connection, which may contain
+     *     tokens.
+     *
+     * @return
+     *     New UserData defining a single connection.
+     */
+    private static UserData getUserData(String... values) {
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i < values.length; i++)
+            parameters.put("parameter" + i, values[i]);
+
+        UserData.Connection connection = new UserData.Connection();
+        connection.setProtocol("rdp");
+        connection.setParameters(parameters);
+
+        UserData userData = new UserData();
+        userData.setConnections(Collections.singletonMap("rdp", connection));
+        return userData;
+
+    }
+
+    /**
+     * Returns a new AuthenticatedUser authenticated with the given
+     * credentials.
+     *
+     * @param credentials
+     *     The credentials of the authentication attempt.
+     *
+     * @param userData
+     *     The UserData of the user.
+     *
+     * @return
+     *     A new AuthenticatedUser authenticated with the given credentials.
+     */
+    private static AuthenticatedUser authenticate(Credentials credentials,
+            UserData userData) {
+        AuthenticatedUser user = new AuthenticatedUser();
+        user.init(credentials, userData, null, null);
+        return user;
+    }
+
+    /**
+     * Requests garbage collection until the given reference is cleared or
+     * MAX_GC_ATTEMPTS is reached.
+     *
+     * @param reference
+     *     The reference which should be cleared.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted while waiting for garbage collection.
+     */
+    private static void collect(WeakReference<?> reference)
+            throws InterruptedException {
+
+        for (int i = 0; i < MAX_GC_ATTEMPTS && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+    }
+
+    /**
+     * Returns the number of bytes of heap in use after requesting garbage
+     * collection.
+     *
+     * @param memory
+     *     The MemoryMXBean of the running JVM.
+     *
+     * @return
+     *     The number of bytes of heap in use.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted while waiting for garbage collection.
+     */
+    private static long getUsedHeap(MemoryMXBean memory)
+            throws InterruptedException {
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        return memory.getHeapMemoryUsage().getUsed();
+
+    }
+
+    /**
+     * Verifies that neither the original credentials nor their HTTP request
+     * or session remain reachable through an AuthenticatedUser once
+     * authentication completes.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted while waiting for garbage collection.
+     */
+    @Test
+    public void testRequestNotRetained() throws InterruptedException {
+
+        Credentials credentials = getCredentials("alice");
+        WeakReference<HttpServletRequest> requestRef =
+                new WeakReference<HttpServletRequest>(credentials.getRequest());
+        WeakReference<HttpSession> sessionRef =
+                new WeakReference<HttpSession>(credentials.getSession());
+        WeakReference<Credentials> credentialsRef =
+                new WeakReference<Credentials>(credentials);
+
+        AuthenticatedUser user = authenticate(credentials,
+                getUserData("${GUAC_PASSWORD}", "${GUAC_PARAMETER_site}"));
+
+        // Drop the only reference held outside the AuthenticatedUser
+        credentials = null;
+        collect(requestRef);
+        collect(sessionRef);
+        collect(credentialsRef);
+
+        assertNull("HTTP request is still reachable.", requestRef.get());
+        assertNull("HTTP session is still reachable.", sessionRef.get());
+        assertNull("Original credentials are still reachable.", credentialsRef.get());
+        assertNotNull(user.getCredentials());
+
+    }
+
+    /**
+     * Verifies that the retained credentials continue to provide the
+     * password, client address and request parameters referenced by the
+     * user's connections after the original request is gone, and nothing
+     * else of that request.
+     */
+    @Test
+    public void testReferencedValuesRetained() {
+
+        Credentials retained = authenticate(getCredentials("alice"),
+                getUserData("${GUAC_PASSWORD}", "${GUAC_PARAMETER_site}"))
+                .getCredentials();
+
+        assertEquals("alice", retained.getUsername());
+        assertEquals("secret", retained.getPassword());
+        assertNull(retained.getSession());
+
+        HttpServletRequest copy = retained.getRequest();
+        assertNotNull(copy);
+        assertEquals("10.0.0.1", copy.getRemoteAddr());
+        assertEquals("10.0.0.1", copy.getRemoteHost());
+        assertEquals("east", copy.getParameter("site"));
+        assertArrayEquals(new String[] { "east" }, copy.getParameterValues("site"));
+        assertEquals(Collections.singleton("site"), copy.getParameterMap().keySet());
+        assertNull(copy.getParameter("username"));
+        assertNull(copy.getSession(true));
+        assertNull(copy.getMethod());
+        assertNull(copy.getHeader("X-Forwarded-For"));
+        assertNull(copy.getCookies());
+        assertNull(copy.getRequestURL());
+
+    }
+
+    /**
+     * Verifies that the password and request parameters are not retained
+     * if no connection references them, while the client hostname is
+     * retained if referenced.
+     */
+    @Test
+    public void testUnreferencedValuesDiscarded() {
+
+        Credentials retained = authenticate(getCredentials("alice"),
+                getUserData("${GUAC_USERNAME}@${GUAC_CLIENT_HOSTNAME}"))
+                .getCredentials();
+
+        assertEquals("alice", retained.getUsername());
+        assertNull(retained.getPassword());
+
+        HttpServletRequest copy = retained.getRequest();
+        assertEquals("client.example.net", copy.getRemoteHost());
+        assertNull(copy.getParameter("site"));
+        assertTrue(copy.getParameterMap().isEmpty());
+
+    }
+
+    /**
+     * Verifies that the retained credentials may be modified like any other
+     * credentials.
+     */
+    @Test
+    public void testSettersFunctional() {
+
+        Credentials credentials = new Credentials();
+        credentials.setUsername("alice");
+
+        Credentials retained = authenticate(credentials, new UserData())
+                .getCredentials();
+        assertNull(retained.getRequest());
+
+        retained.setUsername("bob");
+        retained.setPassword("changed");
+        assertEquals("bob", retained.getUsername());
+        assertEquals("changed", retained.getPassword());
+
+        // The original credentials are unaffected
+        assertEquals("alice", credentials.getUsername());
+        assertNull(credentials.getPassword());
+
+    }
+
+    /**
+     * Measures the heap retained by the credentials and token values of
+     * many sessions sharing the same UserData, each authenticated with a
+     * request having many headers and parameters, and verifies that each
+     * session retains no more than MAX_RETAINED_BYTES.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted while waiting for garbage collection.
+     */
+    @Test
+    public void testRetainedHeap() throws InterruptedException {
+
+        UserData userData = getUserData("${GUAC_USERNAME}",
+                "${GUAC_PASSWORD}", "${GUAC_PARAMETER_site}");
+        AuthenticatedUser[] users = new AuthenticatedUser[SESSIONS];
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = getUsedHeap(memory);
+
+        for (int i = 0; i < SESSIONS; i++)
+            users[i] = authenticate(getCredentials("user" + i), userData);
+
+        long retained = (getUsedHeap(memory) - before) / SESSIONS;
+        assertNotNull(users[SESSIONS - 1].getCredentials().getRequest());
+
+        System.out.printf("Credentials (%d headers, %d parameters): %d "
+                + "bytes retained per session over %d sessions.%n",
+                REQUEST_FIELDS, REQUEST_FIELDS, retained, SESSIONS);
+
+        assertTrue("Each session retains " + retained + " bytes.",
+                retained <= MAX_RETAINED_BYTES);
+
+    }
+
+}
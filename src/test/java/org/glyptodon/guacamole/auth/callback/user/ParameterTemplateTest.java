@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.guacamole.net.auth.Credentials;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test which verifies the token values captured for later expansion of
+ * parameter templates.
+ */
+public class ParameterTemplateTest {
+
+    /**
+     * Handler which answers the methods of HttpServletRequest invoked by
+     * ParameterTemplate, as if for a request from 10.0.0.1 (client.example.net)
+     * with "domain" and "locale" parameters.
+     */
+    private static class RequestHandler implements InvocationHandler {
+
+        /**
+         * The parameters of the request.
+         */
+        private final Map<String, String[]> parameters =
+                new HashMap<String, String[]>();
+
+        /**
+         * Creates a new RequestHandler for a request having "domain" and
+         * "locale" parameters.
+         */
+        public RequestHandler() {
+            parameters.put("domain", new String[] { "EXAMPLE" });
+            parameters.put("locale", new String[] { "en-us" });
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+
+            String name = method.getName();
+            if (name.equals("getRemoteAddr"))
+                return "10.0.0.1";
+            if (name.equals("getRemoteHost"))
+                return "client.example.net";
+            if (name.equals("getParameterMap"))
+                return Collections.unmodifiableMap(parameters);
+            if (name.equals("getParameter")) {
+                String[] values = parameters.get((String) args[0]);
+                return values != null ? values[0] : null;
+            }
+
+            // All other values are unset
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Returns new credentials for the user "alice", submitted with a request
+     * whose methods are answered by RequestHandler.
+     *
+     * @return
+     *     New credentials for the user "alice".
+     */
+    private static Credentials getCredentials() {
+
+        Credentials credentials = new Credentials();
+        credentials.setUsername("alice");
+        credentials.setPassword("secret");
+        credentials.setRequest((HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new RequestHandler()));
+
+        return credentials;
+
+    }
+
+    /**
+     * Verifies that only the referenced request parameters are captured
+     * when the templates to be expanded are all known.
+     */
+    @Test
+    public void testReferencedTokens() {
+
+        Map<String, String> values = ParameterTemplate.getTokenValues(
+                getCredentials(),
+                Collections.singleton("GUAC_PARAMETER_domain"), false);
+
+        assertEquals("alice", values.get("GUAC_USERNAME"));
+        assertEquals("10.0.0.1", values.get("GUAC_CLIENT_ADDRESS"));
+        assertEquals("EXAMPLE", values.get("GUAC_PARAMETER_domain"));
+        assertFalse(values.containsKey("GUAC_PARAMETER_locale"));
+        assertFalse(values.containsKey("GUAC_CLIENT_HOSTNAME"));
+        assertFalse(values.containsKey("GUAC_PASSWORD"));
+
+    }
+
+    /**
+     * Verifies that all request parameters and the client hostname are
+     * captured when templates which are not yet known may be expanded, such
+     * that parameters retrieved on demand may reference any token.
+     */
+    @Test
+    public void testAllTokens() {
+
+        Map<String, String> values = ParameterTemplate.getTokenValues(
+                getCredentials(), Collections.<String>emptySet(), true);
+
+        assertEquals("EXAMPLE", values.get("GUAC_PARAMETER_domain"));
+        assertEquals("en-us", values.get("GUAC_PARAMETER_locale"));
+        assertEquals("client.example.net", values.get("GUAC_CLIENT_HOSTNAME"));
+        assertEquals("secret", values.get("GUAC_PASSWORD"));
+
+        ParameterTemplate template = ParameterTemplate.compile(
+                "${GUAC_PARAMETER_domain}\\${GUAC_USERNAME}");
+        assertEquals("EXAMPLE\\alice", template.expand(values));
+
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.util.Collections;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.glyptodon.guacamole.auth.callback.CallbackService;
+import org.glyptodon.guacamole.auth.callback.history.ConnectionTracker;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test which verifies that UserDataConnection releases the concurrency
+ * limits of a connection whenever the connection cannot be established,
+ * including for users without a username and for unchecked exceptions.
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class UserDataConnectionTest {
+
+    @Mock
+    private Environment environment;
+
+    @Mock
+    private CallbackService callbackService;
+
+    @Mock
+    private ConnectionTargetService connectionTargetService;
+
+    @Mock
+    private ConnectionTracker connectionTracker;
+
+    @Spy
+    private ConnectionLimitService connectionLimitService;
+
+    @InjectMocks
+    private UserDataConnection connection;
+
+    /**
+     * The data of the connection under test, which permits only a single
+     * concurrent use.
+     */
+    private final UserData.Connection data = new UserData.Connection();
+
+    /**
+     * The data of the user, whose username is set by each test.
+     */
+    private final UserData userData = new UserData();
+
+    /**
+     * Configures the connection under test such that it permits only a single
+     * concurrent use.
+     */
+    @Before
+    public void setUp() {
+        data.setProtocol("rdp");
+        data.setParameters(Collections.singletonMap("hostname", "rdp-host"));
+        data.setMaxConnections(1);
+        data.setMaxConnectionsPerUser(1);
+    }
+
+    /**
+     * Initializes the connection under test for the user described by
+     * userData, and causes all attempts to determine how to reach guacd to
+     * fail with the given unchecked exception.
+     *
+     * @param failure
+     *     The exception to throw when reading the guacd configuration.
+     *
+     * @throws GuacamoleException
+     *     Never, as the environment is mocked.
+     */
+    private void init(RuntimeException failure) throws GuacamoleException {
+        when(environment.getProperty(ArgumentMatchers.<GuacamoleProperty<Object>>any(),
+                any())).thenThrow(failure);
+        connection.init(userData, "rdp", data,
+                Collections.<String, String>emptyMap(),
+                ConnectionTracker.getScope(null, userData.getUsername()));
+    }
+
+    /**
+     * Attempts to connect, expecting the attempt to fail with the given
+     * type of exception.
+     *
+     * @param expected
+     *     The type of exception expected.
+     */
+    private void connectExpecting(Class<? extends Exception> expected) {
+
+        try {
+            connection.connect(new GuacamoleClientInformation());
+            fail("Connection should not have been established.");
+        }
+        catch (Exception e) {
+            assertEquals(expected, e.getClass());
+        }
+
+    }
+
+    /**
+     * Verifies that limits are released if establishing the connection fails
+     * with an unchecked exception, such that a later attempt is not refused
+     * as if the connection were still in use.
+     *
+     * @throws GuacamoleException
+     *     Never, as all services are mocked.
+     */
+    @Test
+    public void testUncheckedFailureReleasesLimits() throws GuacamoleException {
+
+        userData.setUsername("alice");
+        init(new IllegalStateException("guacd unavailable"));
+
+        connectExpecting(IllegalStateException.class);
+        connectExpecting(IllegalStateException.class);
+
+        verify(connectionLimitService, times(2)).release("rdp", "alice", data);
+
+    }
+
+    /**
+     * Verifies that a user without a username may attempt to connect, and
+     * that the limits are released if connecting fails.
+     *
+     * @throws GuacamoleException
+     *     Never, as all services are mocked.
+     */
+    @Test
+    public void testNullUsername() throws GuacamoleException {
+
+        userData.setUsername(null);
+        init(new IllegalStateException("guacd unavailable"));
+
+        connectExpecting(IllegalStateException.class);
+        connectExpecting(IllegalStateException.class);
+
+        verify(connectionLimitService, times(2)).release(anyString(),
+                isNull(), any(UserData.Connection.class));
+
+    }
+
+    /**
+     * Verifies that limits are released if the parameters of a connection
+     * cannot be retrieved on demand for a user without a username.
+     *
+     * @throws GuacamoleException
+     *     Never, as all services are mocked.
+     */
+    @Test
+    public void testNullUsernameDeferredParameters() throws GuacamoleException {
+
+        userData.setUsername(null);
+        data.setParameters(null);
+        init(new IllegalStateException("guacd unavailable"));
+        when(callbackService.retrieveConnectionParameters(userData, "rdp"))
+                .thenThrow(new GuacamoleServerException("Endpoint failed."));
+
+        connectExpecting(GuacamoleServerException.class);
+        connectExpecting(GuacamoleServerException.class);
+
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which verifies that UserDataDeserializer produces the same UserData
+ * as generic data binding, and which measures the memory allocated by each
+ * per parse.
+ */
+public class UserDataDeserializerTest {
+
+    /**
+     * The number of connections within the parsed UserData.
+     */
+    private static final int CONNECTIONS = 200;
+
+    /**
+     * The number of parses performed before measuring allocation, such that
+     * one-time allocations are excluded from the measurement.
+     */
+    private static final int WARM_UP_PARSES = 200;
+
+    /**
+     * The number of parses across which allocation is measured.
+     */
+    private static final int MEASURED_PARSES = 200;
+
+    /**
+     * Shared ObjectMapper, as bound by CallbackAuthenticationProviderModule.
+     */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Precompiled reader which binds JSON to UserData.
+     */
+    private final ObjectReader reader = mapper.reader(UserData.class);
+
+    /**
+     * Factory for the parsers used by UserDataDeserializer.
+     */
+    private final JsonFactory jsonFactory = mapper.getJsonFactory();
+
+    /**
+     * The UTF-8 JSON representation of UserData parsed by all tests,
+     * containing a group and CONNECTIONS connections with parameters and
+     * targets.
+     */
+    private final byte[] json = createJSON();
+
+    /**
+     * Returns the UTF-8 JSON representation of UserData parsed by all tests.
+     *
+     * @return
+     *     The JSON representation of UserData.
+     */
+    private static byte[] createJSON() {
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"username\":\"alice\",")
+            .append("\"groups\":{\"servers\":{\"parent\":null}},")
+            .append("\"connections\":{");
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("\"conn-").append(i).append("\":{")
+                .append("\"protocol\":\"rdp\",")
+                .append("\"parent\":\"servers\",")
+                .append("\"parameters\":{")
+                    .append("\"hostname\":\"host-").append(i).append(".example.net\",")
+                    .append("\"port\":\"3389\",")
+                    .append("\"username\":\"${GUAC_USERNAME}\",")
+                    .append("\"ignore-cert\":\"true\"},")
+                .append("\"targets\":[")
+                    .append("{\"hostname\":\"a-").append(i).append("\",\"port\":\"3389\",\"weight\":2},")
+                    .append("{\"hostname\":\"b-").append(i).append("\",\"port\":\"3390\"}],")
+                .append("\"balancing\":\"weighted\",")
+                .append("\"maxConnections\":").append(i % 5).append(',')
+                .append("\"maxConnectionsPerUser\":1}");
+        }
+
+        try {
+            return json.append("}}").toString().getBytes("UTF-8");
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    /**
+     * Parses the test JSON using UserDataDeserializer.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be parsed.
+     */
+    private UserData parseStreaming() throws IOException {
+        JsonParser parser = jsonFactory.createJsonParser(json);
+        try {
+            return UserDataDeserializer.parseUserData(parser);
+        }
+        finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Parses the test JSON using generic data binding.
+     *
+     * @return
+     *     The parsed UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be parsed.
+     */
+    private UserData parseBinding() throws IOException {
+        return reader.readValue(json);
+    }
+
+    /**
+     * Verifies that UserDataDeserializer and generic data binding produce
+     * identical UserData.
+     *
+     * @throws IOException
+     *     If the JSON cannot be parsed.
+     */
+    @Test
+    public void testEquivalent() throws IOException {
+
+        UserData expected = parseBinding();
+        UserData actual = parseStreaming();
+
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getGroups().keySet(), actual.getGroups().keySet());
+        assertEquals(CONNECTIONS, actual.getConnections().size());
+        assertEquals(expected.getConnections().keySet(), actual.getConnections().keySet());
+
+        for (Map.Entry<String, UserData.Connection> entry : expected.getConnections().entrySet()) {
+
+            UserData.Connection connection = entry.getValue();
+            UserData.Connection parsed = actual.getConnections().get(entry.getKey());
+            assertNotNull(parsed);
+
+            assertEquals(connection.getProtocol(), parsed.getProtocol());
+            assertEquals(connection.getParent(), parsed.getParent());
+            assertEquals(connection.getParameters(), parsed.getParameters());
+            assertEquals(connection.getBalancing(), parsed.getBalancing());
+            assertEquals(connection.getMaxConnections(), parsed.getMaxConnections());
+            assertEquals(connection.getMaxConnectionsPerUser(), parsed.getMaxConnectionsPerUser());
+
+            assertEquals(connection.getTargets().size(), parsed.getTargets().size());
+            for (int i = 0; i < connection.getTargets().size(); i++) {
+                UserData.Target target = connection.getTargets().get(i);
+                UserData.Target parsedTarget = parsed.getTargets().get(i);
+                assertEquals(target.getHostname(), parsedTarget.getHostname());
+                assertEquals(target.getPort(), parsedTarget.getPort());
+                assertEquals(target.getWeight(), parsedTarget.getWeight());
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns the average number of bytes allocated by the current thread
+     * for each parse using the given parser.
+     *
+     * @param threads
+     *     The ThreadMXBean which measures allocation by the current thread.
+     *
+     * @param streaming
+     *     Whether UserDataDeserializer should be used rather than generic
+     *     data binding.
+     *
+     * @return
+     *     The average number of bytes allocated per parse.
+     *
+     * @throws IOException
+     *     If the JSON cannot be parsed.
+     */
+    private long measure(com.sun.management.ThreadMXBean threads,
+            boolean streaming) throws IOException {
+
+        for (int i = 0; i < WARM_UP_PARSES; i++)
+            assertNotNull(streaming ? parseStreaming() : parseBinding());
+
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED_PARSES; i++)
+            assertNotNull(streaming ? parseStreaming() : parseBinding());
+
+        return (threads.getThreadAllocatedBytes(thread) - start) / MEASURED_PARSES;
+
+    }
+
+    /**
+     * Measures the memory allocated per parse by UserDataDeserializer and by
+     * generic data binding, verifying that UserDataDeserializer allocates
+     * less. The measurements are printed for comparison between revisions.
+     * This test is skipped if the JVM cannot measure allocation per thread.
+     *
+     * @throws IOException
+     *     If the JSON cannot be parsed.
+     */
+    @Test
+    public void testAllocation() throws IOException {
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        long binding = measure(threads, false);
+        long streaming = measure(threads, true);
+
+        System.out.printf("UserData (%d connections, %d bytes): data binding "
+                + "allocates %d bytes/parse, UserDataDeserializer allocates "
+                + "%d bytes/parse.%n", CONNECTIONS, json.length, binding,
+                streaming);
+
+        assertTrue(streaming < binding);
+
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.glyptodon.guacamole.auth.callback.user;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.glyptodon.guacamole.auth.callback.conf.CallbackConfiguration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test which verifies that UserDataMerger preserves the definition of each
+ * connection when merging, including connections which are copied so that
+ * their identifiers may be namespaced.
+ */
+public class UserDataMergerTest {
+
+    /**
+     * The name of the additional callback whose UserData is merged.
+     */
+    private static final String CALLBACK = "extra";
+
+    /**
+     * Returns whether the given field of UserData.Connection is part of the
+     * definition of a connection. The compiled templates are derived from
+     * the parameters, and the parent is namespaced rather than copied.
+     *
+     * @param field
+     *     The field to test.
+     *
+     * @return
+     *     true if the given field must survive a merge unchanged, false
+     *     otherwise.
+     */
+    private static boolean isCopied(Field field) {
+        return !Modifier.isStatic(field.getModifiers())
+                && !field.getName().equals("templates")
+                && !field.getName().equals("parent");
+    }
+
+    /**
+     * Returns a new UserData.Connection in which every field has a distinct,
+     * non-default value.
+     *
+     * @return
+     *     A new UserData.Connection having every field set.
+     *
+     * @throws Exception
+     *     If a field cannot be set.
+     */
+    private static UserData.Connection createConnection() throws Exception {
+
+        UserData.Connection connection = new UserData.Connection();
+        int value = 1;
+
+        for (Field field : UserData.Connection.class.getDeclaredFields()) {
+
+            if (!isCopied(field))
+                continue;
+
+            field.setAccessible(true);
+            Class<?> type = field.getType();
+            if (type == String.class)
+                field.set(connection, field.getName() + "-value");
+            else if (type == int.class)
+                field.setInt(connection, ++value);
+            else if (type == Map.class)
+                field.set(connection, Collections.singletonMap(field.getName(), "value"));
+            else if (type == List.class)
+                field.set(connection, Collections.singletonList(new UserData.Target()));
+            else
+                fail("Field \"" + field.getName() + "\" has a type not handled by this test.");
+
+        }
+
+        connection.setParent("group");
+        return connection;
+
+    }
+
+    /**
+     * Verifies that every field of a connection from an additional callback
+     * survives being copied into a namespaced connection, and that the
+     * parent of the connection is namespaced.
+     *
+     * @throws Exception
+     *     If the fields of the connection cannot be accessed.
+     */
+    @Test
+    public void testNamespacedCopy() throws Exception {
+
+        UserData.Connection connection = createConnection();
+        UserData additional = new UserData();
+        additional.setConnections(Collections.singletonMap("rdp", connection));
+
+        Map<String, UserData> callbacks = new HashMap<String, UserData>();
+        callbacks.put(CALLBACK, additional);
+
+        UserData merged = new UserDataMerger(CallbackConfiguration.MERGE_POLICY_NAMESPACED)
+                .merge(new UserData(), callbacks);
+
+        char separator = CallbackConfiguration.NAMESPACE_SEPARATOR;
+        UserData.Connection copy = merged.getConnections().get(CALLBACK + separator + "rdp");
+        assertNotNull(copy);
+        assertEquals(CALLBACK + separator + "group", copy.getParent());
+
+        for (Field field : UserData.Connection.class.getDeclaredFields()) {
+            if (isCopied(field)) {
+                field.setAccessible(true);
+                assertEquals(field.getName(), field.get(connection), field.get(copy));
+            }
+        }
+
+    }
+
+}